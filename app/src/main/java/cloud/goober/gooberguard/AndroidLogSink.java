@@ -0,0 +1,23 @@
+package cloud.goober.gooberguard;
+
+import android.util.Log;
+
+/**
+ * Sends {@link AppLog} messages to logcat
+ */
+public class AndroidLogSink implements AppLog.Sink {
+    @Override
+    public void debug(String tag, String message) {
+        Log.d(tag, message);
+    }
+
+    @Override
+    public void warn(String tag, String message, Throwable error) {
+        Log.w(tag, message, error);
+    }
+
+    @Override
+    public void error(String tag, String message, Throwable error) {
+        Log.e(tag, message, error);
+    }
+}
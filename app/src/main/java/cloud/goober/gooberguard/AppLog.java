@@ -0,0 +1,69 @@
+package cloud.goober.gooberguard;
+
+/**
+ * Logging for classes that also run off Android, such as the packet
+ * parser in the JVM benchmarks. Messages go to whatever {@link Sink} is
+ * installed; the service installs {@link AndroidLogSink} when it is
+ * created. Until a sink is installed errors and warnings are printed to
+ * standard error and debug messages are dropped.
+ */
+public final class AppLog {
+    /**
+     * Where log messages end up
+     */
+    public interface Sink {
+        void debug(String tag, String message);
+
+        void warn(String tag, String message, Throwable error);
+
+        void error(String tag, String message, Throwable error);
+    }
+
+    static final Sink STANDARD_ERROR = new Sink() {
+        @Override
+        public void debug(String tag, String message) {
+        }
+
+        @Override
+        public void warn(String tag, String message, Throwable error) {
+            error(tag, message, error);
+        }
+
+        @Override
+        public void error(String tag, String message, Throwable error) {
+            System.err.println(tag + ": " + message);
+            if (error != null) {
+                error.printStackTrace();
+            }
+        }
+    };
+
+    private static volatile Sink sink = STANDARD_ERROR;
+
+    private AppLog() {
+    }
+
+    /**
+     * Send every later message to the given sink, or back to standard
+     * error if null
+     */
+    public static void setSink(Sink sink) {
+        AppLog.sink = sink != null ? sink : STANDARD_ERROR;
+    }
+
+    public static void d(String tag, String message) {
+        sink.debug(tag, message);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        sink.warn(tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        sink.error(tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        sink.error(tag, message, error);
+    }
+}
@@ -0,0 +1,114 @@
+package cloud.goober.gooberguard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-app rules layered over the global blocklist, keyed by app UID.
+ *
+ * Each app with custom rules has its own small {@link Blocklist} whose
+ * block and allow entries override the global list for that app's
+ * queries; names the app's list says nothing about fall through to the
+ * global list. Every app without custom rules simply uses the global
+ * list, so they all share one compiled matcher.
+ *
+ * UIDs are kept in a sorted array, so finding an app's list is a binary
+ * search over the few apps with rules. Every app's entries are also
+ * compiled into one combined list, which tells whether any app has a rule
+ * for a name at all; for other names the querying app does not matter and
+ * its UID need not be looked up. Safe to share between threads.
+ */
+public final class AppRules {
+    private static final AppRules EMPTY = new AppRules(new int[0], new Blocklist[0], Blocklist.empty());
+
+    private final int[] uids;
+    private final Blocklist[] lists;
+    private final Blocklist combined;
+
+    private AppRules(int[] uids, Blocklist[] lists, Blocklist combined) {
+        this.uids = uids;
+        this.lists = lists;
+        this.combined = combined;
+    }
+
+    public static AppRules empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param byUid each app's rules; apps with empty lists are left out
+     */
+    public static AppRules compile(Map<Integer, Blocklist> byUid) {
+        List<Integer> sorted = new ArrayList<>();
+        for (Map.Entry<Integer, Blocklist> entry : byUid.entrySet()) {
+            if (entry.getValue().size() > 0) {
+                sorted.add(entry.getKey());
+            }
+        }
+        if (sorted.isEmpty()) {
+            return EMPTY;
+        }
+        Collections.sort(sorted);
+
+        int[] uids = new int[sorted.size()];
+        Blocklist[] lists = new Blocklist[sorted.size()];
+        List<String> domains = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = sorted.get(i);
+            lists[i] = byUid.get(uids[i]);
+            for (String entry : lists[i].entries()) {
+                if (PatternRules.isPattern(entry)) {
+                    patterns.add(entry);
+                } else {
+                    domains.add(entry);
+                }
+            }
+        }
+        Blocklist combined = new Blocklist(DomainTrie.compile(domains), Collections.emptyList(),
+                Collections.emptyList(), PatternRules.compile(patterns), null);
+        return new AppRules(uids, lists, combined);
+    }
+
+    public boolean isEmpty() {
+        return uids.length == 0;
+    }
+
+    /**
+     * Number of apps with custom rules
+     */
+    public int size() {
+        return uids.length;
+    }
+
+    /**
+     * UIDs of the apps with custom rules, in ascending order
+     */
+    public int[] getUids() {
+        return Arrays.copyOf(uids, uids.length);
+    }
+
+    /**
+     * The app's own rules, or null if it has none and the global list
+     * applies
+     */
+    public Blocklist forUid(int uid) {
+        int index = Arrays.binarySearch(uids, uid);
+        return index >= 0 ? lists[index] : null;
+    }
+
+    /**
+     * Whether any app has a block or allow entry or rule for the name, so
+     * the answer may depend on which app asked. Does not allocate.
+     */
+    public boolean mentions(DnsQuestion question) {
+        return uids.length > 0 && combined.verdict(question) != Blocklist.NO_VERDICT;
+    }
+
+    public boolean mentions(String domain) {
+        return uids.length > 0 && combined.verdict(domain) != Blocklist.NO_VERDICT;
+    }
+}
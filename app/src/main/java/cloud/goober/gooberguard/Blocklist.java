@@ -0,0 +1,273 @@
+package cloud.goober.gooberguard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read-only snapshot of the stored blocklist: the compiled image plus the
+ * single-domain edits logged since the image was last written.
+ *
+ * The edits are kept as two small tries, one for entries added and one for
+ * image entries removed. With no pending edits a lookup is a single walk of
+ * the image; otherwise each trie reports which suffixes of the name it
+ * holds and the results are combined, so an edit never requires the image
+ * to be recompiled.
+ *
+ * Allow entries ("@@cdn.instagram.com") live in the same tries as block
+ * entries and come out of the same walk. The most specific entry decides,
+ * and allow wins when both are on the same domain. Wildcard and regular
+ * expression rules are compiled separately into {@link PatternRules} and
+ * only consulted for names that no trie entry blocks or allows.
+ *
+ * An optional {@link SuffixFilter} over the image's entries is checked
+ * first; when it rules out every suffix of the name, the image is not
+ * walked at all. Safe to share between threads.
+ *
+ * A snapshot may also carry {@link AppRules}, which override it for the
+ * apps that have their own rules; see {@link #matches(int, DnsQuestion)}.
+ */
+public final class Blocklist {
+    // Results of verdict(): what the list says about a name
+    static final int BLOCK = 1;
+    static final int ALLOW = -1;
+    static final int NO_VERDICT = 0;
+
+    private static final Blocklist EMPTY = new Blocklist(DomainTrie.compile(Collections.emptyList()),
+            Collections.emptyList(), Collections.emptyList());
+
+    private final DomainTrie image;
+    private final DomainTrie added;
+    private final DomainTrie removed;
+    private final boolean hasEdits;
+    private final PatternRules patterns;
+    // Null when the image is walked for every lookup
+    private final SuffixFilter filter;
+    // Null when no app has rules of its own
+    private final AppRules apps;
+
+    Blocklist(DomainTrie image, Collection<String> added, Collection<String> removed) {
+        this(image, added, removed, PatternRules.empty(), null);
+    }
+
+    /**
+     * @param added    domains added since the image was written, none of
+     *                 which are in the image
+     * @param removed  image entries removed since it was written
+     * @param patterns wildcard and regular expression rules
+     * @param filter   prefilter built from the image, or null for none
+     */
+    Blocklist(DomainTrie image, Collection<String> added, Collection<String> removed, PatternRules patterns,
+              SuffixFilter filter) {
+        this.image = image;
+        this.added = DomainTrie.compile(added);
+        this.removed = DomainTrie.compile(removed);
+        this.hasEdits = !added.isEmpty() || !removed.isEmpty();
+        this.patterns = patterns;
+        this.filter = filter;
+        this.apps = null;
+    }
+
+    private Blocklist(Blocklist list, AppRules apps) {
+        this.image = list.image;
+        this.added = list.added;
+        this.removed = list.removed;
+        this.hasEdits = list.hasEdits;
+        this.patterns = list.patterns;
+        this.filter = list.filter;
+        this.apps = apps;
+    }
+
+    public static Blocklist empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Check if a domain is blocked, either exactly or as a subdomain of a
+     * blocked entry, and not allowed by a more specific allow entry
+     */
+    public boolean matches(String domain) {
+        return verdict(domain) == BLOCK;
+    }
+
+    /**
+     * Check if the name in a parsed question is blocked. Does not allocate.
+     */
+    public boolean matches(DnsQuestion question) {
+        return verdict(question) == BLOCK;
+    }
+
+    /**
+     * Check if a domain is blocked for the app with the given UID: the
+     * app's own rules decide if they cover the name, and this list
+     * otherwise
+     */
+    public boolean matches(int uid, String domain) {
+        Blocklist own = apps != null ? apps.forUid(uid) : null;
+        int verdict = own != null ? own.verdict(domain) : NO_VERDICT;
+        return verdict != NO_VERDICT ? verdict == BLOCK : matches(domain);
+    }
+
+    /**
+     * Check if the name in a parsed question is blocked for the app with
+     * the given UID. Does not allocate.
+     */
+    public boolean matches(int uid, DnsQuestion question) {
+        Blocklist own = apps != null ? apps.forUid(uid) : null;
+        int verdict = own != null ? own.verdict(question) : NO_VERDICT;
+        return verdict != NO_VERDICT ? verdict == BLOCK : matches(question);
+    }
+
+    /**
+     * Whether some app has its own rule for the name, so the querying
+     * app's UID is needed to match it. Does not allocate.
+     */
+    public boolean dependsOnApp(DnsQuestion question) {
+        return apps != null && apps.mentions(question);
+    }
+
+    /**
+     * The same list with the given per-app rules on top
+     */
+    public Blocklist withAppRules(AppRules apps) {
+        return new Blocklist(this, apps == null || apps.isEmpty() ? null : apps);
+    }
+
+    public AppRules getAppRules() {
+        return apps != null ? apps : AppRules.empty();
+    }
+
+    /**
+     * The same list with more entries and rules on top, as if they had
+     * been logged as added. The image and prefilter are shared and the
+     * entries join the edit tries, so a lookup walks no more tries than
+     * one against a list with edits pending.
+     */
+    Blocklist withEntries(Collection<String> entries) {
+        Set<String> moreAdded = new LinkedHashSet<>(added.entries());
+        Set<String> fewerRemoved = new LinkedHashSet<>(removed.entries());
+        List<String> rules = new ArrayList<>(patterns.rules());
+        boolean newRules = false;
+        for (String entry : entries) {
+            if (PatternRules.isPattern(entry)) {
+                if (!patterns.contains(entry)) {
+                    rules.add(entry);
+                    newRules = true;
+                }
+            } else if (image.contains(entry)) {
+                // Overrides a logged removal
+                fewerRemoved.remove(entry);
+            } else {
+                moreAdded.add(entry);
+            }
+        }
+        Blocklist list = new Blocklist(image, moreAdded, fewerRemoved,
+                newRules ? PatternRules.compile(rules) : patterns, filter);
+        return apps != null ? new Blocklist(list, apps) : list;
+    }
+
+    /**
+     * BLOCK or ALLOW if an entry or rule on this list decides the name,
+     * NO_VERDICT if none covers it. Per-app rules are not consulted.
+     */
+    int verdict(String domain) {
+        long mask = suffixMask(domain);
+        if (DomainTrie.isBlocked(mask)) {
+            return BLOCK;
+        }
+        if (DomainTrie.isAllowed(mask)) {
+            return ALLOW;
+        }
+        return !patterns.isEmpty() && patterns.matches(domain) ? BLOCK : NO_VERDICT;
+    }
+
+    int verdict(DnsQuestion question) {
+        long mask = suffixMask(question);
+        if (DomainTrie.isBlocked(mask)) {
+            return BLOCK;
+        }
+        if (DomainTrie.isAllowed(mask)) {
+            return ALLOW;
+        }
+        return !patterns.isEmpty() && patterns.matches(question) ? BLOCK : NO_VERDICT;
+    }
+
+    /**
+     * Check if an allow entry on the domain or one of its parents overrides
+     * any block entries or rules
+     */
+    public boolean isAllowed(String domain) {
+        return DomainTrie.isAllowed(suffixMask(domain));
+    }
+
+    /**
+     * Check if the domain or rule itself is on the list, ignoring parent
+     * entries. Pass an "@@" entry to look for an allow entry.
+     */
+    public boolean contains(String domain) {
+        if (PatternRules.isPattern(domain)) {
+            return patterns.contains(domain);
+        }
+        return (image.contains(domain) && !removed.contains(domain)) || added.contains(domain);
+    }
+
+    /**
+     * Every entry and pattern rule on the list, in no particular order,
+     * allow entries with their "@@" prefix
+     */
+    public List<String> entries() {
+        List<String> entries = new ArrayList<>(size());
+        for (String domain : image.entries()) {
+            if (!hasEdits || !removed.contains(domain)) {
+                entries.add(domain);
+            }
+        }
+        entries.addAll(added.entries());
+        entries.addAll(patterns.rules());
+        return entries;
+    }
+
+    public int size() {
+        return image.size() - removed.size() + added.size() + patterns.size();
+    }
+
+    /**
+     * The compiled wildcard and regular expression rules
+     */
+    public PatternRules getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * The prefilter in front of the image, or null if there is none
+     */
+    public SuffixFilter getFilter() {
+        return filter;
+    }
+
+    private long suffixMask(String domain) {
+        long mask = filter == null || filter.mightMatch(domain) ? image.suffixMask(domain) : 0;
+        if (!hasEdits) {
+            return mask;
+        }
+        return (mask & ~removed.suffixMask(domain)) | added.suffixMask(domain);
+    }
+
+    private long suffixMask(DnsQuestion question) {
+        long mask = filter == null || filter.mightMatch(question) ? image.suffixMask(question) : 0;
+        if (!hasEdits) {
+            return mask;
+        }
+        return (mask & ~removed.suffixMask(question)) | added.suffixMask(question);
+    }
+
+    /**
+     * Number of logged edits not yet folded into the image
+     */
+    int pendingEdits() {
+        return added.size() + removed.size();
+    }
+}
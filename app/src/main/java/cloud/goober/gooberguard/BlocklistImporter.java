@@ -0,0 +1,362 @@
+package cloud.goober.gooberguard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams blocklists into a {@link DomainTrie} for one batched write to the
+ * {@link BlocklistStore}
+ *
+ * Understands three line formats, which may be mixed in one file:
+ * hosts files ("0.0.0.0 ads.example.com"), plain lists with one domain per
+ * line, and adblock-style "||ads.example.com^" rules. Wildcard entries
+ * ("ads*.example.com", "||*.doubleclick.*^") and "/regex/" lines are kept
+ * as {@link PatternRules}, and "@@||cdn.example.com^" exceptions become
+ * allow entries. Comments, blank lines, localhost aliases and adblock
+ * rules that are more than a domain block or exception are skipped.
+ *
+ * Input is scanned as bytes through a fixed buffer, so only accepted domains
+ * become Strings, and entries go straight into the trie builder, which also
+ * does the deduplication. Memory use is the size of the resulting trie, not
+ * of the input. Imported entries that sit beneath another entry are dropped
+ * when the import is compiled; entries already on the list are kept as-is.
+ */
+public class BlocklistImporter {
+
+    /**
+     * Reports how far a read has got. Called on the importing thread.
+     */
+    public interface ProgressListener {
+        void onProgress(long linesRead, long bytesRead);
+    }
+
+    static final int PROGRESS_INTERVAL_LINES = 10000;
+
+    // Lines longer than this are not domains and are skipped
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Set<String> LOCALHOST_NAMES = new HashSet<>(Arrays.asList(
+            "localhost", "localhost.localdomain", "local", "broadcasthost", "ip6-localhost",
+            "ip6-loopback", "ip6-localnet", "ip6-mcastprefix", "ip6-allnodes", "ip6-allrouters",
+            "ip6-allhosts"));
+
+    private final DomainTrie.Builder builder;
+    private final Set<String> patterns = new LinkedHashSet<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final long startNanos = System.nanoTime();
+
+    private long lineCount;
+    private long byteCount;
+    private int addedCount;
+    private int duplicateCount;
+    private int coveredCount;
+    private int rejectedCount;
+    private long elapsedNanos;
+
+    /**
+     * @param existing entries already on the list, which the import is merged
+     *                 into
+     */
+    public BlocklistImporter(Collection<String> existing) {
+        builder = new DomainTrie.Builder(existing.size());
+        for (String domain : existing) {
+            if (PatternRules.isPattern(domain)) {
+                patterns.add(domain);
+            } else {
+                builder.add(domain, false);
+            }
+        }
+    }
+
+    /**
+     * Read every line of the stream. May be called more than once to merge
+     * several lists. The stream is not closed.
+     */
+    public void read(InputStream in, ProgressListener listener) throws IOException {
+        int length = 0;
+        boolean skippingLongLine = false;
+        int n;
+        while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+            byteCount += n;
+            length += n;
+
+            int lineStart = 0;
+            for (int i = length - n; i < length; i++) {
+                if (buffer[i] != '\n') {
+                    continue;
+                }
+                if (skippingLongLine) {
+                    skippingLongLine = false;
+                } else {
+                    parseLine(lineStart, i);
+                }
+                lineStart = i + 1;
+                if (++lineCount % PROGRESS_INTERVAL_LINES == 0 && listener != null) {
+                    listener.onProgress(lineCount, byteCount);
+                }
+            }
+
+            // Keep the partial last line for the next read
+            length -= lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, length);
+            if (length == buffer.length) {
+                skippingLongLine = true;
+                length = 0;
+            }
+        }
+        if (length > 0) {
+            if (!skippingLongLine) {
+                parseLine(0, length);
+            }
+            lineCount++;
+        }
+        if (listener != null) {
+            listener.onProgress(lineCount, byteCount);
+        }
+    }
+
+    /**
+     * Drop covered subdomains and compile everything read so far
+     */
+    public DomainTrie compile() {
+        coveredCount = builder.pruneCovered();
+        addedCount -= coveredCount;
+        DomainTrie trie = builder.build();
+        elapsedNanos = System.nanoTime() - startNanos;
+        return trie;
+    }
+
+    /**
+     * Pattern rules on the list, existing and imported, to be stored with
+     * the compiled trie
+     */
+    public Set<String> getPatterns() {
+        return patterns;
+    }
+
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * New entries that made it onto the list
+     */
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    /**
+     * Entries that were already on the list or repeated in the input
+     */
+    public int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Entries dropped because a parent domain is blocked
+     */
+    public int getCoveredCount() {
+        return coveredCount;
+    }
+
+    /**
+     * Lines and tokens that could not be used as a domain
+     */
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Input lines handled per second, from construction to {@link #compile()}
+     */
+    public long getLinesPerSecond() {
+        long nanos = elapsedNanos > 0 ? elapsedNanos : System.nanoTime() - startNanos;
+        return nanos > 0 ? lineCount * TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+    }
+
+    private void parseLine(int start, int end) {
+        while (start < end && isSpace(buffer[start])) {
+            start++;
+        }
+        while (end > start && isSpace(buffer[end - 1])) {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+
+        byte first = buffer[start];
+        if (first == '#' || first == '!' || first == '[') {
+            // Comments and adblock list headers
+            return;
+        }
+        if (first == '|' && end - start > 2 && buffer[start + 1] == '|') {
+            parseAdblockRule(start + 2, end, false);
+            return;
+        }
+        if (first == '@' && end - start > 2 && buffer[start + 1] == '@') {
+            // Exceptions may be written with or without the "||" anchor
+            start += 2;
+            if (end - start > 2 && buffer[start] == '|' && buffer[start + 1] == '|') {
+                start += 2;
+            }
+            parseAdblockRule(start, end, true);
+            return;
+        }
+        if (first == '/' && end - start > 2 && buffer[end - 1] == '/') {
+            addPattern(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1));
+            return;
+        }
+
+        // Inline comment
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '#') {
+                end = i;
+                break;
+            }
+        }
+        while (end > start && isSpace(buffer[end - 1])) {
+            end--;
+        }
+
+        int tokenEnd = nextSpace(start, end);
+        if (isAddress(start, tokenEnd)) {
+            // Hosts file: an address followed by one or more names
+            int token = tokenEnd;
+            while (true) {
+                while (token < end && isSpace(buffer[token])) {
+                    token++;
+                }
+                if (token == end) {
+                    return;
+                }
+                int next = nextSpace(token, end);
+                addDomain(token, next, true, false);
+                token = next;
+            }
+        }
+
+        if (tokenEnd != end) {
+            // Plain lists hold a single domain per line
+            rejectedCount++;
+            return;
+        }
+        addDomain(start, end, false, false);
+    }
+
+    /**
+     * Only "||domain^" rules with no paths or options are domain blocks,
+     * and only "@@||domain^" ones are domain exceptions
+     */
+    private void parseAdblockRule(int start, int end, boolean allow) {
+        int caret = start;
+        while (caret < end && buffer[caret] != '^') {
+            caret++;
+        }
+        if (caret < end - 1) {
+            rejectedCount++;
+            return;
+        }
+        addDomain(start, caret, false, allow);
+    }
+
+    private void addDomain(int start, int end, boolean fromHosts, boolean allow) {
+        int length = end - start;
+        if (length == 0 || length > DnsQuestion.MAX_NAME_LENGTH) {
+            rejectedCount++;
+            return;
+        }
+        boolean wildcard = false;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '*') {
+                wildcard = true;
+            } else if (!isDomainChar(buffer[i])) {
+                rejectedCount++;
+                return;
+            }
+        }
+        if (wildcard && allow) {
+            // Exceptions are plain domains only
+            rejectedCount++;
+            return;
+        }
+        if (wildcard) {
+            addPattern(new String(buffer, start, length, StandardCharsets.ISO_8859_1));
+            return;
+        }
+        if (isAddress(start, end)) {
+            rejectedCount++;
+            return;
+        }
+
+        String domain = DomainTrie.normalize(new String(buffer, start, length, StandardCharsets.ISO_8859_1));
+        if (domain == null) {
+            rejectedCount++;
+            return;
+        }
+        if (fromHosts && LOCALHOST_NAMES.contains(domain)) {
+            return;
+        }
+        if (builder.add(allow ? DomainTrie.ALLOW_PREFIX + domain : domain, true)) {
+            addedCount++;
+        } else {
+            duplicateCount++;
+        }
+    }
+
+    private void addPattern(String rule) {
+        String normalized = PatternRules.normalize(rule);
+        if (normalized == null) {
+            rejectedCount++;
+        } else if (patterns.add(normalized)) {
+            addedCount++;
+        } else {
+            duplicateCount++;
+        }
+    }
+
+    /**
+     * An IPv6 address, or a dotted IPv4 address
+     */
+    private boolean isAddress(int start, int end) {
+        boolean dotted = false;
+        boolean colon = false;
+        boolean hex = false;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '.') {
+                dotted = true;
+            } else if (b == ':') {
+                colon = true;
+            } else if ((b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F')) {
+                hex = true;
+            } else if (b < '0' || b > '9') {
+                return false;
+            }
+        }
+        return colon || (dotted && !hex);
+    }
+
+    private int nextSpace(int start, int end) {
+        while (start < end && !isSpace(buffer[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private static boolean isDomainChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '-' || b == '_' || b == '.';
+    }
+}
@@ -0,0 +1,352 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the blocklist snapshot the packet loop matches against and swaps
+ * in a new one when the stored list changes.
+ *
+ * Loading runs on a background thread. The packet loop keeps matching
+ * against the previous snapshot until the new one is completely built,
+ * then picks it up on its next read of {@link #get()}; a snapshot is never
+ * published half-built and lookups never wait on a load. Reload requests
+ * that arrive while one is already queued are folded into it.
+ *
+ * With {@link ScheduledRules} the same thread doubles as the one timer for
+ * schedule boundaries. The snapshot for the interval after the next
+ * boundary is compiled ahead of time and swapped in when it comes, so the
+ * packet loop never reads the clock. Cached answers for names the swap
+ * blocks are dropped from the cache given to {@link #setCache(DnsCache)}.
+ *
+ * That timer counts elapsed time, which stops while the device is in deep
+ * sleep, so on its own a boundary can pass hours late. Each boundary is
+ * therefore also handed to a {@link BoundaryListener}, which on Android
+ * sets an alarm that calls {@link #requestReschedule()} when the boundary
+ * comes. Whichever fires first swaps the snapshot; the other finds nothing
+ * to do.
+ */
+public class BlocklistReloader implements Closeable {
+    private static final String TAG = "BlocklistReloader";
+
+    /**
+     * Produces a fresh snapshot of the stored list
+     */
+    public interface Loader {
+        Blocklist load() throws IOException;
+    }
+
+    /**
+     * Produces the stored rule groups and their schedules
+     */
+    public interface ScheduleLoader {
+        ScheduledRules load() throws IOException;
+    }
+
+    /**
+     * Told when the next schedule boundary is, to wake the device for it
+     */
+    public interface BoundaryListener {
+        /**
+         * @param epochMillis wall clock time of the next boundary, or -1 if
+         *                    there is none
+         */
+        void onNextBoundary(long epochMillis);
+    }
+
+    private final AtomicReference<Blocklist> current;
+    private final Loader loader;
+    private final ScheduleLoader scheduleLoader;
+    private final Clock clock;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean reloadQueued = new AtomicBoolean();
+    private final AtomicLong swapCount = new AtomicLong();
+    private final AtomicLong boundaryCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong precompileCount = new AtomicLong();
+    private volatile DnsCache cache;
+    private volatile BoundaryListener boundaryListener;
+
+    // Only touched on the executor thread once constructed
+    private Blocklist base;
+    private ScheduledRules rules;
+    private boolean[] active;
+    private LocalDateTime nextChange;
+    private boolean[] nextActive;
+    private Blocklist upcoming;
+    // What upcoming was built from
+    private Blocklist upcomingBase;
+    private ScheduledRules upcomingRules;
+    private ScheduledFuture<?> boundary;
+
+    public BlocklistReloader(Blocklist initial, Loader loader) {
+        this(initial, ScheduledRules.empty(), loader, ScheduledRules::empty, defaultZoneClock());
+    }
+
+    /**
+     * @param initialBase   the stored list without any rule groups
+     * @param initialRules  the stored rule groups
+     * @param clock         local time the schedules are read in; see
+     *                      {@link #defaultZoneClock()}
+     */
+    public BlocklistReloader(Blocklist initialBase, ScheduledRules initialRules, Loader loader,
+                             ScheduleLoader scheduleLoader, Clock clock) {
+        this.loader = loader;
+        this.scheduleLoader = scheduleLoader;
+        this.clock = clock;
+        this.base = initialBase;
+        this.rules = initialRules;
+        LocalDateTime now = LocalDateTime.now(clock);
+        this.active = initialRules.activeAt(now);
+        this.current = new AtomicReference<>(initialRules.apply(initialBase, active));
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BlocklistReload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!initialRules.isEmpty()) {
+            executor.execute(() -> scheduleNext(now));
+        }
+    }
+
+    /**
+     * The system clock in whatever the default time zone is at each call.
+     * Clock.systemDefaultZone() keeps the zone it was made in, which would
+     * leave schedules on the old zone after the device's zone changes.
+     */
+    public static Clock defaultZoneClock() {
+        return DefaultZoneClock.INSTANCE;
+    }
+
+    /**
+     * The latest fully built snapshot. Cheap enough to call per packet.
+     */
+    public Blocklist get() {
+        return current.get();
+    }
+
+    /**
+     * Drop answers from the given cache for names a schedule boundary
+     * blocks, or stop if null
+     */
+    public void setCache(DnsCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Report each upcoming schedule boundary to the given listener, from
+     * the reload thread, or stop if null. Takes effect from the next
+     * boundary set, so call {@link #requestReschedule()} after.
+     */
+    public void setBoundaryListener(BoundaryListener listener) {
+        this.boundaryListener = listener;
+    }
+
+    /**
+     * Load the stored list again in the background and publish it once built
+     */
+    public void requestReload() {
+        if (!reloadQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::reload);
+        } catch (RejectedExecutionException e) {
+            // Closed
+            reloadQueued.set(false);
+        }
+    }
+
+    /**
+     * Work out again which rule groups apply and when the next boundary
+     * is, such as after the clock or time zone changes or a boundary alarm.
+     * The new zone is picked up if the clock reads the default zone each
+     * time. Cheap when nothing has changed.
+     */
+    public void requestReschedule() {
+        try {
+            executor.execute(this::reschedule);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    public long getSwapCount() {
+        return swapCount.get();
+    }
+
+    /**
+     * Times the set of rule groups that apply has changed
+     */
+    public long getBoundaryCount() {
+        return boundaryCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Times a snapshot was compiled ahead of a schedule boundary
+     */
+    long getPrecompileCount() {
+        return precompileCount.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void reload() {
+        // Changes made from here on need another load
+        reloadQueued.set(false);
+
+        Blocklist next;
+        LocalDateTime now;
+        long start = System.nanoTime();
+        try {
+            Blocklist loaded = loader.load();
+            ScheduledRules groups = scheduleLoader.load();
+            now = LocalDateTime.now(clock);
+            next = groups.apply(loaded, now);
+            base = loaded;
+            rules = groups;
+        } catch (IOException | RuntimeException e) {
+            // Keep matching against the last good list
+            failureCount.incrementAndGet();
+            AppLog.e(TAG, "Error reloading blocklist", e);
+            return;
+        }
+        publish(next, false, now);
+        swapCount.incrementAndGet();
+        AppLog.d(TAG, "Swapped in blocklist of " + next.size() + " domains in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    private void reschedule() {
+        swapTo(LocalDateTime.now(clock));
+    }
+
+    private void crossBoundary() {
+        // The timer runs on elapsed time, which may drift from the wall
+        // clock; never treat the boundary as not yet reached
+        LocalDateTime now = LocalDateTime.now(clock);
+        if (now.isBefore(nextChange)) {
+            now = nextChange;
+        }
+        swapTo(now);
+    }
+
+    /**
+     * Swap in the snapshot for the groups that apply at the given time,
+     * the precompiled one if it fits, and set the next boundary
+     */
+    private void swapTo(LocalDateTime now) {
+        boolean[] activeNow = rules.activeAt(now);
+        if (Arrays.equals(activeNow, active)) {
+            // Swapped already, or one window ended as another with the
+            // same groups began
+            scheduleNext(now);
+            return;
+        }
+        Blocklist next = Arrays.equals(activeNow, nextActive) ? upcoming : rules.apply(base, activeNow);
+        publish(next, true, now);
+        // Counted once the snapshot is out and the cache flushed
+        boundaryCount.incrementAndGet();
+    }
+
+    private void publish(Blocklist next, boolean flushCache, LocalDateTime now) {
+        Blocklist previous = current.getAndSet(next);
+        DnsCache answers = cache;
+        if (flushCache && answers != null && next != previous) {
+            int dropped = answers.removeIf(name -> next.matches(name) && !previous.matches(name));
+            AppLog.d(TAG, "Dropped " + dropped + " cached answers for newly blocked names");
+        }
+        scheduleNext(now);
+    }
+
+    /**
+     * Compile the snapshot for after the next boundary, unless the one
+     * already compiled still fits, and set the timer
+     */
+    private void scheduleNext(LocalDateTime now) {
+        if (boundary != null) {
+            boundary.cancel(false);
+            boundary = null;
+        }
+        active = rules.activeAt(now);
+        LocalDateTime change = rules.nextChange(now);
+        BoundaryListener listener = boundaryListener;
+        if (change == null) {
+            nextChange = null;
+            upcoming = null;
+            upcomingBase = null;
+            upcomingRules = null;
+            nextActive = null;
+            if (listener != null) {
+                listener.onNextBoundary(-1);
+            }
+            return;
+        }
+        boolean[] activeAfter = rules.activeAt(change);
+        // Screen-on and unlock reschedules mostly find the same boundary,
+        // and compiling can mean rebuilding pattern automata
+        if (upcoming == null || upcomingBase != base || upcomingRules != rules
+                || !change.equals(nextChange) || !Arrays.equals(activeAfter, nextActive)) {
+            upcoming = rules.apply(base, activeAfter);
+            upcomingBase = base;
+            upcomingRules = rules;
+            precompileCount.incrementAndGet();
+        }
+        nextChange = change;
+        nextActive = activeAfter;
+        long delay = Duration.between(now.atZone(clock.getZone()), nextChange.atZone(clock.getZone())).toMillis();
+        if (listener != null) {
+            listener.onNextBoundary(nextChange.atZone(clock.getZone()).toInstant().toEpochMilli());
+        }
+        try {
+            boundary = executor.schedule(this::crossBoundary, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    private static final class DefaultZoneClock extends Clock {
+        static final DefaultZoneClock INSTANCE = new DefaultZoneClock();
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneId.systemDefault();
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return Clock.system(zone);
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.now();
+        }
+
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+    }
+}
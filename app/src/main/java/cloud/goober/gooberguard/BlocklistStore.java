@@ -0,0 +1,361 @@
+package cloud.goober.gooberguard;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk blocklist: a compiled {@link DomainTrie} image plus an
+ * append-only log of single-domain edits, and a small text file of
+ * wildcard and regular expression rules. Allow entries are stored and
+ * logged like block entries, with their "@@" prefix.
+ *
+ * The image is memory-mapped when loaded and queried in place, so opening a
+ * large list costs one pass checking its offsets rather than a parse. Adding or removing
+ * one domain appends a short record to the log; once the log grows past
+ * {@link #COMPACT_LOG_BYTES} the next edit folds it into a fresh image. The
+ * image is replaced by writing a temporary file and renaming it over the
+ * old one, so readers see either the old list or the new one. Pattern
+ * rules are few and compiled as a whole, so each edit rewrites their file
+ * the same way.
+ */
+public class BlocklistStore {
+    private static final String TAG = "BlocklistStore";
+
+    static final String IMAGE_FILE_NAME = "blocklist.img";
+    static final String LOG_FILE_NAME = "blocklist.log";
+    static final String RULES_FILE_NAME = "blocklist.rules";
+
+    /**
+     * Log size at which edits are folded into a new image
+     */
+    static final int COMPACT_LOG_BYTES = 64 * 1024;
+
+    // Log records are an op byte, a length byte and the normalized name
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    // Stores for the same directory may be open on several threads; file
+    // updates and loads are serialized across all of them
+    private static final Object LOCK = new Object();
+
+    private final File imageFile;
+    private final File logFile;
+    private final File rulesFile;
+    // Zero when loaded lists get no prefilter
+    private final double filterFalsePositiveRate;
+
+    /**
+     * Store whose loaded lists have no {@link SuffixFilter}, for editing
+     * and display
+     */
+    public BlocklistStore(File directory) {
+        this(directory, 0);
+    }
+
+    /**
+     * @param filterFalsePositiveRate rate each loaded list's
+     *                                {@link SuffixFilter} is built for, or
+     *                                zero to build none
+     */
+    public BlocklistStore(File directory, double filterFalsePositiveRate) {
+        imageFile = new File(directory, IMAGE_FILE_NAME);
+        logFile = new File(directory, LOG_FILE_NAME);
+        rulesFile = new File(directory, RULES_FILE_NAME);
+        this.filterFalsePositiveRate = filterFalsePositiveRate;
+    }
+
+    /**
+     * Whether anything has been stored yet
+     */
+    public boolean exists() {
+        return imageFile.exists() || logFile.exists() || rulesFile.exists();
+    }
+
+    /**
+     * Map the image and replay the edit log on top of it. The prefilter, if
+     * any, is rebuilt from the image each time.
+     */
+    public Blocklist load() throws IOException {
+        synchronized (LOCK) {
+            DomainTrie image = mapImage();
+            Set<String> added = new LinkedHashSet<>();
+            Set<String> removed = new LinkedHashSet<>();
+
+            byte[] log = readLog();
+            int end = validLength(log);
+            for (int position = 0; position < end; position += 2 + (log[position + 1] & 0xFF)) {
+                String domain = new String(log, position + 2, log[position + 1] & 0xFF,
+                        StandardCharsets.ISO_8859_1);
+                if (log[position] == OP_ADD) {
+                    // Re-adding a removed image entry just cancels the removal
+                    if (!removed.remove(domain) && !image.contains(domain)) {
+                        added.add(domain);
+                    }
+                } else if (log[position] == OP_REMOVE) {
+                    if (!added.remove(domain) && image.contains(domain)) {
+                        removed.add(domain);
+                    }
+                }
+            }
+            return new Blocklist(image, added, removed, loadPatterns(), buildFilter(image));
+        }
+    }
+
+    /**
+     * Replace the stored list with the given domains and pattern rules and
+     * clear the log
+     */
+    public void write(Collection<String> entries) throws IOException {
+        List<String> domains = new ArrayList<>(entries.size());
+        List<String> patterns = new ArrayList<>();
+        for (String entry : entries) {
+            if (PatternRules.isPattern(entry)) {
+                patterns.add(entry);
+            } else {
+                domains.add(entry);
+            }
+        }
+        write(DomainTrie.compile(domains), patterns);
+    }
+
+    /**
+     * Replace the stored list with an already compiled trie and the given
+     * pattern rules, and clear the log
+     */
+    public void write(DomainTrie trie, Collection<String> patterns) throws IOException {
+        ByteBuffer image = ByteBuffer.allocate(trie.imageSize());
+        trie.writeImage(image);
+        image.flip();
+
+        synchronized (LOCK) {
+            File temp = new File(imageFile.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                FileChannel channel = out.getChannel();
+                while (image.hasRemaining()) {
+                    channel.write(image);
+                }
+                channel.force(true);
+            }
+            if (!temp.renameTo(imageFile)) {
+                temp.delete();
+                throw new IOException("Could not replace " + imageFile);
+            }
+            // Every logged edit is part of the new image now
+            if (logFile.exists() && !logFile.delete()) {
+                throw new IOException("Could not clear " + logFile);
+            }
+            writePatterns(patterns);
+        }
+    }
+
+    /**
+     * Log a single domain, or store a pattern rule, as added. Malformed
+     * names and rules are ignored.
+     */
+    public void add(String domain) throws IOException {
+        if (PatternRules.isPattern(domain)) {
+            editPatterns(domain, true);
+        } else {
+            append(OP_ADD, domain);
+        }
+    }
+
+    /**
+     * Log a single domain, or a pattern rule, as removed. Malformed names
+     * are ignored.
+     */
+    public void remove(String domain) throws IOException {
+        if (PatternRules.isPattern(domain)) {
+            editPatterns(domain, false);
+        } else {
+            append(OP_REMOVE, domain);
+        }
+    }
+
+    /**
+     * Fold the edit log into a new image
+     */
+    public void compact() throws IOException {
+        synchronized (LOCK) {
+            write(load().entries());
+        }
+    }
+
+    private void append(byte op, String domain) throws IOException {
+        domain = DomainTrie.normalize(domain);
+        if (domain == null) {
+            return;
+        }
+        byte[] name = domain.getBytes(StandardCharsets.ISO_8859_1);
+        if (name.length > 0xFF) {
+            return;
+        }
+        byte[] record = new byte[2 + name.length];
+        record[0] = op;
+        record[1] = (byte) name.length;
+        System.arraycopy(name, 0, record, 2, name.length);
+
+        synchronized (LOCK) {
+            long logLength;
+            try (RandomAccessFile log = new RandomAccessFile(logFile, "rw")) {
+                // Drop a record torn by a crash mid-write so this one is
+                // not read as part of it
+                byte[] contents = new byte[(int) log.length()];
+                log.readFully(contents);
+                int end = validLength(contents);
+                if (end != contents.length) {
+                    log.setLength(end);
+                }
+                log.seek(end);
+                log.write(record);
+                logLength = end + record.length;
+            }
+            if (logLength > COMPACT_LOG_BYTES) {
+                compact();
+            }
+        }
+    }
+
+    private void editPatterns(String rule, boolean add) throws IOException {
+        rule = PatternRules.normalize(rule);
+        if (rule == null) {
+            return;
+        }
+        synchronized (LOCK) {
+            Set<String> patterns = new LinkedHashSet<>(readPatterns());
+            if (add ? patterns.add(rule) : patterns.remove(rule)) {
+                writePatterns(patterns);
+            }
+        }
+    }
+
+    private SuffixFilter buildFilter(DomainTrie image) {
+        if (filterFalsePositiveRate <= 0 || image.size() == 0) {
+            return null;
+        }
+        long start = System.nanoTime();
+        SuffixFilter filter = SuffixFilter.build(image, filterFalsePositiveRate);
+        AppLog.d(TAG, String.format(Locale.ROOT, "Built prefilter for %d entries: %.1f bits per entry, %d hashes,"
+                        + " %d bytes, target false positive rate %.4f, in %d us",
+                filter.getEntryCount(), filter.getBitsPerEntry(), filter.getHashCount(), filter.getMemoryBytes(),
+                filter.getFalsePositiveRate(), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+        return filter;
+    }
+
+    private PatternRules loadPatterns() throws IOException {
+        PatternRules patterns = PatternRules.compile(readPatterns());
+        if (!patterns.isEmpty()) {
+            AppLog.d(TAG, "Compiled " + patterns.size() + " pattern rules into " + patterns.getAutomatonCount()
+                    + " automata, " + patterns.getStateCount() + " states, " + patterns.getMemoryBytes()
+                    + " bytes in " + TimeUnit.NANOSECONDS.toMicros(patterns.getCompileNanos()) + " us"
+                    + (patterns.getRejectedCount() > 0 ? ", " + patterns.getRejectedCount() + " rejected" : ""));
+        }
+        return patterns;
+    }
+
+    private List<String> readPatterns() throws IOException {
+        List<String> patterns = new ArrayList<>();
+        if (!rulesFile.exists()) {
+            return patterns;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(rulesFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    patterns.add(line);
+                }
+            }
+        }
+        return patterns;
+    }
+
+    private void writePatterns(Collection<String> patterns) throws IOException {
+        if (patterns.isEmpty()) {
+            if (rulesFile.exists() && !rulesFile.delete()) {
+                throw new IOException("Could not clear " + rulesFile);
+            }
+            return;
+        }
+        StringBuilder contents = new StringBuilder();
+        for (String pattern : patterns) {
+            String normalized = PatternRules.normalize(pattern);
+            if (normalized != null) {
+                contents.append(normalized).append('\n');
+            }
+        }
+        File temp = new File(rulesFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(contents.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(rulesFile)) {
+            temp.delete();
+            throw new IOException("Could not replace " + rulesFile);
+        }
+    }
+
+    private DomainTrie mapImage() throws IOException {
+        if (!imageFile.exists()) {
+            return DomainTrie.compile(Collections.emptyList());
+        }
+        try (RandomAccessFile file = new RandomAccessFile(imageFile, "r")) {
+            // The mapping stays valid after the file is closed or replaced
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return DomainTrie.fromImage(buffer);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unreadable blocklist image " + imageFile, e);
+        }
+    }
+
+    private byte[] readLog() throws IOException {
+        if (!logFile.exists()) {
+            return new byte[0];
+        }
+        try (FileInputStream in = new FileInputStream(logFile)) {
+            byte[] contents = new byte[(int) logFile.length()];
+            int read = 0;
+            while (read < contents.length) {
+                int n = in.read(contents, read, contents.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return read == contents.length ? contents : Arrays.copyOf(contents, read);
+        }
+    }
+
+    /**
+     * Length of the log up to the end of its last complete record
+     */
+    private static int validLength(byte[] log) {
+        int position = 0;
+        while (position + 2 <= log.length) {
+            int next = position + 2 + (log[position + 1] & 0xFF);
+            if (next > log.length) {
+                break;
+            }
+            position = next;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,471 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * In-memory cache of upstream DNS responses keyed by (qname, qtype, qclass)
+ * and whether the query asked for DNSSEC records
+ *
+ * Positive answers live for the minimum TTL of their answer records.
+ * NXDOMAIN and NODATA answers are cached per RFC 2308 for the lesser of
+ * the SOA record's TTL and MINIMUM field. Entries are kept in LRU order and
+ * evicted once the total size exceeds a byte budget. A hit is copied into
+ * the caller's buffer with the client's transaction ID and question bytes,
+ * and with TTLs counted down by the time the entry has been cached.
+ *
+ * Responses are stored without their EDNS OPT record; a hit gets a fresh
+ * one if the query had one. Hits served over UDP are cut down to header and
+ * question with TC set when they are larger than the client takes, so a
+ * response first fetched over TCP, DoT or DoH is never sent oversized.
+ *
+ * Thread safe; lookups come from the VPN thread and inserts from the
+ * forwarder thread.
+ */
+public class DnsCache {
+    static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+    static final int DEFAULT_MAX_TTL_SECONDS = 24 * 60 * 60;
+
+    // Rough per-entry bookkeeping cost counted against the byte budget
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static final int DNS_HEADER_SIZE = 12;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private final int maxBytes;
+    private final int maxTtlSeconds;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    // Reused for lookups so a probe does not allocate; guarded by this
+    private final Key probe = new Key();
+    private final DnsQuestion responseQuestion = new DnsQuestion();
+    private int currentBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public DnsCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_TTL_SECONDS);
+    }
+
+    public DnsCache(int maxBytes, int maxTtlSeconds) {
+        this.maxBytes = maxBytes;
+        this.maxTtlSeconds = maxTtlSeconds;
+    }
+
+    /**
+     * Copy a cached response for the question into out, flipped and whole,
+     * for a stream transport such as TCP. Returns false on a miss, an
+     * expired entry, or if out is too small.
+     */
+    public boolean get(DnsQuestion question, ByteBuffer out) {
+        return get(question, out, false, nowMillis());
+    }
+
+    /**
+     * Copy a cached response for the question into out, flipped and ready
+     * to be wrapped in a UDP packet. A response larger than the query's EDNS
+     * UDP size, 512 bytes without EDNS, or out's capacity is cut down with
+     * TC set. Returns false on a miss or an expired entry.
+     */
+    public boolean getForUdp(DnsQuestion question, ByteBuffer out) {
+        return get(question, out, true, nowMillis());
+    }
+
+    boolean get(DnsQuestion question, ByteBuffer out, long now) {
+        return get(question, out, false, now);
+    }
+
+    synchronized boolean get(DnsQuestion question, ByteBuffer out, boolean udp, long now) {
+        ByteBuffer query = question.packet();
+        int optFlags = Edns.optFlags(query, question.dnsOffset(), question.endOffset());
+        probe.set(question, dnssec(optFlags));
+        Entry entry = entries.get(probe);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return false;
+        }
+        if (now >= entry.expiresAt) {
+            remove(probe);
+            missCount.incrementAndGet();
+            return false;
+        }
+        int size = entry.response.length + (optFlags >= 0 ? Edns.OPT_SIZE : 0);
+        int limit = udp ? Math.min(out.capacity(),
+                Edns.udpPayloadLimit(query, question.dnsOffset(), question.endOffset())) : out.capacity();
+        boolean truncate = size > limit;
+        if (truncate && (!udp || out.capacity() < Edns.MAX_TRUNCATED_SIZE)) {
+            missCount.incrementAndGet();
+            return false;
+        }
+
+        if (truncate) {
+            Edns.writeTruncated(ByteBuffer.wrap(entry.response), 0,
+                    DNS_HEADER_SIZE + question.nameLength() + 4, optFlags, out);
+        } else {
+            out.clear();
+            out.put(entry.response);
+            if (optFlags >= 0) {
+                out.putShort(10, (short) (out.getShort(10) + 1));
+                Edns.putOpt(out, optFlags);
+            }
+            out.flip();
+        }
+
+        // Client's transaction ID, and its question bytes so any 0x20 case
+        // randomization survives
+        out.putShort(0, (short) question.transactionId());
+        for (int i = 0; i < question.nameLength(); i++) {
+            out.put(DNS_HEADER_SIZE + i, query.get(question.nameOffset() + i));
+        }
+        hitCount.incrementAndGet();
+        if (truncate) {
+            return true;
+        }
+
+        int elapsedSeconds = (int) ((now - entry.storedAt) / 1000);
+        for (int offset : entry.ttlOffsets) {
+            int ttl = out.getInt(offset);
+            out.putInt(offset, Math.max(0, ttl - elapsedSeconds));
+        }
+        return true;
+    }
+
+    /**
+     * Cache a DNS response held in message[offset, offset + length) to the
+     * given query. The entry is keyed on the response's question, so a
+     * response that does not repeat the query's question is ignored, as
+     * are responses that are truncated, failed, or carry no usable TTL,
+     * and those with records after their OPT record.
+     */
+    public void put(DnsQuestion query, ByteBuffer message, int offset, int length) {
+        put(query, message, offset, length, nowMillis());
+    }
+
+    /**
+     * Cache a response without checking it against a query, for tests
+     */
+    void put(ByteBuffer message, int offset, int length) {
+        put(null, message, offset, length, nowMillis());
+    }
+
+    void put(ByteBuffer message, int offset, int length, long now) {
+        put(null, message, offset, length, now);
+    }
+
+    synchronized void put(DnsQuestion query, ByteBuffer message, int offset, int length, long now) {
+        ByteBuffer view = message.duplicate();
+        view.limit(offset + length);
+        if (length < DNS_HEADER_SIZE || !responseQuestion.parse(view, offset)) {
+            return;
+        }
+        if (query != null && !responseQuestion.sameQuestion(query)) {
+            // Would answer the query's name with another name's records
+            responseQuestion.reset();
+            return;
+        }
+
+        int flags = view.getShort(offset + 2) & 0xFFFF;
+        boolean isResponse = (flags & 0x8000) != 0;
+        boolean truncated = (flags & 0x0200) != 0;
+        int rcode = flags & 0x000F;
+        if (!isResponse || truncated || (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)) {
+            return;
+        }
+
+        // Whether DNSSEC records were asked for; a server echoes DO
+        int optFlags = query != null ? Edns.optFlags(query.packet(), query.dnsOffset(), query.endOffset())
+                : Edns.optFlags(view, offset, responseQuestion.endOffset());
+
+        byte[] response = new byte[length];
+        for (int i = 0; i < length; i++) {
+            response[i] = view.get(offset + i);
+        }
+        int questionEnd = responseQuestion.endOffset() - offset;
+        ByteBuffer stored = ByteBuffer.wrap(response);
+        int opt = Edns.findOpt(stored, 0, questionEnd);
+        if (opt >= 0) {
+            // Each hit gets an OPT record for its own query
+            if (!Edns.removeOpt(stored, 0, opt)) {
+                return;
+            }
+            response = Arrays.copyOf(response, stored.limit());
+            stored = ByteBuffer.wrap(response);
+        }
+        Entry entry = new Entry();
+        int ttl = scanTtls(stored, rcode, questionEnd, entry);
+        if (ttl <= 0) {
+            return;
+        }
+
+        probe.set(responseQuestion, dnssec(optFlags));
+        Key key = probe.copy();
+
+        entry.response = response;
+        entry.storedAt = now;
+        entry.expiresAt = now + Math.min(ttl, maxTtlSeconds) * 1000L;
+        entry.size = response.length + key.nameLength + ENTRY_OVERHEAD;
+        if (entry.size > maxBytes) {
+            return;
+        }
+
+        remove(key);
+        entries.put(key, entry);
+        currentBytes += entry.size;
+        evict();
+    }
+
+    /**
+     * Drop every cached entry
+     */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Drop the entries for names the predicate accepts, given in dotted
+     * lowercase form. Returns how many were dropped.
+     */
+    public synchronized int removeIf(Predicate<String> names) {
+        int count = 0;
+        StringBuilder name = new StringBuilder();
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if (names.test(entry.getKey().toDomain(name))) {
+                iterator.remove();
+                currentBytes -= entry.getValue().size;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int sizeInBytes() {
+        return currentBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            currentBytes -= eldest.size;
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            currentBytes -= removed.size;
+        }
+    }
+
+    /**
+     * Walk the resource records after the question, recording where each
+     * TTL field is in the entry. Returns the TTL to cache the response for,
+     * or -1 if it should not be cached.
+     */
+    private static int scanTtls(ByteBuffer response, int rcode, int position, Entry entry) {
+        int answers = response.getShort(6) & 0xFFFF;
+        int authorities = response.getShort(8) & 0xFFFF;
+        int additionals = response.getShort(10) & 0xFFFF;
+        int total = answers + authorities + additionals;
+        if (total * 11 > response.limit() - position) {
+            // Every record needs at least 11 bytes; the counts are bogus
+            return -1;
+        }
+        int[] offsets = new int[total];
+        int offsetCount = 0;
+
+        int minAnswerTtl = Integer.MAX_VALUE;
+        int negativeTtl = -1;
+        int limit = response.limit();
+
+        for (int record = 0; record < total; record++) {
+            position = skipName(response, position);
+            if (position < 0 || position + 10 > limit) {
+                return -1;
+            }
+            int type = response.getShort(position) & 0xFFFF;
+            int ttl = response.getInt(position + 4);
+            int dataLength = response.getShort(position + 8) & 0xFFFF;
+            int dataStart = position + 10;
+            if (dataStart + dataLength > limit) {
+                return -1;
+            }
+            if (ttl < 0) {
+                // RFC 2181: treat TTLs with the top bit set as zero
+                ttl = 0;
+            }
+
+            if (type != TYPE_OPT) {
+                offsets[offsetCount++] = position + 4;
+            }
+            if (record < answers) {
+                minAnswerTtl = Math.min(minAnswerTtl, ttl);
+            } else if (record < answers + authorities && type == TYPE_SOA) {
+                // SOA MINIMUM is the last 32-bit field of the RDATA
+                if (dataLength >= 20) {
+                    int minimum = response.getInt(dataStart + dataLength - 4);
+                    negativeTtl = Math.min(ttl, Math.max(0, minimum));
+                }
+            }
+            position = dataStart + dataLength;
+        }
+
+        entry.ttlOffsets = offsetCount == offsets.length ? offsets : Arrays.copyOf(offsets, offsetCount);
+        if (rcode == RCODE_NOERROR && answers > 0) {
+            return minAnswerTtl;
+        }
+        // NXDOMAIN, or NOERROR with no answers (NODATA)
+        return negativeTtl;
+    }
+
+    /**
+     * Return the offset just past a possibly compressed name, or -1
+     */
+    private static int skipName(ByteBuffer message, int position) {
+        int limit = message.limit();
+        while (position < limit) {
+            int length = message.get(position) & 0xFF;
+            if (length == 0) {
+                return position + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                // A pointer ends the name
+                return position + 2 <= limit ? position + 2 : -1;
+            }
+            if (length > DnsQuestion.MAX_LABEL_LENGTH) {
+                return -1;
+            }
+            position += 1 + length;
+        }
+        return -1;
+    }
+
+    private static boolean dnssec(int optFlags) {
+        return optFlags >= 0 && (optFlags & Edns.FLAG_DO) != 0;
+    }
+
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Lowercased wire-format name plus type, class and the DO bit
+     */
+    private static final class Key {
+        byte[] name = new byte[DnsQuestion.MAX_NAME_LENGTH];
+        int nameLength;
+        int qtype;
+        int qclass;
+        boolean dnssec;
+        int hash;
+
+        void set(DnsQuestion question, boolean dnssec) {
+            ByteBuffer packet = question.packet();
+            int offset = question.nameOffset();
+            nameLength = question.nameLength();
+            int h = 1;
+            for (int i = 0; i < nameLength; i++) {
+                byte b = (byte) DomainTrie.toLowerAscii(packet.get(offset + i) & 0xFF);
+                name[i] = b;
+                h = 31 * h + b;
+            }
+            qtype = question.qtype();
+            qclass = question.qclass();
+            this.dnssec = dnssec;
+            hash = 31 * (31 * (31 * h + qtype) + qclass) + (dnssec ? 1 : 0);
+        }
+
+        /**
+         * The name in dotted form, built in the given scratch builder
+         */
+        String toDomain(StringBuilder out) {
+            out.setLength(0);
+            int position = 0;
+            // Stored names are uncompressed and end with the root label
+            while (position < nameLength && name[position] != 0) {
+                int length = name[position] & 0xFF;
+                if (out.length() > 0) {
+                    out.append('.');
+                }
+                for (int i = 1; i <= length && position + i < nameLength; i++) {
+                    out.append((char) (name[position + i] & 0xFF));
+                }
+                position += 1 + length;
+            }
+            return out.toString();
+        }
+
+        Key copy() {
+            Key copy = new Key();
+            copy.name = Arrays.copyOf(name, nameLength);
+            copy.nameLength = nameLength;
+            copy.qtype = qtype;
+            copy.qclass = qclass;
+            copy.dnssec = dnssec;
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (hash != other.hash || nameLength != other.nameLength
+                    || qtype != other.qtype || qclass != other.qclass || dnssec != other.dnssec) {
+                return false;
+            }
+            for (int i = 0; i < nameLength; i++) {
+                if (name[i] != other.name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Entry {
+        byte[] response;
+        int[] ttlOffsets;
+        long storedAt;
+        long expiresAt;
+        int size;
+    }
+}
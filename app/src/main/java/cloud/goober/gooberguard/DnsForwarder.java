@@ -0,0 +1,877 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Forwards allowed DNS queries from the tun interface to upstream resolvers
+ *
+ * Queries are sent over a small pool of non-blocking DatagramChannels that
+ * are protected from the VPN, so they leave through the underlying network.
+ * A single selector thread sends queued queries and reads replies, which
+ * lets many queries be in flight at once. Each query gets a random
+ * transaction ID that is unique on its channel. A reply is matched on
+ * (channel, ID) and must come from an upstream the query was sent to and
+ * repeat its question, so a forged reply has to guess the ID. Accepted
+ * replies are restored to the client's original ID and written back to the
+ * tun as IPv4 or IPv6 UDP packets, matching the query. A reply larger than
+ * the client's EDNS UDP size, or 512 bytes without EDNS, or than fits the
+ * tun's MTU is cut down to its header and question with TC set, so the
+ * client asks again over TCP.
+ *
+ * Each query goes to the upstream an {@link UpstreamTracker} picks, by
+ * default the fastest healthy one. With hedging on, a query that upstream
+ * has not answered within its recent p95 latency is also sent to the next
+ * best upstream under the same ID, and whichever reply comes first wins.
+ *
+ * A query for a question that is already waiting upstream is not sent
+ * again. It joins the pending query, and the one reply is written back to
+ * every client that asked, each with its own transaction ID, port and
+ * question case. Questions match on name, ignoring case, type, class,
+ * the RD and CD flags, the DO bit, and the EDNS UDP size asked for, if any.
+ *
+ * Pending queries are taken from a pool and handed back once answered,
+ * dropped or expired, so {@link #forward(ByteBuffer)} allocates nothing
+ * once the pool has grown to the number of queries in flight. The selector
+ * thread still allocates for its maps and for each reply's source address.
+ */
+public class DnsForwarder implements Closeable {
+    private static final String TAG = "DnsForwarder";
+
+    static final int DEFAULT_CHANNEL_COUNT = 4;
+    static final long DEFAULT_TIMEOUT_MS = 5000;
+    static final int MAX_IN_FLIGHT = 4096;
+    static final int DEFAULT_MTU = 1500;
+
+    private static final int MAX_PACKET_SIZE = 65535;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final int DNS_HEADER_SIZE = 12;
+    // Header flags that change what a resolver answers
+    private static final int QUESTION_FLAGS = 0x0110;
+    // Random IDs tried before giving up on a query; at most MAX_IN_FLIGHT
+    // of the 65536 are ever taken, so one nearly always does
+    private static final int MAX_ID_ATTEMPTS = 32;
+
+    /**
+     * Excludes an upstream socket from the VPN, normally VpnService::protect
+     */
+    public interface SocketProtector {
+        boolean protect(DatagramSocket socket);
+    }
+
+    /**
+     * Receives finished IP packets destined for the tun interface
+     */
+    public interface PacketWriter {
+        /**
+         * Returns false if the packet was dropped rather than written or
+         * queued
+         */
+        boolean write(ByteBuffer packet) throws IOException;
+    }
+
+    private final UpstreamTracker upstreams;
+    private final SocketProtector protector;
+    private final PacketWriter writer;
+    private final int channelCount;
+    private final long timeoutNanos;
+
+    // Handed from the tun thread to the selector thread
+    private final BlockingQueue<PendingQuery> outgoing = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+    private final AtomicInteger pending = new AtomicInteger();
+    // Finished queries, handed back from the selector thread for reuse
+    private final BlockingQueue<PendingQuery> freeQueries = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+
+    // Owned by the selector thread; insertion order is send order
+    private final Map<Integer, PendingQuery> inFlight = new LinkedHashMap<>();
+    // Sent queries that later identical questions can join
+    private final Map<QuestionKey, PendingQuery> byQuestion = new HashMap<>();
+    // Sent queries by when to hedge them, earliest first
+    private final PriorityQueue<PendingQuery> hedges =
+            new PriorityQueue<>(64, (a, b) -> Long.compare(a.hedgeAt - b.hedgeAt, 0));
+    private final DnsQuestion question = new DnsQuestion();
+    // The pending query's question, for the cache to check replies against
+    private final DnsQuestion asked = new DnsQuestion();
+    // A reply cut down for a client that cannot take all of it
+    private final ByteBuffer truncated = ByteBuffer.allocate(Edns.MAX_TRUNCATED_SIZE);
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong forwardedCount = new AtomicLong();
+    private final AtomicLong answeredCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong hedgedCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong truncatedCount = new AtomicLong();
+
+    private volatile DnsCache cache;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile boolean hedging;
+    private volatile QueryLog queryLog;
+    private volatile DnsMetrics metrics;
+    private volatile LongSupplier ticker = System::nanoTime;
+
+    private Selector selector;
+    private DatagramChannel[] channels;
+    private int nextChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    public DnsForwarder(List<InetSocketAddress> upstreams, SocketProtector protector, PacketWriter writer) {
+        this(upstreams, protector, writer, DEFAULT_CHANNEL_COUNT, DEFAULT_TIMEOUT_MS);
+    }
+
+    public DnsForwarder(List<InetSocketAddress> upstreams, SocketProtector protector, PacketWriter writer,
+                        int channelCount, long timeoutMillis) {
+        this(new UpstreamTracker(upstreams), protector, writer, channelCount, timeoutMillis);
+    }
+
+    public DnsForwarder(UpstreamTracker upstreams, SocketProtector protector, PacketWriter writer,
+                        int channelCount, long timeoutMillis) {
+        this.upstreams = upstreams;
+        this.protector = protector;
+        this.writer = writer;
+        this.channelCount = channelCount;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Open and protect the upstream channels and start the selector thread
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        selector = Selector.open();
+        channels = new DatagramChannel[channelCount];
+        try {
+            for (int i = 0; i < channelCount; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels[i] = channel;
+                if (!protector.protect(channel.socket())) {
+                    throw new IOException("Could not protect upstream DNS socket");
+                }
+                channel.bind(null);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, i);
+            }
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+
+        running = true;
+        thread = new Thread(this::run, "DnsForwarder");
+        thread.start();
+    }
+
+    /**
+     * Queue an IPv4 or IPv6 UDP DNS query packet for forwarding. The packet is
+     * copied, so the caller may reuse its buffer immediately.
+     * Returns false if the forwarder is stopped or too many queries are
+     * already pending.
+     */
+    public boolean forward(ByteBuffer packet) {
+        if (!running) {
+            return false;
+        }
+        if (pending.get() >= MAX_IN_FLIGHT) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        int udpOffset = IpPacketBuilder.udpOffset(packet);
+        if (udpOffset < 0) {
+            return false;
+        }
+        int dnsOffset = udpOffset + IpPacketBuilder.UDP_HEADER_SIZE;
+        int dnsLength = packet.limit() - dnsOffset;
+        if (dnsLength < 12) {
+            return false;
+        }
+
+        // The reply goes back in the query's IP version, whichever family
+        // the upstream is reached over, and from the address the client
+        // asked, whichever upstream answers
+        boolean ipv6 = IpPacketBuilder.isIpv6(packet);
+        int addressLength = ipv6 ? 16 : 4;
+        int addressOffset = ipv6 ? 8 : 12;
+        PendingQuery query = freeQueries.poll();
+        if (query == null) {
+            query = new PendingQuery();
+        }
+        query.clientAddress = ipv6 ? query.clientAddress6 : query.clientAddress4;
+        query.serverAddress = ipv6 ? query.serverAddress6 : query.serverAddress4;
+        for (int i = 0; i < addressLength; i++) {
+            query.clientAddress[i] = packet.get(addressOffset + i);
+            query.serverAddress[i] = packet.get(addressOffset + addressLength + i);
+        }
+        query.clientPort = packet.getShort(udpOffset) & 0xFFFF;
+        query.serverPort = packet.getShort(udpOffset + 2) & 0xFFFF;
+        query.setMessageLength(dnsLength);
+        for (int i = 0; i < dnsLength; i++) {
+            query.message[i] = packet.get(dnsOffset + i);
+        }
+        query.clientId = ((query.message[0] & 0xFF) << 8) | (query.message[1] & 0xFF);
+        query.receivedNanos = ticker.getAsLong();
+
+        pending.incrementAndGet();
+        if (!outgoing.offer(query)) {
+            // Raced past the limit with other tun threads
+            pending.decrementAndGet();
+            droppedCount.incrementAndGet();
+            freeQueries.offer(query);
+            return false;
+        }
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Store every upstream reply in the given cache, or stop caching if null
+     */
+    public void setCache(DnsCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Log each query once it is answered or times out, or stop if null
+     */
+    public void setQueryLog(QueryLog queryLog) {
+        this.queryLog = queryLog;
+    }
+
+    /**
+     * Time upstream round trips and whole queries, and count timeouts and
+     * dropped queries, in the given metrics, or stop if null
+     */
+    public void setMetrics(DnsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Cut replies down to fit the given tun MTU as well as the client's
+     * EDNS UDP size
+     */
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * Read the time from the given nanosecond ticker instead of
+     * System.nanoTime, for tests to move on
+     */
+    void setTicker(LongSupplier ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * Check hedges and timeouts against the ticker now rather than at the
+     * next select timeout
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Also send queries the first upstream is slow to answer to a second
+     * one, taking whichever reply comes first
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Number of queries queued or sent upstream and still waiting for a reply
+     */
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    public long getForwardedCount() {
+        return forwardedCount.get();
+    }
+
+    public long getAnsweredCount() {
+        return answeredCount.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Queries answered from another client's upstream request instead of
+     * being sent themselves
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Queries also sent to a second upstream after the first was slow
+     */
+    public long getHedgedCount() {
+        return hedgedCount.get();
+    }
+
+    /**
+     * Hedged queries the second upstream answered first
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * Replies dropped for not repeating the question they claim to answer
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Replies cut down with TC set because they were too large for the
+     * client
+     */
+    public long getTruncatedCount() {
+        return truncatedCount.get();
+    }
+
+    /**
+     * Live latency, health and traffic numbers for each upstream
+     */
+    public List<UpstreamTracker.Stats> getUpstreamStats() {
+        return upstreams.getStats();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        selector.wakeup();
+        try {
+            thread.join(SELECT_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeChannels();
+    }
+
+    private void run() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        ByteBuffer replyBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE + IpPacketBuilder.IPV6_HEADER_SIZE
+                + IpPacketBuilder.UDP_HEADER_SIZE);
+
+        while (running) {
+            try {
+                selector.select(selectTimeout());
+                sendOutgoing();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        receiveReplies((Integer) key.attachment(), receiveBuffer, replyBuffer);
+                    }
+                }
+
+                long now = ticker.getAsLong();
+                sendHedges(now);
+                expireQueries(now);
+            } catch (IOException e) {
+                if (running) {
+                    AppLog.e(TAG, "Error forwarding DNS queries", e);
+                }
+            }
+        }
+    }
+
+    private void sendOutgoing() throws IOException {
+        PendingQuery query;
+        while ((query = outgoing.poll()) != null) {
+            QuestionKey key = questionKey(query);
+            if (key == null) {
+                // A reply is only trusted if it repeats the question, so a
+                // query without one could never be answered
+                dropQuery(query);
+                continue;
+            }
+            PendingQuery leader = byQuestion.get(key);
+            if (leader != null) {
+                query.question = key;
+                leader.waiters.add(query);
+                coalescedCount.incrementAndGet();
+                continue;
+            }
+
+            int channel = nextChannel;
+            nextChannel = (nextChannel + 1) % channelCount;
+
+            int id = allocateId(channel);
+            if (id < 0) {
+                dropQuery(query);
+                continue;
+            }
+
+            long now = ticker.getAsLong();
+            query.channel = channel;
+            query.upstreamId = id;
+            query.upstream = upstreams.select(now);
+            query.message[0] = (byte) (id >> 8);
+            query.message[1] = (byte) id;
+            query.sentNanos = now;
+
+            if (channels[channel].send(query.message(), upstreams.address(query.upstream)) == 0) {
+                // Socket send buffer is full; the client will retry
+                dropQuery(query);
+                continue;
+            }
+            inFlight.put(key(channel, id), query);
+            query.question = key;
+            byQuestion.put(key, query);
+            if (hedging && upstreams.size() > 1) {
+                query.hedgeAt = now + upstreams.hedgeDelayNanos(query.upstream);
+                query.hedgeQueued = true;
+                hedges.add(query);
+            }
+            forwardedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Race each query whose hedge time has passed against a second upstream
+     */
+    private void sendHedges(long now) throws IOException {
+        PendingQuery query;
+        while ((query = hedges.peek()) != null && now - query.hedgeAt >= 0) {
+            hedges.poll();
+            query.hedgeQueued = false;
+            if (query.finished) {
+                // Answered or expired already
+                recycle(query);
+                continue;
+            }
+            int hedge = upstreams.selectHedge(query.upstream, now);
+            if (hedge < 0) {
+                continue;
+            }
+            if (channels[query.channel].send(query.message(), upstreams.address(hedge)) > 0) {
+                query.hedgeUpstream = hedge;
+                query.hedgeSentNanos = now;
+                hedgedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wait no longer than until the next hedge is due
+     */
+    private long selectTimeout() {
+        PendingQuery next = hedges.peek();
+        if (next == null) {
+            return SELECT_TIMEOUT_MS;
+        }
+        long wait = TimeUnit.NANOSECONDS.toMillis(next.hedgeAt - ticker.getAsLong());
+        return Math.max(1, Math.min(SELECT_TIMEOUT_MS, wait));
+    }
+
+    /**
+     * A random ID not in flight on the channel, so the next one cannot be
+     * predicted from those already seen; -1 if none was found
+     */
+    private int allocateId(int channel) {
+        for (int attempt = 0; attempt < MAX_ID_ATTEMPTS; attempt++) {
+            int id = random.nextInt(0x10000);
+            if (!inFlight.containsKey(key(channel, id))) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private void receiveReplies(int channel, ByteBuffer receiveBuffer, ByteBuffer replyBuffer) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = channels[channel].receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            if (receiveBuffer.limit() < 12) {
+                continue;
+            }
+
+            int id = receiveBuffer.getShort(0) & 0xFFFF;
+            PendingQuery query = inFlight.get(key(channel, id));
+            int from = query == null ? -1 : upstreams.indexOf(source);
+            if (from < 0 || (from != query.upstream && from != query.hedgeUpstream)) {
+                // Late reply for an answered or expired query, or not from
+                // a resolver we asked
+                continue;
+            }
+            if (!repeatsQuestion(receiveBuffer, query.question)) {
+                // Forged, or answering some other question; the real reply
+                // may still come
+                rejectedCount.incrementAndGet();
+                continue;
+            }
+            inFlight.remove(key(channel, id));
+            long now = ticker.getAsLong();
+            long sentNanos = from == query.upstream ? query.sentNanos : query.hedgeSentNanos;
+            upstreams.recordSuccess(from, now - sentNanos);
+            if (from != query.upstream) {
+                hedgeWinCount.incrementAndGet();
+            }
+            DnsMetrics stats = metrics;
+            if (stats != null) {
+                stats.record(DnsMetrics.Stage.UPSTREAM, sentNanos, now);
+            }
+            forget(query);
+            pending.decrementAndGet();
+
+            DnsCache responseCache = cache;
+            if (responseCache != null && asked.parse(query.message(), 0)) {
+                responseCache.put(asked, receiveBuffer, 0, receiveBuffer.limit());
+                asked.reset();
+            }
+
+            reply(query, receiveBuffer, replyBuffer);
+            log(query, QueryLog.Verdict.FORWARDED, from, now);
+            for (PendingQuery waiter : query.waiters) {
+                pending.decrementAndGet();
+                reply(waiter, receiveBuffer, replyBuffer);
+                log(waiter, QueryLog.Verdict.FORWARDED, from, now);
+            }
+            if (stats != null) {
+                long written = ticker.getAsLong();
+                stats.record(DnsMetrics.Stage.END_TO_END, query.receivedNanos, written);
+                for (PendingQuery waiter : query.waiters) {
+                    stats.record(DnsMetrics.Stage.END_TO_END, waiter.receivedNanos, written);
+                }
+            }
+            recycle(query);
+        }
+    }
+
+    /**
+     * Write the upstream reply back to one client with its transaction ID
+     * and the question as it sent it, cut down if it is too large for the
+     * client
+     */
+    private void reply(PendingQuery query, ByteBuffer response, ByteBuffer replyBuffer) throws IOException {
+        response.putShort(0, (short) query.clientId);
+        // The reply repeats the question, so the names are the same length
+        for (int i = 0; i < query.question.nameLength; i++) {
+            response.put(DNS_HEADER_SIZE + i, query.message[DNS_HEADER_SIZE + i]);
+        }
+        int headers = (query.clientAddress.length == 16 ? IpPacketBuilder.IPV6_HEADER_SIZE
+                : IpPacketBuilder.IPV4_HEADER_SIZE) + IpPacketBuilder.UDP_HEADER_SIZE;
+        ByteBuffer payload = response;
+        if (response.limit() > Math.min(query.maxPayload, mtu - headers)) {
+            Edns.writeTruncated(response, 0, DNS_HEADER_SIZE + query.question.nameLength + 4,
+                    query.optFlags, truncated);
+            payload = truncated;
+            truncatedCount.incrementAndGet();
+        }
+        IpPacketBuilder.writeUdp(replyBuffer, query.serverAddress, query.serverPort,
+                query.clientAddress, query.clientPort, payload, 0, payload.limit());
+        if (writer.write(replyBuffer)) {
+            answeredCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Add a query to the log with the time since the client sent it
+     */
+    private void log(PendingQuery query, QueryLog.Verdict verdict, int upstream, long now) {
+        QueryLog log = queryLog;
+        if (log == null || query.question == null) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(now - query.receivedNanos);
+        log.record(ByteBuffer.wrap(query.question.name), 0, query.question.nameLength, query.question.qtype,
+                verdict, (int) Math.min(Integer.MAX_VALUE, micros), upstream);
+    }
+
+    /**
+     * Give up on queries sent at least the timeout ago. Timed on the
+     * monotonic clock, so a wall clock step neither expires every query
+     * at once nor keeps them forever.
+     */
+    private void expireQueries(long now) {
+        Iterator<PendingQuery> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+            PendingQuery query = iterator.next();
+            if (now - query.sentNanos < timeoutNanos) {
+                break;
+            }
+            iterator.remove();
+            forget(query);
+            upstreams.recordFailure(query.upstream, now);
+            if (query.hedgeUpstream >= 0) {
+                upstreams.recordFailure(query.hedgeUpstream, now);
+            }
+            log(query, QueryLog.Verdict.FAILED, -1, now);
+            for (PendingQuery waiter : query.waiters) {
+                log(waiter, QueryLog.Verdict.FAILED, -1, now);
+            }
+            int queries = 1 + query.waiters.size();
+            pending.addAndGet(-queries);
+            timedOutCount.addAndGet(queries);
+            DnsMetrics stats = metrics;
+            if (stats != null) {
+                for (int i = 0; i < queries; i++) {
+                    stats.increment(DnsMetrics.Counter.UPSTREAM_ERRORS, now);
+                }
+            }
+            recycle(query);
+        }
+    }
+
+    /**
+     * Stop later queries from joining one that is no longer waiting upstream
+     */
+    private void forget(PendingQuery query) {
+        if (query.question != null && byQuestion.get(query.question) == query) {
+            byQuestion.remove(query.question);
+        }
+    }
+
+    /**
+     * Hand a query, and any that joined it, back to the pool. One still
+     * queued for a hedge is only marked, and handed back once it leaves the
+     * queue.
+     */
+    private void recycle(PendingQuery query) {
+        if (query.hedgeQueued) {
+            query.finished = true;
+            return;
+        }
+        for (PendingQuery waiter : query.waiters) {
+            waiter.reset();
+            freeQueries.offer(waiter);
+        }
+        query.reset();
+        freeQueries.offer(query);
+    }
+
+    /**
+     * Fill in the key for the question in a query's message, or return null
+     * if it has none that can be matched. Also notes how large a reply the
+     * client takes.
+     */
+    private QuestionKey questionKey(PendingQuery query) {
+        byte[] message = query.message;
+        ByteBuffer view = query.message();
+        if (!question.parse(view, 0)) {
+            return null;
+        }
+        query.maxPayload = Edns.udpPayloadLimit(view, 0, question.endOffset());
+        query.optFlags = Edns.optFlags(view, 0, question.endOffset());
+        QuestionKey key = query.key;
+        key.nameLength = question.nameLength();
+        for (int i = 0; i < key.nameLength; i++) {
+            key.name[i] = (byte) DomainTrie.toLowerAscii(message[DNS_HEADER_SIZE + i] & 0xFF);
+        }
+        key.qtype = question.qtype();
+        key.qclass = question.qclass();
+        key.flags = (((message[2] & 0xFF) << 8) | (message[3] & 0xFF)) & QUESTION_FLAGS;
+        // The reply is passed on as it is, so only clients that would get
+        // the same one share it: same DO bit, and EDNS or not with the same
+        // size to ask for
+        key.optFlags = query.optFlags < 0 ? -1 : query.optFlags & Edns.FLAG_DO;
+        key.maxPayload = query.maxPayload;
+        question.reset();
+        return key;
+    }
+
+    /**
+     * Whether a reply's question is the one asked, ignoring case
+     */
+    private boolean repeatsQuestion(ByteBuffer response, QuestionKey key) {
+        boolean same = question.parse(response, 0) && question.nameLength() == key.nameLength
+                && question.qtype() == key.qtype && question.qclass() == key.qclass;
+        for (int i = 0; same && i < key.nameLength; i++) {
+            same = (byte) DomainTrie.toLowerAscii(response.get(DNS_HEADER_SIZE + i) & 0xFF) == key.name[i];
+        }
+        question.reset();
+        return same;
+    }
+
+    private void dropQuery(PendingQuery query) {
+        pending.decrementAndGet();
+        droppedCount.incrementAndGet();
+        DnsMetrics stats = metrics;
+        if (stats != null) {
+            stats.increment(DnsMetrics.Counter.DROPS);
+        }
+        recycle(query);
+    }
+
+    private void closeChannels() {
+        if (channels != null) {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        AppLog.e(TAG, "Error closing upstream channel", e);
+                    }
+                }
+            }
+        }
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                AppLog.e(TAG, "Error closing selector", e);
+            }
+        }
+    }
+
+    private static int key(int channel, int id) {
+        return (channel << 16) | id;
+    }
+
+    /**
+     * Lowercased wire-format name plus type, class and flags
+     */
+    private static final class QuestionKey {
+        final byte[] name = new byte[DnsQuestion.MAX_NAME_LENGTH];
+        int nameLength;
+        int qtype;
+        int qclass;
+        int flags;
+        int optFlags;
+        int maxPayload;
+
+        @Override
+        public int hashCode() {
+            int hash = 1;
+            for (int i = 0; i < nameLength; i++) {
+                hash = 31 * hash + name[i];
+            }
+            hash = 31 * (31 * (31 * hash + qtype) + qclass) + flags;
+            return 31 * (31 * hash + optFlags) + maxPayload;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QuestionKey)) {
+                return false;
+            }
+            QuestionKey other = (QuestionKey) o;
+            if (qtype != other.qtype || qclass != other.qclass || flags != other.flags
+                    || optFlags != other.optFlags || maxPayload != other.maxPayload
+                    || nameLength != other.nameLength) {
+                return false;
+            }
+            for (int i = 0; i < nameLength; i++) {
+                if (name[i] != other.name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * One client's query, reused from the pool once finished
+     */
+    private static final class PendingQuery {
+        final byte[] clientAddress4 = new byte[4];
+        final byte[] serverAddress4 = new byte[4];
+        final byte[] clientAddress6 = new byte[16];
+        final byte[] serverAddress6 = new byte[16];
+        // One of the pairs above, by the query's IP version
+        byte[] clientAddress;
+        int clientPort;
+        byte[] serverAddress;
+        int serverPort;
+        int clientId;
+        // Only grown, so holds messageLength bytes and possibly more
+        byte[] message = new byte[Edns.MIN_UDP_PAYLOAD];
+        private ByteBuffer messageView = ByteBuffer.wrap(message);
+        private int messageLength;
+        int channel;
+        int upstreamId;
+        int upstream;
+        long receivedNanos;
+        long sentNanos;
+        // Second upstream raced against the first, or -1
+        int hedgeUpstream = -1;
+        long hedgeAt;
+        long hedgeSentNanos;
+        // Largest UDP reply the client takes, and the flags of its OPT
+        // record or -1
+        int maxPayload;
+        int optFlags;
+        final QuestionKey key = new QuestionKey();
+        // Set to key if the question can be matched; replies restore the
+        // client's own question bytes
+        QuestionKey question;
+        // Later queries for the same question, answered by this one's reply
+        final List<PendingQuery> waiters = new ArrayList<>();
+        // Still in the hedge queue, and answered or expired while there
+        boolean hedgeQueued;
+        boolean finished;
+
+        void setMessageLength(int length) {
+            if (message.length < length) {
+                message = new byte[length];
+                messageView = ByteBuffer.wrap(message);
+            }
+            messageLength = length;
+        }
+
+        /**
+         * The message as a buffer from its first byte to its last
+         */
+        ByteBuffer message() {
+            messageView.limit(messageLength);
+            messageView.position(0);
+            return messageView;
+        }
+
+        void reset() {
+            question = null;
+            waiters.clear();
+            hedgeUpstream = -1;
+            hedgeQueued = false;
+            finished = false;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package cloud.goober.gooberguard;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters and latency histograms for the DNS path, cheap to update
+ * from packet threads and cheap to read from the UI
+ *
+ * Every counter and stage keeps a running total and a rolling window of
+ * the last {@link #WINDOW_SECONDS} one-second slots, so rates and recent
+ * percentiles reflect what is happening now rather than since start. A
+ * slot is cleared by the first update in a new second; updates racing
+ * with that clear may be lost, which is fine for a display.
+ */
+public class DnsMetrics {
+    static final int WINDOW_SECONDS = 10;
+
+    /**
+     * Things counted
+     */
+    public enum Counter {
+        /**
+         * DNS queries seen, over UDP or TCP
+         */
+        QUERIES,
+        /**
+         * Answered with the block response
+         */
+        BLOCKED,
+        /**
+         * Answered from the response cache
+         */
+        CACHE_HITS,
+        /**
+         * Sent upstream but failed or timed out
+         */
+        UPSTREAM_ERRORS,
+        /**
+         * Not sent upstream because the forwarder was full or stopped
+         */
+        DROPS
+    }
+
+    /**
+     * Parts of a query's life that are timed
+     */
+    public enum Stage {
+        /**
+         * Parsing and matching a query against the blocklist and cache
+         */
+        CLASSIFY,
+        /**
+         * From sending a query upstream to its reply
+         */
+        UPSTREAM,
+        /**
+         * From the query reaching the VPN to its reply leaving it
+         */
+        END_TO_END
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LongAdder[] totals = new LongAdder[COUNTERS.length];
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+
+    // One row of counts and one histogram per stage for each second in the
+    // window; slotSeconds holds the second each slot was last cleared for
+    private final AtomicLongArray windowCounts = new AtomicLongArray(WINDOW_SECONDS * COUNTERS.length);
+    private final LatencyHistogram[][] windowHistograms = new LatencyHistogram[WINDOW_SECONDS][STAGES.length];
+    private final AtomicLongArray slotSeconds = new AtomicLongArray(WINDOW_SECONDS);
+
+    private volatile long resetNanos;
+
+    public DnsMetrics() {
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = new LongAdder();
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        for (LatencyHistogram[] slot : windowHistograms) {
+            for (int i = 0; i < slot.length; i++) {
+                slot[i] = new LatencyHistogram();
+            }
+        }
+        reset();
+    }
+
+    /**
+     * Count one event now
+     */
+    public void increment(Counter counter) {
+        increment(counter, System.nanoTime());
+    }
+
+    public void increment(Counter counter, long nowNanos) {
+        totals[counter.ordinal()].increment();
+        int slot = slot(nowNanos);
+        windowCounts.incrementAndGet(slot * COUNTERS.length + counter.ordinal());
+    }
+
+    /**
+     * Record how long a stage took, ending at nowNanos
+     */
+    public void record(Stage stage, long startNanos, long nowNanos) {
+        long nanos = nowNanos - startNanos;
+        histograms[stage.ordinal()].record(nanos);
+        windowHistograms[slot(nowNanos)][stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Clear every counter, histogram and window
+     */
+    public synchronized void reset() {
+        for (LongAdder total : totals) {
+            total.reset();
+        }
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            clearSlot(i);
+            slotSeconds.set(i, Long.MIN_VALUE);
+        }
+        resetNanos = System.nanoTime();
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(System.nanoTime());
+    }
+
+    /**
+     * Totals, plus rates and percentiles over the full seconds of the
+     * window before nowNanos
+     */
+    Snapshot snapshot(long nowNanos) {
+        long second = second(nowNanos);
+        // The current second is still filling, so it is left out of rates
+        int seconds = (int) Math.min(WINDOW_SECONDS - 1,
+                Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nowNanos - resetNanos)));
+        long[] totalCounts = new long[COUNTERS.length];
+        long[] windowTotals = new long[COUNTERS.length];
+        for (int i = 0; i < COUNTERS.length; i++) {
+            totalCounts[i] = totals[i].sum();
+        }
+        long[][] windowBuckets = new long[STAGES.length][LatencyHistogram.BUCKET_COUNT];
+        for (int s = 1; s <= seconds; s++) {
+            int slot = (int) Math.floorMod(second - s, (long) WINDOW_SECONDS);
+            if (slotSeconds.get(slot) != second - s) {
+                continue;
+            }
+            for (int i = 0; i < COUNTERS.length; i++) {
+                windowTotals[i] += windowCounts.get(slot * COUNTERS.length + i);
+            }
+            for (int i = 0; i < STAGES.length; i++) {
+                windowHistograms[slot][i].addTo(windowBuckets[i]);
+            }
+        }
+        LatencyHistogram.Snapshot[] all = new LatencyHistogram.Snapshot[STAGES.length];
+        LatencyHistogram.Snapshot[] recent = new LatencyHistogram.Snapshot[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            all[i] = histograms[i].snapshot();
+            recent[i] = new LatencyHistogram.Snapshot(windowBuckets[i]);
+        }
+        return new Snapshot(System.currentTimeMillis(), seconds, totalCounts, windowTotals, all, recent);
+    }
+
+    private int slot(long nowNanos) {
+        long second = second(nowNanos);
+        int slot = (int) Math.floorMod(second, (long) WINDOW_SECONDS);
+        long seen = slotSeconds.get(slot);
+        if (seen < second && slotSeconds.compareAndSet(slot, seen, second)) {
+            clearSlot(slot);
+        }
+        return slot;
+    }
+
+    private void clearSlot(int slot) {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            windowCounts.set(slot * COUNTERS.length + i, 0);
+        }
+        for (LatencyHistogram histogram : windowHistograms[slot]) {
+            histogram.reset();
+        }
+    }
+
+    private static long second(long nanos) {
+        return Math.floorDiv(nanos, TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Metrics at a point in time, safe to keep and pass around
+     */
+    public static final class Snapshot {
+        public final long timestampMillis;
+        /**
+         * Seconds the rates and recent percentiles cover
+         */
+        public final int windowSeconds;
+        private final long[] totals;
+        private final long[] windowTotals;
+        private final LatencyHistogram.Snapshot[] histograms;
+        private final LatencyHistogram.Snapshot[] recentHistograms;
+
+        Snapshot(long timestampMillis, int windowSeconds, long[] totals, long[] windowTotals,
+                 LatencyHistogram.Snapshot[] histograms, LatencyHistogram.Snapshot[] recentHistograms) {
+            this.timestampMillis = timestampMillis;
+            this.windowSeconds = windowSeconds;
+            this.totals = totals;
+            this.windowTotals = windowTotals;
+            this.histograms = histograms;
+            this.recentHistograms = recentHistograms;
+        }
+
+        public long getTotal(Counter counter) {
+            return totals[counter.ordinal()];
+        }
+
+        /**
+         * Events per second over the window
+         */
+        public double getRate(Counter counter) {
+            return (double) windowTotals[counter.ordinal()] / windowSeconds;
+        }
+
+        /**
+         * Every latency recorded for a stage since the last reset
+         */
+        public LatencyHistogram.Snapshot getHistogram(Stage stage) {
+            return histograms[stage.ordinal()];
+        }
+
+        /**
+         * Latencies recorded for a stage within the window
+         */
+        public LatencyHistogram.Snapshot getRecentHistogram(Stage stage) {
+            return recentHistograms[stage.ordinal()];
+        }
+
+        /**
+         * One line for a status display: query rate and recent end-to-end
+         * p50 and p99
+         */
+        public String summary() {
+            LatencyHistogram.Snapshot latency = getRecentHistogram(Stage.END_TO_END);
+            return String.format(Locale.ROOT, "%.1f queries/s, p50 %s, p99 %s", getRate(Counter.QUERIES),
+                    formatNanos(latency.percentileNanos(0.5)), formatNanos(latency.percentileNanos(0.99)));
+        }
+
+        /**
+         * Plain text of every counter and stage, for bug reports
+         */
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format(Locale.ROOT, "DNS metrics at %d, rates over %d s%n",
+                    timestampMillis, windowSeconds));
+            for (Counter counter : COUNTERS) {
+                out.append(String.format(Locale.ROOT, "%-16s total %d, %.1f/s%n", counter.name().toLowerCase(Locale.ROOT),
+                        getTotal(counter), getRate(counter)));
+            }
+            for (Stage stage : STAGES) {
+                appendHistogram(out, stage.name().toLowerCase(Locale.ROOT), getHistogram(stage));
+                appendHistogram(out, stage.name().toLowerCase(Locale.ROOT) + " recent", getRecentHistogram(stage));
+            }
+            return out.toString();
+        }
+
+        private static void appendHistogram(StringBuilder out, String name, LatencyHistogram.Snapshot histogram) {
+            out.append(String.format(Locale.ROOT, "%-20s n %d, p50 %s, p90 %s, p99 %s, p99.9 %s, max %s%n", name,
+                    histogram.getCount(), formatNanos(histogram.percentileNanos(0.5)),
+                    formatNanos(histogram.percentileNanos(0.9)), formatNanos(histogram.percentileNanos(0.99)),
+                    formatNanos(histogram.percentileNanos(0.999)), formatNanos(histogram.maxNanos())));
+        }
+
+        static String formatNanos(long nanos) {
+            if (nanos < 1_000) {
+                return nanos + " ns";
+            }
+            if (nanos < 1_000_000) {
+                return String.format(Locale.ROOT, "%.1f us", nanos / 1e3);
+            }
+            return String.format(Locale.ROOT, "%.1f ms", nanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Classifies packets read from the tun and answers DNS queries where it
+ * can: blocked names get a synthetic reply, names in the cache get the
+ * cached answer, and everything else is handed to the upstream forwarder,
+ * which replies later on its own thread. TCP segments to port 53 go to the
+ * {@link TcpDnsServer}, which does the same for DNS over TCP.
+ *
+ * Queries answered here are added to the {@link QueryLog} if one is set;
+ * forwarded ones are logged by the forwarder once answered. Likewise with
+ * {@link DnsMetrics}: classification is timed here for every query, and
+ * end-to-end latency for those answered here.
+ *
+ * With a {@link FlowUidCache} set, names some app has its own rules for
+ * are matched for the app that sent the query; see {@link AppRules}.
+ *
+ * Holds per-thread scratch buffers, so each pipeline worker needs its own
+ * instance.
+ */
+public class DnsPacketHandler implements PacketHandler {
+    /**
+     * Sends an allowed query upstream; see {@link DnsForwarder#forward(ByteBuffer)}
+     */
+    public interface QueryForwarder {
+        boolean forward(ByteBuffer packet);
+    }
+
+    private final Supplier<Blocklist> blocklists;
+    private final DnsCache cache;
+    private final DnsResponseBuilder responseBuilder;
+    private final QueryForwarder forwarder;
+    private final LongAdder blockedCount;
+    private final TcpDnsServer tcpServer;
+
+    private final DnsQuestion question = new DnsQuestion();
+    private final ByteBuffer cachedResponse;
+    private QueryLog queryLog;
+    private DnsMetrics metrics;
+    private FlowUidCache uids;
+
+    /**
+     * @param blocklists    read once per query, so a swapped list applies
+     *                      from the next query on
+     * @param blockedCount  shared between handlers
+     * @param maxPacketSize largest packet the pipeline carries
+     */
+    public DnsPacketHandler(Supplier<Blocklist> blocklists, DnsCache cache, DnsResponseBuilder responseBuilder,
+                            QueryForwarder forwarder, LongAdder blockedCount, int maxPacketSize) {
+        this(blocklists, cache, responseBuilder, forwarder, blockedCount, maxPacketSize, null);
+    }
+
+    /**
+     * @param tcpServer shared by all handlers, or null to treat TCP to port
+     *                  53 like any other non-DNS packet
+     */
+    public DnsPacketHandler(Supplier<Blocklist> blocklists, DnsCache cache, DnsResponseBuilder responseBuilder,
+                            QueryForwarder forwarder, LongAdder blockedCount, int maxPacketSize,
+                            TcpDnsServer tcpServer) {
+        this.blocklists = blocklists;
+        this.cache = cache;
+        this.responseBuilder = responseBuilder;
+        this.forwarder = forwarder;
+        this.blockedCount = blockedCount;
+        this.tcpServer = tcpServer;
+        this.cachedResponse = ByteBuffer.allocate(
+                maxPacketSize - IpPacketBuilder.IPV6_HEADER_SIZE - IpPacketBuilder.UDP_HEADER_SIZE);
+    }
+
+    /**
+     * Log blocked and cached queries to the given log, or stop if null
+     */
+    public void setQueryLog(QueryLog queryLog) {
+        this.queryLog = queryLog;
+    }
+
+    /**
+     * Count and time queries in the given metrics, or stop if null
+     */
+    public void setMetrics(DnsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Find the app behind queries that per-app rules apply to through the
+     * given cache, or match every query against the global list if null
+     */
+    public void setUidCache(FlowUidCache uids) {
+        this.uids = uids;
+    }
+
+    @Override
+    public boolean handle(ByteBuffer packet, ByteBuffer reply) {
+        if (tcpServer != null && TcpDnsServer.isDnsSegment(packet)) {
+            // The server writes its segments back itself
+            tcpServer.handle(packet);
+            return false;
+        }
+        if (!DnsPacketParser.isDnsQuery(packet)) {
+            // Only resolver addresses are routed into the tunnel, and there
+            // is nowhere to send anything else to them (e.g. ICMP), so it
+            // is dropped
+            return false;
+        }
+
+        DnsMetrics stats = metrics;
+        long start = stats != null ? System.nanoTime() : 0;
+        boolean parsed = DnsPacketParser.parseQuestion(packet, question);
+        if (parsed && isBlocked(packet)) {
+            blockedCount.increment();
+            if (queryLog != null) {
+                queryLog.record(question, QueryLog.Verdict.BLOCKED, 0, -1);
+            }
+
+            // Answer in the configured block style
+            responseBuilder.writeBlockedResponse(packet, question, reply);
+            if (stats != null) {
+                answered(stats, DnsMetrics.Counter.BLOCKED, start);
+            }
+            return true;
+        }
+        if (parsed && cache.getForUdp(question, cachedResponse)) {
+            // Answer repeated names straight from the cache
+            if (queryLog != null) {
+                queryLog.record(question, QueryLog.Verdict.CACHED, 0, -1);
+            }
+            IpPacketBuilder.writeUdpReply(reply, packet, cachedResponse, 0, cachedResponse.limit());
+            if (stats != null) {
+                answered(stats, DnsMetrics.Counter.CACHE_HITS, start);
+            }
+            return true;
+        }
+
+        // Send the allowed query to the upstream resolvers; the forwarder
+        // writes the reply back itself
+        long classified = stats != null ? System.nanoTime() : 0;
+        boolean sent = forwarder.forward(packet);
+        if (stats != null) {
+            stats.increment(DnsMetrics.Counter.QUERIES, classified);
+            stats.record(DnsMetrics.Stage.CLASSIFY, start, classified);
+            if (!sent) {
+                stats.increment(DnsMetrics.Counter.DROPS, classified);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Match the parsed question, looking up the sending app only if some
+     * app has rules for the name
+     */
+    private boolean isBlocked(ByteBuffer packet) {
+        Blocklist blocklist = blocklists.get();
+        FlowUidCache owners = uids;
+        if (owners != null && blocklist.dependsOnApp(question)) {
+            return blocklist.matches(owners.uidFor(packet), question);
+        }
+        return blocklist.matches(question);
+    }
+
+    /**
+     * Count a query answered here, timing it from start
+     */
+    private static void answered(DnsMetrics stats, DnsMetrics.Counter outcome, long start) {
+        long now = System.nanoTime();
+        stats.increment(DnsMetrics.Counter.QUERIES, now);
+        stats.increment(outcome, now);
+        stats.record(DnsMetrics.Stage.CLASSIFY, start, now);
+        stats.record(DnsMetrics.Stage.END_TO_END, start, now);
+    }
+}
@@ -0,0 +1,137 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The VPN's packet path with no tie to the device: a {@link PacketPipeline}
+ * of {@link DnsPacketHandler}s between any packet source and sink, plus
+ * the {@link TcpDnsServer} for DNS over TCP. The service runs it over the
+ * tun; tests run it over recorded captures.
+ *
+ * Upstream forwarders are created by the caller and queue their replies
+ * with {@link #send(ByteBuffer)}, which works from construction on so the
+ * forwarders can exist before the loop starts.
+ */
+public class DnsPacketLoop implements Closeable {
+    private final Supplier<Blocklist> blocklists;
+    private final DnsCache cache;
+    private final DnsResponseBuilder responseBuilder;
+    private final int mtu;
+    private final LongAdder blockedCount;
+    private final int bufferSize;
+    private final PacketPipeline pipeline;
+
+    private QueryLog queryLog;
+    private DnsMetrics metrics;
+    private FlowUidCache uids;
+    private volatile DnsPacketHandler.QueryForwarder forwarder;
+    private volatile TcpDnsServer tcpServer;
+
+    /**
+     * @param blocklists    read once per query, so a swapped list applies
+     *                      from the next query on
+     * @param mtu           of the tun; the largest packet read or written
+     * @param workerThreads handler threads in the pipeline
+     */
+    public DnsPacketLoop(PacketSource source, PacketSink sink, Supplier<Blocklist> blocklists, DnsCache cache,
+                         DnsResponseBuilder responseBuilder, int mtu, int workerThreads, LongAdder blockedCount) {
+        this.blocklists = blocklists;
+        this.cache = cache;
+        this.responseBuilder = responseBuilder;
+        this.mtu = mtu;
+        this.blockedCount = blockedCount;
+        this.bufferSize = Math.max(mtu, DnsResponseBuilder.MAX_RESPONSE_SIZE);
+        this.pipeline = new PacketPipeline(source, sink, this::createHandler, workerThreads, bufferSize);
+    }
+
+    /**
+     * Log queries to the given log, or stop if null. Takes effect for
+     * handlers created by the next {@link #start}.
+     */
+    public void setQueryLog(QueryLog queryLog) {
+        this.queryLog = queryLog;
+    }
+
+    /**
+     * Count and time queries in the given metrics, or stop if null. Takes
+     * effect for handlers created by the next {@link #start}.
+     */
+    public void setMetrics(DnsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Match names with per-app rules for the app that sent them, found
+     * through the given cache, or use the global list only if null. Takes
+     * effect for handlers created by the next {@link #start}.
+     */
+    public void setUidCache(FlowUidCache uids) {
+        this.uids = uids;
+    }
+
+    /**
+     * Start reading packets
+     *
+     * @param forwarder       sends allowed UDP queries upstream
+     * @param streamForwarder sends queries that arrived over TCP upstream,
+     *                        or null to treat TCP to port 53 like any other
+     *                        non-DNS packet
+     */
+    public synchronized void start(DnsPacketHandler.QueryForwarder forwarder,
+                                   TcpDnsServer.QueryForwarder streamForwarder) {
+        this.forwarder = forwarder;
+        if (streamForwarder != null && tcpServer == null) {
+            TcpDnsServer server = new TcpDnsServer(blocklists, cache, responseBuilder, streamForwarder,
+                    this::send, mtu, blockedCount);
+            server.setQueryLog(queryLog);
+            server.setMetrics(metrics);
+            server.setUidCache(uids);
+            server.start();
+            tcpServer = server;
+        }
+        pipeline.start();
+    }
+
+    /**
+     * Queue a reply for the sink; see {@link PacketPipeline#send(ByteBuffer)}
+     */
+    public boolean send(ByteBuffer packet) {
+        return pipeline.send(packet);
+    }
+
+    public PacketPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * The TCP server, or null if the loop has not been started with one
+     */
+    public TcpDnsServer getTcpServer() {
+        return tcpServer;
+    }
+
+    /**
+     * Stop the pipeline and the TCP server. The caller closes the source
+     * to wake a reader blocked on it.
+     */
+    @Override
+    public synchronized void close() {
+        pipeline.close();
+        if (tcpServer != null) {
+            tcpServer.close();
+            tcpServer = null;
+        }
+    }
+
+    private PacketHandler createHandler() {
+        DnsPacketHandler handler = new DnsPacketHandler(blocklists, cache, responseBuilder, forwarder, blockedCount,
+                bufferSize, tcpServer);
+        handler.setQueryLog(queryLog);
+        handler.setMetrics(metrics);
+        handler.setUidCache(uids);
+        return handler;
+    }
+}
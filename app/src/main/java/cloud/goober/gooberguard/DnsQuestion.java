@@ -0,0 +1,232 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable view over the question section of a DNS message.
+ *
+ * Parsing walks the QNAME in place and records the absolute offset, length
+ * and hash of every label without creating any objects, so a single
+ * instance can be reused for every packet read by the VPN thread. Label
+ * hashes are computed over the lowercased label bytes with the same function
+ * {@link DomainTrie} uses, which lets the matcher skip rehashing.
+ *
+ * A String is only built when {@link #toDomainName()} is called.
+ */
+public final class DnsQuestion {
+    // RFC 1035 limits
+    public static final int MAX_LABEL_LENGTH = 63;
+    public static final int MAX_NAME_LENGTH = 255;
+    static final int MAX_LABELS = 127;
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_AAAA = 28;
+    public static final int CLASS_IN = 1;
+
+    private static final int DNS_HEADER_SIZE = 12;
+
+    private final int[] labelOffsets = new int[MAX_LABELS];
+    private final int[] labelLengths = new int[MAX_LABELS];
+    private final int[] labelHashes = new int[MAX_LABELS];
+
+    private ByteBuffer packet;
+    private int dnsOffset;
+    private int nameOffset;
+    private int nameLength;
+    private int labelCount;
+    private int qtype;
+    private int qclass;
+
+    /**
+     * Parse the first question of the DNS message starting at dnsOffset.
+     * Returns false, leaving the view empty, if the message is truncated,
+     * has no question, uses a compression pointer or reserved label type in
+     * the QNAME, or exceeds the RFC 1035 label and name length limits.
+     * Never throws for malformed input.
+     */
+    public boolean parse(ByteBuffer packet, int dnsOffset) {
+        reset();
+
+        int limit = packet.limit();
+        if (dnsOffset < 0 || dnsOffset + DNS_HEADER_SIZE > limit) {
+            return false;
+        }
+
+        int questionCount = packet.getShort(dnsOffset + 4) & 0xFFFF;
+        if (questionCount == 0) {
+            return false;
+        }
+
+        int position = dnsOffset + DNS_HEADER_SIZE;
+        int wireLength = 0;
+        int labels = 0;
+        while (true) {
+            if (position >= limit) {
+                return false;
+            }
+
+            int labelLength = packet.get(position) & 0xFF;
+            wireLength += 1 + labelLength;
+            if (wireLength > MAX_NAME_LENGTH) {
+                return false;
+            }
+            if (labelLength == 0) {
+                position++;
+                break;
+            }
+            if (labelLength > MAX_LABEL_LENGTH) {
+                // 0xC0 compression pointer or reserved 0x40/0x80 label types;
+                // the first name in a message has nothing to point back to
+                return false;
+            }
+            if (labels == MAX_LABELS || position + 1 + labelLength > limit) {
+                return false;
+            }
+
+            int hash = DomainTrie.LABEL_HASH_SEED;
+            for (int i = position + 1; i <= position + labelLength; i++) {
+                hash = DomainTrie.mixLabelByte(hash, DomainTrie.toLowerAscii(packet.get(i) & 0xFF));
+            }
+
+            labelOffsets[labels] = position + 1;
+            labelLengths[labels] = labelLength;
+            labelHashes[labels] = hash;
+            labels++;
+            position += 1 + labelLength;
+        }
+
+        if (labels == 0 || position + 4 > limit) {
+            return false;
+        }
+
+        this.packet = packet;
+        this.dnsOffset = dnsOffset;
+        this.nameOffset = dnsOffset + DNS_HEADER_SIZE;
+        this.nameLength = wireLength;
+        this.labelCount = labels;
+        this.qtype = packet.getShort(position) & 0xFFFF;
+        this.qclass = packet.getShort(position + 2) & 0xFFFF;
+        return true;
+    }
+
+    /**
+     * Clear the view so it no longer references the last packet
+     */
+    public void reset() {
+        packet = null;
+        dnsOffset = 0;
+        nameOffset = 0;
+        nameLength = 0;
+        labelCount = 0;
+        qtype = 0;
+        qclass = 0;
+    }
+
+    public ByteBuffer packet() {
+        return packet;
+    }
+
+    /**
+     * Offset of the DNS header within the packet
+     */
+    public int dnsOffset() {
+        return dnsOffset;
+    }
+
+    /**
+     * Offset of the wire-format QNAME within the packet
+     */
+    public int nameOffset() {
+        return nameOffset;
+    }
+
+    /**
+     * Length of the wire-format QNAME, including the terminating zero byte
+     */
+    public int nameLength() {
+        return nameLength;
+    }
+
+    /**
+     * Offset just past QTYPE and QCLASS, i.e. the end of the question
+     */
+    public int endOffset() {
+        return nameOffset + nameLength + 4;
+    }
+
+    public int labelCount() {
+        return labelCount;
+    }
+
+    /**
+     * Absolute offset of the first byte of label i, counted from the left
+     * (for api.instagram.com label 0 is "api")
+     */
+    public int labelOffset(int i) {
+        return labelOffsets[i];
+    }
+
+    public int labelLength(int i) {
+        return labelLengths[i];
+    }
+
+    /**
+     * Hash of the lowercased bytes of label i
+     */
+    public int labelHash(int i) {
+        return labelHashes[i];
+    }
+
+    public int qtype() {
+        return qtype;
+    }
+
+    public int qclass() {
+        return qclass;
+    }
+
+    /**
+     * Whether the other view holds the same name, ignoring case, with the
+     * same type and class. False if either is empty.
+     */
+    public boolean sameQuestion(DnsQuestion other) {
+        if (labelCount == 0 || other.labelCount == 0 || nameLength != other.nameLength
+                || qtype != other.qtype || qclass != other.qclass) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (DomainTrie.toLowerAscii(packet.get(nameOffset + i) & 0xFF)
+                    != DomainTrie.toLowerAscii(other.packet.get(other.nameOffset + i) & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int transactionId() {
+        return packet.getShort(dnsOffset) & 0xFFFF;
+    }
+
+    /**
+     * Build the lowercased, dot-separated name. Allocates; only call this
+     * when a String is actually needed, e.g. for logging.
+     */
+    public String toDomainName() {
+        if (labelCount == 0) {
+            return null;
+        }
+
+        char[] name = new char[nameLength - 2];
+        int out = 0;
+        for (int i = 0; i < labelCount; i++) {
+            if (i > 0) {
+                name[out++] = '.';
+            }
+            int offset = labelOffsets[i];
+            for (int j = 0; j < labelLengths[i]; j++) {
+                name[out++] = (char) DomainTrie.toLowerAscii(packet.get(offset + j) & 0xFF);
+            }
+        }
+        return new String(name);
+    }
+}
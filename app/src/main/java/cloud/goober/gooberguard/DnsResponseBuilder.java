@@ -0,0 +1,155 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds the synthetic answer sent back for a blocked query
+ *
+ * The reply is written straight into a caller-owned output buffer, which
+ * each packet thread reuses, so a blocked query costs a fixed handful of
+ * writes: the headers, the question copied from the query, and one
+ * answer or SOA record. Negative answers carry an SOA record whose TTL and
+ * MINIMUM equal the configured block TTL, so resolvers and apps cache the
+ * block (RFC 2308) instead of retrying right away.
+ *
+ * Instances are immutable and can be shared between threads.
+ */
+public class DnsResponseBuilder {
+    /**
+     * How a blocked query is answered
+     */
+    public enum BlockStyle {
+        /**
+         * Name does not exist
+         */
+        NXDOMAIN,
+        /**
+         * Name exists but has no records of the requested type
+         */
+        NODATA,
+        /**
+         * A queries get 0.0.0.0 and AAAA queries get ::; other types get NODATA
+         */
+        NULL_ADDRESS
+    }
+
+    static final BlockStyle DEFAULT_BLOCK_STYLE = BlockStyle.NXDOMAIN;
+    static final int DEFAULT_BLOCK_TTL_SECONDS = 60;
+
+    /**
+     * Largest reply this builder writes: IP, UDP and DNS headers, a
+     * 255-byte QNAME with type and class, and an SOA record
+     */
+    static final int MAX_RESPONSE_SIZE = IpPacketBuilder.IPV6_HEADER_SIZE + IpPacketBuilder.UDP_HEADER_SIZE
+            + 12 + DnsQuestion.MAX_NAME_LENGTH + 4 + 36;
+
+    private static final int TYPE_SOA = 6;
+    private static final int RCODE_NXDOMAIN = 3;
+    // Pointer to the QNAME, which always starts right after the 12-byte header
+    private static final short QNAME_POINTER = (short) 0xC00C;
+
+    private final BlockStyle style;
+    private final int ttlSeconds;
+
+    public DnsResponseBuilder() {
+        this(DEFAULT_BLOCK_STYLE, DEFAULT_BLOCK_TTL_SECONDS);
+    }
+
+    public DnsResponseBuilder(BlockStyle style, int ttlSeconds) {
+        this.style = style;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public BlockStyle getStyle() {
+        return style;
+    }
+
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * Write the blocked reply to an IPv4 or IPv6 UDP query whose question has
+     * already been parsed. out needs at least MAX_RESPONSE_SIZE bytes and
+     * is flipped on return, ready to be written to the tun.
+     */
+    public void writeBlockedResponse(ByteBuffer query, DnsQuestion question, ByteBuffer out) {
+        out.clear();
+        int dnsOffset = IpPacketBuilder.replyHeaderSize(query);
+        int length = writeBlockedMessage(query, question, out, dnsOffset);
+        IpPacketBuilder.finishUdpReply(out, query, length);
+    }
+
+    /**
+     * Write just the DNS message of the blocked reply, as carried over TCP,
+     * at the start of out and flip it. The question may have been parsed
+     * from any buffer holding the query message.
+     */
+    public void writeBlockedMessage(DnsQuestion question, ByteBuffer out) {
+        out.clear();
+        int length = writeBlockedMessage(question.packet(), question, out, 0);
+        out.position(0);
+        out.limit(length);
+    }
+
+    /**
+     * Write the reply message at dnsOffset and return its length
+     */
+    private int writeBlockedMessage(ByteBuffer query, DnsQuestion question, ByteBuffer out, int dnsOffset) {
+
+        int qtype = question.qtype();
+        boolean synthesizeAddress = style == BlockStyle.NULL_ADDRESS
+                && question.qclass() == DnsQuestion.CLASS_IN
+                && (qtype == DnsQuestion.TYPE_A || qtype == DnsQuestion.TYPE_AAAA);
+
+        // QR, opcode and RD copied from the query, RA, and the rcode
+        int queryFlags = query.getShort(question.dnsOffset() + 2) & 0xFFFF;
+        int flags = 0x8000 | (queryFlags & 0x7900) | 0x0080;
+        if (style == BlockStyle.NXDOMAIN) {
+            flags |= RCODE_NXDOMAIN;
+        }
+
+        out.putShort(dnsOffset, (short) question.transactionId());
+        out.putShort(dnsOffset + 2, (short) flags);
+        out.putShort(dnsOffset + 4, (short) 1);                          // QDCOUNT
+        out.putShort(dnsOffset + 6, (short) (synthesizeAddress ? 1 : 0)); // ANCOUNT
+        out.putShort(dnsOffset + 8, (short) (synthesizeAddress ? 0 : 1)); // NSCOUNT
+        out.putShort(dnsOffset + 10, (short) 0);                          // ARCOUNT
+
+        // Question, copied as-is so the client's case is preserved
+        int questionLength = question.nameLength() + 4;
+        int position = dnsOffset + 12;
+        for (int i = 0; i < questionLength; i++) {
+            out.put(position + i, query.get(question.nameOffset() + i));
+        }
+        position += questionLength;
+
+        if (synthesizeAddress) {
+            int addressLength = qtype == DnsQuestion.TYPE_A ? 4 : 16;
+            position = writeRecordHeader(out, position, qtype, addressLength);
+            for (int i = 0; i < addressLength; i++) {
+                out.put(position++, (byte) 0);
+            }
+        } else {
+            position = writeRecordHeader(out, position, TYPE_SOA, 2 + 2 + 20);
+            out.putShort(position, QNAME_POINTER);       // MNAME
+            out.putShort(position + 2, QNAME_POINTER);   // RNAME
+            out.putInt(position + 4, 1);                 // SERIAL
+            out.putInt(position + 8, 3600);              // REFRESH
+            out.putInt(position + 12, 600);              // RETRY
+            out.putInt(position + 16, 86400);            // EXPIRE
+            out.putInt(position + 20, ttlSeconds);       // MINIMUM
+            position += 24;
+        }
+        return position - dnsOffset;
+    }
+
+    private int writeRecordHeader(ByteBuffer out, int position, int type, int dataLength) {
+        out.putShort(position, QNAME_POINTER);
+        out.putShort(position + 2, (short) type);
+        out.putShort(position + 4, (short) DnsQuestion.CLASS_IN);
+        out.putInt(position + 6, ttlSeconds);
+        out.putShort(position + 10, (short) dataLength);
+        return position + 12;
+    }
+}
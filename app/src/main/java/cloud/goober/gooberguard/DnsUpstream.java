@@ -0,0 +1,73 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A transport that carries whole DNS messages to the upstream resolvers
+ * and back: plain TCP, DNS over TLS or DNS over HTTPS
+ *
+ * Queries are handed over as bare DNS messages and replies come back the
+ * same way, with the query's own transaction ID, so callers need not know
+ * how either travelled. Implementations keep their connections open across
+ * queries and carry many queries on each.
+ */
+public interface DnsUpstream extends Closeable {
+    /**
+     * Receives the outcome of one query, on the upstream's own thread
+     */
+    interface Callback {
+        /**
+         * The whole reply, carrying the query's own transaction ID
+         */
+        void onResponse(byte[] response);
+
+        /**
+         * No reply: the upstreams could not be reached or did not answer in
+         * time, or the upstream was closed
+         */
+        void onFailure();
+    }
+
+    /**
+     * Start the threads that do the upstream's I/O
+     */
+    void start() throws IOException;
+
+    /**
+     * Queue a DNS query message for sending. The message is copied, so the
+     * caller may reuse it. Returns false, without calling back, if the
+     * upstream is stopped or too many queries are already pending.
+     */
+    boolean query(byte[] message, int offset, int length, Callback callback);
+
+    /**
+     * Number of queries queued or sent and still waiting for a reply
+     */
+    int pendingCount();
+
+    long getQueryCount();
+
+    long getAnsweredCount();
+
+    long getFailedCount();
+
+    /**
+     * Connections opened so far
+     */
+    long getConnectionCount();
+
+    /**
+     * Queries sent on a connection that had already carried one
+     */
+    long getReusedCount();
+
+    /**
+     * Latency, health and traffic numbers for each upstream resolver
+     */
+    List<UpstreamTracker.Stats> getUpstreamStats();
+
+    @Override
+    void close();
+}
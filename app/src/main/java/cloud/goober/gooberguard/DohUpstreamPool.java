@@ -0,0 +1,576 @@
+package cloud.goober.gooberguard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Sends DNS queries to the upstream resolvers over HTTPS (RFC 8484)
+ *
+ * Each query is a POST of the DNS message on its own HTTP/2 stream, so one
+ * connection carries as many queries at once as the server allows, up to
+ * {@link #MAX_STREAMS}, and replies come back in any order. The server must
+ * agree to h2 over ALPN.
+ *
+ * Only as much HTTP/2 is spoken as this needs. Header compression uses no
+ * dynamic table: requests are sent as literals and the server is told to
+ * keep none, so the only response header read, the status, is always in
+ * the static table or a literal. A large connection window is granted up
+ * front, server pushes are refused, and PINGs keep quiet connections warm.
+ */
+public class DohUpstreamPool extends SecureUpstreamPool {
+    static final int DEFAULT_PORT = 443;
+    static final String DEFAULT_PATH = "/dns-query";
+    static final int MAX_STREAMS = 100;
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String DNS_MESSAGE = "application/dns-message";
+
+    static final int FRAME_HEADER_SIZE = 9;
+    static final int TYPE_DATA = 0;
+    static final int TYPE_HEADERS = 1;
+    static final int TYPE_RST_STREAM = 3;
+    static final int TYPE_SETTINGS = 4;
+    static final int TYPE_PING = 6;
+    static final int TYPE_GOAWAY = 7;
+    static final int TYPE_WINDOW_UPDATE = 8;
+    static final int TYPE_CONTINUATION = 9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 1;
+    static final int SETTINGS_ENABLE_PUSH = 2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 5;
+
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int DEFAULT_WINDOW = 65535;
+    // Receive window for the whole connection, granted once at the start
+    private static final int CONNECTION_WINDOW = 1 << 24;
+    private static final int MAX_STREAM_ID = 0x7FFFFFFF;
+
+    // HPACK static table entries (RFC 7541 appendix A)
+    private static final int METHOD_POST = 3;
+    private static final int SCHEME_HTTPS = 7;
+    private static final int PATH = 4;
+    private static final int AUTHORITY = 1;
+    private static final int ACCEPT = 19;
+    private static final int CONTENT_LENGTH = 28;
+    private static final int CONTENT_TYPE = 31;
+    private static final int STATUS_FIRST = 8;
+    private static final int[] STATUS_VALUES = {200, 204, 206, 304, 400, 404, 500};
+
+    public DohUpstreamPool(List<Endpoint> endpoints, TcpUpstreamPool.SocketProtector protector) {
+        this(endpoints, defaultContext(), protector, DEFAULT_CONNECTIONS_PER_UPSTREAM, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param context supplies the trusted certificates and the session cache
+     */
+    public DohUpstreamPool(List<Endpoint> endpoints, SSLContext context, TcpUpstreamPool.SocketProtector protector,
+                           int connectionsPerUpstream, long timeoutMillis) {
+        super(endpoints, context, protector, connectionsPerUpstream, timeoutMillis);
+    }
+
+    @Override
+    String applicationProtocol() {
+        return "h2";
+    }
+
+    @Override
+    Connection newConnection(int upstream, long now) {
+        return new Http2Connection(upstream, now);
+    }
+
+    /**
+     * HPACK block for a POST of a DNS message of the given length to the
+     * endpoint, every field a literal that is not added to a table
+     */
+    static byte[] requestHeaders(Endpoint endpoint, int contentLength) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        writeInteger(block, 0x80, 7, METHOD_POST);
+        writeInteger(block, 0x80, 7, SCHEME_HTTPS);
+        writeLiteral(block, PATH, endpoint.path);
+        writeLiteral(block, AUTHORITY, endpoint.serverName);
+        writeLiteral(block, CONTENT_TYPE, DNS_MESSAGE);
+        writeLiteral(block, ACCEPT, DNS_MESSAGE);
+        writeLiteral(block, CONTENT_LENGTH, Integer.toString(contentLength));
+        return block.toByteArray();
+    }
+
+    /**
+     * The :status in an HPACK header block, or -1 if it has none that can
+     * be read without a dynamic table
+     */
+    static int responseStatus(byte[] block, int length) {
+        HeaderReader reader = new HeaderReader(block, length);
+        while (reader.position < length) {
+            int first = block[reader.position] & 0xFF;
+            if ((first & 0x80) != 0) {
+                int index = reader.readInteger(7);
+                if (index >= STATUS_FIRST && index < STATUS_FIRST + STATUS_VALUES.length) {
+                    return STATUS_VALUES[index - STATUS_FIRST];
+                }
+                continue;
+            }
+            if ((first & 0xE0) == 0x20) {
+                // Dynamic table size update
+                reader.readInteger(5);
+                continue;
+            }
+            int nameIndex = reader.readInteger((first & 0x40) != 0 ? 6 : 4);
+            boolean status = nameIndex >= STATUS_FIRST && nameIndex < STATUS_FIRST + STATUS_VALUES.length;
+            if (nameIndex == 0) {
+                status = ":status".equals(reader.readString());
+            }
+            if (status) {
+                String value = reader.readString();
+                return value != null && value.length() == 3 && isDigits(value) ? Integer.parseInt(value) : -1;
+            }
+            if (reader.skipString() < 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeLiteral(ByteArrayOutputStream block, int nameIndex, String value) {
+        // Literal header field without indexing, indexed name
+        writeInteger(block, 0x00, 4, nameIndex);
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        writeInteger(block, 0x00, 7, bytes.length);
+        block.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * HPACK integer with an N-bit prefix (RFC 7541 5.1)
+     */
+    private static void writeInteger(ByteArrayOutputStream block, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            block.write(flags | value);
+            return;
+        }
+        block.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            block.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block.write(value);
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, int type, int flags, int stream,
+                                   byte[] payload, int offset, int length) {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(stream >>> 24);
+        out.write(stream >>> 16);
+        out.write(stream >>> 8);
+        out.write(stream);
+        out.write(payload, offset, length);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    /**
+     * Walks an HPACK header block. Strings are decoded only when they are
+     * plain ASCII or Huffman coded digits, which covers every status.
+     */
+    private static final class HeaderReader {
+        private final byte[] block;
+        private final int length;
+        int position;
+
+        HeaderReader(byte[] block, int length) {
+            this.block = block;
+            this.length = length;
+        }
+
+        int readInteger(int prefixBits) {
+            int max = (1 << prefixBits) - 1;
+            int value = block[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            while (position < length && shift < 28) {
+                int b = block[position++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+            position = length;
+            return -1;
+        }
+
+        /**
+         * Skip a string; returns -1 if the block ends first
+         */
+        int skipString() {
+            if (position >= length) {
+                return -1;
+            }
+            int stringLength = readInteger(7);
+            if (stringLength < 0 || position + stringLength > length) {
+                position = length;
+                return -1;
+            }
+            position += stringLength;
+            return stringLength;
+        }
+
+        /**
+         * Read a string, or return null if it cannot be decoded here
+         */
+        String readString() {
+            if (position >= length) {
+                return null;
+            }
+            boolean huffman = (block[position] & 0x80) != 0;
+            int stringLength = skipString();
+            if (stringLength < 0) {
+                return null;
+            }
+            int offset = position - stringLength;
+            if (!huffman) {
+                return new String(block, offset, stringLength, StandardCharsets.US_ASCII);
+            }
+            return huffmanDigits(offset, stringLength);
+        }
+
+        /**
+         * Decode a Huffman coded string made only of digits: '0' to '2'
+         * have 5-bit codes 0 to 2 and '3' to '9' have 6-bit codes 0x19 to
+         * 0x1F (RFC 7541 appendix B). Padding is up to 7 one bits.
+         */
+        private String huffmanDigits(int offset, int byteLength) {
+            StringBuilder digits = new StringBuilder(3);
+            int totalBits = byteLength * 8;
+            int bit = 0;
+            while (totalBits - bit >= 5) {
+                int code5 = bits(offset, bit, 5);
+                if (code5 <= 2) {
+                    digits.append((char) ('0' + code5));
+                    bit += 5;
+                    continue;
+                }
+                if (totalBits - bit >= 6) {
+                    int code6 = bits(offset, bit, 6);
+                    if (code6 >= 0x19 && code6 <= 0x1F) {
+                        digits.append((char) ('3' + code6 - 0x19));
+                        bit += 6;
+                        continue;
+                    }
+                }
+                break;
+            }
+            int padding = totalBits - bit;
+            if (padding > 7 || bits(offset, bit, padding) != (1 << padding) - 1) {
+                return null;
+            }
+            return digits.toString();
+        }
+
+        private int bits(int offset, int from, int count) {
+            int value = 0;
+            for (int i = from; i < from + count; i++) {
+                value = (value << 1) | ((block[offset + i / 8] >> (7 - i % 8)) & 1);
+            }
+            return value;
+        }
+    }
+
+    private static final class Stream {
+        final ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status;
+        boolean headersDone;
+    }
+
+    private final class Http2Connection extends Connection {
+        // Guarded by the pool
+        private int nextStreamId = 1;
+        private int maxStreams = MAX_STREAMS;
+        private long sendWindow = DEFAULT_WINDOW;
+        private int streamWindow = DEFAULT_WINDOW;
+        // Written by the connection thread, read by the pool thread
+        private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+        // Connection thread only
+        private final Map<Integer, Stream> streams = new HashMap<>();
+        private int continuationStream;
+
+        Http2Connection(int upstream, long now) {
+            super(upstream, now);
+        }
+
+        @Override
+        void open() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+            out.write(PREFACE, 0, PREFACE.length);
+            byte[] settings = new byte[12];
+            // No dynamic table, and no server push
+            settings[1] = SETTINGS_HEADER_TABLE_SIZE;
+            settings[7] = SETTINGS_ENABLE_PUSH;
+            writeFrame(out, TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+            byte[] increment = intBytes(CONNECTION_WINDOW - DEFAULT_WINDOW);
+            writeFrame(out, TYPE_WINDOW_UPDATE, 0, 0, increment, 0, increment.length);
+            write(out.toByteArray(), 0, out.size());
+        }
+
+        @Override
+        boolean hasRoom(Request request) {
+            return load() < maxStreams && nextStreamId < MAX_STREAM_ID - 2
+                    && request.message.length <= Math.min(sendWindow, streamWindow);
+        }
+
+        @Override
+        int register(Request request) {
+            int stream = nextStreamId;
+            nextStreamId += 2;
+            sendWindow -= request.message.length;
+            return stream;
+        }
+
+        @Override
+        void send(Request request, int key) throws IOException {
+            byte[] message = request.message.clone();
+            // RFC 8484 4.1: an ID of 0 keeps replies cacheable by HTTP caches
+            message[0] = 0;
+            message[1] = 0;
+            byte[] headers = requestHeaders(endpoints.get(upstream), message.length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(headers.length + message.length + 32);
+            writeFrame(out, TYPE_HEADERS, FLAG_END_HEADERS, key, headers, 0, headers.length);
+            int frameSize = maxFrameSize;
+            int offset = 0;
+            do {
+                int length = Math.min(frameSize, message.length - offset);
+                boolean last = offset + length == message.length;
+                writeFrame(out, TYPE_DATA, last ? FLAG_END_STREAM : 0, key, message, offset, length);
+                offset += length;
+            } while (offset < message.length);
+            write(out.toByteArray(), 0, out.size());
+        }
+
+        @Override
+        void keepAlive() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(FRAME_HEADER_SIZE + 8);
+            writeFrame(out, TYPE_PING, 0, 0, new byte[8], 0, 8);
+            write(out.toByteArray(), 0, out.size());
+        }
+
+        @Override
+        void read() throws IOException {
+            DataInputStream input = new DataInputStream(in);
+            byte[] header = new byte[FRAME_HEADER_SIZE];
+            long unacknowledged = 0;
+            while (true) {
+                input.readFully(header);
+                int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+                int type = header[3] & 0xFF;
+                int flags = header[4] & 0xFF;
+                int stream = readInt(header, 5) & MAX_STREAM_ID;
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new IOException("HTTP/2 frame larger than allowed: " + length);
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+
+                if (continuationStream != 0 && type != TYPE_CONTINUATION) {
+                    throw new IOException("HTTP/2 header block interrupted");
+                }
+                switch (type) {
+                    case TYPE_DATA:
+                        unacknowledged += length;
+                        if (unacknowledged >= CONNECTION_WINDOW / 2) {
+                            sendFrame(TYPE_WINDOW_UPDATE, 0, 0, intBytes((int) unacknowledged));
+                            unacknowledged = 0;
+                        }
+                        data(stream, flags, payload);
+                        break;
+                    case TYPE_HEADERS:
+                        headers(stream, flags, payload);
+                        break;
+                    case TYPE_CONTINUATION:
+                        if (stream != continuationStream) {
+                            throw new IOException("Unexpected HTTP/2 CONTINUATION");
+                        }
+                        Stream open = streams.get(stream);
+                        open.headers.write(payload, 0, length);
+                        if ((flags & FLAG_END_HEADERS) != 0) {
+                            continuationStream = 0;
+                            headersDone(stream, open, open.headers.toByteArray());
+                        }
+                        break;
+                    case TYPE_RST_STREAM:
+                        streams.remove(stream);
+                        refused(this, stream);
+                        break;
+                    case TYPE_SETTINGS:
+                        if ((flags & FLAG_ACK) == 0) {
+                            settings(payload);
+                            sendFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+                        }
+                        break;
+                    case TYPE_PING:
+                        if ((flags & FLAG_ACK) == 0) {
+                            sendFrame(TYPE_PING, FLAG_ACK, 0, payload);
+                        }
+                        break;
+                    case TYPE_GOAWAY:
+                        goAway(readInt(payload, 0) & MAX_STREAM_ID);
+                        break;
+                    case TYPE_WINDOW_UPDATE:
+                        if (stream == 0) {
+                            synchronized (DohUpstreamPool.this) {
+                                sendWindow += readInt(payload, 0) & MAX_STREAM_ID;
+                            }
+                        }
+                        break;
+                    default:
+                        // PRIORITY, PUSH_PROMISE (refused in our settings)
+                        // and unknown frame types are ignored
+                        break;
+                }
+            }
+        }
+
+        private void data(int stream, int flags, byte[] payload) {
+            Stream open = streams.get(stream);
+            if (open == null) {
+                return;
+            }
+            int padding = (flags & FLAG_PADDED) != 0 && payload.length > 0 ? (payload[0] & 0xFF) + 1 : 0;
+            int offset = padding > 0 ? 1 : 0;
+            int length = payload.length - padding;
+            if (length > 0) {
+                open.body.write(payload, offset, length);
+            }
+            if ((flags & FLAG_END_STREAM) != 0) {
+                finish(stream, open);
+            }
+        }
+
+        private void headers(int stream, int flags, byte[] payload) throws IOException {
+            Stream open = streams.computeIfAbsent(stream, id -> new Stream());
+            int offset = 0;
+            int padding = 0;
+            if ((flags & FLAG_PADDED) != 0) {
+                padding = payload[0] & 0xFF;
+                offset = 1;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) {
+                offset += 5;
+            }
+            int length = payload.length - offset - padding;
+            if (length < 0) {
+                throw new IOException("Malformed HTTP/2 HEADERS frame");
+            }
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                byte[] block = new byte[length];
+                System.arraycopy(payload, offset, block, 0, length);
+                headersDone(stream, open, block);
+            } else {
+                open.headers.reset();
+                open.headers.write(payload, offset, length);
+                continuationStream = stream;
+            }
+            if ((flags & FLAG_END_STREAM) != 0) {
+                finish(stream, open);
+            }
+        }
+
+        private void headersDone(int stream, Stream open, byte[] block) {
+            // Only the first block holds the status; later ones are trailers
+            if (!open.headersDone) {
+                open.headersDone = true;
+                open.status = responseStatus(block, block.length);
+            }
+        }
+
+        private void finish(int stream, Stream open) {
+            streams.remove(stream);
+            if (open.status == 200 && open.body.size() >= 12) {
+                complete(this, stream, open.body.toByteArray());
+            } else {
+                refused(this, stream);
+            }
+        }
+
+        private void settings(byte[] payload) {
+            synchronized (DohUpstreamPool.this) {
+                for (int i = 0; i + 6 <= payload.length; i += 6) {
+                    int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+                    int value = readInt(payload, i + 2);
+                    if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+                        maxStreams = (int) Math.min(MAX_STREAMS, value & 0xFFFFFFFFL);
+                    } else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                        streamWindow = value & MAX_STREAM_ID;
+                    } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                        maxFrameSize = value;
+                    }
+                }
+            }
+        }
+
+        /**
+         * The server is closing: take no new streams, and retry the ones it
+         * says it will not process
+         */
+        private void goAway(int lastStream) {
+            List<Integer> unprocessed = new ArrayList<>();
+            synchronized (DohUpstreamPool.this) {
+                draining = true;
+                for (int stream : inFlight.keySet()) {
+                    if (stream > lastStream) {
+                        unprocessed.add(stream);
+                    }
+                }
+            }
+            for (int stream : unprocessed) {
+                streams.remove(stream);
+                retry(this, stream);
+            }
+        }
+
+        private void sendFrame(int type, int flags, int stream, byte[] payload) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(FRAME_HEADER_SIZE + payload.length);
+            writeFrame(out, type, flags, stream, payload, 0, payload.length);
+            write(out.toByteArray(), 0, out.size());
+        }
+    }
+}
@@ -2,71 +2,534 @@ package cloud.goober.gooberguard;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 public class DomainManager {
+    private static final String TAG = "DomainManager";
+    // Where the list was kept before the binary store; only read to migrate
     private static final String PREFS_NAME = "blocked_domains";
     private static final String DOMAINS_KEY = "domains";
-    
-    private SharedPreferences prefs;
-    
+    // Each app's own rules are a small store in a directory named after
+    // its package
+    private static final String APPS_DIRECTORY = "apps";
+    private static final Pattern PACKAGE_NAME = Pattern.compile("[A-Za-z0-9_]+(\\.[A-Za-z0-9_]+)*");
+    // Scheduled rule groups likewise, each with its schedule beside it
+    private static final String GROUPS_DIRECTORY = "groups";
+    private static final String SCHEDULE_FILE = "schedule";
+    private static final Pattern GROUP_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private static final List<String> DEFAULT_BLOCKED_DOMAINS = Arrays.asList(
+            // Instagram
+            "instagram.com",
+            "www.instagram.com",
+            "i.instagram.com",
+            "api.instagram.com",
+            // Facebook
+            "facebook.com",
+            "www.facebook.com",
+            "m.facebook.com",
+            "api.facebook.com");
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final BlocklistStore store;
+    // Last loaded snapshot, dropped whenever this manager edits the list
+    private Blocklist blocklist;
+
     public DomainManager(Context context) {
+        this.context = context;
         prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        
+        store = new BlocklistStore(context.getFilesDir());
+
+        migrateFromPreferences();
+
         // Add some default blocked domains if none exist
-        if (getBlockedDomains().isEmpty()) {
+        if (loadBlocklist().size() == 0) {
             addDefaultBlockedDomains();
         }
     }
-    
+
+    /**
+     * Move a list saved by older versions as a SharedPreferences string set
+     * into the binary store, then drop the preference
+     */
+    private void migrateFromPreferences() {
+        if (!prefs.contains(DOMAINS_KEY)) {
+            return;
+        }
+        Set<String> saved = prefs.getStringSet(DOMAINS_KEY, new HashSet<>());
+
+        Set<String> domains = new LinkedHashSet<>(loadBlocklist().entries());
+        domains.addAll(saved);
+        try {
+            store.write(domains);
+        } catch (IOException e) {
+            // Keep the preference so the migration is retried next time
+            AppLog.e(TAG, "Error migrating blocked domains", e);
+            return;
+        }
+        blocklist = null;
+        prefs.edit()
+                .remove(DOMAINS_KEY)
+                .apply();
+        AppLog.d(TAG, "Migrated " + saved.size() + " blocked domains from preferences");
+    }
+
     private void addDefaultBlockedDomains() {
-        // Add Instagram and Facebook domains as defaults
-        addBlockedDomain("instagram.com");
-        addBlockedDomain("www.instagram.com");
-        addBlockedDomain("i.instagram.com");
-        addBlockedDomain("api.instagram.com");
-        
-        // Add Facebook domains
-        addBlockedDomain("facebook.com");
-        addBlockedDomain("www.facebook.com");
-        addBlockedDomain("m.facebook.com");
-        addBlockedDomain("api.facebook.com");
-    }
-    
+        // Instagram and Facebook domains, written as one image
+        try {
+            store.write(DEFAULT_BLOCKED_DOMAINS);
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error writing default blocked domains", e);
+        }
+        blocklist = null;
+    }
+
+    /**
+     * Current list, memory-mapped from storage. The snapshot does not change
+     * when the list is edited later; load it again to see edits.
+     */
+    public Blocklist loadBlocklist() {
+        Blocklist current = blocklist;
+        if (current == null) {
+            try {
+                current = store.load();
+            } catch (IOException e) {
+                AppLog.e(TAG, "Error loading blocked domains", e);
+                return Blocklist.empty();
+            }
+            blocklist = current;
+        }
+        return current;
+    }
+
+    /**
+     * Block entries and pattern rules
+     */
     public ArrayList<String> getBlockedDomains() {
-        Set<String> domainSet = prefs.getStringSet(DOMAINS_KEY, new HashSet<>());
-        return new ArrayList<>(domainSet);
+        ArrayList<String> blocked = new ArrayList<>();
+        for (String entry : loadBlocklist().entries()) {
+            if (!DomainTrie.isAllowEntry(entry)) {
+                blocked.add(entry);
+            }
+        }
+        return blocked;
     }
-    
+
+    /**
+     * Domains whose allow entries override block entries on their parents,
+     * without the "@@" prefix
+     */
+    public ArrayList<String> getAllowedDomains() {
+        ArrayList<String> allowed = new ArrayList<>();
+        for (String entry : loadBlocklist().entries()) {
+            if (DomainTrie.isAllowEntry(entry)) {
+                allowed.add(entry.substring(DomainTrie.ALLOW_PREFIX.length()));
+            }
+        }
+        return allowed;
+    }
+
     public void addBlockedDomain(String domain) {
-        Set<String> domains = new HashSet<>(prefs.getStringSet(DOMAINS_KEY, new HashSet<>()));
-        domains.add(domain.toLowerCase().trim());
-        
-        prefs.edit()
-                .putStringSet(DOMAINS_KEY, domains)
-                .apply();
+        try {
+            store.add(domain);
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error adding blocked domain", e);
+        }
+        blocklist = null;
     }
-    
+
     public void removeBlockedDomain(String domain) {
-        Set<String> domains = new HashSet<>(prefs.getStringSet(DOMAINS_KEY, new HashSet<>()));
-        domains.remove(domain.toLowerCase().trim());
-        
-        prefs.edit()
-                .putStringSet(DOMAINS_KEY, domains)
-                .apply();
+        try {
+            store.remove(domain);
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error removing blocked domain", e);
+        }
+        blocklist = null;
     }
-    
+
+    /**
+     * Allow a domain and its subdomains even if a parent domain or a rule
+     * blocks them. A more specific block entry still wins.
+     */
+    public void addAllowedDomain(String domain) {
+        try {
+            store.add(allowEntry(domain));
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error adding allowed domain", e);
+        }
+        blocklist = null;
+    }
+
+    public void removeAllowedDomain(String domain) {
+        try {
+            store.remove(allowEntry(domain));
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error removing allowed domain", e);
+        }
+        blocklist = null;
+    }
+
+    public boolean isDomainAllowed(String domain) {
+        return loadBlocklist().contains(allowEntry(domain));
+    }
+
+    private static String allowEntry(String domain) {
+        domain = domain.trim();
+        return DomainTrie.isAllowEntry(domain) ? domain : DomainTrie.ALLOW_PREFIX + domain;
+    }
+
+    /**
+     * Merge a hosts file, plain domain list or adblock-style list into the
+     * blocked list with a single write. Slow for large lists; call off the
+     * main thread.
+     */
+    public BlocklistImporter importDomains(InputStream in, BlocklistImporter.ProgressListener listener)
+            throws IOException {
+        BlocklistImporter importer = new BlocklistImporter(loadBlocklist().entries());
+        importer.read(in, listener);
+        store.write(importer.compile(), importer.getPatterns());
+        blocklist = null;
+        AppLog.d(TAG, "Imported " + importer.getAddedCount() + " domains from " + importer.getLineCount()
+                + " lines (" + importer.getLinesPerSecond() + " lines/s)");
+        return importer;
+    }
+
+    public BlocklistImporter importDomains(File file, BlocklistImporter.ProgressListener listener)
+            throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return importDomains(in, listener);
+        }
+    }
+
     public boolean isDomainBlocked(String domain) {
-        Set<String> domains = prefs.getStringSet(DOMAINS_KEY, new HashSet<>());
-        return domains.contains(domain.toLowerCase().trim());
+        return loadBlocklist().contains(domain);
     }
-    
+
     public void clearAllDomains() {
-        prefs.edit()
-                .remove(DOMAINS_KEY)
-                .apply();
+        try {
+            store.write(new ArrayList<>());
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error clearing blocked domains", e);
+        }
+        blocklist = null;
+    }
+
+    /**
+     * Packages with rules of their own, in no particular order
+     */
+    public List<String> getAppsWithRules() {
+        List<String> packages = new ArrayList<>();
+        File[] directories = new File(context.getFilesDir(), APPS_DIRECTORY).listFiles();
+        if (directories == null) {
+            return packages;
+        }
+        for (File directory : directories) {
+            if (PACKAGE_NAME.matcher(directory.getName()).matches() && new BlocklistStore(directory).exists()) {
+                packages.add(directory.getName());
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * An app's own rules, which override the global list for its queries
+     */
+    public Blocklist loadAppBlocklist(String packageName) {
+        BlocklistStore appStore = new BlocklistStore(appDirectory(packageName));
+        if (!appStore.exists()) {
+            return Blocklist.empty();
+        }
+        try {
+            return appStore.load();
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error loading rules for " + packageName, e);
+            return Blocklist.empty();
+        }
+    }
+
+    /**
+     * Domains blocked for one app even if the global list allows them
+     */
+    public ArrayList<String> getAppBlockedDomains(String packageName) {
+        return blockEntries(loadAppBlocklist(packageName));
+    }
+
+    /**
+     * Domains allowed for one app even if the global list blocks them,
+     * without the "@@" prefix
+     */
+    public ArrayList<String> getAppAllowedDomains(String packageName) {
+        return allowEntries(loadAppBlocklist(packageName));
+    }
+
+    public void addAppBlockedDomain(String packageName, String domain) {
+        try {
+            appStore(packageName).add(domain);
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error adding blocked domain for " + packageName, e);
+        }
+    }
+
+    public void removeAppBlockedDomain(String packageName, String domain) {
+        try {
+            appStore(packageName).remove(domain);
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error removing blocked domain for " + packageName, e);
+        }
+    }
+
+    public void addAppAllowedDomain(String packageName, String domain) {
+        try {
+            appStore(packageName).add(allowEntry(domain));
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error adding allowed domain for " + packageName, e);
+        }
+    }
+
+    public void removeAppAllowedDomain(String packageName, String domain) {
+        try {
+            appStore(packageName).remove(allowEntry(domain));
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error removing allowed domain for " + packageName, e);
+        }
+    }
+
+    /**
+     * Drop an app's own rules, so the global list applies to it again
+     */
+    public void clearAppRules(String packageName) {
+        deleteDirectory(appDirectory(packageName));
+    }
+
+    /**
+     * Every app's rules keyed by its UID, for the packet loop. Packages
+     * that are no longer installed are skipped.
+     */
+    public AppRules loadAppRules() {
+        PackageManager packageManager = context.getPackageManager();
+        Map<Integer, Blocklist> byUid = new HashMap<>();
+        for (String packageName : getAppsWithRules()) {
+            int uid;
+            try {
+                uid = packageManager.getPackageUid(packageName, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                continue;
+            }
+            byUid.put(uid, loadAppBlocklist(packageName));
+        }
+        return byUid.isEmpty() ? AppRules.empty() : AppRules.compile(byUid);
+    }
+
+    /**
+     * Rule groups with entries or a schedule, in no particular order
+     */
+    public List<String> getRuleGroups() {
+        List<String> groups = new ArrayList<>();
+        File[] directories = new File(context.getFilesDir(), GROUPS_DIRECTORY).listFiles();
+        if (directories == null) {
+            return groups;
+        }
+        for (File directory : directories) {
+            if (GROUP_NAME.matcher(directory.getName()).matches() && (new BlocklistStore(directory).exists()
+                    || new File(directory, SCHEDULE_FILE).exists())) {
+                groups.add(directory.getName());
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * When a group's entries apply, or null if it has no schedule and so
+     * never applies
+     */
+    public RuleSchedule getGroupSchedule(String group) {
+        File file = new File(groupDirectory(group), SCHEDULE_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return RuleSchedule.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException | IllegalArgumentException e) {
+            AppLog.e(TAG, "Error loading schedule for " + group, e);
+            return null;
+        }
+    }
+
+    public void setGroupSchedule(String group, RuleSchedule schedule) {
+        File file = new File(createGroupDirectory(group), SCHEDULE_FILE);
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write((schedule + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error saving schedule for " + group, e);
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            AppLog.e(TAG, "Error replacing " + file);
+        }
+    }
+
+    /**
+     * A group's own entries, whether or not its schedule applies now
+     */
+    public Blocklist loadGroupBlocklist(String group) {
+        BlocklistStore groupStore = new BlocklistStore(groupDirectory(group));
+        if (!groupStore.exists()) {
+            return Blocklist.empty();
+        }
+        try {
+            return groupStore.load();
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error loading rules for group " + group, e);
+            return Blocklist.empty();
+        }
+    }
+
+    public ArrayList<String> getGroupBlockedDomains(String group) {
+        return blockEntries(loadGroupBlocklist(group));
+    }
+
+    /**
+     * Domains a group allows while it applies, without the "@@" prefix
+     */
+    public ArrayList<String> getGroupAllowedDomains(String group) {
+        return allowEntries(loadGroupBlocklist(group));
+    }
+
+    public void addGroupBlockedDomain(String group, String domain) {
+        try {
+            groupStore(group).add(domain);
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error adding blocked domain to group " + group, e);
+        }
+    }
+
+    public void removeGroupBlockedDomain(String group, String domain) {
+        try {
+            groupStore(group).remove(domain);
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error removing blocked domain from group " + group, e);
+        }
+    }
+
+    public void addGroupAllowedDomain(String group, String domain) {
+        try {
+            groupStore(group).add(allowEntry(domain));
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error adding allowed domain to group " + group, e);
+        }
+    }
+
+    public void removeGroupAllowedDomain(String group, String domain) {
+        try {
+            groupStore(group).remove(allowEntry(domain));
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error removing allowed domain from group " + group, e);
+        }
+    }
+
+    public void deleteRuleGroup(String group) {
+        deleteDirectory(groupDirectory(group));
+    }
+
+    /**
+     * Every group that has a schedule, for the service to fold into the
+     * blocklist while each applies
+     */
+    public ScheduledRules loadScheduledRules() {
+        List<ScheduledRules.Group> groups = new ArrayList<>();
+        for (String group : getRuleGroups()) {
+            RuleSchedule schedule = getGroupSchedule(group);
+            if (schedule != null) {
+                groups.add(new ScheduledRules.Group(group, schedule, loadGroupBlocklist(group).entries()));
+            }
+        }
+        return ScheduledRules.of(groups);
+    }
+
+    private BlocklistStore groupStore(String group) {
+        return new BlocklistStore(createGroupDirectory(group));
+    }
+
+    private File createGroupDirectory(String group) {
+        File directory = groupDirectory(group);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            AppLog.e(TAG, "Error creating " + directory);
+        }
+        return directory;
+    }
+
+    private File groupDirectory(String group) {
+        if (group == null || !GROUP_NAME.matcher(group).matches()) {
+            throw new IllegalArgumentException("Not a group name: " + group);
+        }
+        return new File(new File(context.getFilesDir(), GROUPS_DIRECTORY), group);
+    }
+
+    private static ArrayList<String> blockEntries(Blocklist list) {
+        ArrayList<String> blocked = new ArrayList<>();
+        for (String entry : list.entries()) {
+            if (!DomainTrie.isAllowEntry(entry)) {
+                blocked.add(entry);
+            }
+        }
+        return blocked;
+    }
+
+    private static ArrayList<String> allowEntries(Blocklist list) {
+        ArrayList<String> allowed = new ArrayList<>();
+        for (String entry : list.entries()) {
+            if (DomainTrie.isAllowEntry(entry)) {
+                allowed.add(entry.substring(DomainTrie.ALLOW_PREFIX.length()));
+            }
+        }
+        return allowed;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    AppLog.e(TAG, "Error deleting " + file);
+                }
+            }
+        }
+        directory.delete();
+    }
+
+    private BlocklistStore appStore(String packageName) {
+        File directory = appDirectory(packageName);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            AppLog.e(TAG, "Error creating " + directory);
+        }
+        return new BlocklistStore(directory);
+    }
+
+    private File appDirectory(String packageName) {
+        if (packageName == null || !PACKAGE_NAME.matcher(packageName).matches()) {
+            throw new IllegalArgumentException("Not a package name: " + packageName);
+        }
+        return new File(new File(context.getFilesDir(), APPS_DIRECTORY), packageName);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,847 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled blocklist matcher that stores domain labels in reverse order
+ * (com -> instagram -> api). A node flagged as blocked blocks itself and
+ * every subdomain beneath it, so a lookup walks one node per query label
+ * no matter how many domains are in the list.
+ *
+ * Entries written with an "@@" prefix, such as "@@cdn.instagram.com", are
+ * allow entries and are flagged on the same nodes. The walk that looks for
+ * block entries sees them too, so an exception costs no second lookup: the
+ * deepest entry on the name's path decides, and an allow entry wins over a
+ * block entry on the same node.
+ *
+ * Nodes and edges live in flat arrays: each node keeps its parent and a
+ * reference into a shared pool of label bytes, and children are found
+ * through an open-addressing table keyed by (parent, label). Instances are
+ * immutable once compiled and safe to share between threads.
+ *
+ * The arrays are held as buffers so the same trie can be backed either by
+ * the heap or by a memory-mapped image written with
+ * {@link #writeImage(ByteBuffer)}. A mapped image is queried in place;
+ * nothing is deserialized. It is read through once when opened, to check
+ * that every offset and index in it stays inside its sections.
+ */
+public final class DomainTrie {
+    static final int ROOT = 0;
+    static final int NOT_FOUND = -1;
+
+    static final byte FLAG_BLOCK = 1;
+    static final byte FLAG_ALLOW = 2;
+
+    /**
+     * Marks an allow entry in lists of entries
+     */
+    public static final String ALLOW_PREFIX = "@@";
+
+    // FNV-1a over lowercased label bytes, shared with DnsQuestion
+    static final int LABEL_HASH_SEED = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    // Image layout: a header of six little-endian ints (magic, version,
+    // node count, entry count, label pool size, slot count), then the
+    // parent, labelOffset, labelHash and slots int arrays, then the
+    // labelLength, flags and label pool byte arrays
+    static final int IMAGE_MAGIC = 0x54424747; // "GGBT"
+    static final int IMAGE_VERSION = 1;
+    private static final int IMAGE_HEADER_SIZE = 24;
+
+    private final IntBuffer parent;
+    private final IntBuffer labelOffset;
+    private final IntBuffer labelHash;
+    // Child node index + 1 per slot, 0 marks an empty slot
+    private final IntBuffer slots;
+    private final ByteBuffer labelLength;
+    private final ByteBuffer flags;
+    private final ByteBuffer labels;
+    private final int slotMask;
+    private final int nodeCount;
+    private final int entryCount;
+    private final int labelsSize;
+
+    private DomainTrie(Builder builder) {
+        this.nodeCount = builder.nodeCount;
+        this.entryCount = builder.entryCount;
+        this.labelsSize = builder.labelsSize;
+        this.parent = IntBuffer.wrap(Arrays.copyOf(builder.parent, nodeCount));
+        this.labelOffset = IntBuffer.wrap(Arrays.copyOf(builder.labelOffset, nodeCount));
+        this.labelHash = IntBuffer.wrap(Arrays.copyOf(builder.labelHash, nodeCount));
+        this.slots = IntBuffer.wrap(builder.slots);
+        this.labelLength = ByteBuffer.wrap(Arrays.copyOf(builder.labelLength, nodeCount));
+        this.flags = ByteBuffer.wrap(Arrays.copyOf(builder.flags, nodeCount));
+        this.labels = ByteBuffer.wrap(Arrays.copyOf(builder.labels, labelsSize));
+        this.slotMask = builder.slots.length - 1;
+    }
+
+    private DomainTrie(ByteBuffer image) {
+        ByteBuffer header = image.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (header.remaining() < IMAGE_HEADER_SIZE || header.getInt(0) != IMAGE_MAGIC) {
+            throw new IllegalArgumentException("Not a blocklist image");
+        }
+        if (header.getInt(4) != IMAGE_VERSION) {
+            throw new IllegalArgumentException("Unsupported blocklist image version " + header.getInt(4));
+        }
+        this.nodeCount = header.getInt(8);
+        this.entryCount = header.getInt(12);
+        this.labelsSize = header.getInt(16);
+        int slotCount = header.getInt(20);
+        // Lookups rely on the slot table being a power of two with free
+        // slots left, the same invariant the builder keeps
+        if (nodeCount < 1 || entryCount < 0 || entryCount > 2L * (nodeCount - 1) || labelsSize < 0
+                || Integer.bitCount(slotCount) != 1 || (long) nodeCount * 2 > slotCount
+                || imageSize(nodeCount, labelsSize, slotCount) > header.remaining()) {
+            throw new IllegalArgumentException("Corrupt blocklist image header");
+        }
+
+        int position = IMAGE_HEADER_SIZE;
+        this.parent = intSection(header, position, nodeCount);
+        position += nodeCount * 4;
+        this.labelOffset = intSection(header, position, nodeCount);
+        position += nodeCount * 4;
+        this.labelHash = intSection(header, position, nodeCount);
+        position += nodeCount * 4;
+        this.slots = intSection(header, position, slotCount);
+        position += slotCount * 4;
+        this.labelLength = byteSection(header, position, nodeCount);
+        position += nodeCount;
+        this.flags = byteSection(header, position, nodeCount);
+        position += nodeCount;
+        this.labels = byteSection(header, position, labelsSize);
+        this.slotMask = slotCount - 1;
+        checkImageSections();
+    }
+
+    /**
+     * Lookups index the sections with these values unchecked, so a corrupt
+     * image is rejected here rather than failing, or probing forever, on
+     * some later lookup
+     */
+    private void checkImageSections() {
+        for (int node = ROOT + 1; node < nodeCount; node++) {
+            int parentNode = parent.get(node);
+            int offset = labelOffset.get(node);
+            int length = labelLength.get(node);
+            // Parents come before their children, so walking up ends
+            if (parentNode < ROOT || parentNode >= node || length < 1 || length > 63
+                    || offset < 0 || offset > labelsSize - length) {
+                throw new IllegalArgumentException("Corrupt blocklist image node " + node);
+            }
+        }
+        int used = 0;
+        for (int slot = 0; slot <= slotMask; slot++) {
+            int entry = slots.get(slot);
+            if (entry == 0) {
+                continue;
+            }
+            // Child node index + 1, and never the root
+            if (entry < ROOT + 2 || entry > nodeCount) {
+                throw new IllegalArgumentException("Corrupt blocklist image slot " + slot);
+            }
+            used++;
+        }
+        if (used != nodeCount - 1) {
+            throw new IllegalArgumentException("Corrupt blocklist image slot table");
+        }
+    }
+
+    /**
+     * Compile a collection of blocked domains into a matcher.
+     * Entries are normalized with {@link #normalize(String)}; empty or
+     * malformed entries are skipped.
+     */
+    public static DomainTrie compile(Collection<String> domains) {
+        Builder builder = new Builder(domains.size());
+        for (String domain : domains) {
+            builder.add(domain, false);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Use an image written by {@link #writeImage(ByteBuffer)}, starting at
+     * the buffer's position, without copying it. The buffer must not be
+     * modified afterwards.
+     *
+     * @throws IllegalArgumentException if the buffer does not hold a valid
+     *                                  image
+     */
+    public static DomainTrie fromImage(ByteBuffer image) {
+        return new DomainTrie(image);
+    }
+
+    /**
+     * Lowercase ASCII letters, trim and drop a trailing dot the way entries
+     * are stored, keeping an allow entry's "@@" prefix. Returns null if the
+     * result is not a usable domain name.
+     */
+    public static String normalize(String domain) {
+        if (domain == null) {
+            return null;
+        }
+        // Lookups only fold ASCII letters, as DNS names compare (RFC 4343)
+        domain = toLowerAscii(domain).trim();
+        boolean allow = isAllowEntry(domain);
+        if (allow) {
+            domain = domain.substring(ALLOW_PREFIX.length());
+            // Exceptions are plain domains only
+            if (PatternRules.isPattern(domain)) {
+                return null;
+            }
+        }
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        if (!isWellFormed(domain)) {
+            return null;
+        }
+        return allow ? ALLOW_PREFIX + domain : domain;
+    }
+
+    /**
+     * Whether an entry is an "@@" allow entry rather than a block entry
+     */
+    public static boolean isAllowEntry(String entry) {
+        return entry.startsWith(ALLOW_PREFIX);
+    }
+
+    /**
+     * Check if a domain is blocked: the deepest entry among the domain and
+     * its parents is a block entry. Does not allocate.
+     */
+    public boolean matches(String domain) {
+        return isBlocked(walk(domain));
+    }
+
+    /**
+     * Check if the name in a parsed question is blocked. Works directly on
+     * the label offsets and hashes recorded by {@link DnsQuestion}, so no
+     * String is created for the query name.
+     */
+    public boolean matches(DnsQuestion question) {
+        return isBlocked(walk(question));
+    }
+
+    /**
+     * Which suffixes of the domain are entries: bit n of the low word is
+     * set when the suffix made of the last n + 1 labels is a block entry,
+     * and bit n of the high word when it is an allow entry. Suffixes of 32
+     * or more labels share the top bit of each word. Masks from several
+     * tries can be combined bitwise before calling {@link #isBlocked(long)}.
+     */
+    long suffixMask(String domain) {
+        return walk(domain);
+    }
+
+    long suffixMask(DnsQuestion question) {
+        return walk(question);
+    }
+
+    /**
+     * Whether a suffix mask blocks the name: its deepest block entry is
+     * deeper than its deepest allow entry
+     */
+    static boolean isBlocked(long mask) {
+        int block = (int) mask;
+        return block != 0 && Integer.numberOfLeadingZeros(block) < Integer.numberOfLeadingZeros(allowBits(mask));
+    }
+
+    /**
+     * Whether any allow entry is on the name's path
+     */
+    static boolean isAllowed(long mask) {
+        return allowBits(mask) != 0 && !isBlocked(mask);
+    }
+
+    private static int allowBits(long mask) {
+        return (int) (mask >>> 32);
+    }
+
+    /**
+     * Check if the domain itself is an entry, ignoring parent entries. Pass
+     * an "@@" entry to look for an allow entry.
+     */
+    public boolean contains(String domain) {
+        domain = normalize(domain);
+        if (domain == null) {
+            return false;
+        }
+        byte flag = FLAG_BLOCK;
+        if (isAllowEntry(domain)) {
+            flag = FLAG_ALLOW;
+            domain = domain.substring(ALLOW_PREFIX.length());
+        }
+        int node = ROOT;
+        int labelEnd = domain.length();
+        while (labelEnd > 0) {
+            int labelStart = domain.lastIndexOf('.', labelEnd - 1) + 1;
+            node = findChild(node, domain, labelStart, labelEnd);
+            if (node == NOT_FOUND) {
+                return false;
+            }
+            labelEnd = labelStart - 1;
+        }
+        return (flags.get(node) & flag) != 0;
+    }
+
+    /**
+     * Every entry in the trie, in no particular order, allow entries with
+     * their "@@" prefix. Allocates a String per entry; meant for display
+     * and for rewriting the list, not for lookups.
+     */
+    public List<String> entries() {
+        List<String> entries = new ArrayList<>(entryCount);
+        StringBuilder name = new StringBuilder();
+        for (int node = ROOT + 1; node < nodeCount; node++) {
+            byte flag = flags.get(node);
+            if ((flag & (FLAG_BLOCK | FLAG_ALLOW)) == 0) {
+                continue;
+            }
+            name.setLength(0);
+            for (int n = node; n != ROOT; n = parent.get(n)) {
+                if (name.length() > 0) {
+                    name.append('.');
+                }
+                int offset = labelOffset.get(n);
+                int length = labelLength.get(n);
+                for (int i = 0; i < length; i++) {
+                    name.append((char) (labels.get(offset + i) & 0xFF));
+                }
+            }
+            String domain = name.toString();
+            if ((flag & FLAG_BLOCK) != 0) {
+                entries.add(domain);
+            }
+            if ((flag & FLAG_ALLOW) != 0) {
+                entries.add(ALLOW_PREFIX + domain);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Number of distinct block and allow entries compiled into this matcher
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Suffix hash of every entry, block and allow alike, as built up label
+     * by label with {@link SuffixFilter#extend(long, int)}
+     */
+    long[] entrySuffixHashes() {
+        // Parents always come before their children
+        long[] suffixes = new long[nodeCount];
+        long[] hashes = new long[entryCount];
+        int count = 0;
+        suffixes[ROOT] = SuffixFilter.emptySuffix();
+        for (int node = ROOT + 1; node < nodeCount; node++) {
+            suffixes[node] = SuffixFilter.extend(suffixes[parent.get(node)], labelHash.get(node));
+            byte flag = flags.get(node);
+            if ((flag & (FLAG_BLOCK | FLAG_ALLOW)) != 0 && count < hashes.length) {
+                hashes[count++] = suffixes[node];
+            }
+        }
+        return count == hashes.length ? hashes : Arrays.copyOf(hashes, count);
+    }
+
+    /**
+     * Number of trie nodes, including the root
+     */
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Bytes needed by {@link #writeImage(ByteBuffer)}
+     */
+    public int imageSize() {
+        return (int) imageSize(nodeCount, labelsSize, slotMask + 1);
+    }
+
+    /**
+     * Write the trie in the image format read by {@link #fromImage(ByteBuffer)},
+     * at the buffer's position, and advance the position past it
+     */
+    public void writeImage(ByteBuffer out) {
+        ByteBuffer image = out.slice().order(ByteOrder.LITTLE_ENDIAN);
+        image.putInt(IMAGE_MAGIC);
+        image.putInt(IMAGE_VERSION);
+        image.putInt(nodeCount);
+        image.putInt(entryCount);
+        image.putInt(labelsSize);
+        image.putInt(slotMask + 1);
+        putInts(image, parent, nodeCount);
+        putInts(image, labelOffset, nodeCount);
+        putInts(image, labelHash, nodeCount);
+        putInts(image, slots, slotMask + 1);
+        putBytes(image, labelLength, nodeCount);
+        putBytes(image, flags, nodeCount);
+        putBytes(image, labels, labelsSize);
+        out.position(out.position() + image.position());
+    }
+
+    private long walk(String domain) {
+        if (domain == null) {
+            return 0;
+        }
+
+        int start = 0;
+        int end = domain.length();
+        while (start < end && domain.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && domain.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (end > start && domain.charAt(end - 1) == '.') {
+            end--;
+        }
+        if (start == end) {
+            return 0;
+        }
+
+        long mask = 0;
+        int node = ROOT;
+        int labelEnd = end;
+        for (int depth = 0; ; depth++) {
+            int labelStart = labelEnd;
+            while (labelStart > start && domain.charAt(labelStart - 1) != '.') {
+                labelStart--;
+            }
+
+            node = findChild(node, domain, labelStart, labelEnd);
+            if (node == NOT_FOUND) {
+                return mask;
+            }
+            mask |= entryBits(flags.get(node), depth);
+            if (labelStart == start) {
+                return mask;
+            }
+            labelEnd = labelStart - 1;
+        }
+    }
+
+    private long walk(DnsQuestion question) {
+        ByteBuffer packet = question.packet();
+        long mask = 0;
+        int node = ROOT;
+        for (int i = question.labelCount() - 1, depth = 0; i >= 0; i--, depth++) {
+            node = findChild(node, packet, question.labelOffset(i), question.labelLength(i),
+                    question.labelHash(i));
+            if (node == NOT_FOUND) {
+                return mask;
+            }
+            mask |= entryBits(flags.get(node), depth);
+        }
+        return mask;
+    }
+
+    /**
+     * A node's entries as suffix mask bits. The walk records every entry on
+     * the path rather than stopping at the first block entry, since an
+     * allow entry further down can still override it.
+     */
+    private static long entryBits(byte flag, int depth) {
+        if ((flag & (FLAG_BLOCK | FLAG_ALLOW)) == 0) {
+            return 0;
+        }
+        int bit = Math.min(depth, 31);
+        long mask = 0;
+        if ((flag & FLAG_BLOCK) != 0) {
+            mask |= 1L << bit;
+        }
+        if ((flag & FLAG_ALLOW) != 0) {
+            mask |= 1L << (32 + bit);
+        }
+        return mask;
+    }
+
+    private int findChild(int node, CharSequence domain, int start, int end) {
+        int length = end - start;
+        if (length == 0 || length > 63) {
+            return NOT_FOUND;
+        }
+
+        int hash = LABEL_HASH_SEED;
+        for (int i = start; i < end; i++) {
+            char c = domain.charAt(i);
+            if (c > 0xFF) {
+                return NOT_FOUND;
+            }
+            hash = mixLabelByte(hash, toLowerAscii(c));
+        }
+
+        int slot = slotIndex(node, hash) & slotMask;
+        int entry;
+        while ((entry = slots.get(slot)) != 0) {
+            int child = entry - 1;
+            if (labelHash.get(child) == hash && parent.get(child) == node
+                    && labelLength.get(child) == length && labelEquals(child, domain, start)) {
+                return child;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return NOT_FOUND;
+    }
+
+    private int findChild(int node, ByteBuffer packet, int offset, int length, int hash) {
+        int slot = slotIndex(node, hash) & slotMask;
+        int entry;
+        while ((entry = slots.get(slot)) != 0) {
+            int child = entry - 1;
+            if (labelHash.get(child) == hash && parent.get(child) == node
+                    && labelLength.get(child) == length && labelEquals(child, packet, offset)) {
+                return child;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return NOT_FOUND;
+    }
+
+    private boolean labelEquals(int child, ByteBuffer packet, int offset) {
+        int start = labelOffset.get(child);
+        int length = labelLength.get(child);
+        for (int i = 0; i < length; i++) {
+            if (labels.get(start + i) != (byte) toLowerAscii(packet.get(offset + i) & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean labelEquals(int child, CharSequence domain, int start) {
+        int offset = labelOffset.get(child);
+        int length = labelLength.get(child);
+        for (int i = 0; i < length; i++) {
+            if (labels.get(offset + i) != (byte) toLowerAscii(domain.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int mixLabelByte(int hash, int b) {
+        return (hash ^ (b & 0xFF)) * FNV_PRIME;
+    }
+
+    static int toLowerAscii(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Lowercase only the ASCII letters in a string, the same folding
+     * lookups apply to query names
+     */
+    static String toLowerAscii(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null) {
+                    chars = s.toCharArray();
+                }
+                chars[i] = (char) toLowerAscii(c);
+            }
+        }
+        return chars == null ? s : new String(chars);
+    }
+
+    private static int slotIndex(int parentNode, int hash) {
+        int h = hash * 31 + parentNode;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean isWellFormed(String domain) {
+        if (domain.isEmpty()) {
+            return false;
+        }
+        int labelStart = 0;
+        for (int i = 0; i <= domain.length(); i++) {
+            if (i == domain.length() || domain.charAt(i) == '.') {
+                int length = i - labelStart;
+                if (length == 0 || length > 63) {
+                    return false;
+                }
+                labelStart = i + 1;
+            } else if (domain.charAt(i) > 0xFF) {
+                // Can never appear in a wire-format query name
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long imageSize(int nodeCount, int labelsSize, int slotCount) {
+        return IMAGE_HEADER_SIZE + 4L * (3L * nodeCount + slotCount) + 2L * nodeCount + labelsSize;
+    }
+
+    private static IntBuffer intSection(ByteBuffer image, int offset, int count) {
+        ByteBuffer section = image.duplicate();
+        section.position(offset);
+        section.limit(offset + count * 4);
+        return section.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static ByteBuffer byteSection(ByteBuffer image, int offset, int count) {
+        ByteBuffer section = image.duplicate();
+        section.position(offset);
+        section.limit(offset + count);
+        return section.slice();
+    }
+
+    private static void putInts(ByteBuffer out, IntBuffer values, int count) {
+        for (int i = 0; i < count; i++) {
+            out.putInt(values.get(i));
+        }
+    }
+
+    private static void putBytes(ByteBuffer out, ByteBuffer values, int count) {
+        for (int i = 0; i < count; i++) {
+            out.put(values.get(i));
+        }
+    }
+
+    /**
+     * Mutable construction state; arrays grow as domains are added and are
+     * trimmed when the trie is compiled. Adding a domain that is already
+     * present costs nothing extra, so a builder doubles as the dedupe set
+     * for large imports.
+     */
+    static final class Builder {
+        // Build-time only: the entry may be dropped by pruneCovered()
+        private static final byte COVERABLE = (byte) 0x80;
+
+        int[] parent;
+        int[] labelOffset;
+        byte[] labelLength;
+        int[] labelHash;
+        byte[] flags;
+        byte[] labels = new byte[1024];
+        int labelsSize;
+        int[] slots;
+        int nodeCount;
+        int entryCount;
+        // Identical labels ("com", "www", ...) share storage in the label pool
+        final Map<String, Integer> internedLabels = new HashMap<>();
+
+        Builder(int expectedEntries) {
+            int capacity = Math.max(16, expectedEntries + 1);
+            parent = new int[capacity];
+            labelOffset = new int[capacity];
+            labelLength = new byte[capacity];
+            labelHash = new int[capacity];
+            flags = new byte[capacity];
+            slots = new int[tableSizeFor(capacity * 2)];
+            nodeCount = 1; // root
+            parent[ROOT] = NOT_FOUND;
+        }
+
+        /**
+         * Add a block entry, or an allow entry for an "@@" domain. Coverable
+         * block entries are dropped by {@link #pruneCovered()} if a parent
+         * domain is already blocked. Returns false if the domain was
+         * malformed or already added.
+         */
+        boolean add(String domain, boolean coverable) {
+            domain = normalize(domain);
+            if (domain == null) {
+                return false;
+            }
+            byte flag = FLAG_BLOCK;
+            if (isAllowEntry(domain)) {
+                flag = FLAG_ALLOW;
+                coverable = false;
+                domain = domain.substring(ALLOW_PREFIX.length());
+            }
+
+            // Nested entries are all kept so the list can be read back
+            // from the trie and so an allow entry can sit beneath a block
+            // entry; a lookup gathers every entry on the name's path and
+            // the deepest one decides
+            int node = ROOT;
+            int labelEnd = domain.length();
+            while (labelEnd > 0) {
+                int labelStart = domain.lastIndexOf('.', labelEnd - 1) + 1;
+                node = findOrAddChild(node, domain.substring(labelStart, labelEnd));
+                labelEnd = labelStart - 1;
+            }
+            if ((flags[node] & flag) != 0) {
+                if (!coverable) {
+                    flags[node] &= ~COVERABLE;
+                }
+                return false;
+            }
+            flags[node] |= coverable ? flag | COVERABLE : flag;
+            entryCount++;
+            return true;
+        }
+
+        int size() {
+            return entryCount;
+        }
+
+        /**
+         * Drop coverable entries beneath a blocked parent, and the nodes that
+         * no remaining entry needs. Returns the number of entries dropped.
+         */
+        int pruneCovered() {
+            // A node is always created after its parent, so walking in index
+            // order visits every ancestor first. A node is blocked if its
+            // deepest entry, itself included, is a block entry.
+            boolean[] blocked = new boolean[nodeCount];
+            int dropped = 0;
+            for (int node = ROOT + 1; node < nodeCount; node++) {
+                boolean covered = blocked[parent[node]];
+                if (covered && (flags[node] & COVERABLE) != 0) {
+                    flags[node] &= ~(FLAG_BLOCK | COVERABLE);
+                    entryCount--;
+                    dropped++;
+                }
+                if ((flags[node] & FLAG_ALLOW) != 0) {
+                    blocked[node] = false;
+                } else {
+                    blocked[node] = covered || (flags[node] & FLAG_BLOCK) != 0;
+                }
+            }
+            if (dropped == 0) {
+                return 0;
+            }
+
+            boolean[] keep = new boolean[nodeCount];
+            keep[ROOT] = true;
+            for (int node = nodeCount - 1; node > ROOT; node--) {
+                if (keep[node] || (flags[node] & (FLAG_BLOCK | FLAG_ALLOW)) != 0) {
+                    keep[node] = true;
+                    keep[parent[node]] = true;
+                }
+            }
+
+            int[] renumbered = new int[nodeCount];
+            int count = ROOT + 1;
+            for (int node = ROOT + 1; node < nodeCount; node++) {
+                if (!keep[node]) {
+                    continue;
+                }
+                renumbered[node] = count;
+                parent[count] = renumbered[parent[node]];
+                labelOffset[count] = labelOffset[node];
+                labelLength[count] = labelLength[node];
+                labelHash[count] = labelHash[node];
+                flags[count] = flags[node];
+                count++;
+            }
+            Arrays.fill(flags, count, nodeCount, (byte) 0);
+            nodeCount = count;
+            slots = new int[tableSizeFor(Math.max(16, nodeCount * 2))];
+            reinsertAll();
+            return dropped;
+        }
+
+        DomainTrie build() {
+            for (int node = ROOT + 1; node < nodeCount; node++) {
+                flags[node] &= ~COVERABLE;
+            }
+            return new DomainTrie(this);
+        }
+
+        private int findOrAddChild(int node, String label) {
+            int hash = LABEL_HASH_SEED;
+            for (int i = 0; i < label.length(); i++) {
+                hash = mixLabelByte(hash, label.charAt(i));
+            }
+
+            int mask = slots.length - 1;
+            int slot = slotIndex(node, hash) & mask;
+            int entry;
+            while ((entry = slots[slot]) != 0) {
+                int child = entry - 1;
+                if (labelHash[child] == hash && parent[child] == node
+                        && labelString(child).equals(label)) {
+                    return child;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int child = newNode(node, label, hash);
+            slots[slot] = child + 1;
+            if (nodeCount * 2 > slots.length) {
+                rehash();
+            }
+            return child;
+        }
+
+        private int newNode(int parentNode, String label, int hash) {
+            if (nodeCount == parent.length) {
+                int capacity = parent.length * 2;
+                parent = Arrays.copyOf(parent, capacity);
+                labelOffset = Arrays.copyOf(labelOffset, capacity);
+                labelLength = Arrays.copyOf(labelLength, capacity);
+                labelHash = Arrays.copyOf(labelHash, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+
+            int node = nodeCount++;
+            parent[node] = parentNode;
+            labelOffset[node] = internLabel(label);
+            labelLength[node] = (byte) label.length();
+            labelHash[node] = hash;
+            return node;
+        }
+
+        private int internLabel(String label) {
+            Integer existing = internedLabels.get(label);
+            if (existing != null) {
+                return existing;
+            }
+            if (labelsSize + label.length() > labels.length) {
+                labels = Arrays.copyOf(labels, Math.max(labels.length * 2, labelsSize + label.length()));
+            }
+            int offset = labelsSize;
+            for (int i = 0; i < label.length(); i++) {
+                labels[labelsSize++] = (byte) label.charAt(i);
+            }
+            internedLabels.put(label, offset);
+            return offset;
+        }
+
+        private String labelString(int node) {
+            char[] chars = new char[labelLength[node]];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) (labels[labelOffset[node] + i] & 0xFF);
+            }
+            return new String(chars);
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            reinsertAll();
+        }
+
+        private void reinsertAll() {
+            int mask = slots.length - 1;
+            for (int node = 1; node < nodeCount; node++) {
+                int slot = slotIndex(parent[node], labelHash[node]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = node + 1;
+            }
+        }
+
+        private static int tableSizeFor(int capacity) {
+            return Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        }
+    }
+}
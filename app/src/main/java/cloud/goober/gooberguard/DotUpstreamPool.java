@@ -0,0 +1,88 @@
+package cloud.goober.gooberguard;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Sends DNS queries to the upstream resolvers over TLS (RFC 7858)
+ *
+ * Messages are framed as over plain TCP, behind a two byte length, and
+ * pipelined: each connection carries up to {@link #MAX_PIPELINED} queries
+ * at once, each under an ID unique on it, and replies are matched by ID in
+ * whatever order they arrive.
+ */
+public class DotUpstreamPool extends SecureUpstreamPool {
+    static final int DEFAULT_PORT = 853;
+    static final int MAX_PIPELINED = 100;
+
+    public DotUpstreamPool(List<Endpoint> endpoints, TcpUpstreamPool.SocketProtector protector) {
+        this(endpoints, defaultContext(), protector, DEFAULT_CONNECTIONS_PER_UPSTREAM, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param context supplies the trusted certificates and the session cache
+     */
+    public DotUpstreamPool(List<Endpoint> endpoints, SSLContext context, TcpUpstreamPool.SocketProtector protector,
+                           int connectionsPerUpstream, long timeoutMillis) {
+        super(endpoints, context, protector, connectionsPerUpstream, timeoutMillis);
+    }
+
+    @Override
+    Connection newConnection(int upstream, long now) {
+        return new PipelinedConnection(upstream, now);
+    }
+
+    private final class PipelinedConnection extends Connection {
+        private int nextId;
+
+        PipelinedConnection(int upstream, long now) {
+            super(upstream, now);
+            nextId = (int) (now & 0xFFFF);
+        }
+
+        @Override
+        boolean hasRoom(Request request) {
+            return load() < MAX_PIPELINED;
+        }
+
+        /**
+         * An ID not in flight on this connection; at most MAX_PIPELINED
+         * are, so one is always free
+         */
+        @Override
+        int register(Request request) {
+            while (inFlight.containsKey(nextId)) {
+                nextId = (nextId + 1) & 0xFFFF;
+            }
+            int id = nextId;
+            nextId = (nextId + 1) & 0xFFFF;
+            return id;
+        }
+
+        @Override
+        void send(Request request, int key) throws IOException {
+            byte[] frame = new byte[2 + request.message.length];
+            frame[0] = (byte) (request.message.length >> 8);
+            frame[1] = (byte) request.message.length;
+            System.arraycopy(request.message, 0, frame, 2, request.message.length);
+            frame[2] = (byte) (key >> 8);
+            frame[3] = (byte) key;
+            write(frame, 0, frame.length);
+        }
+
+        @Override
+        void read() throws IOException {
+            DataInputStream input = new DataInputStream(in);
+            while (true) {
+                byte[] response = new byte[input.readUnsignedShort()];
+                input.readFully(response);
+                if (response.length >= 12) {
+                    complete(this, ((response[0] & 0xFF) << 8) | (response[1] & 0xFF), response);
+                }
+            }
+        }
+    }
+}
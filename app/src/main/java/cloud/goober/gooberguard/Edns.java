@@ -0,0 +1,155 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds and writes the EDNS(0) OPT record (RFC 6891) of DNS messages held in
+ * place in a buffer, and cuts UDP replies down to what the client can take.
+ * A message ends at its buffer's limit; offsets are absolute.
+ */
+final class Edns {
+    static final int MIN_UDP_PAYLOAD = 512;
+    // Largest UDP reply sent, which avoids IP fragmentation on common paths
+    static final int MAX_UDP_PAYLOAD = 1232;
+    // DNSSEC OK, in the flags half of the OPT record's TTL (RFC 3225)
+    static final int FLAG_DO = 0x8000;
+    // An OPT record with no options
+    static final int OPT_SIZE = 11;
+    // Largest reply cut down by writeTruncated: header, question and OPT
+    static final int MAX_TRUNCATED_SIZE = 12 + DnsQuestion.MAX_NAME_LENGTH + 4 + OPT_SIZE;
+
+    private static final int DNS_HEADER_SIZE = 12;
+    private static final int TYPE_OPT = 41;
+    private static final int FLAG_TC = 0x0200;
+
+    private Edns() {
+    }
+
+    /**
+     * Offset of the OPT record in the additional section of the message at
+     * dnsOffset, whose question ends at questionEnd. Returns -1 if there is
+     * none or the records cannot be walked.
+     */
+    static int findOpt(ByteBuffer message, int dnsOffset, int questionEnd) {
+        int additionals = message.getShort(dnsOffset + 10) & 0xFFFF;
+        if (additionals == 0) {
+            return -1;
+        }
+        int skipped = (message.getShort(dnsOffset + 6) & 0xFFFF) + (message.getShort(dnsOffset + 8) & 0xFFFF);
+        int limit = message.limit();
+        int position = questionEnd;
+        for (int record = 0; record < skipped + additionals; record++) {
+            int start = position;
+            position = skipName(message, position);
+            if (position < 0 || position + 10 > limit) {
+                return -1;
+            }
+            int end = position + 10 + (message.getShort(position + 8) & 0xFFFF);
+            if (end > limit) {
+                return -1;
+            }
+            // Its owner is the root
+            if (record >= skipped && position == start + 1 && (message.getShort(position) & 0xFFFF) == TYPE_OPT) {
+                return start;
+            }
+            position = end;
+        }
+        return -1;
+    }
+
+    /**
+     * Largest UDP reply the sender of a query accepts: the size in its OPT
+     * record (RFC 6891 6.2.3), or 512 without one, capped at MAX_UDP_PAYLOAD
+     */
+    static int udpPayloadLimit(ByteBuffer query, int dnsOffset, int questionEnd) {
+        int opt = findOpt(query, dnsOffset, questionEnd);
+        if (opt < 0) {
+            return MIN_UDP_PAYLOAD;
+        }
+        int size = query.getShort(opt + 3) & 0xFFFF;
+        return Math.max(MIN_UDP_PAYLOAD, Math.min(MAX_UDP_PAYLOAD, size));
+    }
+
+    /**
+     * Flags of the message's OPT record, with DO in FLAG_DO, or -1 if it has
+     * none
+     */
+    static int optFlags(ByteBuffer message, int dnsOffset, int questionEnd) {
+        int opt = findOpt(message, dnsOffset, questionEnd);
+        return opt < 0 ? -1 : message.getShort(opt + 7) & 0xFFFF;
+    }
+
+    /**
+     * Drop the OPT record at opt by moving the limit back, if it is the
+     * last record in the message. Returns false, changing nothing, if other
+     * records follow it.
+     */
+    static boolean removeOpt(ByteBuffer message, int dnsOffset, int opt) {
+        int end = opt + OPT_SIZE + (message.getShort(opt + 9) & 0xFFFF);
+        if (end != message.limit()) {
+            return false;
+        }
+        int additionals = message.getShort(dnsOffset + 10) & 0xFFFF;
+        message.putShort(dnsOffset + 10, (short) (additionals - 1));
+        message.limit(opt);
+        return true;
+    }
+
+    /**
+     * Write an OPT record with no options at out's position, offering
+     * MAX_UDP_PAYLOAD and echoing the DO bit of the given query flags
+     */
+    static void putOpt(ByteBuffer out, int queryFlags) {
+        out.put((byte) 0);
+        out.putShort((short) TYPE_OPT);
+        out.putShort((short) MAX_UDP_PAYLOAD);
+        // Extended RCODE and version
+        out.putShort((short) 0);
+        out.putShort((short) (queryFlags & FLAG_DO));
+        out.putShort((short) 0);
+    }
+
+    /**
+     * Write the response in [dnsOffset, questionEnd) cut down to its header
+     * and question with TC set, so the client asks again over TCP, into out
+     * and flip it. An OPT record is added if optFlags, the query's, is not
+     * -1. out needs MAX_TRUNCATED_SIZE bytes.
+     */
+    static void writeTruncated(ByteBuffer response, int dnsOffset, int questionEnd, int optFlags, ByteBuffer out) {
+        out.clear();
+        for (int i = dnsOffset; i < questionEnd; i++) {
+            out.put(response.get(i));
+        }
+        out.putShort(2, (short) (out.getShort(2) | FLAG_TC));
+        out.putShort(4, (short) (questionEnd - dnsOffset > DNS_HEADER_SIZE ? 1 : 0));
+        out.putShort(6, (short) 0);
+        out.putShort(8, (short) 0);
+        out.putShort(10, (short) (optFlags >= 0 ? 1 : 0));
+        if (optFlags >= 0) {
+            putOpt(out, optFlags);
+        }
+        out.flip();
+    }
+
+    /**
+     * Return the offset just past a possibly compressed name, or -1
+     */
+    private static int skipName(ByteBuffer message, int position) {
+        int limit = message.limit();
+        while (position < limit) {
+            int length = message.get(position) & 0xFF;
+            if (length == 0) {
+                return position + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                // A pointer ends the name
+                return position + 2 <= limit ? position + 2 : -1;
+            }
+            if (length > DnsQuestion.MAX_LABEL_LENGTH) {
+                return -1;
+            }
+            position += 1 + length;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,158 @@
+package cloud.goober.gooberguard;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Finds which app sent a packet, remembering the answer per flow.
+ *
+ * The owner of a connection is found with a binder call into the system
+ * (ConnectivityManager.getConnectionOwnerUid), far too slow to make for
+ * every packet. Answers are kept in a table indexed directly by protocol
+ * and source port, so a repeat lookup for a flow is one array read; entries
+ * expire after {@link #DEFAULT_TTL_SECONDS} in case the port is reused by
+ * another app. Failed lookups are remembered too, as {@link #UNKNOWN_UID}.
+ * Safe to call from several threads; two threads missing on the same flow
+ * may both look it up.
+ */
+public class FlowUidCache {
+    /**
+     * Returned when the owner cannot be found, as Process.INVALID_UID
+     */
+    public static final int UNKNOWN_UID = -1;
+
+    static final int DEFAULT_TTL_SECONDS = 10;
+
+    /**
+     * Looks up the UID owning a connection, normally
+     * ConnectivityManager::getConnectionOwnerUid
+     *
+     * @param protocol IPPROTO_UDP or IPPROTO_TCP
+     */
+    public interface OwnerLookup {
+        int getConnectionOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote);
+    }
+
+    private static final int PORTS = 65536;
+
+    private final OwnerLookup lookup;
+    private final int ttlSeconds;
+    private final long startNanos = System.nanoTime();
+    // For each protocol and port: expiry second (counted from startNanos,
+    // 0 for an empty slot) in the high word, UID in the low word
+    private final AtomicLongArray entries = new AtomicLongArray(2 * PORTS);
+
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+
+    public FlowUidCache(OwnerLookup lookup) {
+        this(lookup, DEFAULT_TTL_SECONDS);
+    }
+
+    public FlowUidCache(OwnerLookup lookup, int ttlSeconds) {
+        this.lookup = lookup;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * Owner of a UDP or TCP packet read from the tun, or UNKNOWN_UID
+     */
+    public int uidFor(ByteBuffer packet) {
+        int protocol = IpPacketBuilder.PROTOCOL_UDP;
+        int transport = IpPacketBuilder.udpOffset(packet);
+        if (transport < 0) {
+            protocol = IpPacketBuilder.PROTOCOL_TCP;
+            transport = IpPacketBuilder.tcpOffset(packet);
+            if (transport < 0) {
+                return UNKNOWN_UID;
+            }
+        }
+        int sourcePort = packet.getShort(transport) & 0xFFFF;
+        int slot = slot(protocol, sourcePort);
+        long now = nowSeconds();
+        long entry = entries.get(slot);
+        if (entry != 0 && (entry >>> 32) > now) {
+            hitCount.incrementAndGet();
+            return (int) entry;
+        }
+
+        boolean ipv6 = IpPacketBuilder.isIpv6(packet);
+        int addressLength = ipv6 ? 16 : 4;
+        int addressOffset = ipv6 ? 8 : 12;
+        byte[] source = new byte[addressLength];
+        byte[] destination = new byte[addressLength];
+        for (int i = 0; i < addressLength; i++) {
+            source[i] = packet.get(addressOffset + i);
+            destination[i] = packet.get(addressOffset + addressLength + i);
+        }
+        int destinationPort = packet.getShort(transport + 2) & 0xFFFF;
+        return lookUp(slot, now, protocol, source, sourcePort, destination, destinationPort);
+    }
+
+    /**
+     * Owner of a connection from source to destination, or UNKNOWN_UID
+     *
+     * @param protocol IpPacketBuilder.PROTOCOL_UDP or PROTOCOL_TCP
+     */
+    public int uidFor(int protocol, byte[] source, int sourcePort, byte[] destination, int destinationPort) {
+        int slot = slot(protocol, sourcePort);
+        long now = nowSeconds();
+        long entry = entries.get(slot);
+        if (entry != 0 && (entry >>> 32) > now) {
+            hitCount.incrementAndGet();
+            return (int) entry;
+        }
+        return lookUp(slot, now, protocol, source, sourcePort, destination, destinationPort);
+    }
+
+    /**
+     * Forget every flow, such as when apps are installed or removed
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.set(i, 0);
+        }
+    }
+
+    /**
+     * Owner lookups made, i.e. cache misses
+     */
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    private int lookUp(int slot, long now, int protocol, byte[] source, int sourcePort, byte[] destination,
+                       int destinationPort) {
+        lookupCount.incrementAndGet();
+        int uid;
+        try {
+            // The packet's source is the app's end of the connection
+            uid = lookup.getConnectionOwnerUid(protocol,
+                    new InetSocketAddress(InetAddress.getByAddress(source), sourcePort),
+                    new InetSocketAddress(InetAddress.getByAddress(destination), destinationPort));
+        } catch (UnknownHostException | RuntimeException e) {
+            // Not the active VPN any more, or no such connection
+            uid = UNKNOWN_UID;
+        }
+        entries.set(slot, (now + ttlSeconds) << 32 | (uid & 0xFFFFFFFFL));
+        return uid;
+    }
+
+    private long nowSeconds() {
+        // Starts at 1 so an expiry is never 0
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos) + 1;
+    }
+
+    private static int slot(int protocol, int port) {
+        return (protocol == IpPacketBuilder.PROTOCOL_TCP ? PORTS : 0) + port;
+    }
+}
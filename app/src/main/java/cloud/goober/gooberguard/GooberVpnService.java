@@ -1,37 +1,145 @@
 package cloud.goober.gooberguard;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.net.VpnService;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
-import android.util.Log;
+import androidx.core.content.ContextCompat;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public class GooberVpnService extends VpnService {
     private static final String TAG = "GooberVpnService";
     private static final String VPN_ADDRESS = "10.0.0.2";
-    private static final String VPN_ROUTE = "0.0.0.0";
+    // Unique local addresses for the IPv6 side of the tunnel
+    private static final String VPN_ADDRESS_V6 = "fd00::2";
+    // Private addresses advertised as the device resolver in DNS-only mode
+    private static final String VIRTUAL_DNS_SERVER = "10.0.0.53";
+    private static final String VIRTUAL_DNS_SERVER_V6 = "fd00::53";
+
+    /**
+     * Broadcast sent within the app after the stored blocklist changes
+     */
+    public static final String ACTION_BLOCKLIST_CHANGED = "cloud.goober.gooberguard.BLOCKLIST_CHANGED";
+    // Sent by the alarm set for the next schedule boundary
+    private static final String ACTION_SCHEDULE_BOUNDARY = "cloud.goober.gooberguard.SCHEDULE_BOUNDARY";
+
+    // Process-wide, so the activity can read it without binding
+    private static final DnsMetrics metrics = new DnsMetrics();
     
-    private Thread vpnThread;
     private ParcelFileDescriptor vpnInterface;
+    private FileChannel tunInput;
+    private FileChannel tunOutput;
+    private DnsPacketLoop packetLoop;
+    private final LongAdder blockedCount = new LongAdder();
+    private volatile DnsForwarder dnsForwarder;
+    private UpstreamForwarder upstreamForwarder;
+    // Carries queries that arrive over TCP, and with an encrypted transport
+    // every query
+    private volatile DnsUpstream streamUpstream;
+    private final DnsCache dnsCache = new DnsCache();
+    private volatile QueryLog queryLog;
     private boolean isRunning = false;
-    private Set<String> blockedDomains;
+    private VpnSettings.RoutingMode routingMode;
+    private List<InetSocketAddress> upstreamServers;
+    private DnsResponseBuilder blockedResponseBuilder;
+    private BlocklistReloader blocklists;
+    private DomainManager domainManager;
+    private AlarmManager alarmManager;
+    private PendingIntent boundaryAlarm;
+
+    private final BroadcastReceiver blocklistChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            refreshBlockedDomains();
+        }
+    };
+
+    // The reloader's boundary timer stops in deep sleep and was set for the
+    // old clock and zone, so boundary alarms, clock and zone changes and
+    // the device waking up all check the schedule again
+    private final BroadcastReceiver rescheduleReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            blocklists.requestReschedule();
+        }
+    };
+
+    /**
+     * Query rates, outcomes and latencies since the VPN last started
+     */
+    public static DnsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Tell a running service that the stored blocklist changed. Does nothing
+     * if the service is not running.
+     */
+    public static void notifyBlocklistChanged(Context context) {
+        Intent intent = new Intent(ACTION_BLOCKLIST_CHANGED);
+        intent.setPackage(context.getPackageName());
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AppLog.setSink(new AndroidLogSink());
+
+        // Migrates or seeds the stored list on first run
+        domainManager = new DomainManager(this);
+
+        // Map the stored blocklist behind a prefilter, with each app's own
+        // rules on top. Compiling it can take seconds, so the service starts
+        // with an empty list and the first load, like every later edit,
+        // runs in the background and is swapped in without stopping the
+        // packet loop. Scheduled rule groups are folded in while they
+        // apply, swapped at their boundaries by the reloader's timer or an
+        // alarm, whichever comes first.
+        BlocklistStore store = new BlocklistStore(getFilesDir(),
+                new VpnSettings(this).getFilterFalsePositiveRate());
+        BlocklistReloader.Loader loader = () -> store.load().withAppRules(domainManager.loadAppRules());
+        blocklists = new BlocklistReloader(Blocklist.empty(), ScheduledRules.empty(), loader,
+                domainManager::loadScheduledRules, BlocklistReloader.defaultZoneClock());
+        blocklists.setCache(dnsCache);
+        alarmManager = getSystemService(AlarmManager.class);
+        boundaryAlarm = PendingIntent.getBroadcast(this, 0,
+                new Intent(ACTION_SCHEDULE_BOUNDARY).setPackage(getPackageName()),
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+        blocklists.setBoundaryListener(this::setBoundaryAlarm);
+        ContextCompat.registerReceiver(this, blocklistChangedReceiver,
+                new IntentFilter(ACTION_BLOCKLIST_CHANGED), ContextCompat.RECEIVER_NOT_EXPORTED);
+        IntentFilter reschedule = new IntentFilter(ACTION_SCHEDULE_BOUNDARY);
+        reschedule.addAction(Intent.ACTION_TIME_CHANGED);
+        reschedule.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        reschedule.addAction(Intent.ACTION_SCREEN_ON);
+        reschedule.addAction(Intent.ACTION_USER_PRESENT);
+        ContextCompat.registerReceiver(this, rescheduleReceiver, reschedule,
+                ContextCompat.RECEIVER_NOT_EXPORTED);
+        // Also sets the alarm for the first boundary
+        blocklists.requestReload();
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.d(TAG, "Starting VPN service");
-        
-        // Load blocked domains from SharedPreferences
-        loadBlockedDomains();
+        AppLog.d(TAG, "Starting VPN service");
         
         if (!isRunning) {
             startVpn();
@@ -42,27 +150,48 @@ public class GooberVpnService extends VpnService {
 
     @Override
     public void onDestroy() {
-        Log.d(TAG, "Stopping VPN service");
+        AppLog.d(TAG, "Stopping VPN service");
         stopVpn();
+        unregisterReceiver(blocklistChangedReceiver);
+        unregisterReceiver(rescheduleReceiver);
+        blocklists.close();
+        alarmManager.cancel(boundaryAlarm);
         super.onDestroy();
     }
 
-    private void loadBlockedDomains() {
-        SharedPreferences prefs = getSharedPreferences("blocked_domains", MODE_PRIVATE);
-        blockedDomains = prefs.getStringSet("domains", new HashSet<>());
-        Log.d(TAG, "Loaded " + blockedDomains.size() + " blocked domains");
-    }
-
     private void startVpn() {
+        VpnSettings settings = new VpnSettings(this);
+        routingMode = settings.getRoutingMode();
+        blockedResponseBuilder = new DnsResponseBuilder(settings.getBlockStyle(), settings.getBlockTtlSeconds());
+        int mtu = settings.getMtu();
+        upstreamServers = settings.getUpstreamServers();
+        
         // Configure the VPN interface
         Builder builder = new Builder();
-        builder.setMtu(1500);
+        builder.setMtu(mtu);
         builder.addAddress(VPN_ADDRESS, 32);
-        builder.addRoute(VPN_ROUTE, 0);
+        builder.addAddress(VPN_ADDRESS_V6, 128);
         
-        // Set DNS servers (we'll intercept these)
-        builder.addDnsServer("8.8.8.8");
-        builder.addDnsServer("8.8.4.4");
+        if (routingMode == VpnSettings.RoutingMode.RESOLVER_ROUTES) {
+            // The configured resolvers, IPv4 and IPv6, are advertised and
+            // their addresses routed into the tunnel, so queries apps send
+            // straight to them are intercepted too. Nothing here can
+            // forward other traffic, so no wider route is added and it
+            // keeps bypassing the VPN.
+            for (InetSocketAddress server : upstreamServers) {
+                if (server.getPort() == 53) {
+                    builder.addRoute(server.getAddress(), server.getAddress() instanceof Inet4Address ? 32 : 128);
+                    builder.addDnsServer(server.getAddress());
+                }
+            }
+        } else {
+            // Only the virtual resolvers are routed into the tunnel, so all
+            // other traffic bypasses the VPN entirely
+            builder.addRoute(VIRTUAL_DNS_SERVER, 32);
+            builder.addRoute(VIRTUAL_DNS_SERVER_V6, 128);
+            builder.addDnsServer(VIRTUAL_DNS_SERVER);
+            builder.addDnsServer(VIRTUAL_DNS_SERVER_V6);
+        }
         
         // Set the session name
         builder.setSession("GooberGuard");
@@ -71,95 +200,205 @@ public class GooberVpnService extends VpnService {
         try {
             vpnInterface = builder.establish();
             if (vpnInterface == null) {
-                Log.e(TAG, "Failed to establish VPN interface");
+                AppLog.e(TAG, "Failed to establish VPN interface");
                 return;
             }
 
-            isRunning = true;
+            // Channels read and write the pipeline's direct buffers without
+            // copying through a Java array
+            tunInput = new FileInputStream(vpnInterface.getFileDescriptor()).getChannel();
+            tunOutput = new FileOutputStream(vpnInterface.getFileDescriptor()).getChannel();
             
-            // Start the packet processing thread
-            vpnThread = new Thread(this::processPackets, "VpnThread");
-            vpnThread.start();
+            // Every query's outcome is recorded off the packet threads; the
+            // VPN runs without a log if its files cannot be opened
+            QueryLog log = new QueryLog(new File(getFilesDir(), "querylog"));
+            try {
+                log.start();
+            } catch (IOException e) {
+                AppLog.e(TAG, "Error opening query log", e);
+                log = null;
+            }
+            queryLog = log;
+            metrics.reset();
+
+            // One thread reads the tun, a pool of workers classifies and
+            // answers packets, and one thread writes replies back
+            packetLoop = new DnsPacketLoop(this::readFromTun, this::writeToTun, blocklists::get, dnsCache,
+                    blockedResponseBuilder, mtu, settings.getWorkerThreads(), blockedCount);
+            packetLoop.setQueryLog(log);
+            packetLoop.setMetrics(metrics);
+            // Only queries for names some app has its own rules for need the
+            // sending app, which is looked up once per flow
+            ConnectivityManager connectivity = getSystemService(ConnectivityManager.class);
+            packetLoop.setUidCache(new FlowUidCache(connectivity::getConnectionOwnerUid));
             
-            Log.d(TAG, "VPN started successfully");
+            // Allowed queries go to the real resolvers over protected sockets;
+            // their replies are queued for the pipeline's writer
+            VpnSettings.UpstreamTransport transport = settings.getUpstreamTransport();
+            DnsPacketHandler.QueryForwarder queryForwarder;
+            if (transport == VpnSettings.UpstreamTransport.UDP) {
+                // UDP and TCP share one view of which upstreams are fast and
+                // healthy
+                UpstreamTracker upstreams = new UpstreamTracker(upstreamServers);
+                dnsForwarder = new DnsForwarder(upstreams, this::protect, packetLoop::send,
+                        DnsForwarder.DEFAULT_CHANNEL_COUNT, DnsForwarder.DEFAULT_TIMEOUT_MS);
+                dnsForwarder.setCache(dnsCache);
+                dnsForwarder.setMtu(mtu);
+                dnsForwarder.setHedging(settings.isHedgeRequests());
+                dnsForwarder.setQueryLog(log);
+                dnsForwarder.setMetrics(metrics);
+                dnsForwarder.start();
+                queryForwarder = dnsForwarder::forward;
+                streamUpstream = new TcpUpstreamPool(upstreams, this::protect);
+            } else {
+                // Every query leaves encrypted, over connections the UDP and
+                // TCP paths share
+                List<SecureUpstreamPool.Endpoint> servers = settings.getSecureUpstreamServers(transport);
+                streamUpstream = transport == VpnSettings.UpstreamTransport.TLS
+                        ? new DotUpstreamPool(servers, this::protect)
+                        : new DohUpstreamPool(servers, this::protect);
+                upstreamForwarder = new UpstreamForwarder(streamUpstream, packetLoop::send);
+                upstreamForwarder.setCache(dnsCache);
+                upstreamForwarder.setQueryLog(log);
+                upstreamForwarder.setMetrics(metrics);
+                queryForwarder = upstreamForwarder;
+            }
+            streamUpstream.start();
+
+            // Queries over TCP, such as retries after a truncated UDP answer,
+            // are terminated in the loop and sent on over pooled connections
+            isRunning = true;
+            packetLoop.start(queryForwarder, streamUpstream::query);
+            
+            AppLog.d(TAG, "VPN started successfully in " + routingMode + " mode with "
+                    + packetLoop.getPipeline().getWorkerCount() + " workers, upstream over " + transport);
         } catch (Exception e) {
-            Log.e(TAG, "Error starting VPN", e);
+            AppLog.e(TAG, "Error starting VPN", e);
         }
     }
 
     private void stopVpn() {
         isRunning = false;
         
-        if (vpnThread != null) {
-            vpnThread.interrupt();
+        if (packetLoop != null) {
+            PacketPipeline packetPipeline = packetLoop.getPipeline();
+            TcpDnsServer tcpServer = packetLoop.getTcpServer();
+            packetLoop.close();
+            AppLog.d(TAG, "Stopped packet processing. Total blocked: " + blockedCount.sum()
+                    + ", read: " + packetPipeline.getReadCount()
+                    + ", written: " + packetPipeline.getWrittenCount()
+                    + ", dropped in: " + packetPipeline.getInboundDropCount()
+                    + ", dropped out: " + packetPipeline.getOutboundDropCount()
+                    + ", cache hits: " + dnsCache.getHitCount() + ", misses: " + dnsCache.getMissCount()
+                    + ", evictions: " + dnsCache.getEvictionCount());
+            if (tcpServer != null) {
+                AppLog.d(TAG, "TCP connections: " + tcpServer.getConnectionCount()
+                        + ", queries: " + tcpServer.getQueryCount()
+                        + ", retransmits: " + tcpServer.getRetransmitCount());
+            }
+            packetLoop = null;
+        }
+
+        if (streamUpstream != null) {
+            AppLog.d(TAG, "Upstream connections: " + streamUpstream.getConnectionCount()
+                    + ", reused: " + streamUpstream.getReusedCount()
+                    + ", answered: " + streamUpstream.getAnsweredCount()
+                    + ", failed: " + streamUpstream.getFailedCount());
+            if (upstreamForwarder != null) {
+                for (UpstreamTracker.Stats stats : streamUpstream.getUpstreamStats()) {
+                    AppLog.d(TAG, "Upstream " + stats);
+                }
+                AppLog.d(TAG, "Forwarded upstream: " + upstreamForwarder.getForwardedCount()
+                        + ", truncated for UDP: " + upstreamForwarder.getTruncatedCount());
+                upstreamForwarder = null;
+            }
+            streamUpstream.close();
+            streamUpstream = null;
+        }
+
+        if (dnsForwarder != null) {
+            AppLog.d(TAG, "Forwarded upstream: " + dnsForwarder.getForwardedCount()
+                    + ", coalesced: " + dnsForwarder.getCoalescedCount()
+                    + ", hedged: " + dnsForwarder.getHedgedCount()
+                    + ", hedges won: " + dnsForwarder.getHedgeWinCount()
+                    + ", truncated for UDP: " + dnsForwarder.getTruncatedCount()
+                    + ", timed out: " + dnsForwarder.getTimedOutCount());
+            for (UpstreamTracker.Stats stats : dnsForwarder.getUpstreamStats()) {
+                AppLog.d(TAG, "Upstream " + stats);
+            }
+            dnsForwarder.close();
+            dnsForwarder = null;
+        }
+
+        AppLog.d(TAG, metrics.snapshot().toString());
+
+        if (queryLog != null) {
+            AppLog.d(TAG, "Query log records: " + queryLog.getRecordedCount()
+                    + ", dropped: " + queryLog.getDroppedCount()
+                    + ", rotations: " + queryLog.getRotationCount());
+            queryLog.close();
+            queryLog = null;
         }
         
+        // Closing the interface also wakes the pipeline's reader
         if (vpnInterface != null) {
             try {
+                tunInput.close();
+                tunOutput.close();
                 vpnInterface.close();
             } catch (IOException e) {
-                Log.e(TAG, "Error closing VPN interface", e);
+                AppLog.e(TAG, "Error closing VPN interface", e);
             }
+            vpnInterface = null;
         }
     }
 
-    private void processPackets() {
-        Log.d(TAG, "Starting packet processing");
-        
-        FileInputStream in = new FileInputStream(vpnInterface.getFileDescriptor());
-        FileOutputStream out = new FileOutputStream(vpnInterface.getFileDescriptor());
-        
-        ByteBuffer packet = ByteBuffer.allocate(1500);
-        int blockedPacketsCount = 0;
-        
-        while (isRunning) {
-            try {
-                // Read packet from VPN interface
-                int length = in.read(packet.array());
-                if (length > 0) {
-                    packet.limit(length);
-                    
-                    // Check if this is a DNS query packet
-                    if (DnsPacketParser.isDnsQuery(packet)) {
-                        String domain = DnsPacketParser.extractDomainName(packet);
-                        
-                        if (domain != null && isBlockedDomain(domain)) {
-                            Log.d(TAG, "Blocking DNS query for domain: " + domain);
-                            blockedPacketsCount++;
-                            
-                            // Create and send NXDOMAIN response
-                            ByteBuffer response = DnsPacketParser.createBlockedResponse(packet);
-                            if (response != null) {
-                                out.write(response.array(), 0, response.limit());
-                                Log.d(TAG, "Sent NXDOMAIN response for: " + domain);
-                            }
-                        } else {
-                            // Forward the packet (allow the DNS query)
-                            out.write(packet.array(), 0, length);
-                        }
-                    } else {
-                        // Not a DNS packet, forward it normally
-                        out.write(packet.array(), 0, length);
-                    }
-                    
-                    packet.clear();
-                }
-            } catch (IOException e) {
-                if (isRunning) {
-                    Log.e(TAG, "Error processing packets", e);
-                }
-                break;
-            }
-        }
-        
-        Log.d(TAG, "Stopped packet processing. Total blocked: " + blockedPacketsCount);
-        
-        try {
-            in.close();
-            out.close();
-        } catch (IOException e) {
-            Log.e(TAG, "Error closing streams", e);
+    /**
+     * Read one packet from the tun interface. Blocks until a packet arrives;
+     * only the pipeline's reader thread calls this.
+     */
+    private int readFromTun(ByteBuffer packet) throws IOException {
+        return tunInput.read(packet);
+    }
+
+    /**
+     * Write a complete IP packet to the tun interface
+     * Only the pipeline's writer thread calls this; the forwarder queues its
+     * replies through {@link PacketPipeline#send(ByteBuffer)}
+     */
+    private void writeToTun(ByteBuffer packet) throws IOException {
+        // Each write is one packet on a tun, so this is never split or
+        // gathered with the next reply
+        tunOutput.write(packet);
+    }
+
+    /**
+     * Response cache shared by the packet loop and the forwarder
+     * Exposes hit, miss and eviction counters
+     */
+    public DnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    /**
+     * Recent queries and their outcomes, or null if the VPN is not running
+     * or the log could not be opened
+     */
+    public QueryLog getQueryLog() {
+        return queryLog;
+    }
+
+    /**
+     * Latency, health and traffic numbers for each upstream resolver, or
+     * an empty list if the VPN is not running
+     */
+    public List<UpstreamTracker.Stats> getUpstreamStats() {
+        DnsForwarder forwarder = dnsForwarder;
+        if (forwarder != null) {
+            return forwarder.getUpstreamStats();
         }
+        DnsUpstream upstream = streamUpstream;
+        return upstream != null ? upstream.getUpstreamStats() : new ArrayList<>();
     }
 
     /**
@@ -167,18 +406,14 @@ public class GooberVpnService extends VpnService {
      * Supports exact matching and subdomain matching
      */
     private boolean isBlockedDomain(String queryDomain) {
-        if (queryDomain == null || blockedDomains == null) {
+        if (queryDomain == null) {
             return false;
         }
         
-        // Check each blocked domain
-        for (String blockedDomain : blockedDomains) {
-            if (DnsPacketParser.matchesBlockedDomain(queryDomain, blockedDomain)) {
-                return true;
-            }
-        }
-        
-        return false;
+        // Cost depends on the number of labels in the query, not the list
+        // size; most names are ruled out by the snapshot's prefilter
+        // without walking the trie at all
+        return blocklists.get().matches(queryDomain);
     }
 
     /**
@@ -186,17 +421,30 @@ public class GooberVpnService extends VpnService {
      * This method can be used by other components to check blocking status
      */
     public boolean isDomainBlocked(String domain) {
-        if (blockedDomains == null) {
-            loadBlockedDomains();
+        return isBlockedDomain(domain);
+    }
+
+    /**
+     * Wake the device at the next schedule boundary, or cancel the alarm if
+     * there is none. Exact when the user allows exact alarms; otherwise
+     * the system may deliver it some minutes late while idle, and waking
+     * the screen catches up.
+     */
+    private void setBoundaryAlarm(long epochMillis) {
+        if (epochMillis < 0) {
+            alarmManager.cancel(boundaryAlarm);
+        } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S || alarmManager.canScheduleExactAlarms()) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, epochMillis, boundaryAlarm);
+        } else {
+            alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, epochMillis, boundaryAlarm);
         }
-        return blockedDomains.contains(domain.toLowerCase().trim());
     }
 
     /**
-     * Add a domain to the blocked list and refresh the service
+     * Reload the stored blocklist in the background. Queries keep being
+     * matched against the current list until the new one is ready.
      */
     public void refreshBlockedDomains() {
-        loadBlockedDomains();
-        Log.d(TAG, "Refreshed blocked domains list: " + blockedDomains.size() + " domains");
+        blocklists.requestReload();
     }
 }
\ No newline at end of file
@@ -0,0 +1,375 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Locates UDP and TCP in IPv4 and IPv6 packets from the tun interface, and
+ * writes IPv4 and IPv6 UDP datagrams and TCP segments for it with real IP
+ * header, UDP and TCP checksums
+ */
+final class IpPacketBuilder {
+    static final int IPV4_HEADER_SIZE = 20;
+    static final int IPV6_HEADER_SIZE = 40;
+    static final int UDP_HEADER_SIZE = 8;
+    static final int TCP_HEADER_SIZE = 20;
+    static final int PROTOCOL_UDP = 17;
+    static final int PROTOCOL_TCP = 6;
+
+    static final int TCP_FIN = 0x01;
+    static final int TCP_SYN = 0x02;
+    static final int TCP_RST = 0x04;
+    static final int TCP_PSH = 0x08;
+    static final int TCP_ACK = 0x10;
+
+    private static final int TCP_OPTION_END = 0;
+    private static final int TCP_OPTION_NOP = 1;
+    private static final int TCP_OPTION_MSS = 2;
+
+    // IPv6 extension headers that may sit between the fixed header and UDP
+    private static final int HOP_BY_HOP_OPTIONS = 0;
+    private static final int ROUTING = 43;
+    private static final int FRAGMENT = 44;
+    private static final int AUTHENTICATION = 51;
+    private static final int DESTINATION_OPTIONS = 60;
+
+    private static final int DEFAULT_TTL = 64;
+
+    private IpPacketBuilder() {
+    }
+
+    static boolean isIpv6(ByteBuffer packet) {
+        return ((packet.get(0) >> 4) & 0x0F) == 6;
+    }
+
+    /**
+     * Offset of the UDP header in an IPv4 or IPv6 packet, skipping IPv4
+     * options and IPv6 extension headers. Returns -1 if the packet is not
+     * UDP, is a fragment other than a complete datagram, or is cut short.
+     */
+    static int udpOffset(ByteBuffer packet) {
+        int offset = transportOffset(packet, PROTOCOL_UDP);
+        return offset >= 0 && offset + UDP_HEADER_SIZE <= packet.limit() ? offset : -1;
+    }
+
+    /**
+     * Offset of the TCP header in an IPv4 or IPv6 packet, as for
+     * {@link #udpOffset(ByteBuffer)}. Returns -1 if the packet is not TCP
+     * or its header, including options, is cut short.
+     */
+    static int tcpOffset(ByteBuffer packet) {
+        int offset = transportOffset(packet, PROTOCOL_TCP);
+        if (offset < 0 || offset + TCP_HEADER_SIZE > packet.limit()) {
+            return -1;
+        }
+        int headerLength = ((packet.get(offset + 12) >> 4) & 0x0F) * 4;
+        return headerLength >= TCP_HEADER_SIZE && offset + headerLength <= packet.limit() ? offset : -1;
+    }
+
+    /**
+     * Length of the TCP header at offset, including options
+     */
+    static int tcpHeaderLength(ByteBuffer packet, int tcpOffset) {
+        return ((packet.get(tcpOffset + 12) >> 4) & 0x0F) * 4;
+    }
+
+    /**
+     * Maximum segment size announced in the options of the TCP header at
+     * offset, or -1 if there is none
+     */
+    static int tcpMss(ByteBuffer packet, int tcpOffset) {
+        int end = tcpOffset + tcpHeaderLength(packet, tcpOffset);
+        int position = tcpOffset + TCP_HEADER_SIZE;
+        while (position < end) {
+            int kind = packet.get(position) & 0xFF;
+            if (kind == TCP_OPTION_END) {
+                break;
+            }
+            if (kind == TCP_OPTION_NOP) {
+                position++;
+                continue;
+            }
+            if (position + 1 >= end) {
+                break;
+            }
+            int length = packet.get(position + 1) & 0xFF;
+            if (length < 2 || position + length > end) {
+                break;
+            }
+            if (kind == TCP_OPTION_MSS && length == 4) {
+                return packet.getShort(position + 2) & 0xFFFF;
+            }
+            position += length;
+        }
+        return -1;
+    }
+
+    /**
+     * Offset of the given upper-layer protocol's header, or -1
+     */
+    private static int transportOffset(ByteBuffer packet, int protocol) {
+        int limit = packet.limit();
+        if (limit < IPV4_HEADER_SIZE) {
+            return -1;
+        }
+
+        int version = (packet.get(0) >> 4) & 0x0F;
+        int offset;
+        if (version == 4) {
+            // Later fragments carry no transport header, and a first one
+            // (more fragments set) only part of the datagram
+            if (packet.get(9) != protocol || (packet.getShort(6) & 0x3FFF) != 0) {
+                return -1;
+            }
+            offset = (packet.get(0) & 0x0F) * 4;
+        } else if (version == 6) {
+            if (limit < IPV6_HEADER_SIZE) {
+                return -1;
+            }
+            int nextHeader = packet.get(6) & 0xFF;
+            offset = IPV6_HEADER_SIZE;
+            while (nextHeader != protocol) {
+                if (offset + 8 > limit) {
+                    return -1;
+                }
+                int length;
+                switch (nextHeader) {
+                    case HOP_BY_HOP_OPTIONS:
+                    case ROUTING:
+                    case DESTINATION_OPTIONS:
+                        length = ((packet.get(offset + 1) & 0xFF) + 1) * 8;
+                        break;
+                    case FRAGMENT:
+                        // Only a fragment header for a whole datagram (offset
+                        // 0, no more fragments) can be looked through
+                        if ((packet.getShort(offset + 2) & 0xFFF9) != 0) {
+                            return -1;
+                        }
+                        length = 8;
+                        break;
+                    case AUTHENTICATION:
+                        length = ((packet.get(offset + 1) & 0xFF) + 2) * 4;
+                        break;
+                    default:
+                        // ESP, no next header, or another upper-layer protocol
+                        return -1;
+                }
+                nextHeader = packet.get(offset) & 0xFF;
+                offset += length;
+            }
+        } else {
+            return -1;
+        }
+        return offset <= limit ? offset : -1;
+    }
+
+    /**
+     * Size of the IP and UDP headers of a reply to query, which is where
+     * its payload starts. Replies never carry IP options or extension
+     * headers.
+     */
+    static int replyHeaderSize(ByteBuffer query) {
+        return (isIpv6(query) ? IPV6_HEADER_SIZE : IPV4_HEADER_SIZE) + UDP_HEADER_SIZE;
+    }
+
+    /**
+     * Write a UDP packet carrying payload[payloadOffset, payloadOffset + payloadLength)
+     * into out starting at position 0: IPv4 for 4-byte addresses, IPv6 for
+     * 16-byte ones. On return out is flipped, ready to be written.
+     */
+    static void writeUdp(ByteBuffer out, byte[] srcAddress, int srcPort, byte[] dstAddress, int dstPort,
+                         ByteBuffer payload, int payloadOffset, int payloadLength) {
+        out.clear();
+        boolean ipv6 = srcAddress.length == 16;
+        int ipHeaderSize = ipv6 ? IPV6_HEADER_SIZE : IPV4_HEADER_SIZE;
+        int data = ipHeaderSize + UDP_HEADER_SIZE;
+        for (int i = 0; i < payloadLength; i++) {
+            out.put(data + i, payload.get(payloadOffset + i));
+        }
+
+        int addressOffset = ipv6 ? 8 : 12;
+        if (ipv6) {
+            writeIpv6Header(out, PROTOCOL_UDP, UDP_HEADER_SIZE + payloadLength);
+        } else {
+            writeIpv4Header(out, PROTOCOL_UDP, data + payloadLength);
+        }
+        for (int i = 0; i < srcAddress.length; i++) {
+            out.put(addressOffset + i, srcAddress[i]);
+            out.put(addressOffset + srcAddress.length + i, dstAddress[i]);
+        }
+        if (!ipv6) {
+            out.putShort(10, (short) checksum(out, 0, IPV4_HEADER_SIZE, 0));
+        }
+
+        writeUdpHeader(out, ipHeaderSize, addressOffset, srcAddress.length, srcPort, dstPort, payloadLength);
+    }
+
+    /**
+     * Write a UDP reply to queryPacket carrying the given payload, in the
+     * query's IP version: addresses and ports are taken from the query and
+     * swapped
+     */
+    static void writeUdpReply(ByteBuffer out, ByteBuffer queryPacket,
+                              ByteBuffer payload, int payloadOffset, int payloadLength) {
+        out.clear();
+        int data = replyHeaderSize(queryPacket);
+        for (int i = 0; i < payloadLength; i++) {
+            out.put(data + i, payload.get(payloadOffset + i));
+        }
+        finishUdpReply(out, queryPacket, payloadLength);
+    }
+
+    /**
+     * Fill in the IP and UDP headers and checksums of a reply to
+     * queryPacket whose payload has already been written to out at offset
+     * {@link #replyHeaderSize(ByteBuffer)}. On return out is flipped.
+     */
+    static void finishUdpReply(ByteBuffer out, ByteBuffer queryPacket, int payloadLength) {
+        int udp = udpOffset(queryPacket);
+        int clientPort = queryPacket.getShort(udp) & 0xFFFF;
+        int serverPort = queryPacket.getShort(udp + 2) & 0xFFFF;
+
+        if (isIpv6(queryPacket)) {
+            writeIpv6Header(out, PROTOCOL_UDP, UDP_HEADER_SIZE + payloadLength);
+            for (int i = 0; i < 16; i++) {
+                out.put(8 + i, queryPacket.get(24 + i));
+                out.put(24 + i, queryPacket.get(8 + i));
+            }
+            writeUdpHeader(out, IPV6_HEADER_SIZE, 8, 16, serverPort, clientPort, payloadLength);
+            return;
+        }
+
+        writeIpv4Header(out, PROTOCOL_UDP, IPV4_HEADER_SIZE + UDP_HEADER_SIZE + payloadLength);
+        for (int i = 0; i < 4; i++) {
+            out.put(12 + i, queryPacket.get(16 + i));
+            out.put(16 + i, queryPacket.get(12 + i));
+        }
+        out.putShort(10, (short) checksum(out, 0, IPV4_HEADER_SIZE, 0));
+
+        writeUdpHeader(out, IPV4_HEADER_SIZE, 12, 4, serverPort, clientPort, payloadLength);
+    }
+
+    /**
+     * Write a TCP segment carrying payload[payloadOffset, payloadOffset + payloadLength)
+     * into out starting at position 0, IPv4 or IPv6 by address length as
+     * for {@link #writeUdp}. A positive mss adds the MSS option, which
+     * belongs on SYN segments only. On return out is flipped.
+     */
+    static void writeTcp(ByteBuffer out, byte[] srcAddress, int srcPort, byte[] dstAddress, int dstPort,
+                         int seq, int ack, int flags, int window, int mss,
+                         byte[] payload, int payloadOffset, int payloadLength) {
+        out.clear();
+        boolean ipv6 = srcAddress.length == 16;
+        int tcp = ipv6 ? IPV6_HEADER_SIZE : IPV4_HEADER_SIZE;
+        int headerLength = TCP_HEADER_SIZE + (mss > 0 ? 4 : 0);
+        int segmentLength = headerLength + payloadLength;
+
+        int addressOffset = ipv6 ? 8 : 12;
+        if (ipv6) {
+            writeIpv6Header(out, PROTOCOL_TCP, segmentLength);
+        } else {
+            writeIpv4Header(out, PROTOCOL_TCP, tcp + segmentLength);
+        }
+        for (int i = 0; i < srcAddress.length; i++) {
+            out.put(addressOffset + i, srcAddress[i]);
+            out.put(addressOffset + srcAddress.length + i, dstAddress[i]);
+        }
+        if (!ipv6) {
+            out.putShort(10, (short) checksum(out, 0, IPV4_HEADER_SIZE, 0));
+        }
+
+        out.putShort(tcp, (short) srcPort);
+        out.putShort(tcp + 2, (short) dstPort);
+        out.putInt(tcp + 4, seq);
+        out.putInt(tcp + 8, ack);
+        out.put(tcp + 12, (byte) ((headerLength / 4) << 4));
+        out.put(tcp + 13, (byte) flags);
+        out.putShort(tcp + 14, (short) window);
+        out.putShort(tcp + 16, (short) 0);
+        out.putShort(tcp + 18, (short) 0); // Urgent pointer
+        if (mss > 0) {
+            out.put(tcp + 20, (byte) TCP_OPTION_MSS);
+            out.put(tcp + 21, (byte) 4);
+            out.putShort(tcp + 22, (short) mss);
+        }
+        for (int i = 0; i < payloadLength; i++) {
+            out.put(tcp + headerLength + i, payload[payloadOffset + i]);
+        }
+
+        int sum = sumWords(out, addressOffset, srcAddress.length * 2, PROTOCOL_TCP + segmentLength);
+        out.putShort(tcp + 16, (short) checksum(out, tcp, segmentLength, sum));
+
+        out.position(0);
+        out.limit(tcp + segmentLength);
+    }
+
+    private static void writeIpv4Header(ByteBuffer out, int protocol, int totalLength) {
+        out.put(0, (byte) 0x45);
+        out.put(1, (byte) 0);
+        out.putShort(2, (short) totalLength);
+        out.putShort(4, (short) 0);
+        out.putShort(6, (short) 0x4000); // Don't fragment
+        out.put(8, (byte) DEFAULT_TTL);
+        out.put(9, (byte) protocol);
+        out.putShort(10, (short) 0);
+    }
+
+    private static void writeIpv6Header(ByteBuffer out, int protocol, int payloadLength) {
+        out.putInt(0, 0x60000000); // Version, no traffic class or flow label
+        out.putShort(4, (short) payloadLength);
+        out.put(6, (byte) protocol);
+        out.put(7, (byte) DEFAULT_TTL);
+    }
+
+    /**
+     * Write the UDP header in front of a payload already at its final
+     * offset, then compute the checksum and flip out. The checksum is
+     * optional over IPv4 but mandatory over IPv6; it is always filled in.
+     */
+    private static void writeUdpHeader(ByteBuffer out, int udp, int addressOffset, int addressLength,
+                                       int srcPort, int dstPort, int payloadLength) {
+        out.putShort(udp, (short) srcPort);
+        out.putShort(udp + 2, (short) dstPort);
+        out.putShort(udp + 4, (short) (UDP_HEADER_SIZE + payloadLength));
+        out.putShort(udp + 6, (short) 0);
+        out.putShort(udp + 6, (short) udpChecksum(out, addressOffset, addressLength, udp,
+                UDP_HEADER_SIZE + payloadLength));
+
+        out.position(0);
+        out.limit(udp + UDP_HEADER_SIZE + payloadLength);
+    }
+
+    /**
+     * Compute the UDP checksum over the pseudo header (source and
+     * destination addresses found at addressOffset) and the UDP segment.
+     * Returns 0xFFFF instead of 0, since 0 means "no checksum" on the wire.
+     */
+    static int udpChecksum(ByteBuffer packet, int addressOffset, int addressLength, int udpOffset, int udpLength) {
+        int sum = PROTOCOL_UDP + udpLength;
+        sum = sumWords(packet, addressOffset, addressLength * 2, sum);
+        int result = checksum(packet, udpOffset, udpLength, sum);
+        return result == 0 ? 0xFFFF : result;
+    }
+
+    /**
+     * Internet checksum (RFC 1071) over packet[offset, offset + length),
+     * seeded with a partial sum
+     */
+    static int checksum(ByteBuffer packet, int offset, int length, int initialSum) {
+        return ~sumWords(packet, offset, length, initialSum) & 0xFFFF;
+    }
+
+    private static int sumWords(ByteBuffer packet, int offset, int length, int initialSum) {
+        long sum = initialSum & 0xFFFFFFFFL;
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            sum += packet.getShort(i) & 0xFFFF;
+        }
+        if ((length & 1) != 0) {
+            sum += (packet.get(offset + length - 1) & 0xFF) << 8;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+}
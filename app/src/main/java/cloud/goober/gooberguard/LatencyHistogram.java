@@ -0,0 +1,136 @@
+package cloud.goober.gooberguard;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of
+ * HdrHistogram: each power of two is split into {@link #SUB_BUCKETS}
+ * equal buckets, so any recorded value is known to within about 6%
+ * whether it is a few nanoseconds or tens of seconds. Recording is one
+ * atomic increment; reading copies the bucket counts.
+ *
+ * Counts recorded while a snapshot is taken or the histogram is reset may
+ * land on either side of it.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // About 137 seconds; longer values are counted in the last bucket
+    static final long MAX_VALUE_NANOS = (1L << 37) - 1;
+    static final int BUCKET_COUNT = bucketIndex(MAX_VALUE_NANOS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Count one latency; negative values count as zero
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketIndex(Math.max(0, Math.min(MAX_VALUE_NANOS, nanos))));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * Add this histogram's counts to a snapshot's
+     */
+    void addTo(long[] buckets) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] += counts.get(i);
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        addTo(buckets);
+        return new Snapshot(buckets);
+    }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each; above that, the top
+     * SUB_BUCKET_BITS + 1 bits pick the bucket
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Smallest value counted in a bucket
+     */
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (1L << exponent) | (sub << (exponent - SUB_BUCKET_BITS));
+    }
+
+    /**
+     * Largest value counted in a bucket
+     */
+    static long bucketUpperBound(int index) {
+        return index + 1 < BUCKET_COUNT ? bucketLowerBound(index + 1) - 1 : MAX_VALUE_NANOS;
+    }
+
+    /**
+     * Counts copied out of one or more histograms at a point in time
+     */
+    public static final class Snapshot {
+        private final long[] buckets;
+        private final long count;
+
+        Snapshot(long[] buckets) {
+            this.buckets = buckets;
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            count = total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Latency at or below which the given fraction of values fall, as
+         * the upper bound of the bucket holding it; 0 if nothing was
+         * recorded
+         */
+        public long percentileNanos(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return MAX_VALUE_NANOS;
+        }
+
+        /**
+         * Upper bound of the highest non-empty bucket, or 0 if empty
+         */
+        public long maxNanos() {
+            for (int i = buckets.length - 1; i >= 0; i--) {
+                if (buckets[i] != 0) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -2,8 +2,11 @@ package cloud.goober.gooberguard;
 
 import android.annotation.SuppressLint;
 import android.content.Intent;
+import android.net.Uri;
 import android.net.VpnService;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -12,22 +15,42 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final int VPN_REQUEST_CODE = 123;
+    private static final int IMPORT_REQUEST_CODE = 124;
+    private static final long METRICS_REFRESH_MS = 1000;
 
     private EditText domainInput;
     private Button addDomainButton;
+    private Button allowDomainButton;
+    private Button importListButton;
     private Button vpnToggleButton;
     private TextView noDomainsText;
+    private TextView noAllowedText;
     private TextView vpnStatusText;
+    private TextView metricsText;
     private RecyclerView domainRecyclerView;
+    private RecyclerView allowedRecyclerView;
     private DomainAdapter domainAdapter;
+    private DomainAdapter allowedAdapter;
     private ArrayList<String> blockedDomains;
+    private ArrayList<String> allowedDomains;
     private DomainManager domainManager;
     private boolean isVpnRunning = false;
+    private boolean isResumed = false;
+    private final Handler metricsHandler = new Handler(Looper.getMainLooper());
+    private final Runnable metricsRefresh = new Runnable() {
+        @Override
+        public void run() {
+            metricsText.setText(GooberVpnService.getMetrics().snapshot().summary());
+            metricsHandler.postDelayed(this, METRICS_REFRESH_MS);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -37,19 +60,29 @@ public class MainActivity extends AppCompatActivity {
         // Initialize views
         domainInput = findViewById(R.id.domainInput);
         addDomainButton = findViewById(R.id.addDomainButton);
+        allowDomainButton = findViewById(R.id.allowDomainButton);
+        importListButton = findViewById(R.id.importListButton);
         vpnToggleButton = findViewById(R.id.vpnToggleButton);
         noDomainsText = findViewById(R.id.noDomainsText);
+        noAllowedText = findViewById(R.id.noAllowedText);
         vpnStatusText = findViewById(R.id.vpnStatusText);
+        metricsText = findViewById(R.id.metricsText);
         domainRecyclerView = findViewById(R.id.domainRecyclerView);
+        allowedRecyclerView = findViewById(R.id.allowedRecyclerView);
 
         // Initialize domain manager and load existing domains
         domainManager = new DomainManager(this);
         blockedDomains = domainManager.getBlockedDomains();
+        allowedDomains = domainManager.getAllowedDomains();
         
         domainAdapter = new DomainAdapter(blockedDomains);
         domainRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         domainRecyclerView.setAdapter(domainAdapter);
 
+        allowedAdapter = new DomainAdapter(allowedDomains);
+        allowedRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        allowedRecyclerView.setAdapter(allowedAdapter);
+
         // Handle domain clicks for removal
         domainAdapter.setOnDomainClickListener(new DomainAdapter.OnDomainClickListener() {
             @Override
@@ -60,10 +93,25 @@ public class MainActivity extends AppCompatActivity {
                     .setMessage("Remove " + domain + " from blocked list?")
                     .setPositiveButton("Remove", (dialog, which) -> {
                         domainManager.removeBlockedDomain(domain);
-                        blockedDomains.clear();
-                        blockedDomains.addAll(domainManager.getBlockedDomains());
-                        domainAdapter.notifyDataSetChanged();
-                        updateUI();
+                        GooberVpnService.notifyBlocklistChanged(MainActivity.this);
+                        refreshDomainLists();
+                        Toast.makeText(MainActivity.this, "Removed: " + domain, Toast.LENGTH_SHORT).show();
+                    })
+                    .setNegativeButton("Cancel", null)
+                    .show();
+            }
+        });
+
+        allowedAdapter.setOnDomainClickListener(new DomainAdapter.OnDomainClickListener() {
+            @Override
+            public void onDomainClick(String domain, int position) {
+                new android.app.AlertDialog.Builder(MainActivity.this)
+                    .setTitle("Remove Domain")
+                    .setMessage("Remove " + domain + " from allowed list?")
+                    .setPositiveButton("Remove", (dialog, which) -> {
+                        domainManager.removeAllowedDomain(domain);
+                        GooberVpnService.notifyBlocklistChanged(MainActivity.this);
+                        refreshDomainLists();
                         Toast.makeText(MainActivity.this, "Removed: " + domain, Toast.LENGTH_SHORT).show();
                     })
                     .setNegativeButton("Cancel", null)
@@ -77,15 +125,18 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 String domain = domainInput.getText().toString().trim();
+                if (domain.startsWith(DomainTrie.ALLOW_PREFIX)) {
+                    // Adblock-style exception typed into the block field
+                    allowDomain(domain.substring(DomainTrie.ALLOW_PREFIX.length()).trim());
+                    return;
+                }
                 if (!domain.isEmpty()) {
                     // Basic domain validation
                     if (isValidDomain(domain)) {
                         if (!domainManager.isDomainBlocked(domain)) {
                             domainManager.addBlockedDomain(domain);
-                            blockedDomains.clear();
-                            blockedDomains.addAll(domainManager.getBlockedDomains());
-                            domainAdapter.notifyDataSetChanged();
-                            updateUI();
+                            GooberVpnService.notifyBlocklistChanged(MainActivity.this);
+                            refreshDomainLists();
                             domainInput.setText("");
                             
                             Toast.makeText(MainActivity.this, "Added: " + domain, Toast.LENGTH_SHORT).show();
@@ -93,7 +144,7 @@ public class MainActivity extends AppCompatActivity {
                             Toast.makeText(MainActivity.this, "Domain already blocked", Toast.LENGTH_SHORT).show();
                         }
                     } else {
-                        Toast.makeText(MainActivity.this, "Please enter a valid domain (e.g., example.com)", Toast.LENGTH_LONG).show();
+                        Toast.makeText(MainActivity.this, "Please enter a valid domain or rule (e.g., example.com, ads*.example.com)", Toast.LENGTH_LONG).show();
                     }
                 } else {
                     Toast.makeText(MainActivity.this, "Please enter a domain", Toast.LENGTH_SHORT).show();
@@ -101,6 +152,34 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        allowDomainButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                allowDomain(domainInput.getText().toString().trim());
+            }
+        });
+
+        importListButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // Hosts files usually have no extension, so accept anything
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(intent, IMPORT_REQUEST_CODE);
+            }
+        });
+
+        // Long press to send the full numbers, e.g. with a bug report
+        metricsText.setOnLongClickListener(v -> {
+            Intent send = new Intent(Intent.ACTION_SEND);
+            send.setType("text/plain");
+            send.putExtra(Intent.EXTRA_SUBJECT, "GooberGuard metrics");
+            send.putExtra(Intent.EXTRA_TEXT, GooberVpnService.getMetrics().snapshot().toString());
+            startActivity(Intent.createChooser(send, "Share metrics"));
+            return true;
+        });
+
         vpnToggleButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -115,6 +194,62 @@ public class MainActivity extends AppCompatActivity {
         updateUI();
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        isResumed = true;
+        updateMetricsRefresh();
+    }
+
+    @Override
+    protected void onPause() {
+        isResumed = false;
+        updateMetricsRefresh();
+        super.onPause();
+    }
+
+    /**
+     * Refresh the live numbers once a second while they are on screen
+     */
+    private void updateMetricsRefresh() {
+        metricsHandler.removeCallbacks(metricsRefresh);
+        boolean visible = isResumed && isVpnRunning;
+        metricsText.setVisibility(visible ? View.VISIBLE : View.GONE);
+        if (visible) {
+            metricsRefresh.run();
+        }
+    }
+
+    /**
+     * Add an allow entry for a domain typed into the input field
+     */
+    private void allowDomain(String domain) {
+        if (domain.isEmpty()) {
+            Toast.makeText(this, "Please enter a domain", Toast.LENGTH_SHORT).show();
+        } else if (PatternRules.isPattern(domain) || !isValidDomain(domain)) {
+            Toast.makeText(this, "Please enter a valid domain to allow (e.g., cdninstagram.com)", Toast.LENGTH_LONG).show();
+        } else if (domainManager.isDomainAllowed(domain)) {
+            Toast.makeText(this, "Domain already allowed", Toast.LENGTH_SHORT).show();
+        } else {
+            domainManager.addAllowedDomain(domain);
+            GooberVpnService.notifyBlocklistChanged(this);
+            refreshDomainLists();
+            domainInput.setText("");
+            Toast.makeText(this, "Allowed: " + domain, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @SuppressLint("NotifyDataSetChanged")
+    private void refreshDomainLists() {
+        blockedDomains.clear();
+        blockedDomains.addAll(domainManager.getBlockedDomains());
+        domainAdapter.notifyDataSetChanged();
+        allowedDomains.clear();
+        allowedDomains.addAll(domainManager.getAllowedDomains());
+        allowedAdapter.notifyDataSetChanged();
+        updateUI();
+    }
+
     private void updateUI() {
         if (blockedDomains.isEmpty()) {
             noDomainsText.setVisibility(View.VISIBLE);
@@ -123,17 +258,21 @@ public class MainActivity extends AppCompatActivity {
             noDomainsText.setVisibility(View.GONE);
             domainRecyclerView.setVisibility(View.VISIBLE);
         }
+        noAllowedText.setVisibility(allowedDomains.isEmpty() ? View.VISIBLE : View.GONE);
+        allowedRecyclerView.setVisibility(allowedDomains.isEmpty() ? View.GONE : View.VISIBLE);
         
         // Update VPN status and button text
         if (isVpnRunning) {
             vpnToggleButton.setText("Stop Protection");
-            vpnStatusText.setText("Status: Protected - Blocking " + blockedDomains.size() + " domains");
+            vpnStatusText.setText("Status: Protected - Blocking " + blockedDomains.size() + " domains"
+                    + (allowedDomains.isEmpty() ? "" : ", allowing " + allowedDomains.size()));
             vpnStatusText.setTextColor(getColor(android.R.color.holo_green_dark));
         } else {
             vpnToggleButton.setText("Start Protection");
             vpnStatusText.setText("Status: Not Protected");
             vpnStatusText.setTextColor(getColor(android.R.color.holo_red_dark));
         }
+        updateMetricsRefresh();
     }
 
     private void startVpnService() {
@@ -170,8 +309,49 @@ public class MainActivity extends AppCompatActivity {
             } else {
                 Toast.makeText(this, "VPN permission denied", Toast.LENGTH_SHORT).show();
             }
+        } else if (requestCode == IMPORT_REQUEST_CODE && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            importList(data.getData());
         }
     }
+
+    /**
+     * Import a hosts file or domain list on a background thread, showing
+     * progress on the import button
+     */
+    private void importList(Uri uri) {
+        addDomainButton.setEnabled(false);
+        allowDomainButton.setEnabled(false);
+        importListButton.setEnabled(false);
+        importListButton.setText("Importing...");
+
+        new Thread(() -> {
+            String message;
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                if (in == null) {
+                    throw new IOException("Could not open " + uri);
+                }
+                BlocklistImporter result = domainManager.importDomains(in, (lines, bytes) ->
+                        runOnUiThread(() -> importListButton.setText("Importing... " + lines + " lines")));
+                message = "Imported " + result.getAddedCount() + " domains ("
+                        + result.getDuplicateCount() + " already listed, "
+                        + result.getCoveredCount() + " covered by a parent)";
+            } catch (IOException e) {
+                message = "Import failed: " + e.getMessage();
+            }
+
+            GooberVpnService.notifyBlocklistChanged(MainActivity.this);
+            String toast = message;
+            runOnUiThread(() -> {
+                addDomainButton.setEnabled(true);
+                allowDomainButton.setEnabled(true);
+                importListButton.setEnabled(true);
+                importListButton.setText("Import List");
+                refreshDomainLists();
+                Toast.makeText(MainActivity.this, toast, Toast.LENGTH_LONG).show();
+            });
+        }, "BlocklistImport").start();
+    }
     
     private boolean isValidDomain(String domain) {
         // Basic domain validation
@@ -179,6 +359,11 @@ public class MainActivity extends AppCompatActivity {
             return false;
         }
         
+        // Wildcard and regex rules are checked by the rule compiler
+        if (PatternRules.isPattern(domain)) {
+            return PatternRules.normalize(domain) != null;
+        }
+        
         // Remove protocol if present
         domain = domain.replaceAll("^https?://", "");
         domain = domain.replaceAll("^www\\.", "");
@@ -0,0 +1,17 @@
+package cloud.goober.gooberguard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decides what to do with one packet read from the tun. Each worker thread
+ * gets its own handler, so implementations may keep scratch state without
+ * locking.
+ */
+public interface PacketHandler {
+    /**
+     * Handle a packet. If it should be answered right away, write the reply
+     * into reply, flip it and return true.
+     */
+    boolean handle(ByteBuffer packet, ByteBuffer reply) throws IOException;
+}
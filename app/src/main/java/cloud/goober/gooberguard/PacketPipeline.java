@@ -0,0 +1,274 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Moves packets from a source to a sink through three stages: one reader
+ * thread, a pool of worker threads running a {@link PacketHandler}, and one
+ * writer thread.
+ *
+ * Stages hand packets to each other through bounded {@link PacketRing}s of
+ * direct buffers taken from a fixed pool, so nothing is allocated per packet,
+ * channel I/O needs no intermediate copy, and a slow handler only holds up
+ * the packets it is working on. When a ring is
+ * full or the pool is empty the packet is dropped and counted instead of
+ * stalling the stage before it; the reader keeps draining the source so the
+ * tun never backs up.
+ *
+ * Each packet crosses two rings, which costs more than handling it inline
+ * when reading and writing the tun is nearly free; the stages pay off by
+ * overlapping tun reads and writes with handling, and with each other.
+ *
+ * Other threads, such as the DNS forwarder, can queue replies for the
+ * writer with {@link #send(ByteBuffer)}, which keeps the writer the only
+ * thread writing to the sink.
+ */
+public class PacketPipeline implements Closeable {
+    private static final String TAG = "PacketPipeline";
+
+    static final int DEFAULT_RING_CAPACITY = 256;
+
+    private final PacketSource source;
+    private final PacketSink sink;
+    private final Supplier<PacketHandler> handlers;
+    private final int workerCount;
+
+    private final PacketRing freeBuffers;
+    private final PacketRing inbound;
+    private final PacketRing outbound;
+    // Read into when the pool is empty, so the source is still drained
+    private final ByteBuffer overflow;
+    private final List<Thread> threads = new ArrayList<>();
+    private Thread reader;
+    private volatile boolean running;
+
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong inboundDropCount = new AtomicLong();
+    private final AtomicLong outboundDropCount = new AtomicLong();
+
+    /**
+     * @param handlers   called once per worker thread
+     * @param bufferSize capacity of each pooled buffer; the largest packet
+     *                   the pipeline carries
+     */
+    public PacketPipeline(PacketSource source, PacketSink sink, Supplier<PacketHandler> handlers,
+                          int workerCount, int bufferSize) {
+        this(source, sink, handlers, workerCount, bufferSize, DEFAULT_RING_CAPACITY);
+    }
+
+    PacketPipeline(PacketSource source, PacketSink sink, Supplier<PacketHandler> handlers,
+                   int workerCount, int bufferSize, int ringCapacity) {
+        this.source = source;
+        this.sink = sink;
+        this.handlers = handlers;
+        this.workerCount = Math.max(1, workerCount);
+
+        inbound = new PacketRing(ringCapacity);
+        outbound = new PacketRing(ringCapacity);
+        // Enough to fill both rings with every worker holding a packet and a
+        // reply, so running out of buffers means a ring is already full
+        int poolSize = inbound.capacity() + outbound.capacity() + 2 * this.workerCount + 2;
+        freeBuffers = new PacketRing(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            freeBuffers.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+        overflow = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+
+        reader = new Thread(this::runReader, "PacketReader");
+        threads.add(reader);
+        for (int i = 0; i < workerCount; i++) {
+            PacketHandler handler = handlers.get();
+            threads.add(new Thread(() -> runWorker(handler), "PacketWorker-" + i));
+        }
+        threads.add(new Thread(this::runWriter, "PacketWriter"));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Queue a copy of the packet for the writer thread. Returns false and
+     * counts a drop if there is no room.
+     */
+    public boolean send(ByteBuffer packet) {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null || packet.remaining() > buffer.capacity()) {
+            if (buffer != null) {
+                freeBuffers.offer(buffer);
+            }
+            outboundDropCount.incrementAndGet();
+            return false;
+        }
+        int position = packet.position();
+        buffer.clear();
+        buffer.put(packet);
+        buffer.flip();
+        packet.position(position);
+        return enqueueOutbound(buffer);
+    }
+
+    /**
+     * Stop all stages. A reader blocked on the source only exits once the
+     * source is closed or returns.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            // The reader may be stuck in a blocking read until the source closes
+            if (thread != reader && thread != Thread.currentThread()) {
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        threads.clear();
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public long getReadCount() {
+        return readCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Packets read but dropped before a worker handled them, because the
+     * workers had fallen behind
+     */
+    public long getInboundDropCount() {
+        return inboundDropCount.get();
+    }
+
+    /**
+     * Replies dropped because the writer had fallen behind
+     */
+    public long getOutboundDropCount() {
+        return outboundDropCount.get();
+    }
+
+    private void runReader() {
+        while (running) {
+            ByteBuffer buffer = freeBuffers.poll();
+            ByteBuffer target = buffer != null ? buffer : overflow;
+            target.clear();
+            int length;
+            try {
+                length = source.read(target);
+            } catch (IOException e) {
+                if (running) {
+                    AppLog.e(TAG, "Error reading packets", e);
+                }
+                release(buffer);
+                return;
+            }
+            if (length < 0) {
+                release(buffer);
+                return;
+            }
+            if (length == 0) {
+                release(buffer);
+                continue;
+            }
+
+            readCount.incrementAndGet();
+            if (buffer == null) {
+                inboundDropCount.incrementAndGet();
+                continue;
+            }
+            buffer.position(0);
+            buffer.limit(length);
+            if (!inbound.offer(buffer)) {
+                inboundDropCount.incrementAndGet();
+                release(buffer);
+            }
+        }
+    }
+
+    private void runWorker(PacketHandler handler) {
+        while (running) {
+            ByteBuffer packet = inbound.take();
+            if (packet == null) {
+                return;
+            }
+            ByteBuffer reply = freeBuffers.poll();
+            if (reply == null) {
+                inboundDropCount.incrementAndGet();
+                release(packet);
+                continue;
+            }
+
+            boolean respond;
+            try {
+                respond = handler.handle(packet, reply);
+            } catch (IOException | RuntimeException e) {
+                AppLog.e(TAG, "Error handling packet", e);
+                respond = false;
+            }
+            release(packet);
+            if (respond) {
+                enqueueOutbound(reply);
+            } else {
+                release(reply);
+            }
+        }
+    }
+
+    private void runWriter() {
+        while (running) {
+            ByteBuffer packet = outbound.take();
+            if (packet == null) {
+                return;
+            }
+            try {
+                sink.write(packet);
+                writtenCount.incrementAndGet();
+            } catch (IOException e) {
+                if (running) {
+                    AppLog.e(TAG, "Error writing packet", e);
+                }
+            }
+            release(packet);
+        }
+    }
+
+    private boolean enqueueOutbound(ByteBuffer buffer) {
+        if (outbound.offer(buffer)) {
+            return true;
+        }
+        outboundDropCount.incrementAndGet();
+        release(buffer);
+        return false;
+    }
+
+    private void release(ByteBuffer buffer) {
+        if (buffer != null) {
+            freeBuffers.offer(buffer);
+        }
+    }
+}
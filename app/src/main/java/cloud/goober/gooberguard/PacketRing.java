@@ -0,0 +1,141 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue of packet buffers, safe for any number of
+ * producers and consumers
+ *
+ * Each slot carries a sequence number that says whether it is ready to be
+ * filled or drained for the current lap around the ring, so offer and poll
+ * each claim a slot with a single compare-and-set and never block. A full
+ * ring makes offer return false; callers count that as a drop rather than
+ * wait. Consumers that find the ring empty can park in {@link #take()} and
+ * are woken by the next offer.
+ */
+final class PacketRing {
+    // Polls made with Thread.yield() in between before a consumer parks
+    private static final int YIELDS_BEFORE_PARK = 64;
+
+    private final ByteBuffer[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    PacketRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        entries = new ByteBuffer[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * Add a buffer, or return false if the ring is full
+     */
+    boolean offer(ByteBuffer buffer) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    entries[index] = buffer;
+                    // A full volatile write, so the waiter check below cannot
+                    // be reordered before it
+                    sequences.set(index, position + 1);
+                    if (!waiters.isEmpty()) {
+                        Thread waiter = waiters.poll();
+                        if (waiter != null) {
+                            LockSupport.unpark(waiter);
+                        }
+                    }
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove a buffer, or return null if the ring is empty
+     */
+    ByteBuffer poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    ByteBuffer buffer = entries[index];
+                    entries[index] = null;
+                    sequences.set(index, position + mask + 1);
+                    return buffer;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Remove a buffer, parking until one is offered. Returns null if the
+     * calling thread is interrupted.
+     */
+    ByteBuffer take() {
+        Thread current = Thread.currentThread();
+        for (int attempt = 0; ; attempt++) {
+            ByteBuffer buffer = poll();
+            if (buffer != null) {
+                return buffer;
+            }
+            if (current.isInterrupted()) {
+                return null;
+            }
+            if (attempt < YIELDS_BEFORE_PARK) {
+                Thread.yield();
+                continue;
+            }
+
+            // Register before the final check so an offer made in between
+            // is guaranteed to see us and unpark
+            waiters.add(current);
+            buffer = poll();
+            if (buffer != null) {
+                waiters.remove(current);
+                return buffer;
+            }
+            LockSupport.park(this);
+            waiters.remove(current);
+        }
+    }
+
+    /**
+     * Number of buffers in the ring; only a snapshot while others are using it
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+}
@@ -0,0 +1,14 @@
+package cloud.goober.gooberguard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where finished packets go, such as the tun interface
+ */
+public interface PacketSink {
+    /**
+     * Write the packet between the buffer's position and limit
+     */
+    void write(ByteBuffer packet) throws IOException;
+}
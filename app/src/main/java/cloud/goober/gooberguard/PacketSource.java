@@ -0,0 +1,16 @@
+package cloud.goober.gooberguard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where packets come from, such as the tun interface
+ */
+public interface PacketSource {
+    /**
+     * Read one packet into the buffer, starting at offset 0. Blocks until a
+     * packet is available. Returns its length, or -1 once there are no more
+     * packets.
+     */
+    int read(ByteBuffer packet) throws IOException;
+}
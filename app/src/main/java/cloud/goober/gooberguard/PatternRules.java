@@ -0,0 +1,1073 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wildcard and regular expression block rules, compiled together into
+ * deterministic automata so a name is checked against every rule in a
+ * single pass over its bytes.
+ *
+ * Two rule forms are understood. Wildcards such as "ads*.example.com" or
+ * "*.doubleclick.*", where '*' matches any run of characters including
+ * dots; like a plain entry, a wildcard blocks the names it matches and
+ * their subdomains. Regular expressions between slashes such as
+ * "/^track[0-9]+\./", which are searched for anywhere in the name unless
+ * anchored with '^' or '$'. They support literals, '.', bracket classes
+ * with ranges and negation, \d \w \s and escaped punctuation, groups, '|'
+ * and the * + ? {m} {m,} {m,n} quantifiers. Names are matched in lower
+ * case.
+ *
+ * All rules go into one Thompson NFA, which is turned into a DFA by subset
+ * construction over classes of bytes the rules cannot tell apart. Like
+ * the {@link DomainTrie}, the automaton reads names from the last byte
+ * back to the first: most rules end in a fixed suffix such as
+ * ".example.com", which then narrows the rules still in play right away
+ * instead of every rule's leading wildcard staying live. If the
+ * DFA would grow past {@link #MAX_STATES} the rules are split in half and
+ * compiled separately, so a few rules that blow up cannot take the rest
+ * with them. Plain domains never come here; they stay in the
+ * {@link DomainTrie}, which is checked first.
+ */
+public final class PatternRules {
+    /**
+     * Largest DFA built for one group of rules
+     */
+    static final int MAX_STATES = 4096;
+
+    // Upper bound on NFA states for one group, which bounds the cost of
+    // each DFA state
+    private static final int MAX_NFA_STATES = 1 << 16;
+    private static final int MAX_REPEAT = 255;
+
+    private static final PatternRules EMPTY = new PatternRules(Collections.emptyList(), new Automaton[0], 0, 0);
+
+    private final List<String> rules;
+    private final Set<String> ruleSet;
+    private final Automaton[] automata;
+    private final int rejectedCount;
+    private final long compileNanos;
+
+    private PatternRules(List<String> rules, Automaton[] automata, int rejectedCount, long compileNanos) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.ruleSet = new LinkedHashSet<>(rules);
+        this.automata = automata;
+        this.rejectedCount = rejectedCount;
+        this.compileNanos = compileNanos;
+    }
+
+    public static PatternRules empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Compile the given rules. Rules that do not parse, or that on their
+     * own need more than {@link #MAX_STATES} states, are left out and
+     * counted by {@link #getRejectedCount()}.
+     */
+    public static PatternRules compile(Collection<String> rules) {
+        if (rules.isEmpty()) {
+            return EMPTY;
+        }
+        long start = System.nanoTime();
+        // Rules tied to the end of the name die out within a few bytes,
+        // while floating ones stay live for the whole name. Mixing the two
+        // in one DFA multiplies their states, so each kind gets its own.
+        List<String> anchored = new ArrayList<>();
+        List<Node> anchoredParsed = new ArrayList<>();
+        List<String> floating = new ArrayList<>();
+        List<Node> floatingParsed = new ArrayList<>();
+        Set<String> seen = new LinkedHashSet<>();
+        int rejected = 0;
+        for (String rule : rules) {
+            String normalized = normalize(rule);
+            if (normalized == null) {
+                rejected++;
+                continue;
+            }
+            if (seen.add(normalized)) {
+                boolean atEnd = isAnchoredAtEnd(normalized);
+                (atEnd ? anchored : floating).add(normalized);
+                (atEnd ? anchoredParsed : floatingParsed).add(parse(normalized).reverse());
+            }
+        }
+
+        List<Automaton> automata = new ArrayList<>();
+        List<String> kept = new ArrayList<>(seen.size());
+        rejected += compileGroup(anchored, anchoredParsed, automata, kept);
+        rejected += compileGroup(floating, floatingParsed, automata, kept);
+        return new PatternRules(kept, automata.toArray(new Automaton[0]), rejected, System.nanoTime() - start);
+    }
+
+    /**
+     * Whether a list entry is a wildcard or regular expression rule rather
+     * than a plain domain. "@@" allow entries are never rules.
+     */
+    public static boolean isPattern(String rule) {
+        String trimmed = rule.trim();
+        if (DomainTrie.isAllowEntry(trimmed)) {
+            return false;
+        }
+        return isRegex(trimmed) || trimmed.indexOf('*') >= 0;
+    }
+
+    /**
+     * Canonical form of a rule, or null if it is not a usable pattern:
+     * wildcards are lowercased and lose a trailing dot, regular expressions
+     * are only trimmed
+     */
+    public static String normalize(String rule) {
+        if (rule == null) {
+            return null;
+        }
+        rule = rule.trim();
+        if (!isRegex(rule)) {
+            rule = DomainTrie.toLowerAscii(rule);
+            if (rule.endsWith(".")) {
+                rule = rule.substring(0, rule.length() - 1);
+            }
+            if (rule.indexOf('*') < 0 || rule.length() > DnsQuestion.MAX_NAME_LENGTH) {
+                return null;
+            }
+            for (int i = 0; i < rule.length(); i++) {
+                char c = rule.charAt(i);
+                if (c > 0xFF || Character.isWhitespace(c)) {
+                    return null;
+                }
+            }
+        }
+        try {
+            parse(rule);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return rule;
+    }
+
+    /**
+     * Check if any rule matches the domain
+     */
+    public boolean matches(String domain) {
+        for (Automaton automaton : automata) {
+            if (automaton.matches(domain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if any rule matches the name in a parsed question, reading the
+     * labels in place. Does not allocate.
+     */
+    public boolean matches(DnsQuestion question) {
+        for (Automaton automaton : automata) {
+            if (automaton.matches(question)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(String rule) {
+        String normalized = normalize(rule);
+        return normalized != null && ruleSet.contains(normalized);
+    }
+
+    /**
+     * The compiled rules in normalized form
+     */
+    public List<String> rules() {
+        return rules;
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    public boolean isEmpty() {
+        return automata.length == 0;
+    }
+
+    public int getAutomatonCount() {
+        return automata.length;
+    }
+
+    /**
+     * DFA states across all automata
+     */
+    public int getStateCount() {
+        int states = 0;
+        for (Automaton automaton : automata) {
+            states += automaton.accepting.length;
+        }
+        return states;
+    }
+
+    /**
+     * Bytes held by the transition tables and byte class maps
+     */
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Automaton automaton : automata) {
+            bytes += automaton.transitions.length * 4L + automaton.accepting.length * 2L + automaton.classes.length;
+        }
+        return bytes;
+    }
+
+    public long getCompileNanos() {
+        return compileNanos;
+    }
+
+    /**
+     * Rules left out because they did not parse or were too large
+     */
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Build automata for the rules, halving the group whenever its DFA gets
+     * too large. Returns the number of rules that could not be compiled.
+     */
+    private static int compileGroup(List<String> rules, List<Node> parsed, List<Automaton> out, List<String> kept) {
+        if (rules.isEmpty()) {
+            return 0;
+        }
+        Automaton automaton = Automaton.build(parsed);
+        if (automaton != null) {
+            out.add(automaton);
+            kept.addAll(rules);
+            return 0;
+        }
+        if (rules.size() == 1) {
+            return 1;
+        }
+        int half = rules.size() / 2;
+        return compileGroup(rules.subList(0, half), parsed.subList(0, half), out, kept)
+                + compileGroup(rules.subList(half, rules.size()), parsed.subList(half, parsed.size()), out, kept);
+    }
+
+    /**
+     * Whether a normalized rule only matches names ending in a fixed way,
+     * which is where the reversed automaton starts reading
+     */
+    private static boolean isAnchoredAtEnd(String rule) {
+        if (isRegex(rule)) {
+            return rule.endsWith("$/") && !rule.endsWith("\\$/");
+        }
+        return !rule.endsWith("*");
+    }
+
+    private static boolean isRegex(String rule) {
+        return rule.length() > 2 && rule.charAt(0) == '/' && rule.charAt(rule.length() - 1) == '/';
+    }
+
+    private static Node parse(String rule) {
+        if (isRegex(rule)) {
+            return new RegexParser(rule.substring(1, rule.length() - 1)).parse();
+        }
+
+        // A wildcard matches the whole name, or the name after any number
+        // of leading labels
+        List<Node> sequence = new ArrayList<>();
+        sequence.add(new Repeat(new Concat(Arrays.asList(new Repeat(Chars.any(), 0, -1), Chars.of('.'))), 0, 1));
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            sequence.add(c == '*' ? new Repeat(Chars.any(), 0, -1) : Chars.of(c));
+        }
+        return new Concat(sequence);
+    }
+
+    private static int toLowerAscii(int b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * One compiled DFA. State 0 is the start state and -1 the dead state
+     * from which nothing can match.
+     */
+    private static final class Automaton {
+        final byte[] classes;
+        final int classCount;
+        final int[] transitions;
+        final boolean[] accepting;
+        // Accepting states that every continuation keeps accepting, so a
+        // match can be reported before the end of the name
+        final boolean[] decided;
+
+        Automaton(byte[] classes, int classCount, int[] transitions, boolean[] accepting, boolean[] decided) {
+            this.classes = classes;
+            this.classCount = classCount;
+            this.transitions = transitions;
+            this.accepting = accepting;
+            this.decided = decided;
+        }
+
+        boolean matches(String domain) {
+            int state = 0;
+            if (decided[state]) {
+                return true;
+            }
+            int end = domain.endsWith(".") ? domain.length() - 1 : domain.length();
+            for (int i = end - 1; i >= 0; i--) {
+                char c = domain.charAt(i);
+                if (c > 0xFF) {
+                    return false;
+                }
+                state = transitions[state * classCount + (classes[toLowerAscii(c)] & 0xFF)];
+                if (state < 0) {
+                    return false;
+                }
+                if (decided[state]) {
+                    return true;
+                }
+            }
+            return accepting[state];
+        }
+
+        boolean matches(DnsQuestion question) {
+            ByteBuffer packet = question.packet();
+            int state = 0;
+            if (decided[state]) {
+                return true;
+            }
+            for (int label = question.labelCount() - 1; label >= 0; label--) {
+                int offset = question.labelOffset(label);
+                for (int i = offset + question.labelLength(label) - 1; i >= offset; i--) {
+                    int b = toLowerAscii(packet.get(i) & 0xFF);
+                    state = transitions[state * classCount + (classes[b] & 0xFF)];
+                    if (state < 0) {
+                        return false;
+                    }
+                    if (decided[state]) {
+                        return true;
+                    }
+                }
+                if (label > 0) {
+                    state = transitions[state * classCount + (classes['.'] & 0xFF)];
+                    if (state < 0) {
+                        return false;
+                    }
+                    if (decided[state]) {
+                        return true;
+                    }
+                }
+            }
+            return accepting[state];
+        }
+
+        /**
+         * Subset construction over the combined NFA of the given rules.
+         * Returns null if the DFA needs more than MAX_STATES states.
+         */
+        static Automaton build(List<Node> rules) {
+            Nfa nfa = new Nfa();
+            int start = nfa.newState();
+            int match = nfa.newState();
+            for (Node rule : rules) {
+                int[] fragment = rule.build(nfa);
+                if (fragment == null) {
+                    return null;
+                }
+                nfa.epsilon(start, fragment[0]);
+                nfa.epsilon(fragment[1], match);
+            }
+
+            // Bytes accepted by exactly the same NFA transitions share a class
+            BitSet[] signatures = new BitSet[256];
+            for (int b = 0; b < 256; b++) {
+                signatures[b] = new BitSet();
+            }
+            for (int s = 0; s < nfa.size; s++) {
+                BitSet set = nfa.chars[s];
+                if (set != null) {
+                    for (int b = set.nextSetBit(0); b >= 0 && b < 256; b = set.nextSetBit(b + 1)) {
+                        signatures[b].set(s);
+                    }
+                }
+            }
+            Map<BitSet, Integer> classIds = new HashMap<>();
+            byte[] classes = new byte[256];
+            for (int b = 0; b < 256; b++) {
+                BitSet signature = signatures[b];
+                Integer id = classIds.get(signature);
+                if (id == null) {
+                    id = classIds.size();
+                    classIds.put(signature, id);
+                }
+                classes[b] = (byte) (int) id;
+            }
+            int classCount = classIds.size();
+
+            // Byte classes each consuming state accepts; loops over every
+            // byte are kept apart since they move the same way on all of them
+            int[][] stateClasses = new int[nfa.size][];
+            boolean[] anyByte = new boolean[nfa.size];
+            for (int s = 0; s < nfa.size; s++) {
+                BitSet set = nfa.chars[s];
+                if (set == null) {
+                    continue;
+                }
+                anyByte[s] = set.cardinality() == 256;
+                if (!anyByte[s]) {
+                    BitSet seen = new BitSet(classCount);
+                    for (int b = set.nextSetBit(0); b >= 0 && b < 256; b = set.nextSetBit(b + 1)) {
+                        seen.set(classes[b] & 0xFF);
+                    }
+                    stateClasses[s] = seen.stream().toArray();
+                }
+            }
+
+            // Every subset holding one of these states accepts whatever
+            // follows, so they all collapse into a single accepting sink
+            // rather than being told apart by the rules still in progress
+            BitSet sure = nfa.alwaysReaching(match);
+            int sink = -1;
+
+            List<BitSet> states = new ArrayList<>();
+            Map<BitSet, Integer> stateIds = new HashMap<>();
+            BitSet initial = nfa.closure(singleton(start));
+            states.add(initial.intersects(sure) ? null : initial);
+            stateIds.put(initial, 0);
+            int[] transitions = new int[16 * classCount];
+
+            for (int d = 0; d < states.size(); d++) {
+                BitSet current = states.get(d);
+                if ((d + 1) * classCount > transitions.length) {
+                    transitions = Arrays.copyOf(transitions, Math.max(transitions.length * 2, (d + 1) * classCount));
+                }
+                if (current == null) {
+                    Arrays.fill(transitions, d * classCount, (d + 1) * classCount, d);
+                    continue;
+                }
+                // Move every consuming state once, then close each class's
+                // targets on top of what the any-byte loops reach anyway
+                BitSet common = new BitSet();
+                BitSet[] moved = new BitSet[classCount];
+                for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+                    if (anyByte[s]) {
+                        common.set(nfa.next[s]);
+                    } else if (stateClasses[s] != null) {
+                        for (int c : stateClasses[s]) {
+                            if (moved[c] == null) {
+                                moved[c] = new BitSet();
+                            }
+                            moved[c].set(nfa.next[s]);
+                        }
+                    }
+                }
+                BitSet base = common.isEmpty() ? null : nfa.closure(common, new BitSet());
+                for (int c = 0; c < classCount; c++) {
+                    int target;
+                    if (moved[c] == null && base == null) {
+                        target = -1;
+                    } else {
+                        BitSet closed = moved[c] == null ? base
+                                : nfa.closure(moved[c], base == null ? new BitSet() : base);
+                        boolean accepted = closed.intersects(sure);
+                        Integer id = accepted ? (sink >= 0 ? Integer.valueOf(sink) : null) : stateIds.get(closed);
+                        if (id == null) {
+                            if (states.size() == MAX_STATES) {
+                                return null;
+                            }
+                            id = states.size();
+                            if (accepted) {
+                                sink = id;
+                                states.add(null);
+                            } else {
+                                states.add(closed);
+                                stateIds.put(closed, id);
+                            }
+                        }
+                        target = id;
+                    }
+                    transitions[d * classCount + c] = target;
+                }
+            }
+
+            int count = states.size();
+            boolean[] accepting = new boolean[count];
+            boolean[] decided = new boolean[count];
+            for (int d = 0; d < count; d++) {
+                accepting[d] = states.get(d) == null || states.get(d).get(match);
+                decided[d] = accepting[d];
+            }
+            // A state is decided once no input can lead out of the decided set
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int d = 0; d < count; d++) {
+                    if (!decided[d]) {
+                        continue;
+                    }
+                    for (int c = 0; c < classCount; c++) {
+                        int target = transitions[d * classCount + c];
+                        if (target < 0 || !decided[target]) {
+                            decided[d] = false;
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            return new Automaton(classes, classCount, Arrays.copyOf(transitions, count * classCount),
+                    accepting, decided);
+        }
+
+        private static BitSet singleton(int state) {
+            BitSet set = new BitSet();
+            set.set(state);
+            return set;
+        }
+    }
+
+    /**
+     * Thompson NFA: each state either consumes one byte from its set and
+     * moves to next, or has only epsilon moves
+     */
+    private static final class Nfa {
+        BitSet[] chars = new BitSet[64];
+        int[] next = new int[64];
+        int[][] epsilons = new int[64][];
+        int size;
+        // Work stack for closures
+        private int[] pending = new int[0];
+
+        int newState() {
+            if (size == MAX_NFA_STATES) {
+                return -1;
+            }
+            if (size == next.length) {
+                chars = Arrays.copyOf(chars, size * 2);
+                next = Arrays.copyOf(next, size * 2);
+                epsilons = Arrays.copyOf(epsilons, size * 2);
+            }
+            return size++;
+        }
+
+        void epsilon(int from, int to) {
+            int[] existing = epsilons[from];
+            epsilons[from] = existing == null ? new int[]{to} : append(existing, to);
+        }
+
+        /**
+         * States from which every input reaches target: those that reach it
+         * by epsilon moves and also reach a loop over every byte leading
+         * back into the set, such as the one after an unanchored rule end
+         */
+        BitSet alwaysReaching(int target) {
+            int[][] reverse = new int[size][];
+            for (int from = 0; from < size; from++) {
+                if (epsilons[from] != null) {
+                    for (int to : epsilons[from]) {
+                        int[] existing = reverse[to];
+                        reverse[to] = existing == null ? new int[]{from} : append(existing, from);
+                    }
+                }
+            }
+            BitSet reaching = new BitSet();
+            reaching.set(target);
+            reaching = reachedBackwards(reaching, reverse);
+
+            BitSet sure = reaching;
+            while (true) {
+                BitSet loops = new BitSet();
+                for (int s = 0; s < size; s++) {
+                    if (chars[s] != null && chars[s].cardinality() == 256 && sure.get(next[s])) {
+                        loops.set(s);
+                    }
+                }
+                BitSet narrowed = reachedBackwards(loops, reverse);
+                narrowed.and(reaching);
+                if (narrowed.equals(sure)) {
+                    return sure;
+                }
+                sure = narrowed;
+            }
+        }
+
+        private static BitSet reachedBackwards(BitSet states, int[][] reverse) {
+            BitSet reached = (BitSet) states.clone();
+            ArrayDeque<Integer> pending = new ArrayDeque<>();
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                pending.push(s);
+            }
+            while (!pending.isEmpty()) {
+                int[] sources = reverse[pending.pop()];
+                if (sources == null) {
+                    continue;
+                }
+                for (int source : sources) {
+                    if (!reached.get(source)) {
+                        reached.set(source);
+                        pending.push(source);
+                    }
+                }
+            }
+            return reached;
+        }
+
+        private static int[] append(int[] array, int value) {
+            int[] grown = Arrays.copyOf(array, array.length + 1);
+            grown[array.length] = value;
+            return grown;
+        }
+
+        BitSet closure(BitSet states) {
+            return closure(states, new BitSet());
+        }
+
+        /**
+         * Epsilon closure of the states added to an already closed set,
+         * which is left unchanged
+         */
+        BitSet closure(BitSet states, BitSet closedBase) {
+            BitSet closed = (BitSet) closedBase.clone();
+            if (pending.length < size) {
+                pending = new int[size];
+            }
+            int top = 0;
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                if (!closed.get(s)) {
+                    closed.set(s);
+                    pending[top++] = s;
+                }
+            }
+            while (top > 0) {
+                int[] targets = epsilons[pending[--top]];
+                if (targets == null) {
+                    continue;
+                }
+                for (int target : targets) {
+                    if (!closed.get(target)) {
+                        closed.set(target);
+                        pending[top++] = target;
+                    }
+                }
+            }
+            return closed;
+        }
+    }
+
+    /**
+     * Parsed rule. build adds the rule to an NFA and returns its entry and
+     * exit states, or null once the NFA is full.
+     */
+    private interface Node {
+        int[] build(Nfa nfa);
+
+        /**
+         * The same rule for the name read from its last byte to its first
+         */
+        Node reverse();
+    }
+
+    private static final class Chars implements Node {
+        final BitSet set;
+
+        Chars(BitSet set) {
+            this.set = set;
+        }
+
+        static Chars of(char c) {
+            BitSet set = new BitSet(256);
+            set.set(c);
+            return new Chars(foldCase(set));
+        }
+
+        /**
+         * Names are matched lowercased, so a rule written with capitals
+         * must accept the lowercase letters too
+         */
+        static BitSet foldCase(BitSet set) {
+            for (int c = 'A'; c <= 'Z'; c++) {
+                if (set.get(c)) {
+                    set.set(c + ('a' - 'A'));
+                }
+            }
+            return set;
+        }
+
+        static Chars any() {
+            BitSet set = new BitSet(256);
+            set.set(0, 256);
+            return new Chars(set);
+        }
+
+        @Override
+        public Node reverse() {
+            return this;
+        }
+
+        @Override
+        public int[] build(Nfa nfa) {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            if (end < 0) {
+                return null;
+            }
+            nfa.chars[start] = set;
+            nfa.next[start] = end;
+            return new int[]{start, end};
+        }
+    }
+
+    private static final class Concat implements Node {
+        final List<Node> parts;
+
+        Concat(List<Node> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public Node reverse() {
+            List<Node> reversed = new ArrayList<>(parts.size());
+            for (int i = parts.size() - 1; i >= 0; i--) {
+                reversed.add(parts.get(i).reverse());
+            }
+            return new Concat(reversed);
+        }
+
+        @Override
+        public int[] build(Nfa nfa) {
+            int start = nfa.newState();
+            if (start < 0) {
+                return null;
+            }
+            int end = start;
+            for (Node part : parts) {
+                int[] fragment = part.build(nfa);
+                if (fragment == null) {
+                    return null;
+                }
+                nfa.epsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            return new int[]{start, end};
+        }
+    }
+
+    private static final class Alternation implements Node {
+        final List<Node> choices;
+
+        Alternation(List<Node> choices) {
+            this.choices = choices;
+        }
+
+        @Override
+        public Node reverse() {
+            List<Node> reversed = new ArrayList<>(choices.size());
+            for (Node choice : choices) {
+                reversed.add(choice.reverse());
+            }
+            return new Alternation(reversed);
+        }
+
+        @Override
+        public int[] build(Nfa nfa) {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            if (end < 0) {
+                return null;
+            }
+            for (Node choice : choices) {
+                int[] fragment = choice.build(nfa);
+                if (fragment == null) {
+                    return null;
+                }
+                nfa.epsilon(start, fragment[0]);
+                nfa.epsilon(fragment[1], end);
+            }
+            return new int[]{start, end};
+        }
+    }
+
+    private static final class Repeat implements Node {
+        final Node node;
+        final int min;
+        // -1 for unbounded
+        final int max;
+
+        Repeat(Node node, int min, int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public Node reverse() {
+            return new Repeat(node.reverse(), min, max);
+        }
+
+        @Override
+        public int[] build(Nfa nfa) {
+            int start = nfa.newState();
+            if (start < 0) {
+                return null;
+            }
+            int end = start;
+            // Required copies, then optional ones, each of which may stop
+            // the repetition
+            for (int i = 0; i < min; i++) {
+                int[] fragment = node.build(nfa);
+                if (fragment == null) {
+                    return null;
+                }
+                nfa.epsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            int exit = nfa.newState();
+            if (exit < 0) {
+                return null;
+            }
+            if (max < 0) {
+                int[] fragment = node.build(nfa);
+                if (fragment == null) {
+                    return null;
+                }
+                nfa.epsilon(end, fragment[0]);
+                nfa.epsilon(fragment[1], fragment[0]);
+                nfa.epsilon(fragment[1], exit);
+            } else {
+                for (int i = min; i < max; i++) {
+                    int[] fragment = node.build(nfa);
+                    if (fragment == null) {
+                        return null;
+                    }
+                    nfa.epsilon(end, exit);
+                    nfa.epsilon(end, fragment[0]);
+                    end = fragment[1];
+                }
+            }
+            nfa.epsilon(end, exit);
+            return new int[]{start, exit};
+        }
+    }
+
+    /**
+     * Recursive descent parser for the regular expression subset; throws
+     * IllegalArgumentException for anything outside it
+     */
+    private static final class RegexParser {
+        private final String pattern;
+        private int position;
+
+        RegexParser(String pattern) {
+            this.pattern = pattern;
+        }
+
+        Node parse() {
+            String body = pattern;
+            boolean anchoredStart = body.startsWith("^");
+            boolean anchoredEnd = body.endsWith("$") && !body.endsWith("\\$");
+            RegexParser inner = new RegexParser(body.substring(anchoredStart ? 1 : 0,
+                    body.length() - (anchoredEnd ? 1 : 0)));
+            Node expression = inner.parseAlternation();
+            if (inner.position != inner.pattern.length()) {
+                throw new IllegalArgumentException("Unbalanced ')'");
+            }
+
+            // Unanchored ends may be preceded or followed by anything
+            List<Node> sequence = new ArrayList<>();
+            if (!anchoredStart) {
+                sequence.add(new Repeat(Chars.any(), 0, -1));
+            }
+            sequence.add(expression);
+            if (!anchoredEnd) {
+                sequence.add(new Repeat(Chars.any(), 0, -1));
+            }
+            return new Concat(sequence);
+        }
+
+        private Node parseAlternation() {
+            List<Node> choices = new ArrayList<>();
+            choices.add(parseConcat());
+            while (position < pattern.length() && pattern.charAt(position) == '|') {
+                position++;
+                choices.add(parseConcat());
+            }
+            if (position < pattern.length() && pattern.charAt(position) != ')') {
+                throw new IllegalArgumentException("Unexpected '" + pattern.charAt(position) + "'");
+            }
+            return choices.size() == 1 ? choices.get(0) : new Alternation(choices);
+        }
+
+        private Node parseConcat() {
+            List<Node> parts = new ArrayList<>();
+            while (position < pattern.length()) {
+                char c = pattern.charAt(position);
+                if (c == '|' || c == ')') {
+                    break;
+                }
+                parts.add(parseRepeat());
+            }
+            return new Concat(parts);
+        }
+
+        private Node parseRepeat() {
+            Node atom = parseAtom();
+            while (position < pattern.length()) {
+                char c = pattern.charAt(position);
+                if (c == '*') {
+                    atom = new Repeat(atom, 0, -1);
+                } else if (c == '+') {
+                    atom = new Repeat(atom, 1, -1);
+                } else if (c == '?') {
+                    atom = new Repeat(atom, 0, 1);
+                } else if (c == '{') {
+                    atom = parseBounds(atom);
+                    continue;
+                } else {
+                    break;
+                }
+                position++;
+            }
+            return atom;
+        }
+
+        private Node parseBounds(Node atom) {
+            int close = pattern.indexOf('}', position);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed repetition");
+            }
+            String bounds = pattern.substring(position + 1, close);
+            position = close + 1;
+            int comma = bounds.indexOf(',');
+            try {
+                int min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+                int max = comma < 0 ? min
+                        : comma == bounds.length() - 1 ? -1 : Integer.parseInt(bounds.substring(comma + 1));
+                if (min < 0 || min > MAX_REPEAT || max > MAX_REPEAT || (max >= 0 && max < min)) {
+                    throw new IllegalArgumentException("Bad repetition {" + bounds + "}");
+                }
+                return new Repeat(atom, min, max);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad repetition {" + bounds + "}", e);
+            }
+        }
+
+        private Node parseAtom() {
+            char c = pattern.charAt(position++);
+            switch (c) {
+                case '(':
+                    if (pattern.startsWith("?:", position)) {
+                        position += 2;
+                    }
+                    Node group = parseAlternation();
+                    if (position >= pattern.length() || pattern.charAt(position) != ')') {
+                        throw new IllegalArgumentException("Unclosed group");
+                    }
+                    position++;
+                    return group;
+                case '[':
+                    return parseClass();
+                case '.':
+                    return Chars.any();
+                case '\\':
+                    return new Chars(parseEscape());
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new IllegalArgumentException("Nothing to repeat");
+                case '^':
+                case '$':
+                    throw new IllegalArgumentException("Anchors are only supported at the ends");
+                default:
+                    if (c > 0xFF) {
+                        throw new IllegalArgumentException("Not a name character");
+                    }
+                    return Chars.of(c);
+            }
+        }
+
+        private Node parseClass() {
+            boolean negated = position < pattern.length() && pattern.charAt(position) == '^';
+            if (negated) {
+                position++;
+            }
+            BitSet set = new BitSet(256);
+            boolean first = true;
+            while (true) {
+                if (position >= pattern.length()) {
+                    throw new IllegalArgumentException("Unclosed class");
+                }
+                char c = pattern.charAt(position++);
+                if (c == ']' && !first) {
+                    break;
+                }
+                first = false;
+                if (c == '\\') {
+                    set.or(parseEscape());
+                    continue;
+                }
+                if (position + 1 < pattern.length() && pattern.charAt(position) == '-'
+                        && pattern.charAt(position + 1) != ']') {
+                    char end = pattern.charAt(position + 1);
+                    position += 2;
+                    if (end < c || end > 0xFF) {
+                        throw new IllegalArgumentException("Bad range " + c + "-" + end);
+                    }
+                    set.set(c, end + 1);
+                } else if (c <= 0xFF) {
+                    set.set(c);
+                }
+            }
+            Chars.foldCase(set);
+            if (negated) {
+                set.flip(0, 256);
+            }
+            return new Chars(set);
+        }
+
+        private BitSet parseEscape() {
+            if (position >= pattern.length()) {
+                throw new IllegalArgumentException("Trailing backslash");
+            }
+            char c = pattern.charAt(position++);
+            BitSet set = new BitSet(256);
+            switch (c) {
+                case 'd':
+                case 'D':
+                    set.set('0', '9' + 1);
+                    break;
+                case 'w':
+                case 'W':
+                    set.set('a', 'z' + 1);
+                    set.set('A', 'Z' + 1);
+                    set.set('0', '9' + 1);
+                    set.set('_');
+                    break;
+                case 's':
+                case 'S':
+                    set.set(' ');
+                    set.set('\t');
+                    set.set('\n');
+                    set.set('\r');
+                    set.set('\f');
+                    break;
+                default:
+                    if (Character.isLetterOrDigit(c) || c > 0xFF) {
+                        throw new IllegalArgumentException("Unsupported escape \\" + c);
+                    }
+                    set.set(c);
+                    return set;
+            }
+            if (Character.isUpperCase(c)) {
+                set.flip(0, 256);
+            }
+            return set;
+        }
+    }
+}
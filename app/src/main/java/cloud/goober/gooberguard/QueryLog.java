@@ -0,0 +1,486 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded log of recent DNS queries and what became of them
+ *
+ * Packet threads add fixed-size records to a lock-free ring without
+ * allocating or blocking; when the ring is full the record is dropped and
+ * counted. A background thread drains the ring into an append-only,
+ * memory-mapped segment file. When the segment is full it is rotated out
+ * and a fresh one started, and the oldest segment is deleted, so the log
+ * never takes more than {@code segmentCount} segments of disk.
+ *
+ * Each record holds the time, a hash of the lowercased name, the query
+ * type, the verdict, the latency, the upstream that answered, and as much
+ * of the name as fits. Names too long to fit keep their rightmost labels.
+ * Lookups by domain match on the hash of the full name, so they find
+ * shortened names too.
+ */
+public class QueryLog implements Closeable {
+    private static final String TAG = "QueryLog";
+
+    static final String FILE_PREFIX = "querylog.";
+    static final int DEFAULT_RING_CAPACITY = 4096;
+    static final int DEFAULT_SEGMENT_RECORDS = 16384;
+    static final int DEFAULT_SEGMENT_COUNT = 2;
+    static final long DRAIN_INTERVAL_MS = 200;
+
+    // Record layout
+    static final int RECORD_SIZE = 128;
+    private static final int TIME = 0;
+    private static final int HASH = 8;
+    private static final int LATENCY = 16;
+    private static final int QTYPE = 20;
+    private static final int VERDICT = 22;
+    private static final int UPSTREAM = 23;
+    private static final int NAME_LENGTH = 24;
+    private static final int FLAGS = 25;
+    private static final int NAME = 26;
+    static final int MAX_NAME_BYTES = RECORD_SIZE - NAME;
+
+    private static final int FLAG_TRUNCATED = 1;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * What happened to a query
+     */
+    public enum Verdict {
+        /**
+         * Answered with the configured block response
+         */
+        BLOCKED,
+        /**
+         * Answered from the response cache
+         */
+        CACHED,
+        /**
+         * Answered by an upstream resolver
+         */
+        FORWARDED,
+        /**
+         * Sent upstream but never answered
+         */
+        FAILED
+    }
+
+    private static final Verdict[] VERDICTS = Verdict.values();
+
+    /**
+     * One logged query
+     */
+    public static final class Entry {
+        public final long timestampMillis;
+        /**
+         * Lowercased, without the trailing dot; only the rightmost labels
+         * if {@link #truncated}
+         */
+        public final String domain;
+        public final boolean truncated;
+        public final int qtype;
+        public final Verdict verdict;
+        public final int latencyMicros;
+        /**
+         * Index of the upstream that answered, or -1 if none did or it is
+         * not known
+         */
+        public final int upstream;
+
+        Entry(long timestampMillis, String domain, boolean truncated, int qtype, Verdict verdict,
+              int latencyMicros, int upstream) {
+            this.timestampMillis = timestampMillis;
+            this.domain = domain;
+            this.truncated = truncated;
+            this.qtype = qtype;
+            this.verdict = verdict;
+            this.latencyMicros = latencyMicros;
+            this.upstream = upstream;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d %s%s type %d %s %dus upstream %d", timestampMillis,
+                    truncated ? "..." : "", domain, qtype, verdict, latencyMicros, upstream);
+        }
+    }
+
+    private final File directory;
+    private final int segmentRecords;
+    private final int segmentCount;
+
+    // Ring of records; producers claim slots by sequence and publish each
+    // once written, the drain thread consumes them in order
+    private final int capacity;
+    private final int mask;
+    private final ByteBuffer ring;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    private final LongAdder recordedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+
+    // Owned by whoever holds the lock
+    private final ByteBuffer ringView;
+    private MappedByteBuffer segment;
+    private int writeIndex;
+    private long rotationCount;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    public QueryLog(File directory) {
+        this(directory, DEFAULT_RING_CAPACITY, DEFAULT_SEGMENT_RECORDS, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * @param ringCapacity   records that can wait to be written; rounded up
+     *                       to a power of two
+     * @param segmentRecords records per segment file
+     * @param segmentCount   segment files kept, the current one included
+     */
+    public QueryLog(File directory, int ringCapacity, int segmentRecords, int segmentCount) {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.segmentCount = Math.max(1, segmentCount);
+        capacity = Integer.highestOneBit(Math.max(2, ringCapacity - 1)) << 1;
+        mask = capacity - 1;
+        ring = ByteBuffer.allocate(capacity * RECORD_SIZE);
+        ringView = ring.duplicate();
+        published = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Map the current segment, picking up after the last record a previous
+     * run wrote, and start the drain thread
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        openSegment();
+        running = true;
+        thread = new Thread(this::run, "QueryLog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Log a query from its parsed question
+     */
+    public boolean record(DnsQuestion question, Verdict verdict, int latencyMicros, int upstream) {
+        return record(question.packet(), question.nameOffset(), question.nameLength(), question.qtype(),
+                verdict, latencyMicros, upstream);
+    }
+
+    /**
+     * Log a query whose wire-format name is at nameOffset in message. Safe
+     * on any thread; allocates nothing. Returns false if the ring was full
+     * and the record was dropped.
+     */
+    public boolean record(ByteBuffer message, int nameOffset, int nameLength, int qtype, Verdict verdict,
+                          int latencyMicros, int upstream) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= capacity) {
+                droppedCount.increment();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & mask);
+        int base = slot * RECORD_SIZE;
+        // Keep the rightmost labels of a name too long for the record
+        int start = 0;
+        while (nameLength - start > MAX_NAME_BYTES) {
+            start += 1 + (message.get(nameOffset + start) & 0xFF);
+        }
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < nameLength; i++) {
+            byte b = (byte) DomainTrie.toLowerAscii(message.get(nameOffset + i) & 0xFF);
+            hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+            if (i >= start) {
+                ring.put(base + NAME + i - start, b);
+            }
+        }
+        ring.putLong(base + TIME, System.currentTimeMillis());
+        ring.putLong(base + HASH, hash);
+        ring.putInt(base + LATENCY, Math.max(0, latencyMicros));
+        ring.putShort(base + QTYPE, (short) qtype);
+        ring.put(base + VERDICT, (byte) verdict.ordinal());
+        ring.put(base + UPSTREAM, (byte) upstream);
+        ring.put(base + NAME_LENGTH, (byte) (nameLength - start));
+        ring.put(base + FLAGS, (byte) (start > 0 ? FLAG_TRUNCATED : 0));
+        published.lazySet(slot, sequence + 1);
+        recordedCount.increment();
+
+        if (sequence - tail == capacity >> 1) {
+            // Half full; drain now rather than at the next interval
+            Thread drainer = thread;
+            if (drainer != null) {
+                LockSupport.unpark(drainer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The most recent queries, newest first
+     */
+    public List<Entry> recent(int count) {
+        return find(0, false, count);
+    }
+
+    /**
+     * The most recent queries for exactly this domain, ignoring case,
+     * newest first
+     */
+    public List<Entry> byDomain(String domain, int count) {
+        return find(hash(domain), true, count);
+    }
+
+    /**
+     * Records added since the log was created, dropped ones excluded
+     */
+    public long getRecordedCount() {
+        return recordedCount.sum();
+    }
+
+    /**
+     * Records dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Times a full segment was rotated out
+     */
+    public synchronized long getRotationCount() {
+        return rotationCount;
+    }
+
+    @Override
+    public void close() {
+        Thread drainer;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            drainer = thread;
+        }
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(DRAIN_INTERVAL_MS * 5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            drain();
+            segment.force();
+            segment = null;
+            thread = null;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            synchronized (this) {
+                if (segment != null) {
+                    drain();
+                }
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_INTERVAL_MS));
+        }
+    }
+
+    /**
+     * Copy every published record from the ring to the current segment
+     */
+    synchronized void drain() {
+        long next = tail;
+        while (published.get((int) (next & mask)) == next + 1) {
+            if (writeIndex == segmentRecords) {
+                try {
+                    rotate();
+                } catch (IOException e) {
+                    // Keep draining so producers are not stalled; these
+                    // records are lost
+                    AppLog.e(TAG, "Error rotating query log", e);
+                    droppedCount.increment();
+                    tail = ++next;
+                    continue;
+                }
+            }
+            int base = (int) (next & mask) * RECORD_SIZE;
+            ringView.limit(base + RECORD_SIZE).position(base);
+            segment.position(writeIndex * RECORD_SIZE);
+            segment.put(ringView);
+            writeIndex++;
+            tail = ++next;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        File file = segmentFile(0);
+        long size = (long) segmentRecords * RECORD_SIZE;
+        if (file.exists() && file.length() != size) {
+            // Written with another segment size; keep it as history
+            shiftSegments();
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(size);
+            segment = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        writeIndex = findEnd(segment);
+    }
+
+    private void rotate() throws IOException {
+        segment.force();
+        segment = null;
+        shiftSegments();
+        openSegment();
+        rotationCount++;
+    }
+
+    /**
+     * Rename each segment to the next older name, deleting the oldest
+     */
+    private void shiftSegments() throws IOException {
+        File oldest = segmentFile(segmentCount - 1);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Could not delete " + oldest);
+        }
+        for (int i = segmentCount - 2; i >= 0; i--) {
+            File from = segmentFile(i);
+            if (from.exists() && !from.renameTo(segmentFile(i + 1))) {
+                throw new IOException("Could not rename " + from);
+            }
+        }
+    }
+
+    private File segmentFile(int age) {
+        return new File(directory, FILE_PREFIX + age);
+    }
+
+    /**
+     * Index of the first empty record; records are written in order from
+     * the start, so the written ones form a prefix
+     */
+    private static int findEnd(ByteBuffer buffer) {
+        int low = 0;
+        int high = buffer.capacity() / RECORD_SIZE;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(middle * RECORD_SIZE + TIME) != 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private synchronized List<Entry> find(long hash, boolean matchHash, int count) {
+        List<Entry> found = new ArrayList<>();
+        if (segment == null || count <= 0) {
+            return found;
+        }
+        drain();
+        collect(segment, writeIndex, hash, matchHash, count, found);
+        for (int age = 1; age < segmentCount && found.size() < count; age++) {
+            File file = segmentFile(age);
+            if (!file.exists()) {
+                break;
+            }
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                ByteBuffer older = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+                collect(older, findEnd(older), hash, matchHash, count, found);
+            } catch (IOException e) {
+                AppLog.e(TAG, "Error reading " + file, e);
+                break;
+            }
+        }
+        return found;
+    }
+
+    private static void collect(ByteBuffer buffer, int end, long hash, boolean matchHash, int count,
+                                List<Entry> found) {
+        for (int i = end - 1; i >= 0 && found.size() < count; i--) {
+            int base = i * RECORD_SIZE;
+            if (matchHash && buffer.getLong(base + HASH) != hash) {
+                continue;
+            }
+            int verdict = buffer.get(base + VERDICT);
+            found.add(new Entry(buffer.getLong(base + TIME),
+                    domainName(buffer, base + NAME, buffer.get(base + NAME_LENGTH) & 0xFF),
+                    (buffer.get(base + FLAGS) & FLAG_TRUNCATED) != 0,
+                    buffer.getShort(base + QTYPE) & 0xFFFF,
+                    verdict >= 0 && verdict < VERDICTS.length ? VERDICTS[verdict] : Verdict.FAILED,
+                    buffer.getInt(base + LATENCY),
+                    buffer.get(base + UPSTREAM)));
+        }
+    }
+
+    /**
+     * Dotted form of a wire-format name
+     */
+    private static String domainName(ByteBuffer buffer, int offset, int length) {
+        StringBuilder name = new StringBuilder(length);
+        int position = 0;
+        while (position < length) {
+            int label = buffer.get(offset + position) & 0xFF;
+            if (label == 0 || position + 1 + label > length) {
+                break;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            for (int i = 1; i <= label; i++) {
+                name.append((char) (buffer.get(offset + position + i) & 0xFF));
+            }
+            position += 1 + label;
+        }
+        return name.toString();
+    }
+
+    /**
+     * Hash of a domain's lowercased wire-format name, as records store it
+     */
+    static long hash(String domain) {
+        String name = domain.endsWith(".") ? domain.substring(0, domain.length() - 1) : domain;
+        long hash = FNV_OFFSET;
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.", -1)) {
+                hash = (hash ^ label.length()) * FNV_PRIME;
+                for (int i = 0; i < label.length(); i++) {
+                    int b = DomainTrie.toLowerAscii(label.charAt(i) & 0xFF);
+                    hash = (hash ^ b) * FNV_PRIME;
+                }
+            }
+        }
+        // Terminating root label
+        return (hash ^ 0) * FNV_PRIME;
+    }
+}
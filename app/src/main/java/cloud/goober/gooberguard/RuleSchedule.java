@@ -0,0 +1,210 @@
+package cloud.goober.gooberguard;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.TextStyle;
+import java.util.Locale;
+
+/**
+ * A weekly window during which a rule group applies, such as
+ * "Mon-Fri 09:00-17:00".
+ *
+ * Days are a comma separated list of three letter day names and ranges
+ * ("Mon,Wed,Fri", "Sat-Sun"), or "daily". A window ending at or before its
+ * start runs past midnight into the next day, so "Fri 22:00-06:00" covers
+ * Friday night into Saturday morning and "Sun 00:00-00:00" the whole of
+ * Sunday. Times are whole minutes of local time; "24:00" ends a window at
+ * midnight. Immutable.
+ */
+public final class RuleSchedule {
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int ALL_DAYS = 0x7F;
+
+    // Bit n set for DayOfWeek.of(n + 1)
+    private final int days;
+    private final int startMinute;
+    private final int endMinute;
+
+    /**
+     * @param days        bit n set for DayOfWeek.of(n + 1)
+     * @param startMinute minutes after midnight, 0 to 1439
+     * @param endMinute   minutes after midnight, 0 to 1440; at or before
+     *                    the start to end the next day
+     */
+    public RuleSchedule(int days, int startMinute, int endMinute) {
+        if ((days & ~ALL_DAYS) != 0 || startMinute < 0 || startMinute >= MINUTES_PER_DAY
+                || endMinute < 0 || endMinute > MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("Bad schedule: " + days + " " + startMinute + "-" + endMinute);
+        }
+        this.days = days;
+        this.startMinute = startMinute;
+        this.endMinute = endMinute;
+    }
+
+    /**
+     * Parse a schedule written as by {@link #toString()}
+     *
+     * @throws IllegalArgumentException if it is malformed
+     */
+    public static RuleSchedule parse(String text) {
+        String[] fields = text.trim().split("\\s+");
+        if (fields.length != 2) {
+            throw new IllegalArgumentException("Expected days and times: " + text);
+        }
+        String[] times = fields[1].split("-");
+        if (times.length != 2) {
+            throw new IllegalArgumentException("Expected start-end: " + fields[1]);
+        }
+        return new RuleSchedule(parseDays(fields[0]), parseMinute(times[0]), parseMinute(times[1]));
+    }
+
+    /**
+     * Whether the window covers the given local time
+     */
+    public boolean isActive(LocalDateTime time) {
+        int minute = time.getHour() * 60 + time.getMinute();
+        if (hasDay(time.getDayOfWeek())) {
+            int end = endMinute > startMinute ? endMinute : MINUTES_PER_DAY;
+            if (minute >= startMinute && minute < end) {
+                return true;
+            }
+        }
+        // The tail of a window that started the day before
+        return endMinute <= startMinute && minute < endMinute && hasDay(time.getDayOfWeek().minus(1));
+    }
+
+    /**
+     * The first window start or end after the given time, or null if the
+     * schedule has no days. The window may be in the same state on both
+     * sides, where one day's window ends as the next one starts.
+     */
+    public LocalDateTime nextChange(LocalDateTime after) {
+        LocalDateTime next = null;
+        // Yesterday's window may still be open; next week's is the latest
+        // that can start before the same time a week on
+        LocalDate today = after.toLocalDate();
+        for (int offset = -1; offset <= 7; offset++) {
+            LocalDate day = today.plusDays(offset);
+            if (!hasDay(day.getDayOfWeek())) {
+                continue;
+            }
+            LocalDateTime start = day.atStartOfDay().plusMinutes(startMinute);
+            LocalDateTime end = day.atStartOfDay().plusMinutes(
+                    endMinute > startMinute ? endMinute : endMinute + MINUTES_PER_DAY);
+            next = earliestAfter(after, next, start);
+            next = earliestAfter(after, next, end);
+        }
+        return next;
+    }
+
+    public int getDays() {
+        return days;
+    }
+
+    public int getStartMinute() {
+        return startMinute;
+    }
+
+    public int getEndMinute() {
+        return endMinute;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        if (days == ALL_DAYS) {
+            text.append("daily");
+        } else {
+            for (DayOfWeek day : DayOfWeek.values()) {
+                if (hasDay(day)) {
+                    if (text.length() > 0) {
+                        text.append(',');
+                    }
+                    text.append(day.getDisplayName(TextStyle.SHORT, Locale.ROOT));
+                }
+            }
+        }
+        return text.append(' ').append(formatMinute(startMinute))
+                .append('-').append(formatMinute(endMinute)).toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RuleSchedule)) {
+            return false;
+        }
+        RuleSchedule other = (RuleSchedule) o;
+        return days == other.days && startMinute == other.startMinute && endMinute == other.endMinute;
+    }
+
+    @Override
+    public int hashCode() {
+        return (days * 31 + startMinute) * 31 + endMinute;
+    }
+
+    private boolean hasDay(DayOfWeek day) {
+        return (days & (1 << (day.getValue() - 1))) != 0;
+    }
+
+    private static LocalDateTime earliestAfter(LocalDateTime after, LocalDateTime best, LocalDateTime candidate) {
+        if (!candidate.isAfter(after)) {
+            return best;
+        }
+        return best == null || candidate.isBefore(best) ? candidate : best;
+    }
+
+    private static int parseDays(String text) {
+        if (text.equalsIgnoreCase("daily")) {
+            return ALL_DAYS;
+        }
+        int days = 0;
+        for (String item : text.split(",")) {
+            String[] range = item.split("-");
+            if (range.length == 1) {
+                days |= 1 << (parseDay(range[0]).getValue() - 1);
+            } else if (range.length == 2) {
+                // Ranges may wrap, as in "Fri-Mon"
+                DayOfWeek day = parseDay(range[0]);
+                DayOfWeek last = parseDay(range[1]);
+                days |= 1 << (day.getValue() - 1);
+                while (day != last) {
+                    day = day.plus(1);
+                    days |= 1 << (day.getValue() - 1);
+                }
+            } else {
+                throw new IllegalArgumentException("Bad day range: " + item);
+            }
+        }
+        return days;
+    }
+
+    private static DayOfWeek parseDay(String text) {
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if (day.getDisplayName(TextStyle.SHORT, Locale.ROOT).equalsIgnoreCase(text)) {
+                return day;
+            }
+        }
+        throw new IllegalArgumentException("Unknown day: " + text);
+    }
+
+    private static int parseMinute(String text) {
+        String[] parts = text.split(":");
+        try {
+            if (parts.length == 2 && parts[0].length() <= 2 && parts[1].length() == 2) {
+                int hour = Integer.parseInt(parts[0]);
+                int minute = Integer.parseInt(parts[1]);
+                if (hour >= 0 && minute >= 0 && minute < 60 && hour * 60 + minute <= MINUTES_PER_DAY) {
+                    return hour * 60 + minute;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Bad time: " + text);
+    }
+
+    private static String formatMinute(int minute) {
+        return String.format(Locale.ROOT, "%02d:%02d", minute / 60, minute % 60);
+    }
+}
@@ -0,0 +1,124 @@
+package cloud.goober.gooberguard;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Named rule groups that only apply during their {@link RuleSchedule},
+ * such as "work: block instagram.com Mon-Fri 09:00-17:00".
+ *
+ * Schedules are never looked at per query. Instead the groups active in
+ * an interval between two schedule changes are folded into one blocklist
+ * snapshot ahead of time, see {@link #apply(Blocklist, boolean[])}, and the
+ * snapshot is swapped in when the interval begins. Matching a snapshot
+ * costs the same as matching one without schedules. Immutable.
+ */
+public final class ScheduledRules {
+    private static final ScheduledRules EMPTY = new ScheduledRules(Collections.emptyList());
+
+    /**
+     * A group's schedule and its block and allow entries and rules, the
+     * latter as stored, "@@" prefix and all
+     */
+    public static final class Group {
+        final String name;
+        final RuleSchedule schedule;
+        final List<String> entries;
+
+        public Group(String name, RuleSchedule schedule, List<String> entries) {
+            this.name = name;
+            this.schedule = schedule;
+            this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public RuleSchedule getSchedule() {
+            return schedule;
+        }
+    }
+
+    private final List<Group> groups;
+
+    private ScheduledRules(List<Group> groups) {
+        this.groups = groups;
+    }
+
+    public static ScheduledRules empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param groups groups with no entries are left out
+     */
+    public static ScheduledRules of(List<Group> groups) {
+        List<Group> kept = new ArrayList<>();
+        for (Group group : groups) {
+            if (!group.entries.isEmpty()) {
+                kept.add(group);
+            }
+        }
+        return kept.isEmpty() ? EMPTY : new ScheduledRules(Collections.unmodifiableList(kept));
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Which groups apply at the given local time, in the order of
+     * {@link #getGroups()}
+     */
+    public boolean[] activeAt(LocalDateTime time) {
+        boolean[] active = new boolean[groups.size()];
+        for (int i = 0; i < active.length; i++) {
+            active[i] = groups.get(i).schedule.isActive(time);
+        }
+        return active;
+    }
+
+    /**
+     * The first time after the given one at which a group may start or
+     * stop applying, or null if none ever will
+     */
+    public LocalDateTime nextChange(LocalDateTime after) {
+        LocalDateTime next = null;
+        for (Group group : groups) {
+            LocalDateTime change = group.schedule.nextChange(after);
+            if (change != null && (next == null || change.isBefore(next))) {
+                next = change;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * The base list with the entries of the groups active at the given
+     * local time folded in
+     */
+    public Blocklist apply(Blocklist base, LocalDateTime time) {
+        return apply(base, activeAt(time));
+    }
+
+    /**
+     * The base list with the entries of the given groups folded in, or the
+     * base list itself if none are active
+     */
+    public Blocklist apply(Blocklist base, boolean[] active) {
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < active.length; i++) {
+            if (active[i]) {
+                entries.addAll(groups.get(i).entries);
+            }
+        }
+        return entries.isEmpty() ? base : base.withEntries(entries);
+    }
+}
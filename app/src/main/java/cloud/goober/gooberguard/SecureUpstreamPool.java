@@ -0,0 +1,786 @@
+package cloud.goober.gooberguard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Sends DNS queries to the upstream resolvers over TLS connections; the
+ * base of {@link DotUpstreamPool} and {@link DohUpstreamPool}, which add
+ * the framing
+ *
+ * A few connections to each upstream are kept open, protected from the
+ * VPN, and each carries many queries at once. Another is opened only when
+ * the open ones are full, since every one costs a handshake. All
+ * connections share one SSLContext, whose client session cache lets a
+ * reconnect resume the last TLS session instead of doing a full handshake.
+ *
+ * Connections are kept warm: an upstream that was queried recently and has
+ * lost its connection, say to the server's idle timeout, is reconnected in
+ * the background, and subclasses may ping connections that sit idle. A
+ * connection unused for {@link #IDLE_TIMEOUT_MS} is closed.
+ *
+ * Upstreams are picked by an {@link UpstreamTracker}; refused connections,
+ * failed handshakes, error replies and timeouts count against them. A query
+ * whose connection drops is retried once. Each connection has a thread
+ * that connects and reads; queries are written, and timeouts and
+ * keepalives run, on one pool thread. {@link #query} may be called from
+ * any thread.
+ */
+public abstract class SecureUpstreamPool implements DnsUpstream {
+    private static final String TAG = "SecureUpstreamPool";
+
+    static final int DEFAULT_CONNECTIONS_PER_UPSTREAM = 2;
+    static final long DEFAULT_TIMEOUT_MS = 5000;
+    static final long CONNECT_TIMEOUT_MS = 5000;
+    static final long KEEPALIVE_INTERVAL_MS = 15_000;
+    static final long IDLE_TIMEOUT_MS = 120_000;
+    static final int MAX_PENDING = 1024;
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final long TICK_MS = 250;
+
+    /**
+     * An encrypted resolver: where to connect and the name its certificate
+     * must carry
+     */
+    public static final class Endpoint {
+        public final InetSocketAddress address;
+        /**
+         * Checked against the certificate and sent as SNI
+         */
+        public final String serverName;
+        /**
+         * Request path, used by DNS over HTTPS only
+         */
+        public final String path;
+
+        public Endpoint(InetSocketAddress address, String serverName, String path) {
+            this.address = address;
+            this.serverName = serverName;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Endpoint)) {
+                return false;
+            }
+            Endpoint other = (Endpoint) o;
+            return address.equals(other.address) && serverName.equals(other.serverName)
+                    && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * address.hashCode() + serverName.hashCode()) + path.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return serverName + " (" + address + ")";
+        }
+    }
+
+    final List<Endpoint> endpoints;
+    private final UpstreamTracker upstreams;
+    private final SSLContext context;
+    private final TcpUpstreamPool.SocketProtector protector;
+    private final int connectionsPerUpstream;
+    private final long timeoutNanos;
+
+    private final Queue<Request> outgoing = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // Guarded by this
+    private final List<List<Connection>> connections = new ArrayList<>();
+    private final long[] lastQueried;
+    private final long[] lastWarmed;
+    private final byte[][] lastSessionIds;
+
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong answeredCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong resumedCount = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+    private volatile boolean running;
+
+    SecureUpstreamPool(List<Endpoint> endpoints, SSLContext context, TcpUpstreamPool.SocketProtector protector,
+                       int connectionsPerUpstream, long timeoutMillis) {
+        List<InetSocketAddress> addresses = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            addresses.add(endpoint.address);
+        }
+        this.endpoints = new ArrayList<>(endpoints);
+        this.upstreams = new UpstreamTracker(addresses);
+        this.context = context;
+        this.protector = protector;
+        this.connectionsPerUpstream = Math.max(1, connectionsPerUpstream);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (int i = 0; i < endpoints.size(); i++) {
+            connections.add(new ArrayList<>());
+        }
+        lastQueried = new long[endpoints.size()];
+        lastWarmed = new long[endpoints.size()];
+        lastSessionIds = new byte[endpoints.size()][];
+    }
+
+    /**
+     * A TLS context of its own, trusting the system's certificate
+     * authorities, so that its session cache holds only these upstreams
+     */
+    static SSLContext defaultContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("TLS is not available", e);
+        }
+    }
+
+    /**
+     * ALPN protocol the server must agree to, or null for none
+     */
+    String applicationProtocol() {
+        return null;
+    }
+
+    /**
+     * A connection to the upstream, not yet connected
+     */
+    abstract Connection newConnection(int upstream, long now);
+
+    /**
+     * Start the pool thread and connect to every upstream in the
+     * background, so the first queries find a connection ready
+     */
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, getClass().getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        long now = System.nanoTime();
+        for (int i = 0; i < endpoints.size(); i++) {
+            lastQueried[i] = now;
+            lastWarmed[i] = now - TimeUnit.MILLISECONDS.toNanos(KEEPALIVE_INTERVAL_MS);
+        }
+        executor.scheduleWithFixedDelay(this::tick, 0, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean query(byte[] message, int offset, int length, Callback callback) {
+        if (!running || length < 12 || length > MAX_MESSAGE_SIZE) {
+            return false;
+        }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            return false;
+        }
+        Request request = new Request();
+        request.message = Arrays.copyOfRange(message, offset, offset + length);
+        request.clientId = ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+        request.callback = callback;
+        queryCount.incrementAndGet();
+        outgoing.add(request);
+        execute(this::sendOutgoing);
+        return true;
+    }
+
+    @Override
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    @Override
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    @Override
+    public long getAnsweredCount() {
+        return answeredCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    /**
+     * Handshakes that resumed the upstream's previous TLS session, as far as
+     * the session ID shows; TLS 1.3 resumptions are not recognised
+     */
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    @Override
+    public List<UpstreamTracker.Stats> getUpstreamStats() {
+        return upstreams.getStats();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(TICK_MS * 4, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Connection> closing = new ArrayList<>();
+        List<Request> orphans = new ArrayList<>();
+        synchronized (this) {
+            for (List<Connection> open : connections) {
+                for (Connection connection : open) {
+                    connection.closed = true;
+                    orphans.addAll(connection.inFlight.values());
+                    orphans.addAll(connection.waiting);
+                    connection.inFlight.clear();
+                    connection.waiting.clear();
+                    closing.add(connection);
+                }
+                open.clear();
+            }
+        }
+        for (Connection connection : closing) {
+            connection.closeSocket();
+        }
+        Request request;
+        while ((request = outgoing.poll()) != null) {
+            orphans.add(request);
+        }
+        for (Request orphan : orphans) {
+            fail(orphan);
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closing; whatever is left in outgoing is failed by close()
+        }
+    }
+
+    private void sendOutgoing() {
+        Request request;
+        while (running && (request = outgoing.poll()) != null) {
+            dispatch(request);
+        }
+    }
+
+    /**
+     * Send a request on a connection to the upstream the tracker picks, or
+     * hold it until that connection's handshake is done
+     */
+    private void dispatch(Request request) {
+        request.attempts++;
+        long now = System.nanoTime();
+        int upstream = upstreams.select(now);
+        Connection connection;
+        boolean ready;
+        synchronized (this) {
+            lastQueried[upstream] = now;
+            connection = pickConnection(upstream, request, now);
+            if (connection == null) {
+                ready = false;
+            } else {
+                request.upstream = upstream;
+                request.dispatchedAt = now;
+                connection.lastActive = now;
+                if (connection.used++ > 0) {
+                    reusedCount.incrementAndGet();
+                }
+                ready = connection.ready;
+                if (ready) {
+                    register(connection, request, now);
+                } else {
+                    connection.waiting.add(request);
+                }
+            }
+        }
+        if (connection == null) {
+            // Every connection the upstream may have is full
+            fail(request);
+        } else if (ready) {
+            transmit(connection, request);
+        }
+    }
+
+    /**
+     * The least loaded open connection to the upstream with room for the
+     * request, opening another if none has and the limit allows
+     */
+    private Connection pickConnection(int upstream, Request request, long now) {
+        List<Connection> open = connections.get(upstream);
+        Connection best = null;
+        int usable = 0;
+        for (Connection connection : open) {
+            if (connection.draining) {
+                continue;
+            }
+            usable++;
+            if (connection.hasRoom(request) && (best == null || connection.load() < best.load())) {
+                best = connection;
+            }
+        }
+        if (best == null && usable < connectionsPerUpstream) {
+            best = openConnection(upstream, now);
+        }
+        return best;
+    }
+
+    private Connection openConnection(int upstream, long now) {
+        Connection connection = newConnection(upstream, now);
+        connections.get(upstream).add(connection);
+        connectionCount.incrementAndGet();
+        Thread thread = new Thread(connection::run, getClass().getSimpleName() + "Connection");
+        thread.setDaemon(true);
+        thread.start();
+        return connection;
+    }
+
+    private void register(Connection connection, Request request, long now) {
+        request.key = connection.register(request);
+        request.sentAt = now;
+        connection.inFlight.put(request.key, request);
+    }
+
+    private void transmit(Connection connection, Request request) {
+        try {
+            connection.send(request, request.key);
+        } catch (IOException e) {
+            lost(connection, false);
+        }
+    }
+
+    /**
+     * Called on a connection's thread once its handshake is done: send what
+     * was waiting for it
+     */
+    private void connected(Connection connection) {
+        List<Request> waiting;
+        synchronized (this) {
+            connection.ready = true;
+            waiting = new ArrayList<>(connection.waiting);
+            connection.waiting.clear();
+            long now = System.nanoTime();
+            for (Request request : waiting) {
+                register(connection, request, now);
+            }
+        }
+        if (!waiting.isEmpty()) {
+            execute(() -> {
+                for (Request request : waiting) {
+                    transmit(connection, request);
+                }
+            });
+        }
+    }
+
+    /**
+     * Hand a reply to its caller. Called on the connection's thread.
+     */
+    void complete(Connection connection, int key, byte[] response) {
+        long now = System.nanoTime();
+        Request request;
+        synchronized (this) {
+            request = connection.inFlight.remove(key);
+            connection.lastActive = now;
+        }
+        if (request == null) {
+            // Late reply for a query that timed out
+            return;
+        }
+        upstreams.recordSuccess(connection.upstream, now - request.sentAt);
+        response[0] = (byte) (request.clientId >> 8);
+        response[1] = (byte) request.clientId;
+        pending.decrementAndGet();
+        answeredCount.incrementAndGet();
+        request.callback.onResponse(response);
+    }
+
+    /**
+     * The upstream turned down one query without dropping the connection;
+     * give it another try
+     */
+    void refused(Connection connection, int key) {
+        Request request;
+        synchronized (this) {
+            request = connection.inFlight.remove(key);
+        }
+        if (request != null) {
+            upstreams.recordFailure(connection.upstream, System.nanoTime());
+            retryOrFail(request);
+        }
+    }
+
+    /**
+     * The upstream will not process one query, through no fault of its own,
+     * as when it is shutting the connection down; give it another try
+     */
+    void retry(Connection connection, int key) {
+        Request request;
+        synchronized (this) {
+            request = connection.inFlight.remove(key);
+        }
+        if (request != null) {
+            retryOrFail(request);
+        }
+    }
+
+    /**
+     * Close a broken connection and give its queries another try
+     */
+    void lost(Connection connection, boolean connectFailed) {
+        List<Request> orphans = new ArrayList<>();
+        boolean wasClosed;
+        synchronized (this) {
+            connections.get(connection.upstream).remove(connection);
+            wasClosed = connection.closed;
+            connection.closed = true;
+            orphans.addAll(connection.inFlight.values());
+            orphans.addAll(connection.waiting);
+            connection.inFlight.clear();
+            connection.waiting.clear();
+        }
+        connection.closeSocket();
+        if (connectFailed && !wasClosed) {
+            upstreams.recordFailure(connection.upstream, System.nanoTime());
+        }
+        for (Request request : orphans) {
+            retryOrFail(request);
+        }
+    }
+
+    private void retryOrFail(Request request) {
+        if (request.attempts < MAX_ATTEMPTS && running) {
+            outgoing.add(request);
+            execute(this::sendOutgoing);
+        } else {
+            fail(request);
+        }
+    }
+
+    private void fail(Request request) {
+        pending.decrementAndGet();
+        failedCount.incrementAndGet();
+        request.callback.onFailure();
+    }
+
+    /**
+     * Time out queries and handshakes, close idle connections, ping quiet
+     * ones and reconnect upstreams that have lost theirs
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+        long keepalive = TimeUnit.MILLISECONDS.toNanos(KEEPALIVE_INTERVAL_MS);
+        List<Request> expired = new ArrayList<>();
+        List<Connection> stalled = new ArrayList<>();
+        List<Connection> closing = new ArrayList<>();
+        List<Connection> pinging = new ArrayList<>();
+        synchronized (this) {
+            for (int upstream = 0; upstream < connections.size(); upstream++) {
+                List<Connection> open = connections.get(upstream);
+                for (Connection connection : new ArrayList<>(open)) {
+                    if (!connection.ready) {
+                        if (now - connection.openedAt >= TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS)) {
+                            stalled.add(connection);
+                        }
+                        continue;
+                    }
+                    Iterator<Request> requests = connection.inFlight.values().iterator();
+                    while (requests.hasNext()) {
+                        Request request = requests.next();
+                        if (now - request.dispatchedAt >= timeoutNanos) {
+                            requests.remove();
+                            expired.add(request);
+                        }
+                    }
+                    if (connection.load() > 0) {
+                        continue;
+                    }
+                    if (connection.draining || now - connection.lastActive >= idle) {
+                        open.remove(connection);
+                        connection.closed = true;
+                        closing.add(connection);
+                    } else if (now - connection.lastActive >= keepalive
+                            && now - connection.lastPinged >= keepalive) {
+                        connection.lastPinged = now;
+                        pinging.add(connection);
+                    }
+                }
+
+                if (running && open.isEmpty() && now - lastQueried[upstream] < idle
+                        && now - lastWarmed[upstream] >= keepalive
+                        && upstreams.state(upstream) == UpstreamTracker.State.CLOSED) {
+                    lastWarmed[upstream] = now;
+                    openConnection(upstream, now);
+                }
+            }
+        }
+
+        for (Request request : expired) {
+            upstreams.recordFailure(request.upstream, now);
+            fail(request);
+        }
+        for (Connection connection : stalled) {
+            lost(connection, true);
+        }
+        for (Connection connection : closing) {
+            connection.closeSocket();
+        }
+        for (Connection connection : pinging) {
+            try {
+                connection.keepAlive();
+            } catch (IOException e) {
+                lost(connection, false);
+            }
+        }
+    }
+
+    /**
+     * Count a handshake as resumed if it kept the upstream's last session
+     */
+    private void handshakeDone(int upstream, SSLSession session) {
+        byte[] id = session.getId();
+        synchronized (this) {
+            if (id != null && id.length > 0 && Arrays.equals(id, lastSessionIds[upstream])) {
+                resumedCount.incrementAndGet();
+            }
+            lastSessionIds[upstream] = id;
+        }
+    }
+
+    static final class Request {
+        byte[] message;
+        int clientId;
+        Callback callback;
+        int attempts;
+        int upstream;
+        // ID or stream the request is sent under on its connection
+        int key;
+        long dispatchedAt;
+        long sentAt;
+    }
+
+    /**
+     * One TLS connection to an upstream. Subclasses frame the queries.
+     */
+    abstract class Connection {
+        final int upstream;
+        final long openedAt;
+        // Guarded by the pool
+        final Map<Integer, Request> inFlight = new HashMap<>();
+        final List<Request> waiting = new ArrayList<>();
+        boolean ready;
+        boolean closed;
+        // Takes no new queries, but finishes the ones it has
+        boolean draining;
+        long lastActive;
+        long lastPinged;
+        int used;
+
+        private Socket plain;
+        private SSLSocket socket;
+        InputStream in;
+        private OutputStream out;
+
+        Connection(int upstream, long now) {
+            this.upstream = upstream;
+            this.openedAt = now;
+            this.lastActive = now;
+            this.lastPinged = now;
+        }
+
+        int load() {
+            return inFlight.size() + waiting.size();
+        }
+
+        /**
+         * Whether the request may be sent on this connection now. Called
+         * with the pool locked.
+         */
+        abstract boolean hasRoom(Request request);
+
+        /**
+         * Choose the ID or stream the request goes out under. Called with
+         * the pool locked.
+         */
+        abstract int register(Request request);
+
+        /**
+         * Write the request under the key register gave it. Called on the
+         * pool thread.
+         */
+        abstract void send(Request request, int key) throws IOException;
+
+        /**
+         * Read replies until the connection closes
+         */
+        abstract void read() throws IOException;
+
+        /**
+         * Anything to send once the handshake is done, before any query
+         */
+        void open() throws IOException {
+        }
+
+        /**
+         * Keep a quiet connection from being closed by the server or a
+         * middlebox. Called on the pool thread.
+         */
+        void keepAlive() throws IOException {
+        }
+
+        /**
+         * Write and flush; safe from the pool and connection threads
+         */
+        final void write(byte[] data, int offset, int length) throws IOException {
+            synchronized (this) {
+                out.write(data, offset, length);
+                out.flush();
+            }
+        }
+
+        final void run() {
+            try {
+                connect();
+            } catch (IOException | IllegalArgumentException e) {
+                if (running) {
+                    AppLog.w(TAG, "Could not connect to " + endpoints.get(upstream), e);
+                }
+                lost(this, true);
+                return;
+            }
+            connected(this);
+            try {
+                read();
+            } catch (IOException e) {
+                // Closed by the server, by us, or broken
+            }
+            lost(this, false);
+        }
+
+        private void connect() throws IOException {
+            Endpoint endpoint = endpoints.get(upstream);
+            Socket plain = new Socket();
+            synchronized (SecureUpstreamPool.this) {
+                if (closed) {
+                    throw new IOException("Connection closed before it was opened");
+                }
+                this.plain = plain;
+            }
+            if (!protector.protect(plain)) {
+                throw new IOException("Could not protect upstream DNS socket");
+            }
+            plain.connect(endpoint.address, (int) CONNECT_TIMEOUT_MS);
+            plain.setTcpNoDelay(true);
+            plain.setSoTimeout((int) CONNECT_TIMEOUT_MS);
+
+            // Created with the upstream's name and port so the session cache
+            // can offer the last session for resumption
+            SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(plain,
+                    endpoint.serverName, endpoint.address.getPort(), true);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            parameters.setServerNames(Collections.singletonList(new SNIHostName(endpoint.serverName)));
+            String protocol = applicationProtocol();
+            if (protocol != null) {
+                parameters.setApplicationProtocols(new String[]{protocol});
+            }
+            socket.setSSLParameters(parameters);
+            synchronized (SecureUpstreamPool.this) {
+                if (closed) {
+                    socket.close();
+                    throw new IOException("Connection closed during connect");
+                }
+                this.socket = socket;
+            }
+            socket.startHandshake();
+            if (protocol != null && !protocol.equals(socket.getApplicationProtocol())) {
+                throw new IOException(endpoint.serverName + " does not speak " + protocol);
+            }
+            handshakeDone(upstream, socket.getSession());
+
+            socket.setSoTimeout(0);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            open();
+        }
+
+        final void closeSocket() {
+            Socket socket;
+            Socket plain;
+            synchronized (SecureUpstreamPool.this) {
+                closed = true;
+                socket = this.socket;
+                plain = this.plain;
+            }
+            try {
+                if (socket != null) {
+                    socket.close();
+                } else if (plain != null) {
+                    plain.close();
+                }
+            } catch (IOException e) {
+                AppLog.e(TAG, "Error closing upstream connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package cloud.goober.gooberguard;
+
+/**
+ * Blocked Bloom filter over the suffixes of a {@link DomainTrie}'s entries,
+ * checked before the trie so that names with no entry on their path, which
+ * are most queries, are turned away without walking it.
+ *
+ * Each entry is hashed from its label hashes, the same ones
+ * {@link DnsQuestion} records while parsing, so probing a question needs no
+ * pass over its bytes. Every hash lands in one 64-byte block and sets its
+ * bits there, so a probe touches a single cache line however large the
+ * list is. A "no" is definite; a "maybe" happens at about the configured
+ * false positive rate and falls through to the trie.
+ *
+ * Immutable and safe to share between threads.
+ */
+public final class SuffixFilter {
+    /**
+     * False positive rate used when none is configured
+     */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    static final double MIN_FALSE_POSITIVE_RATE = 0.0001;
+    static final double MAX_FALSE_POSITIVE_RATE = 0.5;
+
+    private static final int BLOCK_LONGS = 8;
+    private static final int BLOCK_BITS = BLOCK_LONGS * 64;
+    private static final int MAX_HASHES = 16;
+    // Splitting bits into blocks costs some accuracy; this much extra space
+    // keeps the measured rate near the requested one
+    private static final double BLOCK_OVERHEAD = 1.2;
+
+    private static final long SUFFIX_SEED = 0x6A09E667F3BCC909L;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private final long[] bits;
+    private final int blockCount;
+    private final int hashCount;
+    private final int entryCount;
+    private final double falsePositiveRate;
+
+    private SuffixFilter(long[] bits, int hashCount, int entryCount, double falsePositiveRate) {
+        this.bits = bits;
+        this.blockCount = bits.length / BLOCK_LONGS;
+        this.hashCount = hashCount;
+        this.entryCount = entryCount;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Build a filter holding every block and allow entry of the trie
+     *
+     * @param falsePositiveRate share of names with no entry that the filter
+     *                          still passes to the trie, clamped to
+     *                          [{@link #MIN_FALSE_POSITIVE_RATE},
+     *                          {@link #MAX_FALSE_POSITIVE_RATE}]
+     */
+    public static SuffixFilter build(DomainTrie trie, double falsePositiveRate) {
+        double rate = Math.max(MIN_FALSE_POSITIVE_RATE, Math.min(MAX_FALSE_POSITIVE_RATE, falsePositiveRate));
+        long[] hashes = trie.entrySuffixHashes();
+
+        // Optimal Bloom sizing: -ln(p) / ln(2)^2 bits and ln(2) bits per
+        // entry per hash
+        double bitsPerEntry = -Math.log(rate) / (Math.log(2) * Math.log(2)) * BLOCK_OVERHEAD;
+        int hashCount = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerEntry / BLOCK_OVERHEAD * Math.log(2))));
+        long totalBits = (long) Math.ceil(Math.max(1, hashes.length) * bitsPerEntry);
+        int blockCount = (int) Math.max(1, Math.min(Integer.MAX_VALUE / BLOCK_LONGS,
+                (totalBits + BLOCK_BITS - 1) / BLOCK_BITS));
+
+        SuffixFilter filter = new SuffixFilter(new long[blockCount * BLOCK_LONGS], hashCount,
+                hashes.length, rate);
+        for (long hash : hashes) {
+            filter.add(hash);
+        }
+        return filter;
+    }
+
+    /**
+     * Hash of a suffix one label longer than the one with the given hash.
+     * Start from {@link #emptySuffix()} and add labels from the right.
+     */
+    static long extend(long suffixHash, int labelHash) {
+        long h = (suffixHash ^ (labelHash & 0xFFFFFFFFL)) * MIX;
+        return h ^ (h >>> 29);
+    }
+
+    static long emptySuffix() {
+        return SUFFIX_SEED;
+    }
+
+    /**
+     * False if no suffix of the domain can be an entry, so the trie has
+     * nothing to say about it
+     */
+    public boolean mightMatch(String domain) {
+        if (domain == null) {
+            return false;
+        }
+        int start = 0;
+        int end = domain.length();
+        while (start < end && domain.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && domain.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (end > start && domain.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        long suffix = SUFFIX_SEED;
+        int labelEnd = end;
+        while (labelEnd > start) {
+            int labelStart = labelEnd;
+            while (labelStart > start && domain.charAt(labelStart - 1) != '.') {
+                labelStart--;
+            }
+            int hash = DomainTrie.LABEL_HASH_SEED;
+            for (int i = labelStart; i < labelEnd; i++) {
+                hash = DomainTrie.mixLabelByte(hash, DomainTrie.toLowerAscii(domain.charAt(i)));
+            }
+            suffix = extend(suffix, hash);
+            if (mightContain(suffix)) {
+                return true;
+            }
+            labelEnd = labelStart - 1;
+        }
+        return false;
+    }
+
+    /**
+     * False if no suffix of the question's name can be an entry. Uses the
+     * label hashes recorded while parsing; does not allocate.
+     */
+    public boolean mightMatch(DnsQuestion question) {
+        long suffix = SUFFIX_SEED;
+        for (int i = question.labelCount() - 1; i >= 0; i--) {
+            suffix = extend(suffix, question.labelHash(i));
+            if (mightContain(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * The false positive rate the filter was sized for
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public double getBitsPerEntry() {
+        return entryCount == 0 ? 0 : (double) bits.length * 64 / entryCount;
+    }
+
+    public long getMemoryBytes() {
+        return bits.length * 8L;
+    }
+
+    boolean mightContain(long hash) {
+        int base = block(hash);
+        long h = hash * MIX;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (int) (h >>> 55);
+            if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            h = Long.rotateLeft(h, 9) * MIX;
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        int base = block(hash);
+        long h = hash * MIX;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (int) (h >>> 55);
+            bits[base + (bit >>> 6)] |= 1L << bit;
+            h = Long.rotateLeft(h, 9) * MIX;
+        }
+    }
+
+    private int block(long hash) {
+        // Maps the high half onto [0, blockCount) without a division
+        return (int) (((hash >>> 32) * blockCount) >>> 32) * BLOCK_LONGS;
+    }
+}
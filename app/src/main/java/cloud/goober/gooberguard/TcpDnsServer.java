@@ -0,0 +1,715 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Answers DNS over TCP for port 53 connections that come in through the tun
+ *
+ * Apps switch to TCP when a UDP answer comes back truncated, and some use
+ * it from the start. Each such connection ends here, in a small userspace
+ * TCP: the handshake, in-order receive with cumulative ACKs, replies cut to
+ * the peer's MSS and window, retransmission of unacknowledged data on a
+ * backed-off timer, and FIN or RST teardown. Out-of-order segments are
+ * dropped and acknowledged again, which is enough on a tun where nothing is
+ * reordered.
+ *
+ * The byte stream is split into length-prefixed DNS messages (RFC 1035
+ * 4.2.2). Each query is blocked, answered from the cache, or sent on
+ * through a {@link DnsUpstream}, just like UDP ones, and replies go back as
+ * soon as they are ready, in any order, which RFC 7766 allows.
+ *
+ * Thread safe: segments of one connection may be handled by different
+ * pipeline workers, and upstream replies arrive on the pool's thread.
+ */
+public class TcpDnsServer implements Closeable {
+    private static final String TAG = "TcpDnsServer";
+
+    static final int DNS_PORT = 53;
+    static final int MAX_SESSIONS = 256;
+    static final long IDLE_TIMEOUT_MS = 10_000;
+    static final long INITIAL_RTO_MS = 250;
+    static final int MAX_RETRANSMITS = 6;
+
+    private static final int WINDOW = 65535;
+    // RFC 1122 defaults when the SYN carries no MSS option
+    private static final int DEFAULT_MSS_V4 = 536;
+    private static final int DEFAULT_MSS_V6 = 1220;
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    // A full message plus the start of the next is all a client may queue
+    private static final int MAX_RECEIVE_BUFFER = 2 * (2 + MAX_MESSAGE_SIZE);
+    private static final long TICK_MS = 50;
+
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_SERVFAIL = 2;
+
+    /**
+     * Sends a query upstream over TCP; see
+     * {@link DnsUpstream#query(byte[], int, int, DnsUpstream.Callback)}
+     */
+    public interface QueryForwarder {
+        boolean query(byte[] message, int offset, int length, DnsUpstream.Callback callback);
+    }
+
+    private final Supplier<Blocklist> blocklists;
+    private final DnsCache cache;
+    private final DnsResponseBuilder responseBuilder;
+    private final QueryForwarder forwarder;
+    private final DnsForwarder.PacketWriter writer;
+    private final int mtu;
+    private final LongAdder blockedCount;
+
+    private final Map<FlowKey, Session> sessions = new ConcurrentHashMap<>();
+    private final ThreadLocal<ByteBuffer> scratch =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_MESSAGE_SIZE));
+    private final ThreadLocal<DnsQuestion> questions = ThreadLocal.withInitial(DnsQuestion::new);
+    private ScheduledExecutorService timer;
+    private volatile QueryLog queryLog;
+    private volatile DnsMetrics metrics;
+    private volatile FlowUidCache uids;
+
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong retransmitCount = new AtomicLong();
+    private final AtomicLong resetCount = new AtomicLong();
+
+    /**
+     * @param writer       receives every segment sent back to the tun
+     * @param mtu          of the tun, which bounds the segments sent
+     * @param blockedCount shared with the UDP packet handlers
+     */
+    public TcpDnsServer(Supplier<Blocklist> blocklists, DnsCache cache, DnsResponseBuilder responseBuilder,
+                        QueryForwarder forwarder, DnsForwarder.PacketWriter writer, int mtu,
+                        LongAdder blockedCount) {
+        this.blocklists = blocklists;
+        this.cache = cache;
+        this.responseBuilder = responseBuilder;
+        this.forwarder = forwarder;
+        this.writer = writer;
+        this.mtu = mtu;
+        this.blockedCount = blockedCount;
+    }
+
+    /**
+     * Log each query once it is answered, or stop if null
+     */
+    public void setQueryLog(QueryLog queryLog) {
+        this.queryLog = queryLog;
+    }
+
+    /**
+     * Count and time each query in the given metrics, or stop if null
+     */
+    public void setMetrics(DnsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Match queries some app has its own rules for against the rules of
+     * the app owning the connection, found through the given cache, or
+     * against the global list if null
+     */
+    public void setUidCache(FlowUidCache uids) {
+        this.uids = uids;
+    }
+
+    /**
+     * Start the retransmission and idle timer
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TcpDnsTimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(() -> tick(System.nanoTime()), TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        sessions.clear();
+    }
+
+    /**
+     * Whether the packet is a TCP segment to port 53 that
+     * {@link #handle(ByteBuffer)} takes
+     */
+    public static boolean isDnsSegment(ByteBuffer packet) {
+        int tcp = IpPacketBuilder.tcpOffset(packet);
+        return tcp >= 0 && (packet.getShort(tcp + 2) & 0xFFFF) == DNS_PORT;
+    }
+
+    /**
+     * Handle one TCP segment to port 53 read from the tun. Anything it sends
+     * back goes to the writer.
+     */
+    public void handle(ByteBuffer packet) {
+        int tcp = IpPacketBuilder.tcpOffset(packet);
+        if (tcp < 0) {
+            return;
+        }
+        boolean ipv6 = IpPacketBuilder.isIpv6(packet);
+        int addressLength = ipv6 ? 16 : 4;
+        int addressOffset = ipv6 ? 8 : 12;
+        FlowKey key = new FlowKey();
+        key.client = new byte[addressLength];
+        key.server = new byte[addressLength];
+        for (int i = 0; i < addressLength; i++) {
+            key.client[i] = packet.get(addressOffset + i);
+            key.server[i] = packet.get(addressOffset + addressLength + i);
+        }
+        key.clientPort = packet.getShort(tcp) & 0xFFFF;
+        key.serverPort = packet.getShort(tcp + 2) & 0xFFFF;
+
+        int seq = packet.getInt(tcp + 4);
+        int ack = packet.getInt(tcp + 8);
+        int flags = packet.get(tcp + 13) & 0x3F;
+        int window = packet.getShort(tcp + 14) & 0xFFFF;
+        int payload = tcp + IpPacketBuilder.tcpHeaderLength(packet, tcp);
+        int ipLength = ipv6 ? IpPacketBuilder.IPV6_HEADER_SIZE + (packet.getShort(4) & 0xFFFF)
+                : packet.getShort(2) & 0xFFFF;
+        int payloadLength = Math.max(0, Math.min(packet.limit(), ipLength) - payload);
+        long now = System.nanoTime();
+
+        if ((flags & IpPacketBuilder.TCP_RST) != 0) {
+            sessions.remove(key);
+            return;
+        }
+
+        Session session = sessions.get(key);
+        if ((flags & IpPacketBuilder.TCP_SYN) != 0 && (flags & IpPacketBuilder.TCP_ACK) == 0) {
+            if (session != null) {
+                synchronized (session) {
+                    if (!session.established && session.irs == seq) {
+                        // Our SYN-ACK was lost; send it again
+                        sendSynAck(session);
+                        return;
+                    }
+                }
+                // A new connection reusing the port replaces the old one
+                sessions.remove(key);
+            }
+            if (sessions.size() >= MAX_SESSIONS) {
+                reset(key, 0, seq + 1, true);
+                return;
+            }
+            session = new Session(key, seq, IpPacketBuilder.tcpMss(packet, tcp), window, now);
+            sessions.put(key, session);
+            connectionCount.incrementAndGet();
+            synchronized (session) {
+                sendSynAck(session);
+            }
+            return;
+        }
+
+        if (session == null) {
+            // Not a connection we know; tell the client to give up on it
+            if ((flags & IpPacketBuilder.TCP_ACK) != 0) {
+                reset(key, ack, 0, false);
+            } else {
+                reset(key, 0, seq + payloadLength, true);
+            }
+            return;
+        }
+
+        synchronized (session) {
+            session.lastActivity = now;
+            if ((flags & IpPacketBuilder.TCP_ACK) != 0) {
+                acknowledge(session, ack, window, now);
+            }
+            if (!session.established) {
+                return;
+            }
+
+            boolean fin = (flags & IpPacketBuilder.TCP_FIN) != 0;
+            if (payloadLength > 0 || fin) {
+                if (seq != session.rcvNxt) {
+                    // Retransmitted or out of order; repeat what we expect
+                    sendAck(session);
+                    return;
+                }
+                if (payloadLength > 0) {
+                    if (!receive(session, packet, payload, payloadLength)) {
+                        return;
+                    }
+                }
+                if (fin && !session.finReceived) {
+                    session.finReceived = true;
+                    session.rcvNxt++;
+                }
+                sendAck(session);
+                processMessages(session);
+            }
+            transmit(session, now);
+            finish(session, now);
+        }
+    }
+
+    /**
+     * Connections accepted so far
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Connections currently open
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * DNS messages read from clients
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    public long getRetransmitCount() {
+        return retransmitCount.get();
+    }
+
+    public long getResetCount() {
+        return resetCount.get();
+    }
+
+    /**
+     * Retransmit what was not acknowledged in time, and close or forget
+     * idle connections
+     */
+    void tick(long now) {
+        long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+        for (Session session : new ArrayList<>(sessions.values())) {
+            synchronized (session) {
+                if (session.sndNxt != session.sndUna && now - session.lastProgress >= session.rtoNanos) {
+                    if (++session.retransmits > MAX_RETRANSMITS) {
+                        sessions.remove(session.key);
+                        reset(session.key, session.sndNxt, session.rcvNxt, true);
+                        continue;
+                    }
+                    retransmitCount.incrementAndGet();
+                    session.rtoNanos *= 2;
+                    session.lastProgress = now;
+                    if (!session.established) {
+                        sendSynAck(session);
+                    } else if (session.finSent && session.sendLength == 0) {
+                        send(session, IpPacketBuilder.TCP_FIN | IpPacketBuilder.TCP_ACK, session.sndUna,
+                                null, 0, 0);
+                    } else {
+                        // Go back to the first unacknowledged byte
+                        session.sndNxt = session.sndUna;
+                        transmit(session, now);
+                    }
+                }
+
+                if (now - session.lastActivity >= idle && !session.finSent
+                        && session.outstanding == 0 && session.sendLength == 0 && session.established) {
+                    // Close connections the client left open (RFC 7766 6.2.3)
+                    sendFin(session, now);
+                } else if (now - session.lastActivity >= 2 * idle) {
+                    sessions.remove(session.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Process an ACK from the client
+     */
+    private void acknowledge(Session session, int ack, int window, long now) {
+        session.peerWindow = window;
+        int acked = ack - session.sndUna;
+        if (acked <= 0 || ack - session.sndNxt > 0) {
+            return;
+        }
+        if (!session.established) {
+            session.established = true;
+        } else {
+            int data = Math.min(acked, session.sendLength);
+            System.arraycopy(session.sendBuffer, data, session.sendBuffer, 0, session.sendLength - data);
+            session.sendLength -= data;
+        }
+        session.sndUna = ack;
+        session.lastProgress = now;
+        session.retransmits = 0;
+        session.rtoNanos = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO_MS);
+    }
+
+    /**
+     * Append in-order payload to the receive buffer. Resets the connection
+     * and returns false if the client sends more than it may queue.
+     */
+    private boolean receive(Session session, ByteBuffer packet, int offset, int length) {
+        if (session.finReceived || session.receiveLength + length > MAX_RECEIVE_BUFFER) {
+            sessions.remove(session.key);
+            reset(session.key, session.sndNxt, session.rcvNxt, true);
+            return false;
+        }
+        if (session.receiveBuffer.length < session.receiveLength + length) {
+            session.receiveBuffer = Arrays.copyOf(session.receiveBuffer,
+                    Math.min(MAX_RECEIVE_BUFFER, Math.max(session.receiveLength + length,
+                            session.receiveBuffer.length * 2)));
+        }
+        for (int i = 0; i < length; i++) {
+            session.receiveBuffer[session.receiveLength + i] = packet.get(offset + i);
+        }
+        session.receiveLength += length;
+        session.rcvNxt += length;
+        return true;
+    }
+
+    /**
+     * Answer every complete message in the receive buffer
+     */
+    private void processMessages(Session session) {
+        int position = 0;
+        while (session.receiveLength - position >= 2) {
+            int length = ((session.receiveBuffer[position] & 0xFF) << 8)
+                    | (session.receiveBuffer[position + 1] & 0xFF);
+            if (session.receiveLength - position - 2 < length) {
+                break;
+            }
+            queryCount.incrementAndGet();
+            answer(session, session.receiveBuffer, position + 2, length);
+            position += 2 + length;
+        }
+        if (position > 0) {
+            System.arraycopy(session.receiveBuffer, position, session.receiveBuffer, 0,
+                    session.receiveLength - position);
+            session.receiveLength -= position;
+        }
+    }
+
+    private boolean isBlocked(Session session, DnsQuestion question) {
+        Blocklist blocklist = blocklists.get();
+        FlowUidCache owners = uids;
+        if (owners != null && blocklist.dependsOnApp(question)) {
+            FlowKey key = session.key;
+            return blocklist.matches(owners.uidFor(IpPacketBuilder.PROTOCOL_TCP, key.client, key.clientPort,
+                    key.server, key.serverPort), question);
+        }
+        return blocklist.matches(question);
+    }
+
+    private void answer(Session session, byte[] message, int offset, int length) {
+        ByteBuffer query = ByteBuffer.wrap(message, 0, offset + length);
+        DnsQuestion question = questions.get();
+        if (!question.parse(query, offset)) {
+            queueError(session, message, offset, length, RCODE_FORMERR);
+            return;
+        }
+
+        ByteBuffer out = scratch.get();
+        QueryLog log = queryLog;
+        DnsMetrics stats = metrics;
+        long start = System.nanoTime();
+        if (isBlocked(session, question)) {
+            blockedCount.increment();
+            if (log != null) {
+                log.record(question, QueryLog.Verdict.BLOCKED, 0, -1);
+            }
+            responseBuilder.writeBlockedMessage(question, out);
+            queue(session, out.array(), 0, out.limit());
+            if (stats != null) {
+                answered(stats, DnsMetrics.Counter.BLOCKED, start);
+            }
+            return;
+        }
+        if (cache.get(question, out)) {
+            if (log != null) {
+                log.record(question, QueryLog.Verdict.CACHED, 0, -1);
+            }
+            queue(session, out.array(), 0, out.limit());
+            if (stats != null) {
+                answered(stats, DnsMetrics.Counter.CACHE_HITS, start);
+            }
+            return;
+        }
+        if (stats != null) {
+            long now = System.nanoTime();
+            stats.increment(DnsMetrics.Counter.QUERIES, now);
+            stats.record(DnsMetrics.Stage.CLASSIFY, start, now);
+        }
+
+        // The receive buffer is reused, so keep the query for a failure reply
+        byte[] copy = Arrays.copyOfRange(message, offset, offset + length);
+        int nameLength = question.nameLength();
+        int qtype = question.qtype();
+        session.outstanding++;
+        boolean sent = forwarder.query(copy, 0, length, new DnsUpstream.Callback() {
+            @Override
+            public void onResponse(byte[] response) {
+                DnsQuestion asked = new DnsQuestion();
+                if (asked.parse(ByteBuffer.wrap(copy), 0)) {
+                    cache.put(asked, ByteBuffer.wrap(response), 0, response.length);
+                }
+                log(QueryLog.Verdict.FORWARDED);
+                if (stats != null) {
+                    long now = System.nanoTime();
+                    stats.record(DnsMetrics.Stage.UPSTREAM, start, now);
+                    stats.record(DnsMetrics.Stage.END_TO_END, start, now);
+                }
+                synchronized (session) {
+                    session.outstanding--;
+                    queue(session, response, 0, response.length);
+                    long now = System.nanoTime();
+                    transmit(session, now);
+                    finish(session, now);
+                }
+            }
+
+            @Override
+            public void onFailure() {
+                log(QueryLog.Verdict.FAILED);
+                if (stats != null) {
+                    stats.increment(DnsMetrics.Counter.UPSTREAM_ERRORS);
+                }
+                synchronized (session) {
+                    session.outstanding--;
+                    queueError(session, copy, 0, length, RCODE_SERVFAIL);
+                    long now = System.nanoTime();
+                    transmit(session, now);
+                    finish(session, now);
+                }
+            }
+
+            private void log(QueryLog.Verdict verdict) {
+                QueryLog log = queryLog;
+                if (log != null) {
+                    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                    log.record(ByteBuffer.wrap(copy), 12, nameLength, qtype, verdict,
+                            (int) Math.min(Integer.MAX_VALUE, micros), -1);
+                }
+            }
+        });
+        if (!sent) {
+            if (stats != null) {
+                stats.increment(DnsMetrics.Counter.DROPS);
+            }
+            session.outstanding--;
+            queueError(session, message, offset, length, RCODE_SERVFAIL);
+        }
+    }
+
+    /**
+     * Count a query answered here, timing it from start
+     */
+    private static void answered(DnsMetrics stats, DnsMetrics.Counter outcome, long start) {
+        long now = System.nanoTime();
+        stats.increment(DnsMetrics.Counter.QUERIES, now);
+        stats.increment(outcome, now);
+        stats.record(DnsMetrics.Stage.CLASSIFY, start, now);
+        stats.record(DnsMetrics.Stage.END_TO_END, start, now);
+    }
+
+    /**
+     * Queue a reply carrying only the query's header and question, with the
+     * given rcode
+     */
+    private void queueError(Session session, byte[] message, int offset, int length, int rcode) {
+        if (length < 12) {
+            return;
+        }
+        byte[] reply = Arrays.copyOfRange(message, offset, offset + length);
+        ByteBuffer view = ByteBuffer.wrap(reply);
+        DnsQuestion question = questions.get();
+        int replyLength = question.parse(view, 0) ? question.endOffset() : 12;
+        int flags = 0x8000 | ((view.getShort(2) & 0xFFFF) & 0x7900) | 0x0080 | rcode;
+        view.putShort(2, (short) flags);
+        view.putShort(4, (short) (replyLength > 12 ? 1 : 0));
+        view.putShort(6, (short) 0);
+        view.putShort(8, (short) 0);
+        view.putShort(10, (short) 0);
+        queue(session, reply, 0, replyLength);
+    }
+
+    /**
+     * Append a length-prefixed message to the send buffer
+     */
+    private void queue(Session session, byte[] message, int offset, int length) {
+        if (session.finSent || sessions.get(session.key) != session) {
+            return;
+        }
+        int needed = session.sendLength + 2 + length;
+        if (session.sendBuffer.length < needed) {
+            session.sendBuffer = Arrays.copyOf(session.sendBuffer, Math.max(needed, session.sendBuffer.length * 2));
+        }
+        session.sendBuffer[session.sendLength] = (byte) (length >> 8);
+        session.sendBuffer[session.sendLength + 1] = (byte) length;
+        System.arraycopy(message, offset, session.sendBuffer, session.sendLength + 2, length);
+        session.sendLength = needed;
+    }
+
+    /**
+     * Send as much unsent data as the client's window allows
+     */
+    private void transmit(Session session, long now) {
+        if (!session.established || session.finSent) {
+            return;
+        }
+        while (true) {
+            int inFlight = session.sndNxt - session.sndUna;
+            int unsent = session.sendLength - inFlight;
+            int length = Math.min(Math.min(unsent, session.mss), session.peerWindow - inFlight);
+            if (length <= 0) {
+                return;
+            }
+            if (inFlight == 0) {
+                session.lastProgress = now;
+            }
+            send(session, IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, session.sndNxt,
+                    session.sendBuffer, inFlight, length);
+            session.sndNxt += length;
+        }
+    }
+
+    /**
+     * Close our side once the client has closed its side and every reply
+     * has been acknowledged, and forget connections closed both ways
+     */
+    private void finish(Session session, long now) {
+        if (session.finReceived && !session.finSent && session.outstanding == 0 && session.sendLength == 0) {
+            sendFin(session, now);
+        }
+        if (session.finSent && session.finReceived && session.sndUna == session.sndNxt) {
+            sessions.remove(session.key);
+        }
+    }
+
+    private void sendFin(Session session, long now) {
+        session.finSent = true;
+        send(session, IpPacketBuilder.TCP_FIN | IpPacketBuilder.TCP_ACK, session.sndNxt, null, 0, 0);
+        session.sndNxt++;
+        session.lastProgress = now;
+    }
+
+    private void sendSynAck(Session session) {
+        send(session, IpPacketBuilder.TCP_SYN | IpPacketBuilder.TCP_ACK, session.iss, null, 0, 0);
+    }
+
+    private void sendAck(Session session) {
+        send(session, IpPacketBuilder.TCP_ACK, session.sndNxt, null, 0, 0);
+    }
+
+    private void send(Session session, int flags, int seq, byte[] data, int offset, int length) {
+        boolean syn = (flags & IpPacketBuilder.TCP_SYN) != 0;
+        write(session.key, flags, seq, session.rcvNxt, syn ? maxSegmentSize(session.key) : 0,
+                data, offset, length);
+    }
+
+    /**
+     * Send a RST for the flow. One answering a segment that carried an ACK
+     * takes its sequence number from that ACK and has no ACK of its own
+     * (RFC 793 3.4).
+     */
+    private void reset(FlowKey key, int seq, int ack, boolean withAck) {
+        resetCount.incrementAndGet();
+        int flags = withAck ? IpPacketBuilder.TCP_RST | IpPacketBuilder.TCP_ACK : IpPacketBuilder.TCP_RST;
+        write(key, flags, seq, ack, 0, null, 0, 0);
+    }
+
+    private void write(FlowKey key, int flags, int seq, int ack, int mss, byte[] data, int offset, int length) {
+        ByteBuffer segment = ByteBuffer.allocate(IpPacketBuilder.IPV6_HEADER_SIZE
+                + IpPacketBuilder.TCP_HEADER_SIZE + 4 + length);
+        IpPacketBuilder.writeTcp(segment, key.server, key.serverPort, key.client, key.clientPort,
+                seq, ack, flags, WINDOW, mss, data, offset, length);
+        try {
+            writer.write(segment);
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error writing TCP segment", e);
+        }
+    }
+
+    /**
+     * Largest payload that fits the tun's MTU under IP and TCP headers
+     */
+    private int maxSegmentSize(FlowKey key) {
+        int headers = (key.client.length == 16 ? IpPacketBuilder.IPV6_HEADER_SIZE : IpPacketBuilder.IPV4_HEADER_SIZE)
+                + IpPacketBuilder.TCP_HEADER_SIZE;
+        return mtu - headers;
+    }
+
+    private final class Session {
+        final FlowKey key;
+        final int irs;
+        final int iss;
+        final int mss;
+        int sndUna;
+        int sndNxt;
+        int rcvNxt;
+        int peerWindow;
+        boolean established;
+        boolean finReceived;
+        boolean finSent;
+        // Queries sent upstream and not yet answered
+        int outstanding;
+        // Unacknowledged and unsent reply bytes, starting at sndUna
+        byte[] sendBuffer = new byte[512];
+        int sendLength;
+        byte[] receiveBuffer = new byte[512];
+        int receiveLength;
+        long lastActivity;
+        long lastProgress;
+        long rtoNanos = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO_MS);
+        int retransmits;
+
+        Session(FlowKey key, int irs, int peerMss, int window, long now) {
+            this.key = key;
+            this.irs = irs;
+            this.iss = ThreadLocalRandom.current().nextInt();
+            int defaultMss = key.client.length == 16 ? DEFAULT_MSS_V6 : DEFAULT_MSS_V4;
+            this.mss = Math.min(maxSegmentSize(key), peerMss > 0 ? peerMss : defaultMss);
+            this.sndUna = iss;
+            this.sndNxt = iss + 1;
+            this.rcvNxt = irs + 1;
+            this.peerWindow = window;
+            this.lastActivity = now;
+            this.lastProgress = now;
+        }
+    }
+
+    /**
+     * Client and server address and port of a connection
+     */
+    private static final class FlowKey {
+        byte[] client;
+        int clientPort;
+        byte[] server;
+        int serverPort;
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * Arrays.hashCode(client) + clientPort) + Arrays.hashCode(server)) + serverPort;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlowKey)) {
+                return false;
+            }
+            FlowKey other = (FlowKey) o;
+            return clientPort == other.clientPort && serverPort == other.serverPort
+                    && Arrays.equals(client, other.client) && Arrays.equals(server, other.server);
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package cloud.goober.gooberguard;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends DNS queries to the upstream resolvers over TCP (RFC 7766)
+ *
+ * A few connections to each upstream are kept open and reused across
+ * queries, so answers too large for UDP, such as DNSSEC or big TXT records,
+ * do not pay for a handshake each time. Queries are pipelined: many can be
+ * outstanding on one connection, each under an ID unique on it, and replies
+ * are matched by ID in whatever order they arrive. Connections left idle are
+ * closed. A query whose connection drops before it is answered is retried
+ * once on another.
+ *
+ * Upstreams are picked by the same {@link UpstreamTracker} as the UDP
+ * forwarder uses, and timeouts and refused connections count against them.
+ * One selector thread does all socket I/O; {@link #query} may be called
+ * from any thread.
+ */
+public class TcpUpstreamPool implements DnsUpstream {
+    private static final String TAG = "TcpUpstreamPool";
+
+    static final int DEFAULT_CONNECTIONS_PER_UPSTREAM = 2;
+    static final long DEFAULT_TIMEOUT_MS = 5000;
+    static final long IDLE_TIMEOUT_MS = 30_000;
+    static final int MAX_PENDING = 1024;
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final long SELECT_TIMEOUT_MS = 500;
+
+    /**
+     * Excludes an upstream socket from the VPN, normally VpnService::protect
+     */
+    public interface SocketProtector {
+        boolean protect(Socket socket);
+    }
+
+    private final UpstreamTracker upstreams;
+    private final SocketProtector protector;
+    private final int connectionsPerUpstream;
+    private final long timeoutNanos;
+
+    private final Queue<Request> outgoing = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // Owned by the selector thread
+    private final List<List<Connection>> connections = new ArrayList<>();
+
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong answeredCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    public TcpUpstreamPool(UpstreamTracker upstreams, SocketProtector protector) {
+        this(upstreams, protector, DEFAULT_CONNECTIONS_PER_UPSTREAM, DEFAULT_TIMEOUT_MS);
+    }
+
+    public TcpUpstreamPool(UpstreamTracker upstreams, SocketProtector protector,
+                           int connectionsPerUpstream, long timeoutMillis) {
+        this.upstreams = upstreams;
+        this.protector = protector;
+        this.connectionsPerUpstream = Math.max(1, connectionsPerUpstream);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (int i = 0; i < upstreams.size(); i++) {
+            connections.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Start the selector thread. Connections are opened on first use.
+     */
+    @Override
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        running = true;
+        thread = new Thread(this::run, "TcpUpstreamPool");
+        thread.start();
+    }
+
+    @Override
+    public boolean query(byte[] message, int offset, int length, Callback callback) {
+        if (!running || length < 12 || length > MAX_MESSAGE_SIZE) {
+            return false;
+        }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            return false;
+        }
+        Request request = new Request();
+        request.message = new byte[length];
+        System.arraycopy(message, offset, request.message, 0, length);
+        request.clientId = ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+        request.callback = callback;
+        queryCount.incrementAndGet();
+        outgoing.add(request);
+        selector.wakeup();
+        return true;
+    }
+
+    @Override
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    @Override
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    @Override
+    public long getAnsweredCount() {
+        return answeredCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    @Override
+    public List<UpstreamTracker.Stats> getUpstreamStats() {
+        return upstreams.getStats();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        selector.wakeup();
+        try {
+            thread.join(SELECT_TIMEOUT_MS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                long now = System.nanoTime();
+
+                Request request;
+                while ((request = outgoing.poll()) != null) {
+                    dispatch(request, now);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isConnectable()) {
+                            connection.channel.finishConnect();
+                            connection.connected = true;
+                        }
+                        if (key.isReadable()) {
+                            read(connection, now);
+                        }
+                        if (connection.connected && connection.channel.isOpen()) {
+                            flush(connection);
+                        }
+                    } catch (IOException e) {
+                        lost(connection, now);
+                    }
+                }
+
+                expire(now);
+            }
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error in upstream TCP selector", e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Send a request on a connection to the upstream the tracker picks
+     */
+    private void dispatch(Request request, long now) {
+        request.attempts++;
+        int upstream = upstreams.select(now);
+        Connection connection;
+        try {
+            connection = pickConnection(upstream, now);
+        } catch (IOException e) {
+            AppLog.w(TAG, "Could not connect to " + upstreams.address(upstream), e);
+            upstreams.recordFailure(upstream, now);
+            retryOrFail(request, now);
+            return;
+        }
+
+        int id = connection.allocateId();
+        request.sentAt = now;
+        ByteBuffer frame = ByteBuffer.allocate(2 + request.message.length);
+        frame.putShort((short) request.message.length);
+        frame.put(request.message);
+        frame.putShort(2, (short) id);
+        frame.flip();
+        connection.writes.add(frame);
+        connection.inFlight.put(id, request);
+        connection.lastActive = now;
+        if (connection.used++ > 0) {
+            reusedCount.incrementAndGet();
+        }
+        if (connection.connected) {
+            try {
+                flush(connection);
+            } catch (IOException e) {
+                lost(connection, now);
+            }
+        }
+    }
+
+    /**
+     * The least loaded open connection to the upstream, opening another
+     * while it has queries in flight and there is room for more
+     */
+    private Connection pickConnection(int upstream, long now) throws IOException {
+        List<Connection> open = connections.get(upstream);
+        Connection best = null;
+        for (Connection connection : open) {
+            if (best == null || connection.inFlight.size() < best.inFlight.size()) {
+                best = connection;
+            }
+        }
+        if (best != null && (best.inFlight.isEmpty() || open.size() >= connectionsPerUpstream)) {
+            return best;
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            if (!protector.protect(channel.socket())) {
+                throw new IOException("Could not protect upstream DNS socket");
+            }
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel, upstream, now);
+            connection.connected = channel.connect(upstreams.address(upstream));
+            connection.key = channel.register(selector,
+                    connection.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            open.add(connection);
+            connectionCount.incrementAndGet();
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void flush(Connection connection) throws IOException {
+        ByteBuffer frame;
+        while ((frame = connection.writes.peek()) != null) {
+            connection.channel.write(frame);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            connection.writes.poll();
+        }
+        connection.key.interestOps(connection.writes.isEmpty()
+                ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void read(Connection connection, long now) throws IOException {
+        ByteBuffer buffer = connection.readBuffer;
+        int read;
+        while ((read = connection.channel.read(buffer)) > 0) {
+            connection.lastActive = now;
+            buffer.flip();
+            while (buffer.remaining() >= 2) {
+                int length = buffer.getShort(buffer.position()) & 0xFFFF;
+                if (buffer.remaining() < 2 + length) {
+                    break;
+                }
+                byte[] response = new byte[length];
+                buffer.position(buffer.position() + 2);
+                buffer.get(response);
+                answer(connection, response, now);
+            }
+            buffer.compact();
+        }
+        if (read < 0) {
+            throw new IOException("Upstream closed the connection");
+        }
+    }
+
+    private void answer(Connection connection, byte[] response, long now) {
+        if (response.length < 12) {
+            return;
+        }
+        int id = ((response[0] & 0xFF) << 8) | (response[1] & 0xFF);
+        Request request = connection.inFlight.remove(id);
+        if (request == null) {
+            // Late reply for a query that timed out
+            return;
+        }
+        upstreams.recordSuccess(connection.upstream, now - request.sentAt);
+        response[0] = (byte) (request.clientId >> 8);
+        response[1] = (byte) request.clientId;
+        pending.decrementAndGet();
+        answeredCount.incrementAndGet();
+        request.callback.onResponse(response);
+    }
+
+    /**
+     * Close a broken connection and give its queries another try elsewhere
+     */
+    private void lost(Connection connection, long now) {
+        close(connection);
+        if (!connection.connected) {
+            upstreams.recordFailure(connection.upstream, now);
+        }
+        for (Request request : connection.inFlight.values()) {
+            retryOrFail(request, now);
+        }
+        connection.inFlight.clear();
+    }
+
+    private void retryOrFail(Request request, long now) {
+        if (request.attempts < MAX_ATTEMPTS && running) {
+            dispatch(request, now);
+        } else {
+            fail(request);
+        }
+    }
+
+    private void fail(Request request) {
+        pending.decrementAndGet();
+        failedCount.incrementAndGet();
+        request.callback.onFailure();
+    }
+
+    private void expire(long now) {
+        for (List<Connection> open : connections) {
+            for (Connection connection : new ArrayList<>(open)) {
+                if (!connection.connected && now - connection.openedAt >= timeoutNanos) {
+                    lost(connection, now);
+                    continue;
+                }
+                Iterator<Request> requests = connection.inFlight.values().iterator();
+                while (requests.hasNext()) {
+                    Request request = requests.next();
+                    if (now - request.sentAt >= timeoutNanos) {
+                        requests.remove();
+                        upstreams.recordFailure(connection.upstream, now);
+                        fail(request);
+                    }
+                }
+                if (connection.inFlight.isEmpty() && connection.writes.isEmpty()
+                        && now - connection.lastActive >= TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS)) {
+                    close(connection);
+                }
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        connections.get(connection.upstream).remove(connection);
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error closing upstream connection", e);
+        }
+    }
+
+    private void shutdown() {
+        for (List<Connection> open : connections) {
+            for (Connection connection : new ArrayList<>(open)) {
+                close(connection);
+                for (Request request : connection.inFlight.values()) {
+                    fail(request);
+                }
+            }
+        }
+        Request request;
+        while ((request = outgoing.poll()) != null) {
+            fail(request);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            AppLog.e(TAG, "Error closing selector", e);
+        }
+    }
+
+    private static final class Request {
+        byte[] message;
+        int clientId;
+        Callback callback;
+        int attempts;
+        long sentAt;
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final int upstream;
+        final long openedAt;
+        final Map<Integer, Request> inFlight = new HashMap<>();
+        final Queue<ByteBuffer> writes = new ArrayDeque<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(2 + MAX_MESSAGE_SIZE);
+        SelectionKey key;
+        boolean connected;
+        long lastActive;
+        int used;
+        int nextId;
+
+        Connection(SocketChannel channel, int upstream, long now) {
+            this.channel = channel;
+            this.upstream = upstream;
+            this.openedAt = now;
+            this.lastActive = now;
+            this.nextId = (int) (now & 0xFFFF);
+        }
+
+        /**
+         * An ID not in flight on this connection; at most MAX_PENDING are,
+         * so one is always free
+         */
+        int allocateId() {
+            while (inFlight.containsKey(nextId)) {
+                nextId = (nextId + 1) & 0xFFFF;
+            }
+            int id = nextId;
+            nextId = (nextId + 1) & 0xFFFF;
+            return id;
+        }
+    }
+}
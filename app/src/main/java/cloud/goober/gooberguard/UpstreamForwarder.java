@@ -0,0 +1,211 @@
+package cloud.goober.gooberguard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forwards UDP DNS query packets from the tun over a {@link DnsUpstream},
+ * such as an encrypted one, and writes each reply back to the client as a
+ * UDP packet from the address it asked
+ *
+ * A reply too large for the client's UDP buffer, 512 bytes or what its
+ * EDNS OPT record offers, up to {@link #MAX_UDP_PAYLOAD}, is cut down to
+ * its header and question with TC set, and an OPT record if the query had
+ * one, so the client asks again over TCP. That cap also fits the smallest
+ * MTU the VPN allows.
+ * Queries the upstream fails to answer get no reply, as with
+ * {@link DnsForwarder}, and the client retries.
+ *
+ * Unlike {@link DnsForwarder} this allocates per query: a copy of the
+ * query and a callback, and for each reply the array the upstream hands
+ * over and the packet written back. Every query already costs a TLS or TCP
+ * round trip, which outweighs those.
+ */
+public class UpstreamForwarder implements DnsPacketHandler.QueryForwarder {
+    private static final String TAG = "UpstreamForwarder";
+
+    static final int MIN_UDP_PAYLOAD = Edns.MIN_UDP_PAYLOAD;
+    static final int MAX_UDP_PAYLOAD = Edns.MAX_UDP_PAYLOAD;
+
+    private static final int DNS_HEADER_SIZE = 12;
+
+    private final DnsUpstream upstream;
+    private final DnsForwarder.PacketWriter writer;
+    private final ThreadLocal<DnsQuestion> questions = ThreadLocal.withInitial(DnsQuestion::new);
+
+    private final AtomicLong forwardedCount = new AtomicLong();
+    private final AtomicLong answeredCount = new AtomicLong();
+    private final AtomicLong truncatedCount = new AtomicLong();
+
+    private volatile DnsCache cache;
+    private volatile QueryLog queryLog;
+    private volatile DnsMetrics metrics;
+
+    public UpstreamForwarder(DnsUpstream upstream, DnsForwarder.PacketWriter writer) {
+        this.upstream = upstream;
+        this.writer = writer;
+    }
+
+    /**
+     * Store every upstream reply in the given cache, or stop caching if null
+     */
+    public void setCache(DnsCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Log each query once it is answered or fails, or stop if null
+     */
+    public void setQueryLog(QueryLog queryLog) {
+        this.queryLog = queryLog;
+    }
+
+    /**
+     * Time upstream round trips and count failures in the given metrics,
+     * or stop if null
+     */
+    public void setMetrics(DnsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Send an IPv4 or IPv6 UDP DNS query packet upstream. The packet is
+     * copied, so the caller may reuse its buffer immediately. Returns false
+     * if the upstream did not take it.
+     */
+    @Override
+    public boolean forward(ByteBuffer packet) {
+        int udpOffset = IpPacketBuilder.udpOffset(packet);
+        if (udpOffset < 0) {
+            return false;
+        }
+        int dnsOffset = udpOffset + IpPacketBuilder.UDP_HEADER_SIZE;
+        int dnsLength = packet.limit() - dnsOffset;
+        if (dnsLength < DNS_HEADER_SIZE) {
+            return false;
+        }
+
+        boolean ipv6 = IpPacketBuilder.isIpv6(packet);
+        int addressLength = ipv6 ? 16 : 4;
+        int addressOffset = ipv6 ? 8 : 12;
+        byte[] clientAddress = new byte[addressLength];
+        byte[] serverAddress = new byte[addressLength];
+        for (int i = 0; i < addressLength; i++) {
+            clientAddress[i] = packet.get(addressOffset + i);
+            serverAddress[i] = packet.get(addressOffset + addressLength + i);
+        }
+        int clientPort = packet.getShort(udpOffset) & 0xFFFF;
+        int serverPort = packet.getShort(udpOffset + 2) & 0xFFFF;
+        byte[] query = new byte[dnsLength];
+        for (int i = 0; i < dnsLength; i++) {
+            query[i] = packet.get(dnsOffset + i);
+        }
+        DnsQuestion question = questions.get();
+        boolean parsed = question.parse(ByteBuffer.wrap(query), 0);
+        int nameLength = parsed ? question.nameLength() : 0;
+        int questionEnd = parsed ? question.endOffset() : DNS_HEADER_SIZE;
+        int qtype = question.qtype();
+        int maxPayload = parsed ? Edns.udpPayloadLimit(question.packet(), 0, questionEnd) : MIN_UDP_PAYLOAD;
+        int optFlags = parsed ? Edns.optFlags(question.packet(), 0, questionEnd) : -1;
+        long start = System.nanoTime();
+
+        boolean sent = upstream.query(query, 0, query.length, new DnsUpstream.Callback() {
+            @Override
+            public void onResponse(byte[] response) {
+                DnsCache responses = cache;
+                DnsQuestion asked = questions.get();
+                if (responses != null && asked.parse(ByteBuffer.wrap(query), 0)) {
+                    responses.put(asked, ByteBuffer.wrap(response), 0, response.length);
+                    asked.reset();
+                }
+                // The client's question as it sent it, in case the upstream
+                // changed its case
+                if (DNS_HEADER_SIZE + nameLength <= response.length) {
+                    System.arraycopy(query, DNS_HEADER_SIZE, response, DNS_HEADER_SIZE, nameLength);
+                }
+                ByteBuffer reply = ByteBuffer.wrap(response);
+                if (response.length > maxPayload) {
+                    // The response's header over the client's whole question
+                    System.arraycopy(query, DNS_HEADER_SIZE, response, DNS_HEADER_SIZE,
+                            questionEnd - DNS_HEADER_SIZE);
+                    ByteBuffer cut = ByteBuffer.allocate(Edns.MAX_TRUNCATED_SIZE);
+                    Edns.writeTruncated(reply, 0, questionEnd, optFlags, cut);
+                    reply = cut;
+                    truncatedCount.incrementAndGet();
+                }
+                ByteBuffer out = ByteBuffer.allocate(IpPacketBuilder.IPV6_HEADER_SIZE
+                        + IpPacketBuilder.UDP_HEADER_SIZE + reply.limit());
+                IpPacketBuilder.writeUdp(out, serverAddress, serverPort, clientAddress, clientPort,
+                        reply, 0, reply.limit());
+                log(QueryLog.Verdict.FORWARDED);
+                try {
+                    if (writer.write(out)) {
+                        answeredCount.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    AppLog.e(TAG, "Error writing DNS reply", e);
+                }
+                DnsMetrics stats = metrics;
+                if (stats != null) {
+                    long now = System.nanoTime();
+                    stats.record(DnsMetrics.Stage.UPSTREAM, start, now);
+                    stats.record(DnsMetrics.Stage.END_TO_END, start, now);
+                }
+            }
+
+            @Override
+            public void onFailure() {
+                // No reply; the client's own retry covers it
+                log(QueryLog.Verdict.FAILED);
+                DnsMetrics stats = metrics;
+                if (stats != null) {
+                    stats.increment(DnsMetrics.Counter.UPSTREAM_ERRORS);
+                }
+            }
+
+            private void log(QueryLog.Verdict verdict) {
+                QueryLog log = queryLog;
+                if (log != null && nameLength > 0) {
+                    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                    log.record(ByteBuffer.wrap(query), DNS_HEADER_SIZE, nameLength, qtype, verdict,
+                            (int) Math.min(Integer.MAX_VALUE, micros), -1);
+                }
+            }
+        });
+        if (sent) {
+            forwardedCount.incrementAndGet();
+        }
+        return sent;
+    }
+
+    public long getForwardedCount() {
+        return forwardedCount.get();
+    }
+
+    public long getAnsweredCount() {
+        return answeredCount.get();
+    }
+
+    /**
+     * Replies cut down with TC set because they were too large for UDP
+     */
+    public long getTruncatedCount() {
+        return truncatedCount.get();
+    }
+
+    /**
+     * Largest UDP reply the client accepts; see
+     * {@link Edns#udpPayloadLimit(ByteBuffer, int, int)}
+     */
+    int maxUdpPayload(byte[] query) {
+        DnsQuestion question = questions.get();
+        if (!question.parse(ByteBuffer.wrap(query), 0)) {
+            return MIN_UDP_PAYLOAD;
+        }
+        int limit = Edns.udpPayloadLimit(question.packet(), 0, question.endOffset());
+        question.reset();
+        return limit;
+    }
+}
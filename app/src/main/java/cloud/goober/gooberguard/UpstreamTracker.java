@@ -0,0 +1,330 @@
+package cloud.goober.gooberguard;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the upstream resolver each forwarded query is sent to
+ *
+ * Keeps an EWMA of every upstream's reply latency, a window of recent
+ * latencies for its 95th percentile, and its run of consecutive timeouts.
+ * Queries go to the healthy upstream with the lowest EWMA; an upstream that
+ * has not been tried goes first so that each one gets measured, and every
+ * {@link #EXPLORE_INTERVAL}th query goes to the longest unused healthy
+ * upstream so its numbers stay current.
+ *
+ * Each upstream has a circuit breaker. After {@link #FAILURES_TO_OPEN}
+ * timeouts in a row it is opened and the upstream is skipped; once the
+ * cooldown passes a single query is let through to probe it. A probe that
+ * fails opens it again with the cooldown doubled. If every upstream is open
+ * the one due back soonest is used rather than dropping the query.
+ *
+ * Thread safe; the forwarder's selector thread records results and stats
+ * may be read from any thread. Times are {@link System#nanoTime()} values.
+ */
+public class UpstreamTracker {
+    /**
+     * Circuit breaker state of one upstream
+     */
+    public enum State {
+        /**
+         * Healthy and eligible for queries
+         */
+        CLOSED,
+        /**
+         * Skipped until its cooldown passes
+         */
+        OPEN,
+        /**
+         * Cooldown passed; one probe query decides whether it closes again
+         */
+        HALF_OPEN
+    }
+
+    static final int FAILURES_TO_OPEN = 3;
+    static final long DEFAULT_COOLDOWN_MS = 10_000;
+    static final long MAX_COOLDOWN_MS = 5 * 60_000;
+    static final int EXPLORE_INTERVAL = 64;
+    // Hedge delay used until an upstream has enough samples for a p95
+    static final long DEFAULT_HEDGE_DELAY_MS = 200;
+    static final long MIN_HEDGE_DELAY_MS = 2;
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final int WINDOW = 64;
+    private static final int MIN_PERCENTILE_SAMPLES = 8;
+
+    private final Upstream[] upstreams;
+    private final long cooldownNanos;
+    private int picks;
+
+    public UpstreamTracker(List<InetSocketAddress> addresses) {
+        this(addresses, DEFAULT_COOLDOWN_MS);
+    }
+
+    public UpstreamTracker(List<InetSocketAddress> addresses, long cooldownMillis) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream resolver is required");
+        }
+        upstreams = new Upstream[addresses.size()];
+        for (int i = 0; i < upstreams.length; i++) {
+            upstreams[i] = new Upstream(addresses.get(i));
+        }
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+    }
+
+    public int size() {
+        return upstreams.length;
+    }
+
+    public InetSocketAddress address(int upstream) {
+        return upstreams[upstream].address;
+    }
+
+    /**
+     * Index of the upstream with the given address, or -1
+     */
+    public int indexOf(SocketAddress address) {
+        for (int i = 0; i < upstreams.length; i++) {
+            if (upstreams[i].address.equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Circuit breaker state of the upstream
+     */
+    public synchronized State state(int upstream) {
+        return upstreams[upstream].state;
+    }
+
+    /**
+     * Choose the upstream for a new query and count it as used
+     */
+    public synchronized int select(long now) {
+        int chosen = -1;
+        for (int i = 0; i < upstreams.length; i++) {
+            if (probeDue(upstreams[i], now)) {
+                // Give a recovering upstream its probe before anything else;
+                // if the probe is lost without a result another follows
+                // after a further cooldown
+                upstreams[i].state = State.HALF_OPEN;
+                upstreams[i].openUntil = now + upstreams[i].cooldown;
+                chosen = i;
+                break;
+            }
+        }
+        if (chosen < 0 && ++picks % EXPLORE_INTERVAL == 0) {
+            chosen = leastRecentlyUsed(-1);
+        }
+        if (chosen < 0) {
+            chosen = fastest(-1);
+        }
+        if (chosen < 0) {
+            chosen = soonestBack();
+        }
+        upstreams[chosen].lastUsed = now;
+        upstreams[chosen].sent++;
+        return chosen;
+    }
+
+    /**
+     * Choose a second upstream to race a query already sent to primary, or
+     * -1 if no other upstream is healthy
+     */
+    public synchronized int selectHedge(int primary, long now) {
+        int chosen = fastest(primary);
+        if (chosen >= 0) {
+            upstreams[chosen].lastUsed = now;
+            upstreams[chosen].sent++;
+            upstreams[chosen].hedged++;
+        }
+        return chosen;
+    }
+
+    /**
+     * How long to wait for the upstream before hedging: its recent p95
+     * latency, or {@link #DEFAULT_HEDGE_DELAY_MS} until it has enough samples
+     */
+    public synchronized long hedgeDelayNanos(int upstream) {
+        long p95 = percentile(upstreams[upstream], 0.95);
+        if (p95 < 0) {
+            return TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MS);
+        }
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY_MS), p95);
+    }
+
+    /**
+     * Record a reply from the upstream that took latencyNanos
+     */
+    public synchronized void recordSuccess(int upstream, long latencyNanos) {
+        Upstream u = upstreams[upstream];
+        u.ewmaNanos = u.answered == 0 ? latencyNanos : u.ewmaNanos + EWMA_WEIGHT * (latencyNanos - u.ewmaNanos);
+        u.window[(int) (u.answered % WINDOW)] = latencyNanos;
+        u.answered++;
+        u.consecutiveFailures = 0;
+        u.state = State.CLOSED;
+        u.cooldown = 0;
+    }
+
+    /**
+     * Record a query the upstream did not answer in time
+     */
+    public synchronized void recordFailure(int upstream, long now) {
+        Upstream u = upstreams[upstream];
+        u.failed++;
+        u.consecutiveFailures++;
+        if (u.state == State.HALF_OPEN) {
+            u.cooldown = Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_COOLDOWN_MS), u.cooldown * 2);
+            open(u, now);
+        } else if (u.state == State.CLOSED && u.consecutiveFailures >= FAILURES_TO_OPEN) {
+            u.cooldown = cooldownNanos;
+            open(u, now);
+        }
+    }
+
+    /**
+     * Snapshot of every upstream's numbers, in configured order
+     */
+    public synchronized List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>(upstreams.length);
+        for (Upstream u : upstreams) {
+            stats.add(new Stats(u.address, u.state, u.answered == 0 ? -1 : (long) u.ewmaNanos,
+                    percentile(u, 0.95), u.sent, u.answered, u.failed, u.hedged));
+        }
+        return stats;
+    }
+
+    private static void open(Upstream u, long now) {
+        u.state = State.OPEN;
+        u.openUntil = now + u.cooldown;
+    }
+
+    private static boolean probeDue(Upstream u, long now) {
+        return u.state != State.CLOSED && now - u.openUntil >= 0;
+    }
+
+    private int fastest(int excluded) {
+        int best = -1;
+        for (int i = 0; i < upstreams.length; i++) {
+            Upstream u = upstreams[i];
+            if (i == excluded || u.state != State.CLOSED) {
+                continue;
+            }
+            if (best < 0 || score(u) < score(upstreams[best])) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Lower is better. Untried upstreams sort first and ones that have
+     * only ever failed sort last.
+     */
+    private static double score(Upstream u) {
+        if (u.answered == 0) {
+            return u.failed == 0 ? -1 : Double.MAX_VALUE;
+        }
+        return u.ewmaNanos;
+    }
+
+    private int leastRecentlyUsed(int excluded) {
+        int best = -1;
+        for (int i = 0; i < upstreams.length; i++) {
+            Upstream u = upstreams[i];
+            if (i != excluded && u.state == State.CLOSED
+                    && (best < 0 || u.lastUsed - upstreams[best].lastUsed < 0)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int soonestBack() {
+        int best = 0;
+        for (int i = 1; i < upstreams.length; i++) {
+            if (upstreams[i].openUntil - upstreams[best].openUntil < 0) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Latency at the given quantile of the upstream's recent replies, or -1
+     * if it has too few
+     */
+    private static long percentile(Upstream u, double quantile) {
+        int count = (int) Math.min(u.answered, WINDOW);
+        if (count < MIN_PERCENTILE_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(u.window, count);
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(quantile * count) - 1)];
+    }
+
+    /**
+     * Point-in-time numbers for one upstream
+     */
+    public static final class Stats {
+        public final InetSocketAddress address;
+        public final State state;
+        /**
+         * Smoothed reply latency, or -1 before the first reply
+         */
+        public final long ewmaNanos;
+        /**
+         * 95th percentile of recent reply latencies, or -1 with too few
+         */
+        public final long p95Nanos;
+        public final long sent;
+        public final long answered;
+        public final long failed;
+        public final long hedged;
+
+        Stats(InetSocketAddress address, State state, long ewmaNanos, long p95Nanos,
+              long sent, long answered, long failed, long hedged) {
+            this.address = address;
+            this.state = state;
+            this.ewmaNanos = ewmaNanos;
+            this.p95Nanos = p95Nanos;
+            this.sent = sent;
+            this.answered = answered;
+            this.failed = failed;
+            this.hedged = hedged;
+        }
+
+        @Override
+        public String toString() {
+            return address + " " + state + " ewma " + TimeUnit.NANOSECONDS.toMillis(ewmaNanos)
+                    + "ms p95 " + TimeUnit.NANOSECONDS.toMillis(p95Nanos) + "ms sent " + sent
+                    + " answered " + answered + " failed " + failed + " hedged " + hedged;
+        }
+    }
+
+    private static final class Upstream {
+        final InetSocketAddress address;
+        final long[] window = new long[WINDOW];
+        State state = State.CLOSED;
+        double ewmaNanos;
+        int consecutiveFailures;
+        long cooldown;
+        long openUntil;
+        long lastUsed;
+        long sent;
+        long answered;
+        long failed;
+        long hedged;
+
+        Upstream(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package cloud.goober.gooberguard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Persistent configuration for the VPN service
+ */
+public class VpnSettings {
+    private static final String PREFS_NAME = "vpn_settings";
+    private static final String ROUTING_MODE_KEY = "routing_mode";
+    private static final String BLOCK_STYLE_KEY = "block_style";
+    private static final String BLOCK_TTL_KEY = "block_ttl";
+    private static final String WORKER_THREADS_KEY = "worker_threads";
+    private static final String MTU_KEY = "mtu";
+    private static final String FILTER_FALSE_POSITIVE_RATE_KEY = "filter_false_positive_rate";
+    private static final String UPSTREAM_SERVERS_KEY = "upstream_servers";
+    private static final String HEDGE_REQUESTS_KEY = "hedge_requests";
+    private static final String UPSTREAM_TRANSPORT_KEY = "upstream_transport";
+    private static final String SECURE_UPSTREAM_SERVERS_KEY = "secure_upstream_servers";
+
+    /**
+     * Which traffic the VPN interface captures
+     */
+    public enum RoutingMode {
+        /**
+         * Only the virtual DNS server address is routed into the tunnel;
+         * all other traffic bypasses the VPN
+         */
+        DNS_ONLY,
+        /**
+         * The configured upstream resolvers are advertised and only their
+         * addresses routed into the tunnel, catching queries sent straight
+         * to them; other traffic still bypasses the VPN
+         */
+        RESOLVER_ROUTES
+    }
+
+    /**
+     * How allowed queries travel to the upstream resolvers
+     */
+    public enum UpstreamTransport {
+        /**
+         * Plain DNS over UDP, and TCP for large answers
+         */
+        UDP,
+        /**
+         * DNS over TLS (RFC 7858)
+         */
+        TLS,
+        /**
+         * DNS over HTTPS (RFC 8484)
+         */
+        HTTPS
+    }
+
+    static final RoutingMode DEFAULT_ROUTING_MODE = RoutingMode.DNS_ONLY;
+    static final int DEFAULT_WORKER_THREADS = 2;
+    static final int MAX_WORKER_THREADS = 8;
+    static final int DEFAULT_MTU = 1500;
+    // IPv6 minimum link MTU
+    static final int MIN_MTU = 1280;
+    static final int MAX_MTU = 16384;
+    static final String DEFAULT_UPSTREAM_SERVERS = "8.8.8.8, 8.8.4.4";
+    static final boolean DEFAULT_HEDGE_REQUESTS = true;
+    static final UpstreamTransport DEFAULT_UPSTREAM_TRANSPORT = UpstreamTransport.UDP;
+    static final String DEFAULT_SECURE_UPSTREAM_SERVERS = "1.1.1.1#cloudflare-dns.com, 1.0.0.1#cloudflare-dns.com";
+    private static final int DNS_PORT = 53;
+
+    private SharedPreferences prefs;
+
+    public VpnSettings(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public RoutingMode getRoutingMode() {
+        String mode = prefs.getString(ROUTING_MODE_KEY, DEFAULT_ROUTING_MODE.name());
+        try {
+            return RoutingMode.valueOf(mode);
+        } catch (IllegalArgumentException e) {
+            return DEFAULT_ROUTING_MODE;
+        }
+    }
+
+    public void setRoutingMode(RoutingMode mode) {
+        prefs.edit()
+                .putString(ROUTING_MODE_KEY, mode.name())
+                .apply();
+    }
+
+    public DnsResponseBuilder.BlockStyle getBlockStyle() {
+        String style = prefs.getString(BLOCK_STYLE_KEY, DnsResponseBuilder.DEFAULT_BLOCK_STYLE.name());
+        try {
+            return DnsResponseBuilder.BlockStyle.valueOf(style);
+        } catch (IllegalArgumentException e) {
+            return DnsResponseBuilder.DEFAULT_BLOCK_STYLE;
+        }
+    }
+
+    public void setBlockStyle(DnsResponseBuilder.BlockStyle style) {
+        prefs.edit()
+                .putString(BLOCK_STYLE_KEY, style.name())
+                .apply();
+    }
+
+    /**
+     * TTL, in seconds, that clients may cache a blocked answer for
+     */
+    public int getBlockTtlSeconds() {
+        return Math.max(0, prefs.getInt(BLOCK_TTL_KEY, DnsResponseBuilder.DEFAULT_BLOCK_TTL_SECONDS));
+    }
+
+    public void setBlockTtlSeconds(int ttlSeconds) {
+        prefs.edit()
+                .putInt(BLOCK_TTL_KEY, ttlSeconds)
+                .apply();
+    }
+
+    /**
+     * Number of threads classifying and answering packets between the tun
+     * reader and writer
+     */
+    public int getWorkerThreads() {
+        int threads = prefs.getInt(WORKER_THREADS_KEY, DEFAULT_WORKER_THREADS);
+        return Math.max(1, Math.min(MAX_WORKER_THREADS, threads));
+    }
+
+    public void setWorkerThreads(int threads) {
+        prefs.edit()
+                .putInt(WORKER_THREADS_KEY, threads)
+                .apply();
+    }
+
+    /**
+     * MTU of the VPN interface, which is also the largest reply written back
+     * to it. Raise it to pass large EDNS responses without truncation.
+     */
+    public int getMtu() {
+        return Math.max(MIN_MTU, Math.min(MAX_MTU, prefs.getInt(MTU_KEY, DEFAULT_MTU)));
+    }
+
+    public void setMtu(int mtu) {
+        prefs.edit()
+                .putInt(MTU_KEY, mtu)
+                .apply();
+    }
+
+    /**
+     * Share of unlisted names the blocklist prefilter still passes on to
+     * the exact lookup. Lower rates cost more memory per blocked domain.
+     */
+    public double getFilterFalsePositiveRate() {
+        float rate = prefs.getFloat(FILTER_FALSE_POSITIVE_RATE_KEY,
+                (float) SuffixFilter.DEFAULT_FALSE_POSITIVE_RATE);
+        return Math.max(SuffixFilter.MIN_FALSE_POSITIVE_RATE, Math.min(SuffixFilter.MAX_FALSE_POSITIVE_RATE, rate));
+    }
+
+    public void setFilterFalsePositiveRate(double rate) {
+        prefs.edit()
+                .putFloat(FILTER_FALSE_POSITIVE_RATE_KEY, (float) rate)
+                .apply();
+    }
+
+    /**
+     * Upstream resolvers queries are forwarded to, in order of preference
+     * until their latencies are known. Falls back to the defaults if none
+     * of the configured entries is usable.
+     */
+    public List<InetSocketAddress> getUpstreamServers() {
+        List<InetSocketAddress> servers = parseUpstreamServers(
+                prefs.getString(UPSTREAM_SERVERS_KEY, DEFAULT_UPSTREAM_SERVERS));
+        return servers.isEmpty() ? parseUpstreamServers(DEFAULT_UPSTREAM_SERVERS) : servers;
+    }
+
+    /**
+     * @param servers comma separated IP literals, each optionally with a
+     *                port as in "1.1.1.1:53" or "[2606:4700::1111]:53"
+     */
+    public void setUpstreamServers(String servers) {
+        prefs.edit()
+                .putString(UPSTREAM_SERVERS_KEY, servers)
+                .apply();
+    }
+
+    /**
+     * Whether a query the chosen upstream is slow to answer is also sent
+     * to a second one
+     */
+    public boolean isHedgeRequests() {
+        return prefs.getBoolean(HEDGE_REQUESTS_KEY, DEFAULT_HEDGE_REQUESTS);
+    }
+
+    public void setHedgeRequests(boolean hedge) {
+        prefs.edit()
+                .putBoolean(HEDGE_REQUESTS_KEY, hedge)
+                .apply();
+    }
+
+    public UpstreamTransport getUpstreamTransport() {
+        String transport = prefs.getString(UPSTREAM_TRANSPORT_KEY, DEFAULT_UPSTREAM_TRANSPORT.name());
+        try {
+            return UpstreamTransport.valueOf(transport);
+        } catch (IllegalArgumentException e) {
+            return DEFAULT_UPSTREAM_TRANSPORT;
+        }
+    }
+
+    public void setUpstreamTransport(UpstreamTransport transport) {
+        prefs.edit()
+                .putString(UPSTREAM_TRANSPORT_KEY, transport.name())
+                .apply();
+    }
+
+    /**
+     * Encrypted resolvers used with the TLS and HTTPS transports, with the
+     * port defaulting to the transport's. Falls back to the defaults if
+     * none of the configured entries is usable.
+     */
+    public List<SecureUpstreamPool.Endpoint> getSecureUpstreamServers(UpstreamTransport transport) {
+        int defaultPort = transport == UpstreamTransport.HTTPS ? DohUpstreamPool.DEFAULT_PORT
+                : DotUpstreamPool.DEFAULT_PORT;
+        List<SecureUpstreamPool.Endpoint> servers = parseSecureUpstreamServers(
+                prefs.getString(SECURE_UPSTREAM_SERVERS_KEY, DEFAULT_SECURE_UPSTREAM_SERVERS), defaultPort);
+        return servers.isEmpty() ? parseSecureUpstreamServers(DEFAULT_SECURE_UPSTREAM_SERVERS, defaultPort) : servers;
+    }
+
+    /**
+     * @param servers comma separated entries of an IP literal, optionally
+     *                with a port, then "#" and the name on the server's
+     *                certificate, then for HTTPS optionally the path, as in
+     *                "1.1.1.1#cloudflare-dns.com/dns-query"
+     */
+    public void setSecureUpstreamServers(String servers) {
+        prefs.edit()
+                .putString(SECURE_UPSTREAM_SERVERS_KEY, servers)
+                .apply();
+    }
+
+    /**
+     * Parse a comma separated encrypted upstream list, skipping entries
+     * without a usable address and server name. The address must be an IP
+     * literal so that reaching the resolver needs no lookup.
+     */
+    static List<SecureUpstreamPool.Endpoint> parseSecureUpstreamServers(String servers, int defaultPort) {
+        List<SecureUpstreamPool.Endpoint> parsed = new ArrayList<>();
+        if (servers == null) {
+            return parsed;
+        }
+        for (String entry : servers.split(",")) {
+            entry = entry.trim();
+            int hash = entry.indexOf('#');
+            if (hash < 0) {
+                continue;
+            }
+            InetSocketAddress address = parseUpstreamServer(entry.substring(0, hash).trim(), defaultPort);
+            String name = entry.substring(hash + 1).trim();
+            String path = DohUpstreamPool.DEFAULT_PATH;
+            int slash = name.indexOf('/');
+            if (slash >= 0) {
+                path = name.substring(slash);
+                name = name.substring(0, slash);
+            }
+            if (address == null || !isHostName(name)) {
+                continue;
+            }
+            SecureUpstreamPool.Endpoint endpoint = new SecureUpstreamPool.Endpoint(address,
+                    name.toLowerCase(Locale.ROOT), path);
+            if (!parsed.contains(endpoint)) {
+                parsed.add(endpoint);
+            }
+        }
+        return parsed;
+    }
+
+    private static boolean isHostName(String name) {
+        if (name.isEmpty() || name.length() > 253 || name.startsWith(".") || name.endsWith(".")) {
+            return false;
+        }
+        for (String label : name.split("\\.", -1)) {
+            if (label.isEmpty() || label.length() > 63 || label.startsWith("-") || label.endsWith("-")) {
+                return false;
+            }
+            for (int i = 0; i < label.length(); i++) {
+                char c = label.charAt(i);
+                if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '-') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a comma separated upstream list, skipping entries that are not
+     * IP literals so that nothing here needs a DNS lookup
+     */
+    static List<InetSocketAddress> parseUpstreamServers(String servers) {
+        List<InetSocketAddress> parsed = new ArrayList<>();
+        if (servers == null) {
+            return parsed;
+        }
+        for (String entry : servers.split(",")) {
+            InetSocketAddress address = parseUpstreamServer(entry.trim(), DNS_PORT);
+            if (address != null && !parsed.contains(address)) {
+                parsed.add(address);
+            }
+        }
+        return parsed;
+    }
+
+    private static InetSocketAddress parseUpstreamServer(String entry, int defaultPort) {
+        String host = entry;
+        int port = defaultPort;
+        int colon = entry.lastIndexOf(':');
+        if (entry.startsWith("[")) {
+            int close = entry.indexOf(']');
+            if (close < 0) {
+                return null;
+            }
+            host = entry.substring(1, close);
+            if (close + 1 < entry.length()) {
+                if (entry.charAt(close + 1) != ':') {
+                    return null;
+                }
+                port = parsePort(entry.substring(close + 2));
+            }
+        } else if (colon >= 0 && entry.indexOf(':') == colon) {
+            // One colon is an IPv4 address with a port; more is bare IPv6
+            host = entry.substring(0, colon);
+            port = parsePort(entry.substring(colon + 1));
+        }
+        if (host.isEmpty() || port < 0) {
+            return null;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (Character.digit(c, 16) < 0 && c != '.' && c != ':') {
+                return null;
+            }
+        }
+        if (host.indexOf(':') < 0 && !isIpv4Literal(host)) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static boolean isIpv4Literal(String host) {
+        String[] octets = host.split("\\.", -1);
+        if (octets.length != 4) {
+            return false;
+        }
+        for (String octet : octets) {
+            if (octet.isEmpty() || octet.length() > 3) {
+                return false;
+            }
+            for (int i = 0; i < octet.length(); i++) {
+                if (octet.charAt(i) < '0' || octet.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            if (Integer.parseInt(octet) > 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parsePort(String port) {
+        try {
+            int value = Integer.parseInt(port);
+            return value > 0 && value <= 0xFFFF ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
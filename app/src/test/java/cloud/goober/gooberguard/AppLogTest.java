@@ -0,0 +1,55 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class AppLogTest {
+    @After
+    public void tearDown() {
+        AppLog.setSink(null);
+    }
+
+    @Test
+    public void testMessagesGoToInstalledSink() {
+        AppLog.Sink sink = mock(AppLog.Sink.class);
+        AppLog.setSink(sink);
+        Exception error = new RuntimeException("boom");
+
+        AppLog.d("Tag", "debug message");
+        AppLog.w("Tag", "warning message", error);
+        AppLog.e("Tag", "error message", error);
+        AppLog.e("Tag", "bare error");
+
+        verify(sink).debug("Tag", "debug message");
+        verify(sink).warn("Tag", "warning message", error);
+        verify(sink).error("Tag", "error message", error);
+        verify(sink).error("Tag", "bare error", null);
+    }
+
+    @Test
+    public void testParserErrorsGoThroughAppLog() {
+        AppLog.Sink sink = mock(AppLog.Sink.class);
+        AppLog.setSink(sink);
+
+        assertFalse(DnsPacketParser.isDnsQuery(null));
+
+        verify(sink).error(eq("DnsPacketParser"), anyString(), any(NullPointerException.class));
+    }
+
+    @Test
+    public void testNullRestoresDefaultSink() {
+        AppLog.setSink(mock(AppLog.Sink.class));
+        AppLog.setSink(null);
+        // The default sink drops debug messages and must not throw
+        AppLog.d("Tag", "dropped");
+        AppLog.w("Tag", "printed", null);
+        AppLog.e("Tag", "printed", null);
+    }
+}
@@ -0,0 +1,115 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+public class AppRulesTest {
+    private static final int BROWSER = 10123;
+    private static final int SOCIAL = 10456;
+    private static final int OTHER = 10789;
+
+    @Test
+    public void testAppRulesOverrideGlobalList() {
+        Blocklist global = blocklist("instagram.com", "ads.example.com").withAppRules(rules());
+
+        // The browser blocks social sites, the social app allows its own
+        // domain, everyone else gets the global list
+        assertTrue(global.matches(BROWSER, question("www.facebook.com")));
+        assertFalse(global.matches(OTHER, question("www.facebook.com")));
+        assertFalse(global.matches(SOCIAL, question("i.instagram.com")));
+        assertTrue(global.matches(BROWSER, question("i.instagram.com")));
+        assertTrue(global.matches(OTHER, question("i.instagram.com")));
+        assertTrue(global.matches(FlowUidCache.UNKNOWN_UID, "instagram.com"));
+
+        // Names the app's rules say nothing about fall through
+        assertTrue(global.matches(SOCIAL, question("ads.example.com")));
+        assertFalse(global.matches(BROWSER, question("example.org")));
+        assertTrue(global.matches(BROWSER, "tracker.social.example"));
+    }
+
+    @Test
+    public void testAppsWithoutRulesShareGlobalList() {
+        AppRules rules = rules();
+
+        assertEquals(2, rules.size());
+        assertArrayEquals(new int[]{BROWSER, SOCIAL}, rules.getUids());
+        assertNull(rules.forUid(OTHER));
+        assertNotNull(rules.forUid(BROWSER));
+        assertSame(AppRules.empty(), AppRules.compile(Collections.singletonMap(OTHER, Blocklist.empty())));
+        assertSame(AppRules.empty(), Blocklist.empty().withAppRules(AppRules.empty()).getAppRules());
+    }
+
+    @Test
+    public void testMentionsOnlyNamesSomeAppHasRulesFor() {
+        Blocklist global = blocklist("ads.example.com").withAppRules(rules());
+
+        assertTrue(global.dependsOnApp(question("www.facebook.com")));
+        assertTrue(global.dependsOnApp(question("instagram.com")));
+        assertTrue(global.dependsOnApp(question("tracker.social.example")));
+        assertFalse(global.dependsOnApp(question("ads.example.com")));
+        assertFalse(global.dependsOnApp(question("example.org")));
+        assertFalse(blocklist("example.com").dependsOnApp(question("www.facebook.com")));
+    }
+
+    @Test
+    public void testHandlerLooksUpSenderOnlyForNamesWithAppRules() throws Exception {
+        Blocklist global = blocklist("instagram.com").withAppRules(rules());
+        AtomicInteger lookups = new AtomicInteger();
+        FlowUidCache uids = new FlowUidCache((protocol, local, remote) -> {
+            lookups.incrementAndGet();
+            return BROWSER;
+        });
+        List<ByteBuffer> forwarded = new ArrayList<>();
+        DnsPacketHandler handler = new DnsPacketHandler(() -> global, new DnsCache(), new DnsResponseBuilder(),
+                packet -> forwarded.add(packet), new LongAdder(), 1500);
+        handler.setUidCache(uids);
+        ByteBuffer reply = ByteBuffer.allocate(1500);
+
+        // Blocked for the browser
+        assertTrue(handler.handle(DnsTestPackets.queryPacket("m.facebook.com"), reply));
+        assertEquals(1, lookups.get());
+        // Nobody has rules for this name, so no lookup
+        assertFalse(handler.handle(DnsTestPackets.queryPacket("example.org"), reply));
+        assertEquals(1, lookups.get());
+        // Same flow again: answered from the cache
+        assertTrue(handler.handle(DnsTestPackets.queryPacket("i.instagram.com"), reply));
+        assertEquals(1, lookups.get());
+        assertEquals(1, uids.getHitCount());
+        assertEquals(1, forwarded.size());
+    }
+
+    private static AppRules rules() {
+        Map<Integer, Blocklist> byUid = new HashMap<>();
+        byUid.put(BROWSER, blocklist("facebook.com", "instagram.com", "*.social.example"));
+        byUid.put(SOCIAL, blocklist("@@instagram.com"));
+        byUid.put(OTHER, Blocklist.empty());
+        return AppRules.compile(byUid);
+    }
+
+    private static Blocklist blocklist(String... entries) {
+        List<String> domains = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        for (String entry : Arrays.asList(entries)) {
+            (PatternRules.isPattern(entry) ? patterns : domains).add(entry);
+        }
+        return new Blocklist(DomainTrie.compile(domains), Collections.emptyList(), Collections.emptyList(),
+                PatternRules.compile(patterns), null);
+    }
+
+    private static DnsQuestion question(String domain) {
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(domain), question));
+        return question;
+    }
+}
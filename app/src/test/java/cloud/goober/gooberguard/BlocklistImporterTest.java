@@ -0,0 +1,223 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BlocklistImporterTest {
+
+    @Test
+    public void testHostsFormat() throws Exception {
+        BlocklistImporter importer = importText(
+                "# Sample hosts file\n"
+                + "127.0.0.1 localhost\n"
+                + "::1 localhost ip6-localhost\n"
+                + "0.0.0.0 ads.example.com\n"
+                + "0.0.0.0\ttracker.example.net   metrics.example.org # inline comment\r\n"
+                + "127.0.0.1 Banner.Example.INFO.\n"
+                + "0.0.0.0 0.0.0.0\n");
+
+        assertEquals(set("ads.example.com", "tracker.example.net", "metrics.example.org",
+                "banner.example.info"), entries(importer));
+        assertEquals(4, importer.getAddedCount());
+        assertEquals(1, importer.getRejectedCount());
+        assertEquals(7, importer.getLineCount());
+    }
+
+    @Test
+    public void testPlainList() throws Exception {
+        BlocklistImporter importer = importText(
+                "example.com\n"
+                + "  spaced.example.net  \n"
+                + "\n"
+                + "not a domain\n"
+                + "bad!chars.com\n"
+                + "trailing.example.org # why it is here");
+
+        assertEquals(set("example.com", "spaced.example.net", "trailing.example.org"), entries(importer));
+        assertEquals(2, importer.getRejectedCount());
+    }
+
+    @Test
+    public void testAdblockSyntax() throws Exception {
+        BlocklistImporter importer = importText(
+                "[Adblock Plus 2.0]\n"
+                + "! Title: sample\n"
+                + "||ads.example.com^\n"
+                + "||tracker.example.net^\n"
+                + "||example.org^$third-party\n"
+                + "||cdn.example.org/banner.js\n"
+                + "||*.wildcard.example^\n"
+                + "@@||allowed.example.com^\n"
+                + "@@plain.example.org\n"
+                + "@@||options.example.com^$document\n"
+                + "@@||*.wildcard.example^\n");
+
+        assertEquals(set("ads.example.com", "tracker.example.net", "@@allowed.example.com", "@@plain.example.org"),
+                entries(importer));
+        // Wildcards are kept as pattern rules
+        assertEquals(set("*.wildcard.example"), importer.getPatterns());
+        assertEquals(4, importer.getRejectedCount());
+    }
+
+    @Test
+    public void testPatternLines() throws Exception {
+        BlocklistImporter importer = new BlocklistImporter(Arrays.asList("old.example.com", "/^old[0-9]+\\./"));
+        importer.read(new ByteArrayInputStream((
+                "ads*.example.com\n"
+                + "/^track[0-9]+\\./\n"
+                + "/^track[0-9]+\\./\n"
+                + "/unclosed[/\n").getBytes(StandardCharsets.UTF_8)), null);
+        importer.compile();
+
+        assertEquals(set("/^old[0-9]+\\./", "ads*.example.com", "/^track[0-9]+\\./"), importer.getPatterns());
+        assertEquals(2, importer.getAddedCount());
+        assertEquals(1, importer.getDuplicateCount());
+        assertEquals(1, importer.getRejectedCount());
+    }
+
+    @Test
+    public void testDeduplicatesAndDropsCoveredSubdomains() throws Exception {
+        BlocklistImporter importer = importText(
+                "www.example.com\n"
+                + "0.0.0.0 example.com\n"
+                + "||EXAMPLE.com^\n"
+                + "cdn.ads.example.net\n"
+                + "ads.example.net\n"
+                + "other.example.net\n");
+
+        assertEquals(set("example.com", "ads.example.net", "other.example.net"), entries(importer));
+        assertEquals(1, importer.getDuplicateCount());
+        assertEquals(2, importer.getCoveredCount());
+        assertEquals(3, importer.getAddedCount());
+    }
+
+    @Test
+    public void testExistingEntriesAreKept() throws Exception {
+        BlocklistImporter importer = new BlocklistImporter(Arrays.asList("instagram.com", "www.instagram.com"));
+        importer.read(stream("instagram.com\napi.instagram.com\nfacebook.com\n"), null);
+        DomainTrie trie = importer.compile();
+
+        // Existing nested entries stay on the list; imported ones are pruned
+        assertEquals(set("instagram.com", "www.instagram.com", "facebook.com"), new HashSet<>(trie.entries()));
+        assertEquals(1, importer.getDuplicateCount());
+        assertEquals(1, importer.getCoveredCount());
+        assertEquals(1, importer.getAddedCount());
+        assertTrue(trie.matches("x.api.instagram.com"));
+    }
+
+    @Test
+    public void testLinesSplitAcrossReads() throws Exception {
+        StringBuilder text = new StringBuilder();
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 20000; i++) {
+            String domain = "host" + i + ".example" + (i % 7) + ".com";
+            text.append("0.0.0.0 ").append(domain).append('\n');
+            expected.add(domain);
+        }
+
+        BlocklistImporter importer = new BlocklistImporter(Collections.emptyList());
+        importer.read(new TrickleInputStream(text.toString().getBytes(StandardCharsets.US_ASCII)), null);
+
+        assertEquals(expected, new HashSet<>(importer.compile().entries()));
+    }
+
+    @Test
+    public void testOverlongLineIsSkipped() throws Exception {
+        char[] junk = new char[200000];
+        Arrays.fill(junk, 'x');
+        BlocklistImporter importer = importText("first.com\n" + new String(junk) + "\nsecond.com\n");
+
+        assertEquals(set("first.com", "second.com"), entries(importer));
+        assertEquals(3, importer.getLineCount());
+    }
+
+    @Test
+    public void testReportsProgress() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 25000; i++) {
+            text.append("d").append(i).append(".example.com\n");
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+
+        List<Long> progress = new ArrayList<>();
+        long[] lastBytes = new long[1];
+        BlocklistImporter importer = new BlocklistImporter(Collections.emptyList());
+        importer.read(stream(text.toString()), (lines, bytesRead) -> {
+            progress.add(lines);
+            lastBytes[0] = bytesRead;
+        });
+
+        assertEquals(Arrays.asList(10000L, 20000L, 25000L), progress);
+        assertEquals(bytes.length, lastBytes[0]);
+    }
+
+    @Test
+    public void testLargeHostsFile() throws Exception {
+        // Hosts file with comments, duplicates and covered subdomains
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            if (i % 10 == 0) {
+                text.append("# section ").append(i).append('\n');
+            } else if (i % 10 == 1) {
+                text.append("0.0.0.0 tracker").append(i / 10 % 100).append(".net\n");
+            } else {
+                text.append("0.0.0.0 host").append(i).append(".tracker").append(i % 200).append(".net\n");
+            }
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+
+        BlocklistImporter importer = new BlocklistImporter(Collections.emptyList());
+        importer.read(new ByteArrayInputStream(bytes), null);
+        DomainTrie trie = importer.compile();
+
+        assertEquals(20000, importer.getLineCount());
+        // tracker0-99.net cover half of the host entries
+        assertEquals(100 + 8000, trie.size());
+        assertEquals(8000, importer.getCoveredCount());
+        assertEquals(1900, importer.getDuplicateCount());
+    }
+
+    private static BlocklistImporter importText(String text) throws IOException {
+        BlocklistImporter importer = new BlocklistImporter(Collections.emptyList());
+        importer.read(stream(text), null);
+        return importer;
+    }
+
+    private static Set<String> entries(BlocklistImporter importer) {
+        return new HashSet<>(importer.compile().entries());
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static Set<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    /**
+     * Returns at most 7 bytes per read so lines straddle buffer refills
+     */
+    private static final class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 7));
+        }
+    }
+}
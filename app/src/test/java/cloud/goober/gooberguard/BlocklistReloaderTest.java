@@ -0,0 +1,373 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BlocklistReloaderTest {
+
+    private BlocklistReloader reloader;
+
+    @After
+    public void tearDown() {
+        if (reloader != null) {
+            reloader.close();
+        }
+    }
+
+    @Test
+    public void testReloadSwapsInNewSnapshot() throws Exception {
+        reloader = new BlocklistReloader(blocklist("old.example.com"), () -> blocklist("new.example.com"));
+        assertTrue(reloader.get().matches("old.example.com"));
+
+        reloader.requestReload();
+        awaitSwaps(1);
+
+        assertTrue(reloader.get().matches("new.example.com"));
+        assertFalse(reloader.get().matches("old.example.com"));
+    }
+
+    @Test
+    public void testOldSnapshotServesLookupsWhileLoading() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Blocklist initial = blocklist("old.example.com");
+        reloader = new BlocklistReloader(initial, () -> {
+            loading.countDown();
+            awaitRelease(release);
+            return blocklist("new.example.com");
+        });
+
+        reloader.requestReload();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        // The loader is stuck; lookups are still answered from the old list
+        for (int i = 0; i < 1000; i++) {
+            assertSame(initial, reloader.get());
+        }
+
+        release.countDown();
+        awaitSwaps(1);
+        assertTrue(reloader.get().matches("new.example.com"));
+    }
+
+    @Test
+    public void testFailedLoadKeepsCurrentSnapshot() throws Exception {
+        Blocklist initial = blocklist("example.com");
+        reloader = new BlocklistReloader(initial, () -> {
+            throw new IOException("disk gone");
+        });
+
+        reloader.requestReload();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reloader.getFailureCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, reloader.getFailureCount());
+        assertSame(initial, reloader.get());
+    }
+
+    @Test
+    public void testRequestsDuringLoadAreCoalesced() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        reloader = new BlocklistReloader(Blocklist.empty(), () -> {
+            loads.incrementAndGet();
+            awaitRelease(release);
+            return blocklist("example.com");
+        });
+
+        reloader.requestReload();
+        while (loads.get() == 0) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 100; i++) {
+            reloader.requestReload();
+        }
+        release.countDown();
+        awaitSwaps(2);
+        Thread.sleep(50);
+
+        // The first load, plus one more for everything asked for during it
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testPacketLoopNeverSeesHalfBuiltMatcher() throws Exception {
+        // Two large lists, each with its own marker domain; every snapshot a
+        // reader sees must be exactly one of them
+        int entries = 200000;
+        List<String> listA = new ArrayList<>(entries);
+        List<String> listB = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            listA.add("a" + i + ".example.com");
+            listB.add("b" + i + ".example.net");
+        }
+        listA.add("marker-a.test");
+        listB.add("marker-b.test");
+
+        AtomicInteger loadCount = new AtomicInteger();
+        reloader = new BlocklistReloader(blocklist(listA), () ->
+                blocklist(loadCount.incrementAndGet() % 2 == 0 ? listA : listB));
+
+        DnsQuestion markerA = question("marker-a.test");
+        DnsQuestion markerB = question("marker-b.test");
+        DnsQuestion probe = question("x.a1234.example.com");
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        AtomicLong lookups = new AtomicLong();
+        Thread packetLoop = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted() && failure.get() == null) {
+                Blocklist snapshot = reloader.get();
+                boolean isA = snapshot.matches(markerA);
+                boolean isB = snapshot.matches(markerB);
+                if (isA == isB || snapshot.size() != entries + 1 || snapshot.matches(probe) != isA) {
+                    failure.set("Inconsistent snapshot: a=" + isA + " b=" + isB + " size=" + snapshot.size());
+                }
+                lookups.incrementAndGet();
+            }
+        }, "PacketLoop");
+        packetLoop.start();
+
+        int swaps = 6;
+        for (int i = 1; i <= swaps; i++) {
+            reloader.requestReload();
+            awaitSwaps(i);
+        }
+        packetLoop.interrupt();
+        packetLoop.join(5000);
+
+        assertNull(failure.get(), failure.get());
+        assertTrue(lookups.get() > swaps);
+    }
+
+    private void awaitSwaps(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (reloader.getSwapCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("Timed out waiting for swap " + count, reloader.getSwapCount() >= count);
+    }
+
+    @Test
+    public void testScheduleBoundarySwapsPrecompiledSnapshot() throws Exception {
+        // A tenth of a second before a Monday 09:00 boundary
+        LocalDateTime before = LocalDateTime.of(2026, 10, 19, 8, 59, 59, 900_000_000);
+        Clock clock = Clock.fixed(before.toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+        ScheduledRules rules = ScheduledRules.of(Collections.singletonList(new ScheduledRules.Group("work",
+                RuleSchedule.parse("Mon-Fri 09:00-17:00"), Collections.singletonList("instagram.com"))));
+        DnsCache cache = new DnsCache();
+        cache.put(DnsCacheTest.answer(1, "i.instagram.com"), 0, DnsCacheTest.answerLength("i.instagram.com"));
+        cache.put(DnsCacheTest.answer(2, "example.com"), 0, DnsCacheTest.answerLength("example.com"));
+        Blocklist base = blocklist("ads.example.com");
+        reloader = new BlocklistReloader(base, rules, () -> base, () -> rules, clock);
+        reloader.setCache(cache);
+        assertSame(base, reloader.get());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (reloader.getBoundaryCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, reloader.getBoundaryCount());
+        assertTrue(reloader.get().matches(question("i.instagram.com")));
+        assertTrue(reloader.get().matches(question("ads.example.com")));
+        // The cached answer for the newly blocked name is gone
+        assertEquals(1, cache.size());
+        assertFalse(cache.get(DnsCacheTest.question(3, "i.instagram.com", DnsQuestion.TYPE_A), ByteBuffer.allocate(1500)));
+    }
+
+    @Test
+    public void testRescheduleUsesCurrentTimeZone() throws Exception {
+        // 2026-10-19 06:00 UTC: morning in London, afternoon in Tokyo
+        Instant instant = LocalDateTime.of(2026, 10, 19, 6, 0).toInstant(ZoneOffset.UTC);
+        ZoneClock clock = new ZoneClock(instant, ZoneId.of("Europe/London"));
+        ScheduledRules rules = ScheduledRules.of(Collections.singletonList(new ScheduledRules.Group("mornings",
+                RuleSchedule.parse("daily 06:00-12:00"), Collections.singletonList("instagram.com"))));
+        Blocklist base = blocklist("ads.example.com");
+        reloader = new BlocklistReloader(base, rules, () -> base, () -> rules, clock);
+        assertTrue(reloader.get().matches("instagram.com"));
+
+        clock.zone = ZoneId.of("Asia/Tokyo");
+        reloader.requestReschedule();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (reloader.get().matches("instagram.com") && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(reloader.get().matches("instagram.com"));
+    }
+
+    @Test
+    public void testBoundaryListenerToldNextBoundary() throws Exception {
+        Instant instant = LocalDateTime.of(2026, 10, 19, 6, 0).toInstant(ZoneOffset.UTC);
+        ZoneClock clock = new ZoneClock(instant, ZoneOffset.UTC);
+        ScheduledRules rules = ScheduledRules.of(Collections.singletonList(new ScheduledRules.Group("mornings",
+                RuleSchedule.parse("daily 06:00-12:00"), Collections.singletonList("instagram.com"))));
+        Blocklist base = blocklist("ads.example.com");
+        reloader = new BlocklistReloader(base, rules, () -> base, () -> rules, clock);
+        AtomicLong next = new AtomicLong();
+        CountDownLatch told = new CountDownLatch(1);
+        reloader.setBoundaryListener(epochMillis -> {
+            next.set(epochMillis);
+            told.countDown();
+        });
+
+        reloader.requestReschedule();
+
+        assertTrue(told.await(5, TimeUnit.SECONDS));
+        assertEquals(LocalDateTime.of(2026, 10, 19, 12, 0).toInstant(ZoneOffset.UTC).toEpochMilli(), next.get());
+        // Nothing changed, so the groups were not swapped again
+        assertEquals(0, reloader.getBoundaryCount());
+    }
+
+    @Test
+    public void testUnchangedRescheduleKeepsPrecompiledSnapshot() throws Exception {
+        Instant instant = LocalDateTime.of(2026, 10, 19, 6, 0).toInstant(ZoneOffset.UTC);
+        ZoneClock clock = new ZoneClock(instant, ZoneOffset.UTC);
+        ScheduledRules rules = ScheduledRules.of(Collections.singletonList(new ScheduledRules.Group("mornings",
+                RuleSchedule.parse("daily 06:00-12:00"), Collections.singletonList("instagram.com"))));
+        Blocklist base = blocklist("ads.example.com");
+        reloader = new BlocklistReloader(base, rules, () -> base, () -> rules, clock);
+        AtomicLong told = new AtomicLong();
+        reloader.setBoundaryListener(epochMillis -> told.incrementAndGet());
+
+        // The constructor's own scheduling may or may not have been told,
+        // so count from after the first reschedule
+        reloader.requestReschedule();
+        awaitCount(told, 1);
+        long start = told.get();
+        // As after every screen-on and unlock
+        for (int i = 1; i <= 5; i++) {
+            reloader.requestReschedule();
+            awaitCount(told, start + i);
+        }
+
+        assertEquals(1, reloader.getPrecompileCount());
+        assertEquals(0, reloader.getBoundaryCount());
+
+        // Another zone puts the next boundary elsewhere, so the snapshot
+        // is compiled again
+        clock.zone = ZoneId.of("Asia/Tokyo");
+        reloader.requestReschedule();
+        awaitCount(told, start + 6);
+        assertEquals(2, reloader.getPrecompileCount());
+    }
+
+    @Test
+    public void testFirstLoadFromEmptyStartBringsInScheduledGroups() throws Exception {
+        Instant instant = LocalDateTime.of(2026, 10, 19, 7, 0).toInstant(ZoneOffset.UTC);
+        ZoneClock clock = new ZoneClock(instant, ZoneOffset.UTC);
+        ScheduledRules rules = ScheduledRules.of(Collections.singletonList(new ScheduledRules.Group("mornings",
+                RuleSchedule.parse("daily 06:00-12:00"), Collections.singletonList("instagram.com"))));
+        CountDownLatch release = new CountDownLatch(1);
+        reloader = new BlocklistReloader(Blocklist.empty(), ScheduledRules.empty(), () -> {
+            awaitRelease(release);
+            return blocklist("ads.example.com");
+        }, () -> rules, clock);
+        AtomicLong next = new AtomicLong();
+        reloader.setBoundaryListener(next::set);
+
+        // Nothing is blocked while the stored list is still loading
+        reloader.requestReload();
+        assertEquals(0, reloader.get().size());
+        assertFalse(reloader.get().matches("ads.example.com"));
+
+        release.countDown();
+        awaitSwaps(1);
+        assertTrue(reloader.get().matches("ads.example.com"));
+        assertTrue(reloader.get().matches("instagram.com"));
+        assertEquals(LocalDateTime.of(2026, 10, 19, 12, 0).toInstant(ZoneOffset.UTC).toEpochMilli(), next.get());
+    }
+
+    @Test
+    public void testDefaultZoneClockFollowsDefaultZone() {
+        TimeZone saved = TimeZone.getDefault();
+        try {
+            Clock clock = BlocklistReloader.defaultZoneClock();
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+            assertEquals(ZoneId.of("Asia/Tokyo"), clock.getZone());
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            assertEquals(ZoneId.of("America/New_York"), clock.getZone());
+        } finally {
+            TimeZone.setDefault(saved);
+        }
+    }
+
+    private static void awaitCount(AtomicLong counter, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (counter.get() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("Timed out waiting for " + count, counter.get() >= count);
+    }
+
+    private static void awaitRelease(CountDownLatch release) throws IOException {
+        try {
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static Blocklist blocklist(String domain) {
+        return blocklist(Collections.singletonList(domain));
+    }
+
+    private static Blocklist blocklist(List<String> domains) {
+        return new Blocklist(DomainTrie.compile(domains), Collections.emptyList(), Collections.emptyList());
+    }
+
+    private static DnsQuestion question(String domain) {
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(domain), question));
+        return question;
+    }
+
+    /**
+     * Fixed instant in a zone that can be changed under the reloader
+     */
+    private static final class ZoneClock extends Clock {
+        private final Instant instant;
+        volatile ZoneId zone;
+
+        ZoneClock(Instant instant, ZoneId zone) {
+            this.instant = instant;
+            this.zone = zone;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return zone;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return new ZoneClock(instant, zone);
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
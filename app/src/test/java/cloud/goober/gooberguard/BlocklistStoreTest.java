@@ -0,0 +1,297 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BlocklistStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BlocklistStore store;
+
+    @Before
+    public void setUp() {
+        store = new BlocklistStore(folder.getRoot());
+    }
+
+    @Test
+    public void testEmptyStore() throws Exception {
+        assertFalse(store.exists());
+        Blocklist blocklist = store.load();
+        assertEquals(0, blocklist.size());
+        assertFalse(blocklist.matches("example.com"));
+    }
+
+    @Test
+    public void testMappedImageMatchesCompiledTrie() throws Exception {
+        Random random = new Random(7);
+        Set<String> domains = new HashSet<>();
+        for (int i = 0; i < 5000; i++) {
+            domains.add(randomDomain(random));
+        }
+        store.write(domains);
+
+        DomainTrie compiled = DomainTrie.compile(domains);
+        Blocklist mapped = store.load();
+        assertEquals(domains.size(), mapped.size());
+        assertEquals(domains, new HashSet<>(mapped.entries()));
+
+        DnsQuestion question = new DnsQuestion();
+        List<String> probes = new ArrayList<>(domains);
+        for (int i = 0; i < 5000; i++) {
+            probes.add(randomDomain(random));
+            probes.add("sub." + probes.get(random.nextInt(probes.size())));
+        }
+        for (String probe : probes) {
+            assertEquals(probe, compiled.matches(probe), mapped.matches(probe));
+            assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(probe), question));
+            assertEquals(probe, compiled.matches(probe), mapped.matches(question));
+        }
+    }
+
+    @Test
+    public void testPrefilteredStoreGivesSameResults() throws Exception {
+        Random random = new Random(11);
+        Set<String> domains = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            domains.add(randomDomain(random));
+        }
+        // An allow entry below a blocked one must still win through the filter
+        String allowed = "www." + domains.iterator().next();
+        domains.add("@@" + allowed);
+        store.write(domains);
+        store.add("logged.example.com");
+
+        Blocklist plain = store.load();
+        Blocklist filtered = new BlocklistStore(folder.getRoot(), 0.01).load();
+        assertNull(plain.getFilter());
+        assertNotNull(filtered.getFilter());
+        assertEquals(domains.size(), filtered.getFilter().getEntryCount());
+
+        DnsQuestion question = new DnsQuestion();
+        List<String> probes = new ArrayList<>(domains);
+        probes.remove("@@" + allowed);
+        probes.add(allowed);
+        probes.add("logged.example.com");
+        for (int i = 0; i < 2000; i++) {
+            probes.add(randomDomain(random));
+            probes.add("sub." + probes.get(random.nextInt(probes.size())));
+        }
+        assertFalse(filtered.matches(allowed));
+        for (String probe : probes) {
+            assertEquals(probe, plain.matches(probe), filtered.matches(probe));
+            assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(probe), question));
+            assertEquals(probe, plain.matches(question), filtered.matches(question));
+        }
+    }
+
+    @Test
+    public void testEditsAreLoggedAndReplayed() throws Exception {
+        store.write(Arrays.asList("instagram.com", "api.instagram.com", "facebook.com"));
+        long imageLength = imageFile().length();
+
+        store.add("Example.ORG.");
+        store.remove("instagram.com");
+        store.remove("not-listed.com");
+
+        // Edits only append to the log
+        assertEquals(imageLength, imageFile().length());
+
+        Blocklist blocklist = new BlocklistStore(folder.getRoot()).load();
+        assertEquals(new HashSet<>(Arrays.asList("api.instagram.com", "facebook.com", "example.org")),
+                new HashSet<>(blocklist.entries()));
+        assertEquals(3, blocklist.size());
+        assertTrue(blocklist.matches("www.example.org"));
+        assertTrue(blocklist.matches("v1.api.instagram.com"));
+        assertFalse(blocklist.matches("instagram.com"));
+        assertFalse(blocklist.matches("www.instagram.com"));
+        assertTrue(blocklist.contains("example.org"));
+        assertFalse(blocklist.contains("www.example.org"));
+
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("WWW.Instagram.com"), question));
+        assertFalse(blocklist.matches(question));
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("cdn.example.org"), question));
+        assertTrue(blocklist.matches(question));
+    }
+
+    @Test
+    public void testReAddingCancelsRemoval() throws Exception {
+        store.write(Arrays.asList("example.com"));
+        store.remove("example.com");
+        assertFalse(store.load().matches("example.com"));
+
+        store.add("example.com");
+        Blocklist blocklist = store.load();
+        assertTrue(blocklist.matches("example.com"));
+        assertEquals(1, blocklist.size());
+        assertEquals(0, blocklist.pendingEdits());
+    }
+
+    @Test
+    public void testCompactFoldsLogIntoImage() throws Exception {
+        store.write(Arrays.asList("a.com", "b.com"));
+        store.add("c.com");
+        store.remove("a.com");
+
+        store.compact();
+
+        assertFalse(logFile().exists());
+        Blocklist blocklist = store.load();
+        assertEquals(0, blocklist.pendingEdits());
+        assertEquals(new HashSet<>(Arrays.asList("b.com", "c.com")), new HashSet<>(blocklist.entries()));
+    }
+
+    @Test
+    public void testLargeLogIsCompacted() throws Exception {
+        store.write(new ArrayList<>());
+        int count = 0;
+        while (!logFileIsEmptyAfterEdit(count)) {
+            count++;
+        }
+
+        Blocklist blocklist = store.load();
+        assertEquals(count + 1, blocklist.size());
+        assertEquals(0, blocklist.pendingEdits());
+        assertTrue(blocklist.matches("host0.example.com"));
+    }
+
+    @Test
+    public void testTornLogRecordIsIgnoredAndRepaired() throws Exception {
+        store.write(Arrays.asList("example.com"));
+        store.add("first.com");
+        try (FileOutputStream log = new FileOutputStream(logFile(), true)) {
+            // An add record that claims 20 name bytes but was cut off
+            log.write(new byte[] {1, 20, 'p', 'a', 'r'});
+        }
+
+        assertEquals(2, store.load().size());
+
+        store.add("second.com");
+        Blocklist blocklist = store.load();
+        assertTrue(blocklist.contains("first.com"));
+        assertTrue(blocklist.contains("second.com"));
+        assertEquals(3, blocklist.size());
+    }
+
+    @Test
+    public void testAllowEntriesAreLoggedAndReplayed() throws Exception {
+        store.write(Arrays.asList("instagram.com", "@@static.instagram.com", "*.instagram.com"));
+        store.add("@@cdn.instagram.com");
+        store.add("ads.cdn.instagram.com");
+        store.remove("@@static.instagram.com");
+
+        Blocklist blocklist = new BlocklistStore(folder.getRoot()).load();
+        assertEquals(new HashSet<>(Arrays.asList("instagram.com", "*.instagram.com", "@@cdn.instagram.com",
+                "ads.cdn.instagram.com")), new HashSet<>(blocklist.entries()));
+        assertTrue(blocklist.matches("static.instagram.com"));
+        assertTrue(blocklist.contains("@@cdn.instagram.com"));
+        assertFalse(blocklist.contains("cdn.instagram.com"));
+
+        // The allow entry overrides both the parent entry and the wildcard,
+        // but not a more specific block entry
+        assertFalse(blocklist.matches("img.cdn.instagram.com"));
+        assertTrue(blocklist.isAllowed("img.cdn.instagram.com"));
+        assertTrue(blocklist.matches("x.ads.cdn.instagram.com"));
+        assertFalse(blocklist.isAllowed("x.ads.cdn.instagram.com"));
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("img.cdn.instagram.com"), question));
+        assertFalse(blocklist.matches(question));
+
+        store.compact();
+        assertEquals(new HashSet<>(blocklist.entries()), new HashSet<>(store.load().entries()));
+    }
+
+    @Test
+    public void testPatternRulesAreStoredSeparately() throws Exception {
+        store.write(Arrays.asList("example.com", "ads*.example.net"));
+        store.add("/^track[0-9]+\\./");
+        store.add("/unclosed[/");
+        store.remove("ads*.example.net");
+
+        assertTrue(rulesFile().exists());
+        Blocklist blocklist = new BlocklistStore(folder.getRoot()).load();
+        assertEquals(new HashSet<>(Arrays.asList("example.com", "/^track[0-9]+\\./")),
+                new HashSet<>(blocklist.entries()));
+        assertEquals(0, blocklist.pendingEdits());
+        assertTrue(blocklist.contains("/^track[0-9]+\\./"));
+        assertTrue(blocklist.matches("track7.cdn.org"));
+        assertFalse(blocklist.matches("ads1.example.net"));
+
+        // The trie is checked first; patterns only see names it missed
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("track1.other.org"), question));
+        assertTrue(blocklist.matches(question));
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("www.example.com"), question));
+        assertTrue(blocklist.matches(question));
+
+        store.compact();
+        assertEquals(new HashSet<>(blocklist.entries()), new HashSet<>(store.load().entries()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptImageIsRejected() throws Exception {
+        store.write(Arrays.asList("example.com"));
+        try (RandomAccessFile image = new RandomAccessFile(imageFile(), "rw")) {
+            image.writeInt(0x12345678);
+        }
+        store.load();
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedImageIsRejected() throws Exception {
+        store.write(Arrays.asList("example.com", "example.org"));
+        try (RandomAccessFile image = new RandomAccessFile(imageFile(), "rw")) {
+            image.setLength(image.length() - 1);
+        }
+        store.load();
+    }
+
+    private boolean logFileIsEmptyAfterEdit(int index) throws IOException {
+        store.add("host" + index + ".example.com");
+        return !logFile().exists();
+    }
+
+    private File imageFile() {
+        return new File(folder.getRoot(), BlocklistStore.IMAGE_FILE_NAME);
+    }
+
+    private File rulesFile() {
+        return new File(folder.getRoot(), BlocklistStore.RULES_FILE_NAME);
+    }
+
+    private File logFile() {
+        return new File(folder.getRoot(), BlocklistStore.LOG_FILE_NAME);
+    }
+
+    private static String randomDomain(Random random) {
+        StringBuilder domain = new StringBuilder();
+        int labels = 2 + random.nextInt(3);
+        for (int i = 0; i < labels; i++) {
+            if (i > 0) {
+                domain.append('.');
+            }
+            int length = 1 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                domain.append((char) ('a' + random.nextInt(4)));
+            }
+        }
+        return domain.toString();
+    }
+}
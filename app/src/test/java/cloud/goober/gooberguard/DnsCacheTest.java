@@ -0,0 +1,291 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsCacheTest {
+
+    private static final int TYPE_SOA = 6;
+
+    private final ByteBuffer out = ByteBuffer.allocate(1500);
+
+    @Test
+    public void testHitRewritesTransactionIdAndCountsDownTtl() {
+        DnsCache cache = new DnsCache();
+        cache.put(answer(0x1111, "example.com"), 0, answerLength("example.com"), 0);
+
+        assertTrue(cache.get(question(0x2222, "example.com", DnsQuestion.TYPE_A), out, 10_000));
+        assertEquals(0x2222, out.getShort(0) & 0xFFFF);
+        assertEquals(1, out.getShort(6) & 0xFFFF);
+        assertEquals(StubResolver.ANSWER_TTL - 10, out.getInt(out.limit() - 10));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testEntryExpiresAfterMinimumTtl() {
+        DnsCache cache = new DnsCache();
+        cache.put(answer(1, "example.com"), 0, answerLength("example.com"), 0);
+
+        assertTrue(cache.get(question(1, "example.com", DnsQuestion.TYPE_A), out, StubResolver.ANSWER_TTL * 1000L - 1));
+        assertFalse(cache.get(question(1, "example.com", DnsQuestion.TYPE_A), out, StubResolver.ANSWER_TTL * 1000L));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testKeyIncludesTypeAndIgnoresCase() {
+        DnsCache cache = new DnsCache();
+        cache.put(answer(1, "example.com"), 0, answerLength("example.com"), 0);
+
+        assertFalse(cache.get(question(1, "example.com", DnsQuestion.TYPE_AAAA), out, 0));
+        assertTrue(cache.get(question(1, "ExAmPlE.com", DnsQuestion.TYPE_A), out, 0));
+        // The client's own question bytes are echoed back
+        DnsQuestion echoed = new DnsQuestion();
+        assertTrue(echoed.parse(out, 0));
+        assertEquals('E', out.get(echoed.labelOffset(0)));
+    }
+
+    @Test
+    public void testNxdomainCachedForSoaMinimum() {
+        DnsCache cache = new DnsCache();
+        ByteBuffer response = negativeResponse("gone.example.com", 3, 3600, 60);
+        cache.put(response, 0, response.limit(), 0);
+
+        assertTrue(cache.get(question(5, "gone.example.com", DnsQuestion.TYPE_A), out, 59_000));
+        assertEquals(3, out.getShort(2) & 0x000F);
+        assertFalse(cache.get(question(5, "gone.example.com", DnsQuestion.TYPE_A), out, 60_000));
+    }
+
+    @Test
+    public void testNodataCachedForSoaTtl() {
+        DnsCache cache = new DnsCache();
+        ByteBuffer response = negativeResponse("v4only.example.com", 0, 30, 900);
+        cache.put(response, 0, response.limit(), 0);
+
+        assertTrue(cache.get(question(5, "v4only.example.com", DnsQuestion.TYPE_A), out, 29_000));
+        assertFalse(cache.get(question(5, "v4only.example.com", DnsQuestion.TYPE_A), out, 30_000));
+    }
+
+    @Test
+    public void testNegativeAnswerWithoutSoaNotCached() {
+        DnsCache cache = new DnsCache();
+        byte[] query = DnsTestPackets.dnsQuery(1, DnsTestPackets.encodeName("gone.example.com"), 1, 1);
+        query[2] = (byte) 0x81;
+        query[3] = (byte) 0x83; // NXDOMAIN
+        cache.put(ByteBuffer.wrap(query), 0, query.length, 0);
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFailuresAndTruncatedNotCached() {
+        DnsCache cache = new DnsCache();
+        ByteBuffer servfail = answer(1, "example.com");
+        servfail.put(3, (byte) 0x82);
+        cache.put(servfail, 0, answerLength("example.com"), 0);
+
+        ByteBuffer truncated = answer(1, "example.com");
+        truncated.put(2, (byte) (truncated.get(2) | 0x02));
+        cache.put(truncated, 0, answerLength("example.com"), 0);
+
+        ByteBuffer query = ByteBuffer.wrap(DnsTestPackets.dnsQuery(1, DnsTestPackets.encodeName("example.com"), 1, 1));
+        cache.put(query, 0, query.limit(), 0);
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLruEvictionWithinByteBudget() {
+        // Room for two entries only
+        DnsCache cache = new DnsCache(2 * (answerLength("a.example.com") + 15 + 96) + 10,
+                DnsCache.DEFAULT_MAX_TTL_SECONDS);
+        cache.put(answer(1, "a.example.com"), 0, answerLength("a.example.com"), 0);
+        cache.put(answer(1, "b.example.com"), 0, answerLength("b.example.com"), 0);
+
+        // Touch a so that b is the least recently used
+        assertTrue(cache.get(question(1, "a.example.com", DnsQuestion.TYPE_A), out, 0));
+        cache.put(answer(1, "c.example.com"), 0, answerLength("c.example.com"), 0);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(cache.sizeInBytes() <= 2 * (answerLength("a.example.com") + 15 + 96) + 10);
+        assertTrue(cache.get(question(1, "a.example.com", DnsQuestion.TYPE_A), out, 0));
+        assertFalse(cache.get(question(1, "b.example.com", DnsQuestion.TYPE_A), out, 0));
+        assertTrue(cache.get(question(1, "c.example.com", DnsQuestion.TYPE_A), out, 0));
+    }
+
+    @Test
+    public void testTtlCappedAtMaximum() {
+        DnsCache cache = new DnsCache(DnsCache.DEFAULT_MAX_BYTES, 5);
+        cache.put(answer(1, "example.com"), 0, answerLength("example.com"), 0);
+
+        assertTrue(cache.get(question(1, "example.com", DnsQuestion.TYPE_A), out, 4_999));
+        assertFalse(cache.get(question(1, "example.com", DnsQuestion.TYPE_A), out, 5_000));
+    }
+
+    @Test
+    public void testClear() {
+        DnsCache cache = new DnsCache();
+        cache.put(answer(1, "example.com"), 0, answerLength("example.com"), 0);
+        cache.clear();
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    @Test
+    public void testResponseMustRepeatQueryQuestion() {
+        DnsCache cache = new DnsCache();
+        DnsQuestion query = question(1, "www.Example.com", DnsQuestion.TYPE_A);
+
+        // A reply naming another domain is not cached under either name
+        cache.put(query, answer(1, "bank.example.net"), 0, answerLength("bank.example.net"));
+        assertEquals(0, cache.size());
+        cache.put(question(1, "www.example.com", DnsQuestion.TYPE_AAAA), answer(1, "www.example.com"), 0,
+                answerLength("www.example.com"));
+        assertEquals(0, cache.size());
+
+        // The right question in another case is fine
+        cache.put(query, answer(1, "www.example.com"), 0, answerLength("www.example.com"));
+        assertTrue(cache.get(question(2, "www.example.com", DnsQuestion.TYPE_A), out));
+    }
+
+    @Test
+    public void testRemoveIfDropsMatchingNames() {
+        DnsCache cache = new DnsCache();
+        cache.put(answer(1, "www.Instagram.com"), 0, answerLength("www.Instagram.com"), 0);
+        cache.put(answer(2, "example.com"), 0, answerLength("example.com"), 0);
+        int bytes = cache.sizeInBytes();
+
+        assertEquals(1, cache.removeIf(name -> name.endsWith("instagram.com")));
+
+        assertEquals(1, cache.size());
+        assertTrue(cache.sizeInBytes() < bytes);
+        assertFalse(cache.get(question(3, "www.instagram.com", DnsQuestion.TYPE_A), out, 0));
+        assertTrue(cache.get(question(4, "example.com", DnsQuestion.TYPE_A), out, 0));
+    }
+
+    @Test
+    public void testOptRecordRewrittenForEachQuery() {
+        DnsCache cache = new DnsCache();
+        DnsQuestion asked = ednsQuestion(1, "example.com", 4096, 0);
+        cache.put(asked, ednsAnswer(1, "example.com", 0), 0, answerLength("example.com") + 11);
+        assertEquals(1, cache.size());
+
+        // Stored without the upstream's OPT record
+        assertTrue(cache.get(question(2, "example.com", DnsQuestion.TYPE_A), out, 0));
+        assertEquals(answerLength("example.com"), out.limit());
+        assertEquals(0, out.getShort(10) & 0xFFFF);
+
+        // An EDNS client gets one of its own
+        assertTrue(cache.get(ednsQuestion(3, "example.com", 1232, 0), out, 0));
+        assertEquals(answerLength("example.com") + 11, out.limit());
+        assertEquals(1, out.getShort(10) & 0xFFFF);
+        assertEquals(41, out.getShort(out.limit() - 10) & 0xFFFF);
+        assertEquals(Edns.MAX_UDP_PAYLOAD, out.getShort(out.limit() - 8) & 0xFFFF);
+    }
+
+    @Test
+    public void testDnssecAnswersCachedApart() {
+        DnsCache cache = new DnsCache();
+        DnsQuestion asked = ednsQuestion(1, "example.com", 4096, Edns.FLAG_DO);
+        cache.put(asked, ednsAnswer(1, "example.com", Edns.FLAG_DO), 0, answerLength("example.com") + 11);
+
+        assertFalse(cache.get(question(2, "example.com", DnsQuestion.TYPE_A), out, 0));
+        assertFalse(cache.get(ednsQuestion(3, "example.com", 1232, 0), out, 0));
+        assertTrue(cache.get(ednsQuestion(4, "example.com", 1232, Edns.FLAG_DO), out, 0));
+        assertEquals(Edns.FLAG_DO, out.getShort(out.limit() - 4) & 0xFFFF);
+    }
+
+    @Test
+    public void testUdpHitCutToClientSize() {
+        // An answer as large as one fetched over TCP, padded past 512 bytes
+        int length = answerLength("example.com") + 600;
+        ByteBuffer large = ByteBuffer.allocate(length);
+        large.put(answer(1, "example.com"));
+        DnsCache cache = new DnsCache();
+        cache.put(large, 0, length);
+
+        assertTrue(cache.get(question(2, "example.com", DnsQuestion.TYPE_A), out));
+        assertEquals(length, out.limit());
+
+        ByteBuffer udp = ByteBuffer.allocate(1500);
+        assertTrue(cache.getForUdp(question(3, "example.com", DnsQuestion.TYPE_A), udp));
+        assertEquals(12 + DnsTestPackets.encodeName("example.com").length + 4, udp.limit());
+        assertEquals(3, udp.getShort(0) & 0xFFFF);
+        assertTrue((udp.getShort(2) & 0x0200) != 0);
+        assertEquals(0, udp.getShort(6) & 0xFFFF);
+
+        // Within an EDNS client's size it goes whole, with its OPT record
+        assertTrue(cache.getForUdp(ednsQuestion(4, "example.com", 1232, 0), udp));
+        assertEquals(length + 11, udp.limit());
+        assertEquals(0, udp.getShort(2) & 0x0200);
+    }
+
+    static DnsQuestion question(int transactionId, String domain, int qtype) {
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(transactionId, domain, qtype), question));
+        return question;
+    }
+
+    static ByteBuffer answer(int transactionId, String domain) {
+        byte[] query = DnsTestPackets.dnsQuery(transactionId, DnsTestPackets.encodeName(domain), 1, 1);
+        return ByteBuffer.wrap(StubResolver.answer(query, query.length));
+    }
+
+    static DnsQuestion ednsQuestion(int transactionId, String domain, int udpPayload, int flags) {
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(question.parse(ByteBuffer.wrap(DnsTestPackets.ednsQuery(transactionId, domain, udpPayload, flags)), 0));
+        return question;
+    }
+
+    /**
+     * Answer for the domain followed by an OPT record with the given flags
+     */
+    static ByteBuffer ednsAnswer(int transactionId, String domain, int flags) {
+        ByteBuffer response = ByteBuffer.allocate(answerLength(domain) + 11);
+        response.put(answer(transactionId, domain));
+        response.putShort(10, (short) 1);
+        response.put((byte) 0);
+        response.putShort((short) 41);
+        response.putShort((short) 4096);
+        response.putShort((short) 0);
+        response.putShort((short) flags);
+        response.putShort((short) 0);
+        response.flip();
+        return response;
+    }
+
+    static int answerLength(String domain) {
+        return 12 + DnsTestPackets.encodeName(domain).length + 4 + 16;
+    }
+
+    /**
+     * NXDOMAIN (rcode 3) or NODATA (rcode 0) response with an SOA record
+     */
+    static ByteBuffer negativeResponse(String domain, int rcode, int soaTtl, int soaMinimum) {
+        byte[] query = DnsTestPackets.dnsQuery(1, DnsTestPackets.encodeName(domain), 1, 1);
+        ByteBuffer response = ByteBuffer.allocate(query.length + 64);
+        response.put(query);
+        response.put(2, (byte) 0x81);
+        response.put(3, (byte) (0x80 | rcode));
+        response.putShort(8, (short) 1); // NSCOUNT
+        response.putShort((short) 0xC00C);
+        response.putShort((short) TYPE_SOA);
+        response.putShort((short) 1);
+        response.putInt(soaTtl);
+        response.putShort((short) (2 + 2 + 20));
+        response.putShort((short) 0xC00C); // MNAME
+        response.putShort((short) 0xC00C); // RNAME
+        response.putInt(2024010101);       // SERIAL
+        response.putInt(7200);             // REFRESH
+        response.putInt(3600);             // RETRY
+        response.putInt(1209600);          // EXPIRE
+        response.putInt(soaMinimum);       // MINIMUM
+        response.flip();
+        return response;
+    }
+}
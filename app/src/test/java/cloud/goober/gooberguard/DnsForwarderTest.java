@@ -0,0 +1,567 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+public class DnsForwarderTest {
+
+    private StubResolver resolver;
+    private DnsForwarder forwarder;
+    private final BlockingQueue<ByteBuffer> tun = new LinkedBlockingQueue<>();
+    // Added to the forwarder's clock, so timeouts and hedges come due
+    // without waiting for them
+    private final AtomicLong skew = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = new StubResolver();
+    }
+
+    @After
+    public void tearDown() {
+        if (forwarder != null) {
+            forwarder.close();
+        }
+        resolver.close();
+    }
+
+    @Test
+    public void testForwardsQueryAndWritesReply() throws Exception {
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket(0xABCD, "example.com", DnsQuestion.TYPE_A)));
+        ByteBuffer reply = tun.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No reply written to tun", reply);
+
+        // Addresses and ports are swapped relative to the query
+        assertArrayEquals(DnsTestPackets.DNS_SERVER_ADDRESS, bytes(reply, 12, 4));
+        assertArrayEquals(DnsTestPackets.CLIENT_ADDRESS, bytes(reply, 16, 4));
+        assertEquals(53, reply.getShort(20) & 0xFFFF);
+        assertEquals(DnsTestPackets.CLIENT_PORT, reply.getShort(22) & 0xFFFF);
+        assertEquals(reply.limit(), reply.getShort(2) & 0xFFFF);
+
+        // Client's transaction ID is restored and the answer is intact
+        assertEquals(0xABCD, reply.getShort(28) & 0xFFFF);
+        assertEquals(1, reply.getShort(28 + 6) & 0xFFFF);
+        assertArrayEquals(StubResolver.ANSWER_ADDRESS, bytes(reply, reply.limit() - 4, 4));
+
+        DnsTestPackets.assertChecksumsValid(reply);
+        await(forwarder::getAnsweredCount, 1);
+        assertEquals(1, forwarder.getAnsweredCount());
+        assertEquals(0, forwarder.pendingCount());
+    }
+
+    @Test
+    public void testForwardsIpv6Query() throws Exception {
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket6(0x1666, "example.com", DnsQuestion.TYPE_A)));
+        ByteBuffer reply = tun.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No reply written to tun", reply);
+
+        // Answered over the IPv4 upstream, but returned in IPv6 from the
+        // address the client asked
+        assertEquals(6, (reply.get(0) >> 4) & 0x0F);
+        assertArrayEquals(DnsTestPackets.DNS_SERVER_ADDRESS_V6, bytes(reply, 8, 16));
+        assertArrayEquals(DnsTestPackets.CLIENT_ADDRESS_V6, bytes(reply, 24, 16));
+        assertEquals(DnsTestPackets.CLIENT_PORT, reply.getShort(42) & 0xFFFF);
+        assertEquals(0x1666, reply.getShort(48) & 0xFFFF);
+        assertArrayEquals(StubResolver.ANSWER_ADDRESS, bytes(reply, reply.limit() - 4, 4));
+        DnsTestPackets.assertChecksumsValid(reply);
+    }
+
+    @Test
+    public void testRepliesAreCached() throws Exception {
+        DnsCache cache = new DnsCache();
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+        forwarder.setCache(cache);
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket("cached.example.com")));
+        assertNotNull(tun.poll(5, TimeUnit.SECONDS));
+
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(0x4242, "cached.example.com",
+                DnsQuestion.TYPE_A), question));
+        ByteBuffer cached = ByteBuffer.allocate(512);
+        assertTrue(cache.get(question, cached));
+        assertEquals(0x4242, cached.getShort(0) & 0xFFFF);
+        assertEquals(1, resolver.queryCount());
+    }
+
+    @Test
+    public void testRepliesForAnotherQuestionAreDropped() throws Exception {
+        DnsCache cache = new DnsCache();
+        resolver.setForgedName("victim.example.com");
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+        forwarder.setCache(cache);
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket("example.com")));
+        await(forwarder::getRejectedCount, 1);
+        advance(DnsForwarder.DEFAULT_TIMEOUT_MS);
+        await(forwarder::getTimedOutCount, 1);
+
+        // Right ID and source, wrong question: neither answered nor cached
+        assertEquals(1, forwarder.getRejectedCount());
+        assertEquals(1, forwarder.getTimedOutCount());
+        assertTrue(tun.isEmpty());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testTransactionIdsAreUnpredictable() throws Exception {
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        for (int i = 0; i < 16; i++) {
+            assertTrue(forwarder.forward(DnsTestPackets.queryPacket(7, "host" + i + ".example.com",
+                    DnsQuestion.TYPE_A)));
+            assertNotNull(tun.poll(5, TimeUnit.SECONDS));
+        }
+
+        // Queries on the same channel are four apart in send order
+        List<Integer> ids = resolver.transactionIds();
+        int sequential = 0;
+        for (int i = 4; i < ids.size(); i++) {
+            if (ids.get(i) == ((ids.get(i - 4) + 1) & 0xFFFF)) {
+                sequential++;
+            }
+        }
+        assertTrue("IDs follow each other: " + ids, sequential < 3);
+    }
+
+    @Test
+    public void testManyQueriesInFlight() throws Exception {
+        resolver.setDelayMillis(300);
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        // Same transaction ID from different client ports must not collide upstream
+        int queries = 100;
+        long start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            byte[] dns = DnsTestPackets.dnsQuery(7, DnsTestPackets.encodeName("host" + i + ".example.com"),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(forwarder.forward(DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 20000 + i,
+                    DnsTestPackets.DNS_SERVER_ADDRESS, 53, dns)));
+        }
+
+        Map<Integer, String> answered = new HashMap<>();
+        DnsQuestion question = new DnsQuestion();
+        for (int i = 0; i < queries; i++) {
+            ByteBuffer reply = tun.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Missing reply " + i, reply);
+            assertEquals(7, reply.getShort(28) & 0xFFFF);
+            assertTrue(question.parse(reply, 28));
+            answered.put(reply.getShort(22) & 0xFFFF, question.toDomainName());
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        for (int i = 0; i < queries; i++) {
+            assertEquals("host" + i + ".example.com", answered.get(20000 + i));
+        }
+        // Serial round trips would take queries * delay
+        assertTrue("Queries were not concurrent: " + elapsedMillis + "ms", elapsedMillis < 5000);
+        await(forwarder::getAnsweredCount, queries);
+        assertEquals(queries, forwarder.getAnsweredCount());
+    }
+
+    @Test
+    public void testIdenticalQueriesAreCoalesced() throws Exception {
+        resolver.setDelayMillis(300);
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        // Same question from different sockets, with 0x20 case mixing
+        String[] names = {"app.example.com", "APP.example.com", "app.EXAMPLE.com", "App.Example.Com"};
+        for (int i = 0; i < names.length; i++) {
+            byte[] dns = DnsTestPackets.dnsQuery(100 + i, DnsTestPackets.encodeName(names[i]),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(forwarder.forward(DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 30000 + i,
+                    DnsTestPackets.DNS_SERVER_ADDRESS, 53, dns)));
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            ByteBuffer reply = tun.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Missing reply " + i, reply);
+            int client = (reply.getShort(22) & 0xFFFF) - 30000;
+            assertEquals(100 + client, reply.getShort(28) & 0xFFFF);
+            // Each client gets its question back exactly as it sent it
+            byte[] qname = DnsTestPackets.encodeName(names[client]);
+            assertArrayEquals(qname, bytes(reply, 28 + 12, qname.length));
+            assertArrayEquals(StubResolver.ANSWER_ADDRESS, bytes(reply, reply.limit() - 4, 4));
+            DnsTestPackets.assertChecksumsValid(reply);
+        }
+
+        assertEquals(1, resolver.queryCount());
+        assertEquals(1, forwarder.getForwardedCount());
+        assertEquals(names.length - 1, forwarder.getCoalescedCount());
+        await(forwarder::getAnsweredCount, names.length);
+        assertEquals(names.length, forwarder.getAnsweredCount());
+        assertEquals(0, forwarder.pendingCount());
+
+        // Once answered, the next query goes upstream again
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket("app.example.com")));
+        assertNotNull(tun.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, resolver.queryCount());
+    }
+
+    @Test
+    public void testDifferentQuestionsAreNotCoalesced() throws Exception {
+        resolver.setDelayMillis(200);
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket(1, "example.com", DnsQuestion.TYPE_A)));
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket(2, "example.com", DnsQuestion.TYPE_AAAA)));
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket(3, "www.example.com", DnsQuestion.TYPE_A)));
+        for (int i = 0; i < 3; i++) {
+            assertNotNull("Missing reply " + i, tun.poll(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(3, resolver.queryCount());
+        assertEquals(0, forwarder.getCoalescedCount());
+    }
+
+    @Test
+    public void testQueriesWantingOtherRepliesAreNotCoalesced() throws Exception {
+        resolver.setDelayMillis(200);
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        // Without EDNS, with EDNS, with DO, and a second DO query that can
+        // share the third one's reply
+        byte[][] queries = {
+                DnsTestPackets.dnsQuery(1, DnsTestPackets.encodeName("example.com"),
+                        DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN),
+                DnsTestPackets.ednsQuery(2, "example.com", 1232, 0),
+                DnsTestPackets.ednsQuery(3, "example.com", 1232, Edns.FLAG_DO),
+                DnsTestPackets.ednsQuery(4, "example.com", 4096, Edns.FLAG_DO),
+        };
+        for (int i = 0; i < queries.length; i++) {
+            assertTrue(forwarder.forward(DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 30000 + i,
+                    DnsTestPackets.DNS_SERVER_ADDRESS, 53, queries[i])));
+        }
+        for (int i = 0; i < queries.length; i++) {
+            assertNotNull("Missing reply " + i, tun.poll(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(3, resolver.queryCount());
+        assertEquals(1, forwarder.getCoalescedCount());
+    }
+
+    @Test
+    public void testCoalescedQueriesTimeOutTogether() throws Exception {
+        resolver.setLossRate(1.0);
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] dns = DnsTestPackets.dnsQuery(i, DnsTestPackets.encodeName("lost.example.com"),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(forwarder.forward(DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 40000 + i,
+                    DnsTestPackets.DNS_SERVER_ADDRESS, 53, dns)));
+        }
+        await(forwarder::getCoalescedCount, 2);
+        advance(DnsForwarder.DEFAULT_TIMEOUT_MS);
+        await(forwarder::getTimedOutCount, 3);
+
+        assertEquals(3, forwarder.getTimedOutCount());
+        assertEquals(2, forwarder.getCoalescedCount());
+        assertEquals(0, forwarder.pendingCount());
+        assertEquals(1, resolver.queryCount());
+        assertTrue(tun.isEmpty());
+    }
+
+    @Test
+    public void testPrefersFastestUpstream() throws Exception {
+        try (StubResolver slow = new StubResolver().setDelayMillis(150);
+             StubResolver fast = new StubResolver()) {
+            startForwarder(Arrays.asList(slow.address(), fast.address()), DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+            for (int i = 0; i < 20; i++) {
+                assertTrue(forwarder.forward(DnsTestPackets.queryPacket("host" + i + ".example.com")));
+                assertNotNull("Missing reply " + i, tun.poll(5, TimeUnit.SECONDS));
+            }
+
+            // Each is measured once, then the fast one takes the rest
+            assertEquals(1, slow.queryCount());
+            assertEquals(19, fast.queryCount());
+            List<UpstreamTracker.Stats> stats = forwarder.getUpstreamStats();
+            assertTrue(stats.get(0).ewmaNanos > stats.get(1).ewmaNanos);
+            assertEquals(19, stats.get(1).answered);
+        }
+    }
+
+    @Test
+    public void testHedgeAnswersWhenFirstUpstreamIsSilent() throws Exception {
+        try (StubResolver silent = new StubResolver().setLossRate(1.0);
+             StubResolver backup = new StubResolver()) {
+            startForwarder(Arrays.asList(silent.address(), backup.address()), DnsForwarder.DEFAULT_TIMEOUT_MS);
+            forwarder.setHedging(true);
+
+            assertTrue(forwarder.forward(DnsTestPackets.queryPacket(0x5151, "example.com", DnsQuestion.TYPE_A)));
+            await(forwarder::getForwardedCount, 1);
+            // Past the hedge delay but well short of the timeout
+            advance(UpstreamTracker.DEFAULT_HEDGE_DELAY_MS);
+            ByteBuffer reply = tun.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull("No reply written to tun", reply);
+            assertEquals(0x5151, reply.getShort(28) & 0xFFFF);
+            assertEquals(0, forwarder.getTimedOutCount());
+            assertEquals(1, silent.queryCount());
+            assertEquals(1, backup.queryCount());
+            assertEquals(1, forwarder.getHedgedCount());
+            assertEquals(1, forwarder.getHedgeWinCount());
+            assertEquals(0, forwarder.pendingCount());
+        }
+    }
+
+    @Test
+    public void testNoHedgeWhenFirstUpstreamIsPrompt() throws Exception {
+        try (StubResolver first = new StubResolver();
+             StubResolver second = new StubResolver()) {
+            startForwarder(Arrays.asList(first.address(), second.address()), DnsForwarder.DEFAULT_TIMEOUT_MS);
+            forwarder.setHedging(true);
+
+            assertTrue(forwarder.forward(DnsTestPackets.queryPacket("example.com")));
+            assertNotNull(tun.poll(5, TimeUnit.SECONDS));
+            advance(UpstreamTracker.DEFAULT_HEDGE_DELAY_MS * 2);
+            awaitLoopPass();
+            awaitLoopPass();
+
+            assertEquals(0, forwarder.getHedgedCount());
+            assertEquals(0, second.queryCount());
+        }
+    }
+
+    @Test
+    public void testFailingUpstreamIsCutOff() throws Exception {
+        try (StubResolver flaky = new StubResolver();
+             StubResolver steady = new StubResolver().setDelayMillis(50)) {
+            startForwarder(Arrays.asList(flaky.address(), steady.address()), DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+            for (int i = 0; i < 2; i++) {
+                assertTrue(forwarder.forward(DnsTestPackets.queryPacket("warm" + i + ".example.com")));
+                assertNotNull(tun.poll(5, TimeUnit.SECONDS));
+            }
+
+            // Still the fastest on record, so it gets queries until its
+            // breaker opens
+            flaky.setLossRate(1.0);
+            for (int i = 0; i < UpstreamTracker.FAILURES_TO_OPEN; i++) {
+                assertTrue(forwarder.forward(DnsTestPackets.queryPacket("lost" + i + ".example.com")));
+            }
+            await(forwarder::getForwardedCount, 2 + UpstreamTracker.FAILURES_TO_OPEN);
+            advance(DnsForwarder.DEFAULT_TIMEOUT_MS);
+            await(forwarder::getTimedOutCount, UpstreamTracker.FAILURES_TO_OPEN);
+            UpstreamTracker.Stats stats = forwarder.getUpstreamStats().get(0);
+            assertEquals(UpstreamTracker.State.OPEN, stats.state);
+            assertEquals(UpstreamTracker.FAILURES_TO_OPEN, stats.failed);
+
+            assertTrue(forwarder.forward(DnsTestPackets.queryPacket("after.example.com")));
+            assertNotNull(tun.poll(5, TimeUnit.SECONDS));
+            assertEquals(2, steady.queryCount());
+        }
+    }
+
+    @Test
+    public void testUnansweredQueryTimesOut() throws Exception {
+        resolver.setLossRate(1.0);
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket("example.com")));
+        await(forwarder::getForwardedCount, 1);
+        awaitLoopPass();
+        awaitLoopPass();
+        assertEquals(0, forwarder.getTimedOutCount());
+
+        advance(DnsForwarder.DEFAULT_TIMEOUT_MS);
+        await(forwarder::getTimedOutCount, 1);
+
+        assertEquals(1, forwarder.getTimedOutCount());
+        assertEquals(0, forwarder.pendingCount());
+        assertTrue(tun.isEmpty());
+    }
+
+    @Test
+    public void testTruncatesReplyLargerThanClientTakes() throws Exception {
+        resolver.setPadding(600);
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket(0x4321, "example.com", DnsQuestion.TYPE_A)));
+        ByteBuffer reply = tun.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No reply written to tun", reply);
+
+        // Header and question only, with TC set, so the client retries over TCP
+        assertEquals(28 + 12 + DnsTestPackets.encodeName("example.com").length + 4, reply.limit());
+        assertEquals(0x4321, reply.getShort(28) & 0xFFFF);
+        assertTrue((reply.getShort(30) & 0x0200) != 0);
+        assertEquals(1, reply.getShort(32) & 0xFFFF);
+        assertEquals(0, reply.getShort(34) & 0xFFFF);
+        DnsTestPackets.assertChecksumsValid(reply);
+        assertEquals(1, forwarder.getTruncatedCount());
+    }
+
+    @Test
+    public void testEdnsClientGetsReplyUpToItsSize() throws Exception {
+        resolver.setPadding(600);
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        assertTrue(forwarder.forward(DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS,
+                DnsTestPackets.CLIENT_PORT, DnsTestPackets.DNS_SERVER_ADDRESS, 53,
+                DnsTestPackets.ednsQuery(0x4321, "example.com", 1232, 0))));
+        ByteBuffer reply = tun.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No reply written to tun", reply);
+
+        assertTrue(reply.limit() - 28 > 600);
+        assertEquals(0, reply.getShort(30) & 0x0200);
+        assertEquals(0, forwarder.getTruncatedCount());
+    }
+
+    @Test
+    public void testDroppedReplyIsNotCounted() throws Exception {
+        forwarder = new DnsForwarder(Collections.singletonList(resolver.address()), socket -> true,
+                packet -> {
+                    // The tun is full
+                    tun.add(ByteBuffer.allocate(0));
+                    return false;
+                },
+                DnsForwarder.DEFAULT_CHANNEL_COUNT, DnsForwarder.DEFAULT_TIMEOUT_MS);
+        forwarder.start();
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket("example.com")));
+        assertNotNull("No reply offered to the tun", tun.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, forwarder.pendingCount());
+        assertEquals(0, forwarder.getAnsweredCount());
+    }
+
+    @Test
+    public void testReusedQueriesAllocateNothing() throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        startForwarder(DnsForwarder.DEFAULT_TIMEOUT_MS);
+
+        // IPv4 and IPv6 queries of different lengths, so pooled queries are
+        // reused across both
+        List<ByteBuffer> queries = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            String name = "host" + i + (i % 3 == 0 ? ".a-much-longer-subdomain" : "") + ".example.com";
+            queries.add(i % 2 == 0 ? DnsTestPackets.queryPacket(i, name, DnsQuestion.TYPE_A)
+                    : DnsTestPackets.queryPacket6(i, name, DnsQuestion.TYPE_AAAA));
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        DnsQuestion question = new DnsQuestion();
+        // The first passes fill the pool and warm up the JIT, the last is
+        // measured
+        for (int pass = 0; pass < 20; pass++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (ByteBuffer query : queries) {
+                assertTrue(forwarder.forward(query));
+            }
+            allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+            Map<Integer, String> answered = new HashMap<>();
+            for (int i = 0; i < queries.size(); i++) {
+                ByteBuffer reply = tun.poll(5, TimeUnit.SECONDS);
+                assertNotNull("Missing reply " + i, reply);
+                int dnsOffset = IpPacketBuilder.udpOffset(reply) + IpPacketBuilder.UDP_HEADER_SIZE;
+                assertTrue(question.parse(reply, dnsOffset));
+                answered.put(reply.getShort(dnsOffset) & 0xFFFF, question.toDomainName());
+            }
+            for (int i = 0; i < queries.size(); i++) {
+                question.parse(queries.get(i), IpPacketBuilder.udpOffset(queries.get(i))
+                        + IpPacketBuilder.UDP_HEADER_SIZE);
+                assertEquals(question.toDomainName(), answered.get(i));
+            }
+        }
+        // Allow for the measurement call itself
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void testSocketsAreProtected() throws Exception {
+        int[] protectedSockets = new int[1];
+        forwarder = new DnsForwarder(Collections.singletonList(resolver.address()),
+                socket -> ++protectedSockets[0] > 0, packet -> true, 3, DnsForwarder.DEFAULT_TIMEOUT_MS);
+        forwarder.start();
+
+        assertEquals(3, protectedSockets[0]);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testStartFailsWhenProtectFails() throws Exception {
+        forwarder = new DnsForwarder(Collections.singletonList(resolver.address()),
+                socket -> false, packet -> true);
+        forwarder.start();
+    }
+
+    private void startForwarder(long timeoutMillis) throws Exception {
+        startForwarder(Collections.singletonList(resolver.address()), timeoutMillis);
+    }
+
+    private void startForwarder(List<InetSocketAddress> upstreams, long timeoutMillis) throws Exception {
+        forwarder = new DnsForwarder(upstreams, socket -> true,
+                packet -> {
+                    ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+                    copy.put(packet.duplicate());
+                    copy.flip();
+                    return tun.add(copy);
+                }, DnsForwarder.DEFAULT_CHANNEL_COUNT, timeoutMillis);
+        forwarder.setTicker(() -> System.nanoTime() + skew.get());
+        forwarder.start();
+    }
+
+    /**
+     * Move the forwarder's clock on and have it check for due work
+     */
+    private void advance(long millis) {
+        skew.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        forwarder.wakeup();
+    }
+
+    /**
+     * Wait until the selector thread has started a pass of its loop after
+     * this was called. Two in a row make sure a whole pass, hedges and
+     * timeouts included, ran in between.
+     */
+    private void awaitLoopPass() throws InterruptedException {
+        long dropped = forwarder.getDroppedCount();
+        // A header with no question is dropped as soon as it is seen
+        assertTrue(forwarder.forward(DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS,
+                DnsTestPackets.CLIENT_PORT, DnsTestPackets.DNS_SERVER_ADDRESS, 53, new byte[12])));
+        await(forwarder::getDroppedCount, dropped + 1);
+    }
+
+    /**
+     * Wait for a forwarder counter, failing if it never gets there
+     */
+    private static void await(LongSupplier counter, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (counter.getAsLong() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("Timed out waiting for " + count, counter.getAsLong() >= count);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,94 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DnsMetricsTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testRatesCoverFullSecondsOfWindow() {
+        DnsMetrics metrics = new DnsMetrics();
+        // Well past the reset, so the whole window counts
+        long base = (System.nanoTime() / SECOND + 100) * SECOND;
+        for (int second = 0; second < 20; second++) {
+            for (int i = 0; i < 30; i++) {
+                metrics.increment(DnsMetrics.Counter.QUERIES, base + second * SECOND + i);
+            }
+            metrics.increment(DnsMetrics.Counter.BLOCKED, base + second * SECOND);
+        }
+
+        // The 20th second is still filling and left out
+        DnsMetrics.Snapshot snapshot = metrics.snapshot(base + 19 * SECOND + SECOND / 2);
+        assertEquals(DnsMetrics.WINDOW_SECONDS - 1, snapshot.windowSeconds);
+        assertEquals(30.0, snapshot.getRate(DnsMetrics.Counter.QUERIES), 1e-9);
+        assertEquals(1.0, snapshot.getRate(DnsMetrics.Counter.BLOCKED), 1e-9);
+        assertEquals(600, snapshot.getTotal(DnsMetrics.Counter.QUERIES));
+        assertEquals(20, snapshot.getTotal(DnsMetrics.Counter.BLOCKED));
+        assertEquals(0, snapshot.getTotal(DnsMetrics.Counter.DROPS));
+    }
+
+    @Test
+    public void testIdleSecondsCountAsZero() {
+        DnsMetrics metrics = new DnsMetrics();
+        long base = (System.nanoTime() / SECOND + 100) * SECOND;
+        for (int i = 0; i < 90; i++) {
+            metrics.increment(DnsMetrics.Counter.QUERIES, base);
+        }
+
+        // Slots from seconds long gone are not counted again
+        assertEquals(10.0, metrics.snapshot(base + 5 * SECOND).getRate(DnsMetrics.Counter.QUERIES), 1e-9);
+        assertEquals(0.0, metrics.snapshot(base + 50 * SECOND).getRate(DnsMetrics.Counter.QUERIES), 1e-9);
+        assertEquals(90, metrics.snapshot(base + 50 * SECOND).getTotal(DnsMetrics.Counter.QUERIES));
+    }
+
+    @Test
+    public void testRecentPercentilesForgetOldLatencies() {
+        DnsMetrics metrics = new DnsMetrics();
+        long base = (System.nanoTime() / SECOND + 100) * SECOND;
+        // Slow at first, then fast
+        for (int i = 0; i < 100; i++) {
+            long end = base + SECOND / 2;
+            metrics.record(DnsMetrics.Stage.END_TO_END, end - TimeUnit.MILLISECONDS.toNanos(200), end);
+        }
+        for (int i = 0; i < 100; i++) {
+            long end = base + 30 * SECOND + SECOND / 2;
+            metrics.record(DnsMetrics.Stage.END_TO_END, end - TimeUnit.MILLISECONDS.toNanos(2), end);
+        }
+
+        DnsMetrics.Snapshot snapshot = metrics.snapshot(base + 31 * SECOND);
+        LatencyHistogram.Snapshot recent = snapshot.getRecentHistogram(DnsMetrics.Stage.END_TO_END);
+        assertEquals(100, recent.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2), recent.percentileNanos(0.99), 2e6 / 16);
+        LatencyHistogram.Snapshot all = snapshot.getHistogram(DnsMetrics.Stage.END_TO_END);
+        assertEquals(200, all.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), all.percentileNanos(0.99), 200e6 / 16);
+        assertEquals(0, snapshot.getHistogram(DnsMetrics.Stage.UPSTREAM).getCount());
+    }
+
+    @Test
+    public void testResetAndText() {
+        DnsMetrics metrics = new DnsMetrics();
+        metrics.increment(DnsMetrics.Counter.UPSTREAM_ERRORS);
+        metrics.record(DnsMetrics.Stage.CLASSIFY, 0, 800);
+
+        String text = metrics.snapshot().toString();
+        assertTrue(text, text.contains("upstream_errors  total 1"));
+        assertTrue(text, text.contains("classify             n 1"));
+        assertTrue(metrics.snapshot().summary().contains("queries/s"));
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().getTotal(DnsMetrics.Counter.UPSTREAM_ERRORS));
+        assertEquals(0, metrics.snapshot().getHistogram(DnsMetrics.Stage.CLASSIFY).getCount());
+    }
+
+    @Test
+    public void testFormatsNanos() {
+        assertEquals("800 ns", DnsMetrics.Snapshot.formatNanos(800));
+        assertEquals("1.5 us", DnsMetrics.Snapshot.formatNanos(1500));
+        assertEquals("12.3 ms", DnsMetrics.Snapshot.formatNanos(12_300_000));
+    }
+}
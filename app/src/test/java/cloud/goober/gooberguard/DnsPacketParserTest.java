@@ -0,0 +1,180 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsPacketParserTest {
+
+    @Test
+    public void testIsDnsQuery() {
+        assertTrue(DnsPacketParser.isDnsQuery(DnsTestPackets.queryPacket("instagram.com")));
+
+        ByteBuffer other = DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 40000,
+                DnsTestPackets.DNS_SERVER_ADDRESS, 443, new byte[16]);
+        assertFalse(DnsPacketParser.isDnsQuery(other));
+    }
+
+    @Test
+    public void testIsDnsQueryOverIpv6() {
+        assertTrue(DnsPacketParser.isDnsQuery(DnsTestPackets.queryPacket6(1, "instagram.com", DnsQuestion.TYPE_AAAA)));
+
+        ByteBuffer other = DnsTestPackets.udpPacket6(DnsTestPackets.CLIENT_ADDRESS_V6, 40000,
+                DnsTestPackets.DNS_SERVER_ADDRESS_V6, 443, new byte[16]);
+        assertFalse(DnsPacketParser.isDnsQuery(other));
+    }
+
+    @Test
+    public void testSkipsIpv6ExtensionHeaders() {
+        byte[] query = DnsTestPackets.dnsQuery(7, DnsTestPackets.encodeName("ads.example.com"), 1, 1);
+        ByteBuffer packet = DnsTestPackets.udpPacket6(DnsTestPackets.CLIENT_ADDRESS_V6, 40000,
+                DnsTestPackets.DNS_SERVER_ADDRESS_V6, 53, query,
+                DnsTestPackets.HOP_BY_HOP_OPTIONS, DnsTestPackets.DESTINATION_OPTIONS, DnsTestPackets.FRAGMENT);
+        DnsQuestion question = new DnsQuestion();
+
+        assertTrue(DnsPacketParser.isDnsQuery(packet));
+        assertTrue(DnsPacketParser.parseQuestion(packet, question));
+        assertEquals(40 + 24 + 8, question.dnsOffset());
+        assertEquals("ads.example.com", question.toDomainName());
+    }
+
+    @Test
+    public void testRejectsIpv4Fragments() {
+        ByteBuffer packet = DnsTestPackets.queryPacket("ads.example.com");
+        // Don't fragment is fine
+        packet.putShort(6, (short) 0x4000);
+        assertTrue(DnsPacketParser.isDnsQuery(packet));
+
+        // First fragment of a larger datagram: more fragments follow
+        packet.putShort(6, (short) 0x2000);
+        assertFalse(DnsPacketParser.isDnsQuery(packet));
+        assertEquals(-1, IpPacketBuilder.udpOffset(packet));
+        assertFalse(DnsPacketParser.parseQuestion(packet, new DnsQuestion()));
+
+        // Last fragment, which has no UDP header of its own
+        packet.putShort(6, (short) 0x00B9);
+        assertFalse(DnsPacketParser.isDnsQuery(packet));
+    }
+
+    @Test
+    public void testRejectsIpv6Fragments() {
+        byte[] query = DnsTestPackets.dnsQuery(7, DnsTestPackets.encodeName("ads.example.com"), 1, 1);
+        ByteBuffer packet = DnsTestPackets.udpPacket6(DnsTestPackets.CLIENT_ADDRESS_V6, 40000,
+                DnsTestPackets.DNS_SERVER_ADDRESS_V6, 53, query, DnsTestPackets.FRAGMENT);
+        // First fragment of a larger datagram: more fragments follow
+        packet.put(40 + 3, (byte) 1);
+        assertFalse(DnsPacketParser.isDnsQuery(packet));
+
+        // Unknown upper-layer protocol in place of UDP
+        packet.put(40 + 3, (byte) 0);
+        packet.put(40, (byte) 6);
+        assertFalse(DnsPacketParser.isDnsQuery(packet));
+    }
+
+    @Test
+    public void testParseQuestion() {
+        ByteBuffer packet = DnsTestPackets.queryPacket(0xBEEF, "Api.Instagram.com", DnsQuestion.TYPE_AAAA);
+        DnsQuestion question = new DnsQuestion();
+
+        assertTrue(DnsPacketParser.parseQuestion(packet, question));
+        assertEquals(3, question.labelCount());
+        assertEquals(3, question.labelLength(0));
+        assertEquals(9, question.labelLength(1));
+        assertEquals(28 + 12 + 1, question.labelOffset(0));
+        assertEquals(DnsQuestion.TYPE_AAAA, question.qtype());
+        assertEquals(DnsQuestion.CLASS_IN, question.qclass());
+        assertEquals(0xBEEF, question.transactionId());
+        assertEquals("api.instagram.com".length() + 2, question.nameLength());
+        assertEquals(packet.limit(), question.endOffset());
+        assertEquals("api.instagram.com", question.toDomainName());
+    }
+
+    @Test
+    public void testLabelHashIgnoresCase() {
+        DnsQuestion upper = new DnsQuestion();
+        DnsQuestion lower = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("WWW.EXAMPLE.COM"), upper));
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("www.example.com"), lower));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(lower.labelHash(i), upper.labelHash(i));
+        }
+    }
+
+    @Test
+    public void testExtractDomainName() {
+        assertEquals("instagram.com", DnsPacketParser.extractDomainName(DnsTestPackets.queryPacket("INSTAGRAM.com")));
+    }
+
+    @Test
+    public void testRejectsCompressionPointer() {
+        byte[] qname = {3, 'w', 'w', 'w', (byte) 0xC0, 12};
+        assertFalse(parse(qname));
+    }
+
+    @Test
+    public void testRejectsReservedLabelType() {
+        byte[] qname = {(byte) 0x40, 'a', 0};
+        assertFalse(parse(qname));
+    }
+
+    @Test
+    public void testRejectsOversizedName() {
+        StringBuilder domain = new StringBuilder();
+        while (domain.length() < 260) {
+            domain.append("abcdefghi.");
+        }
+        domain.append("com");
+        assertFalse(parse(DnsTestPackets.encodeName(domain.toString())));
+    }
+
+    @Test
+    public void testAcceptsMaximumLengthName() {
+        // 3 * (1 + 63) + (1 + 61) + 1 = 255 bytes on the wire
+        String label63 = repeat('a', 63);
+        String domain = label63 + "." + label63 + "." + label63 + "." + repeat('b', 61);
+        assertTrue(parse(DnsTestPackets.encodeName(domain)));
+    }
+
+    @Test
+    public void testRejectsTruncatedPackets() {
+        ByteBuffer packet = DnsTestPackets.queryPacket("instagram.com");
+        DnsQuestion question = new DnsQuestion();
+
+        // Missing QTYPE/QCLASS
+        packet.limit(packet.limit() - 4);
+        assertFalse(DnsPacketParser.parseQuestion(packet, question));
+
+        // Cut inside a label
+        packet.limit(28 + 12 + 5);
+        assertFalse(DnsPacketParser.parseQuestion(packet, question));
+
+        // Header only
+        packet.limit(28 + 12);
+        assertFalse(DnsPacketParser.parseQuestion(packet, question));
+        assertEquals(0, question.labelCount());
+    }
+
+    @Test
+    public void testRejectsEmptyQuestionSection() {
+        byte[] dns = DnsTestPackets.dnsQuery(1, DnsTestPackets.encodeName("example.com"), 1, 1);
+        dns[5] = 0; // QDCOUNT = 0
+        ByteBuffer packet = DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 40000,
+                DnsTestPackets.DNS_SERVER_ADDRESS, 53, dns);
+        assertFalse(DnsPacketParser.parseQuestion(packet, new DnsQuestion()));
+    }
+
+    private static boolean parse(byte[] qname) {
+        ByteBuffer packet = DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 40000,
+                DnsTestPackets.DNS_SERVER_ADDRESS, 53, DnsTestPackets.dnsQuery(1, qname, 1, 1));
+        return DnsPacketParser.parseQuestion(packet, new DnsQuestion());
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        java.util.Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,168 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsResponseBuilderTest {
+
+    private static final int DNS = 28;
+
+    private final ByteBuffer out = ByteBuffer.allocate(DnsResponseBuilder.MAX_RESPONSE_SIZE);
+
+    @Test
+    public void testNxdomainResponse() {
+        ByteBuffer query = DnsTestPackets.queryPacket(0x5150, "Ads.Example.com", DnsQuestion.TYPE_A);
+        write(new DnsResponseBuilder(DnsResponseBuilder.BlockStyle.NXDOMAIN, 120), query);
+
+        assertSwappedAddressing(query);
+        assertEquals(0x5150, out.getShort(DNS) & 0xFFFF);
+        assertEquals(0x8183, out.getShort(DNS + 2) & 0xFFFF); // QR RD RA NXDOMAIN
+        assertCounts(1, 0, 1, 0);
+        assertSoaMinimum(120);
+        DnsTestPackets.assertChecksumsValid(out);
+
+        // Question echoed with the client's case
+        DnsQuestion echoed = new DnsQuestion();
+        assertTrue(echoed.parse(out, DNS));
+        assertEquals('A', out.get(echoed.labelOffset(0)));
+        assertEquals(DnsQuestion.TYPE_A, echoed.qtype());
+    }
+
+    @Test
+    public void testNodataResponse() {
+        ByteBuffer query = DnsTestPackets.queryPacket(1, "ads.example.com", DnsQuestion.TYPE_AAAA);
+        write(new DnsResponseBuilder(DnsResponseBuilder.BlockStyle.NODATA, 300), query);
+
+        assertEquals(0x8180, out.getShort(DNS + 2) & 0xFFFF);
+        assertCounts(1, 0, 1, 0);
+        assertSoaMinimum(300);
+        DnsTestPackets.assertChecksumsValid(out);
+    }
+
+    @Test
+    public void testNullAddressForA() {
+        ByteBuffer query = DnsTestPackets.queryPacket(1, "ads.example.com", DnsQuestion.TYPE_A);
+        write(new DnsResponseBuilder(DnsResponseBuilder.BlockStyle.NULL_ADDRESS, 600), query);
+
+        assertEquals(0x8180, out.getShort(DNS + 2) & 0xFFFF);
+        assertCounts(1, 1, 0, 0);
+        int record = out.limit() - 16;
+        assertEquals(0xC00C, out.getShort(record) & 0xFFFF);
+        assertEquals(DnsQuestion.TYPE_A, out.getShort(record + 2));
+        assertEquals(600, out.getInt(record + 6));
+        assertEquals(4, out.getShort(record + 10));
+        assertEquals(0, out.getInt(record + 12));
+        DnsTestPackets.assertChecksumsValid(out);
+    }
+
+    @Test
+    public void testNullAddressForAaaa() {
+        ByteBuffer query = DnsTestPackets.queryPacket(1, "ads.example.com", DnsQuestion.TYPE_AAAA);
+        write(new DnsResponseBuilder(DnsResponseBuilder.BlockStyle.NULL_ADDRESS, 600), query);
+
+        assertCounts(1, 1, 0, 0);
+        int record = out.limit() - 28;
+        assertEquals(DnsQuestion.TYPE_AAAA, out.getShort(record + 2));
+        assertEquals(16, out.getShort(record + 10));
+        for (int i = 0; i < 16; i++) {
+            assertEquals(0, out.get(record + 12 + i));
+        }
+        DnsTestPackets.assertChecksumsValid(out);
+    }
+
+    @Test
+    public void testNullAddressFallsBackToNodataForOtherTypes() {
+        ByteBuffer query = DnsTestPackets.queryPacket(1, "ads.example.com", 16); // TXT
+        write(new DnsResponseBuilder(DnsResponseBuilder.BlockStyle.NULL_ADDRESS, 600), query);
+
+        assertEquals(0x8180, out.getShort(DNS + 2) & 0xFFFF);
+        assertCounts(1, 0, 1, 0);
+    }
+
+    @Test
+    public void testRecursionDesiredCopiedFromQuery() {
+        byte[] dns = DnsTestPackets.dnsQuery(1, DnsTestPackets.encodeName("ads.example.com"), 1, 1);
+        dns[2] = 0; // RD clear
+        ByteBuffer query = DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 5353,
+                DnsTestPackets.DNS_SERVER_ADDRESS, 53, dns);
+        write(new DnsResponseBuilder(), query);
+
+        assertEquals(0x8083, out.getShort(DNS + 2) & 0xFFFF);
+    }
+
+    @Test
+    public void testOutputBufferIsReused() {
+        DnsResponseBuilder builder = new DnsResponseBuilder();
+        write(builder, DnsTestPackets.queryPacket(1, "a-much-longer-name.ads.example.com", DnsQuestion.TYPE_A));
+        write(builder, DnsTestPackets.queryPacket(2, "ads.example.com", DnsQuestion.TYPE_A));
+
+        assertEquals(DNS + 12 + DnsTestPackets.encodeName("ads.example.com").length + 4 + 36, out.limit());
+        assertEquals(out.limit(), out.getShort(2) & 0xFFFF);
+        DnsTestPackets.assertChecksumsValid(out);
+    }
+
+    @Test
+    public void testIpv6Response() {
+        ByteBuffer query = DnsTestPackets.queryPacket6(0x6666, "ads.example.com", DnsQuestion.TYPE_AAAA);
+        write(new DnsResponseBuilder(DnsResponseBuilder.BlockStyle.NULL_ADDRESS, 60), query);
+
+        // IPv6 header with addresses and ports swapped
+        assertEquals(6, (out.get(0) >> 4) & 0x0F);
+        assertEquals(IpPacketBuilder.PROTOCOL_UDP, out.get(6));
+        for (int i = 0; i < 16; i++) {
+            assertEquals(query.get(24 + i), out.get(8 + i));
+            assertEquals(query.get(8 + i), out.get(24 + i));
+        }
+        assertEquals(53, out.getShort(40) & 0xFFFF);
+        assertEquals(DnsTestPackets.CLIENT_PORT, out.getShort(42) & 0xFFFF);
+
+        int dns = 48;
+        assertEquals(0x6666, out.getShort(dns) & 0xFFFF);
+        assertEquals(1, out.getShort(dns + 6) & 0xFFFF);
+        assertEquals(16, out.getShort(out.limit() - 18) & 0xFFFF);
+        assertNotEquals(0, out.getShort(46));
+        DnsTestPackets.assertChecksumsValid(out);
+    }
+
+    @Test
+    public void testCreateBlockedResponseHasValidChecksums() {
+        ByteBuffer response = DnsPacketParser.createBlockedResponse(DnsTestPackets.queryPacket("instagram.com"));
+
+        assertNotNull(response);
+        assertEquals(3, response.getShort(DNS + 2) & 0x000F);
+        DnsTestPackets.assertChecksumsValid(response);
+    }
+
+    private void write(DnsResponseBuilder builder, ByteBuffer query) {
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(query, question));
+        builder.writeBlockedResponse(query, question, out);
+    }
+
+    private void assertSwappedAddressing(ByteBuffer query) {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(query.get(16 + i), out.get(12 + i));
+            assertEquals(query.get(12 + i), out.get(16 + i));
+        }
+        assertEquals(53, out.getShort(20) & 0xFFFF);
+        assertEquals(DnsTestPackets.CLIENT_PORT, out.getShort(22) & 0xFFFF);
+        assertEquals(out.limit(), out.getShort(2) & 0xFFFF);
+    }
+
+    private void assertCounts(int questions, int answers, int authorities, int additionals) {
+        assertEquals(questions, out.getShort(DNS + 4));
+        assertEquals(answers, out.getShort(DNS + 6));
+        assertEquals(authorities, out.getShort(DNS + 8));
+        assertEquals(additionals, out.getShort(DNS + 10));
+    }
+
+    private void assertSoaMinimum(int ttl) {
+        int record = out.limit() - 36;
+        assertEquals(6, out.getShort(record + 2));
+        assertEquals(ttl, out.getInt(record + 6));
+        assertEquals(ttl, out.getInt(out.limit() - 4));
+    }
+}
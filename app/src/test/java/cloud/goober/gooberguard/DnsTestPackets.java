@@ -0,0 +1,198 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Builds raw IPv4 and IPv6 UDP and TCP DNS packets for tests
+ */
+final class DnsTestPackets {
+    static final byte[] CLIENT_ADDRESS = {10, 0, 0, 2};
+    static final byte[] DNS_SERVER_ADDRESS = {8, 8, 8, 8};
+    static final int CLIENT_PORT = 40000;
+    static final byte[] CLIENT_ADDRESS_V6 = address6(0xFD00, 2);
+    static final byte[] DNS_SERVER_ADDRESS_V6 = address6(0x2001, 0x8888);
+
+    // IPv6 extension header types
+    static final int HOP_BY_HOP_OPTIONS = 0;
+    static final int FRAGMENT = 44;
+    static final int DESTINATION_OPTIONS = 60;
+
+    private DnsTestPackets() {
+    }
+
+    /**
+     * Encode a dotted name as a wire-format QNAME
+     */
+    static byte[] encodeName(String domain) {
+        ByteBuffer name = ByteBuffer.allocate(domain.length() + 2);
+        for (String label : domain.split("\\.")) {
+            name.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) {
+                name.put((byte) label.charAt(i));
+            }
+        }
+        name.put((byte) 0);
+        byte[] encoded = new byte[name.position()];
+        name.flip();
+        name.get(encoded);
+        return encoded;
+    }
+
+    /**
+     * DNS query message (no IP/UDP headers) with a single question
+     */
+    static byte[] dnsQuery(int transactionId, byte[] qname, int qtype, int qclass) {
+        ByteBuffer dns = ByteBuffer.allocate(12 + qname.length + 4);
+        dns.putShort((short) transactionId);
+        dns.putShort((short) 0x0100); // RD
+        dns.putShort((short) 1);      // QDCOUNT
+        dns.putShort((short) 0);
+        dns.putShort((short) 0);
+        dns.putShort((short) 0);
+        dns.put(qname);
+        dns.putShort((short) qtype);
+        dns.putShort((short) qclass);
+        return dns.array();
+    }
+
+    /**
+     * DNS query message for an A record with an EDNS OPT record offering the
+     * given UDP payload size and carrying the given flags, such as DO
+     */
+    static byte[] ednsQuery(int transactionId, String domain, int udpPayload, int flags) {
+        byte[] question = dnsQuery(transactionId, encodeName(domain), DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        ByteBuffer query = ByteBuffer.allocate(question.length + 11);
+        query.put(question);
+        query.putShort(10, (short) 1);
+        query.put((byte) 0);
+        query.putShort((short) 41);
+        query.putShort((short) udpPayload);
+        query.putShort((short) 0);
+        query.putShort((short) flags);
+        query.putShort((short) 0);
+        return query.array();
+    }
+
+    static ByteBuffer queryPacket(String domain) {
+        return queryPacket(0x1234, domain, DnsQuestion.TYPE_A);
+    }
+
+    static ByteBuffer queryPacket(int transactionId, String domain, int qtype) {
+        return udpPacket(CLIENT_ADDRESS, CLIENT_PORT, DNS_SERVER_ADDRESS, 53,
+                dnsQuery(transactionId, encodeName(domain), qtype, DnsQuestion.CLASS_IN));
+    }
+
+    /**
+     * Wrap a UDP payload in IPv4 and UDP headers (checksums left zero)
+     */
+    static ByteBuffer udpPacket(byte[] srcAddress, int srcPort, byte[] dstAddress, int dstPort, byte[] payload) {
+        int length = 20 + 8 + payload.length;
+        ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.put((byte) 0x45);
+        packet.put((byte) 0);
+        packet.putShort((short) length);
+        packet.putShort((short) 0);
+        packet.putShort((short) 0x4000); // DF
+        packet.put((byte) 64);
+        packet.put((byte) 17);
+        packet.putShort((short) 0);
+        packet.put(srcAddress);
+        packet.put(dstAddress);
+        packet.putShort((short) srcPort);
+        packet.putShort((short) dstPort);
+        packet.putShort((short) (8 + payload.length));
+        packet.putShort((short) 0);
+        packet.put(payload);
+        packet.flip();
+        return packet;
+    }
+
+    static ByteBuffer queryPacket6(int transactionId, String domain, int qtype) {
+        return udpPacket6(CLIENT_ADDRESS_V6, CLIENT_PORT, DNS_SERVER_ADDRESS_V6, 53,
+                dnsQuery(transactionId, encodeName(domain), qtype, DnsQuestion.CLASS_IN));
+    }
+
+    /**
+     * Wrap a UDP payload in IPv6 and UDP headers, with a valid UDP checksum
+     * since IPv6 requires one. Each extension type adds an empty 8-byte
+     * extension header, chained in order in front of UDP; an empty
+     * fragment header describes a whole datagram.
+     */
+    static ByteBuffer udpPacket6(byte[] srcAddress, int srcPort, byte[] dstAddress, int dstPort, byte[] payload,
+                                 int... extensionTypes) {
+        int udp = 40 + 8 * extensionTypes.length;
+        int udpLength = 8 + payload.length;
+        ByteBuffer packet = ByteBuffer.allocate(udp + udpLength);
+        packet.putInt(0x60000000);
+        packet.putShort((short) (udp - 40 + udpLength));
+        packet.put((byte) (extensionTypes.length > 0 ? extensionTypes[0] : 17));
+        packet.put((byte) 64);
+        packet.put(srcAddress);
+        packet.put(dstAddress);
+        for (int i = 0; i < extensionTypes.length; i++) {
+            packet.put((byte) (i + 1 < extensionTypes.length ? extensionTypes[i + 1] : 17));
+            packet.put(new byte[7]);
+        }
+        packet.putShort((short) srcPort);
+        packet.putShort((short) dstPort);
+        packet.putShort((short) udpLength);
+        packet.putShort((short) 0);
+        packet.put(payload);
+        packet.flip();
+        packet.putShort(udp + 6, (short) IpPacketBuilder.udpChecksum(packet, 8, 16, udp, udpLength));
+        return packet;
+    }
+
+    private static byte[] address6(int prefix, int suffix) {
+        ByteBuffer address = ByteBuffer.allocate(16);
+        address.putShort(0, (short) prefix);
+        address.putShort(14, (short) suffix);
+        return address.array();
+    }
+
+    /**
+     * A TCP segment from the client to the DNS server, IPv4 or IPv6 by
+     * address length. A positive mss adds the MSS option.
+     */
+    static ByteBuffer tcpSegment(byte[] srcAddress, byte[] dstAddress, int seq, int ack, int flags,
+                                 int mss, byte[] payload) {
+        ByteBuffer segment = ByteBuffer.allocate(40 + 24 + payload.length);
+        IpPacketBuilder.writeTcp(segment, srcAddress, CLIENT_PORT, dstAddress, 53, seq, ack, flags,
+                65535, mss, payload, 0, payload.length);
+        return segment;
+    }
+
+    /**
+     * A DNS message with its two byte length prefix, as sent over TCP
+     */
+    static byte[] tcpFrame(byte[] message) {
+        return ByteBuffer.allocate(2 + message.length).putShort((short) message.length).put(message).array();
+    }
+
+    /**
+     * Check the IP header (IPv4 only) and UDP or TCP checksums of a reply,
+     * which never carries IP options or extension headers
+     */
+    static void assertChecksumsValid(ByteBuffer packet) {
+        if (IpPacketBuilder.isIpv6(packet)) {
+            int length = packet.limit() - 40;
+            assertEquals("IPv6 payload length", length, packet.getShort(4) & 0xFFFF);
+            int sum = (packet.get(6) & 0xFF) + length;
+            for (int i = 8; i < 40; i += 2) {
+                sum += packet.getShort(i) & 0xFFFF;
+            }
+            assertEquals("Transport checksum", 0, IpPacketBuilder.checksum(packet, 40, length, sum));
+            return;
+        }
+        // Summing data that includes its own checksum yields zero
+        assertEquals("IPv4 header checksum", 0, IpPacketBuilder.checksum(packet, 0, 20, 0));
+        int length = packet.limit() - 20;
+        int sum = (packet.get(9) & 0xFF) + length;
+        for (int i = 12; i < 20; i += 2) {
+            sum += packet.getShort(i) & 0xFFFF;
+        }
+        assertEquals("Transport checksum", 0, IpPacketBuilder.checksum(packet, 20, length, sum));
+    }
+}
@@ -0,0 +1,174 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DohUpstreamPoolTest {
+    private static final byte[] FAILED = new byte[0];
+
+    private StubTlsResolver resolver;
+    private DohUpstreamPool pool;
+    private final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<>();
+
+    private final DnsUpstream.Callback callback = new DnsUpstream.Callback() {
+        @Override
+        public void onResponse(byte[] response) {
+            replies.add(response);
+        }
+
+        @Override
+        public void onFailure() {
+            replies.add(FAILED);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = new StubTlsResolver(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        resolver.close();
+    }
+
+    @Test
+    public void testAnswersWithClientId() throws Exception {
+        startPool(resolver.endpoint());
+
+        byte[] query = DnsTestPackets.dnsQuery(0xBEEF, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No reply", reply);
+        assertNotSame(FAILED, reply);
+        assertEquals(0xBEEF, ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+        assertArrayEquals(StubResolver.ANSWER_ADDRESS, Arrays.copyOfRange(reply, reply.length - 4, reply.length));
+        // Sent with ID 0, per RFC 8484, for caching
+        assertEquals(Collections.singletonList(0), resolver.queryIds());
+        assertEquals(0, pool.pendingCount());
+    }
+
+    @Test
+    public void testMultiplexesQueriesOnOneConnection() throws Exception {
+        startPool(resolver.endpoint());
+
+        for (int i = 0; i < 20; i++) {
+            byte[] query = DnsTestPackets.dnsQuery(0x0100 + i, DnsTestPackets.encodeName("host" + i + ".example.com"),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(pool.query(query, 0, query.length, callback));
+        }
+        for (int i = 0; i < 20; i++) {
+            byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No reply " + i, reply);
+            assertNotSame(FAILED, reply);
+        }
+
+        assertEquals(1, resolver.connectionCount());
+        assertEquals(20, pool.getAnsweredCount());
+    }
+
+    @Test
+    public void testErrorStatusFailsAfterRetry() throws Exception {
+        resolver.setStatus(503);
+        startPool(resolver.endpoint());
+
+        byte[] query = DnsTestPackets.dnsQuery(0x1234, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        assertSame(FAILED, replies.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, resolver.queryCount());
+        assertEquals(1, pool.getFailedCount());
+    }
+
+    @Test
+    public void testUpstreamWithoutHttp2Fails() throws Exception {
+        // A DNS over TLS stand-in offers no ALPN, so h2 is never agreed
+        StubTlsResolver plain = new StubTlsResolver(false);
+        try {
+            startPool(plain.endpoint());
+
+            byte[] query = DnsTestPackets.dnsQuery(0x2222, DnsTestPackets.encodeName("example.com"),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(pool.query(query, 0, query.length, callback));
+
+            assertSame(FAILED, replies.poll(5, TimeUnit.SECONDS));
+            assertEquals(0, plain.queryCount());
+        } finally {
+            plain.close();
+        }
+    }
+
+    @Test
+    public void testRequestHeaders() {
+        SecureUpstreamPool.Endpoint endpoint = new SecureUpstreamPool.Endpoint(
+                new InetSocketAddress("127.0.0.1", 443), "dns.example", "/dns-query");
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        // :method POST, :scheme https
+        expected.write(0x83);
+        expected.write(0x87);
+        literal(expected, new byte[]{0x04}, "/dns-query");
+        literal(expected, new byte[]{0x01}, "dns.example");
+        // content-type, accept and content-length overflow the 4 bit prefix
+        literal(expected, new byte[]{0x0F, 0x10}, "application/dns-message");
+        literal(expected, new byte[]{0x0F, 0x04}, "application/dns-message");
+        literal(expected, new byte[]{0x0F, 0x0D}, "33");
+
+        assertArrayEquals(expected.toByteArray(), DohUpstreamPool.requestHeaders(endpoint, 33));
+    }
+
+    @Test
+    public void testResponseStatus() {
+        assertEquals(200, status(0x88));
+        assertEquals(404, status(0x8D));
+        // Literal without indexing, indexed name, plain value
+        assertEquals(503, status(0x08, 0x03, '5', '0', '3'));
+        // Huffman coded "200" and "503"
+        assertEquals(200, status(0x48, 0x82, 0x10, 0x01));
+        assertEquals(503, status(0x08, 0x83, 0x6C, 0x0C, 0xFF));
+        // Table size update first, then a header the status follows
+        assertEquals(200, status(0x20, 0x0F, 0x10, 0x01, 'x', 0x88));
+        assertEquals(-1, status());
+        assertEquals(-1, status(0x08, 0x02, '2', '0'));
+    }
+
+    private static int status(int... bytes) {
+        byte[] block = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            block[i] = (byte) bytes[i];
+        }
+        return DohUpstreamPool.responseStatus(block, block.length);
+    }
+
+    private static void literal(ByteArrayOutputStream out, byte[] name, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        out.write(name, 0, name.length);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private void startPool(SecureUpstreamPool.Endpoint endpoint) throws Exception {
+        pool = new DohUpstreamPool(Collections.singletonList(endpoint), StubTlsResolver.clientContext(),
+                socket -> true, SecureUpstreamPool.DEFAULT_CONNECTIONS_PER_UPSTREAM,
+                SecureUpstreamPool.DEFAULT_TIMEOUT_MS);
+        pool.start();
+    }
+}
@@ -2,12 +2,17 @@ package cloud.goober.gooberguard;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
-import org.mockito.MockitoAnnotations;
 import org.mockito.junit.MockitoJUnitRunner;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -19,64 +24,192 @@ import static org.mockito.Mockito.*;
 @RunWith(MockitoJUnitRunner.class)
 public class DomainManagerTest {
 
+    @Rule
+    public TemporaryFolder filesDir = new TemporaryFolder();
+
     @Mock
     private Context mockContext;
-    
+
     @Mock
     private SharedPreferences mockPrefs;
-    
+
     @Mock
     private SharedPreferences.Editor mockEditor;
 
     @Before
     public void setUp() {
-        MockitoAnnotations.openMocks(this);
         when(mockContext.getSharedPreferences(anyString(), anyInt())).thenReturn(mockPrefs);
-        when(mockPrefs.edit()).thenReturn(mockEditor);
-        when(mockEditor.putStringSet(anyString(), any(Set.class))).thenReturn(mockEditor);
+        when(mockContext.getFilesDir()).thenReturn(filesDir.getRoot());
     }
 
     @Test
     public void testDefaultDomainsAddedWhenStorageEmpty() {
-        // Simulate empty storage
-        when(mockPrefs.getStringSet(eq("domains"), any(HashSet.class))).thenReturn(new HashSet<>());
-        
-        // Create DomainManager - this should trigger default domain addition
+        // Nothing in the store and nothing left to migrate
         DomainManager domainManager = new DomainManager(mockContext);
-        
-        // Verify addBlockedDomain was called for both Instagram and Facebook domains
-        verify(mockEditor, atLeast(8)).putStringSet(eq("domains"), any(Set.class)); // 4 Instagram + 4 Facebook
-        verify(mockEditor, atLeast(8)).apply();
+
+        // 4 Instagram + 4 Facebook
+        List<String> domains = domainManager.getBlockedDomains();
+        assertEquals(8, domains.size());
+        assertTrue(domains.contains("instagram.com"));
+        assertTrue(domains.contains("api.facebook.com"));
+        verify(mockPrefs, never()).edit();
+    }
+
+    @Test
+    public void testDefaultDomainsNotAddedWhenStorageHasData() throws Exception {
+        new BlocklistStore(filesDir.getRoot()).write(Arrays.asList("example.com"));
+
+        DomainManager domainManager = new DomainManager(mockContext);
+
+        assertEquals(Arrays.asList("example.com"), domainManager.getBlockedDomains());
+    }
+
+    @Test
+    public void testAddBlockedDomain() throws Exception {
+        new BlocklistStore(filesDir.getRoot()).write(Arrays.asList("existing.com"));
+
+        DomainManager domainManager = new DomainManager(mockContext);
+        domainManager.addBlockedDomain(" Test.com ");
+
+        assertTrue(domainManager.isDomainBlocked("test.com"));
+        // Persisted for the next reader, e.g. the VPN service
+        DomainManager reopened = new DomainManager(mockContext);
+        assertEquals(new HashSet<>(Arrays.asList("existing.com", "test.com")),
+                new HashSet<>(reopened.getBlockedDomains()));
+        assertTrue(reopened.loadBlocklist().matches("www.test.com"));
+    }
+
+    @Test
+    public void testRemoveBlockedDomain() throws Exception {
+        new BlocklistStore(filesDir.getRoot()).write(Arrays.asList("existing.com", "test.com"));
+
+        DomainManager domainManager = new DomainManager(mockContext);
+        domainManager.removeBlockedDomain("test.com");
+
+        assertFalse(domainManager.isDomainBlocked("test.com"));
+        assertEquals(Arrays.asList("existing.com"), new DomainManager(mockContext).getBlockedDomains());
+    }
+
+    @Test
+    public void testAllowedDomainsListedSeparately() throws Exception {
+        new BlocklistStore(filesDir.getRoot()).write(Arrays.asList("instagram.com"));
+
+        DomainManager domainManager = new DomainManager(mockContext);
+        domainManager.addAllowedDomain("cdninstagram.com");
+        domainManager.addAllowedDomain("@@static.instagram.com");
+
+        DomainManager reopened = new DomainManager(mockContext);
+        assertEquals(Arrays.asList("instagram.com"), reopened.getBlockedDomains());
+        assertEquals(new HashSet<>(Arrays.asList("cdninstagram.com", "static.instagram.com")),
+                new HashSet<>(reopened.getAllowedDomains()));
+        assertTrue(reopened.isDomainAllowed("static.instagram.com"));
+        assertFalse(reopened.isDomainBlocked("static.instagram.com"));
+        assertFalse(reopened.loadBlocklist().matches("img.static.instagram.com"));
+        assertTrue(reopened.loadBlocklist().matches("www.instagram.com"));
+
+        reopened.removeAllowedDomain("static.instagram.com");
+        assertFalse(reopened.isDomainAllowed("static.instagram.com"));
+        assertTrue(reopened.loadBlocklist().matches("img.static.instagram.com"));
     }
 
     @Test
-    public void testDefaultDomainsNotAddedWhenStorageHasData() {
-        // Simulate existing domains in storage
-        Set<String> existingDomains = new HashSet<>();
-        existingDomains.add("example.com");
-        when(mockPrefs.getStringSet(eq("domains"), any(HashSet.class))).thenReturn(existingDomains);
-        
-        // Create DomainManager - this should NOT trigger default domain addition
+    public void testImportDomains() throws Exception {
+        new BlocklistStore(filesDir.getRoot()).write(Arrays.asList("existing.com"));
         DomainManager domainManager = new DomainManager(mockContext);
-        
-        // Verify no domains were added since storage already had data
-        verify(mockEditor, never()).putStringSet(anyString(), any(Set.class));
+
+        String hosts = "0.0.0.0 ads.example.com\n0.0.0.0 cdn.ads.example.com\n0.0.0.0 existing.com\n";
+        BlocklistImporter result = domainManager.importDomains(
+                new ByteArrayInputStream(hosts.getBytes(StandardCharsets.US_ASCII)), null);
+
+        assertEquals(1, result.getAddedCount());
+        assertEquals(new HashSet<>(Arrays.asList("existing.com", "ads.example.com")),
+                new HashSet<>(new DomainManager(mockContext).getBlockedDomains()));
     }
 
     @Test
-    public void testAddBlockedDomain() {
-        // Create a set that will be modified during the test
-        Set<String> existingDomains = new HashSet<>();
-        existingDomains.add("existing.com"); // Add a domain so defaults won't be added
-        
-        // Return a new copy each time to avoid reference issues
-        when(mockPrefs.getStringSet(eq("domains"), any(HashSet.class)))
-            .thenAnswer(invocation -> new HashSet<>(existingDomains));
-        
+    public void testMigratesPreferencesOnce() {
+        Set<String> saved = new HashSet<>(Arrays.asList("example.com", "ads.example.net"));
+        when(mockPrefs.contains("domains")).thenReturn(true).thenReturn(false);
+        when(mockPrefs.getStringSet(eq("domains"), any())).thenReturn(saved);
+        when(mockPrefs.edit()).thenReturn(mockEditor);
+        when(mockEditor.remove(anyString())).thenReturn(mockEditor);
+
         DomainManager domainManager = new DomainManager(mockContext);
-        domainManager.addBlockedDomain("test.com");
-        
-        verify(mockEditor).putStringSet(eq("domains"), any(Set.class));
+
+        assertEquals(saved, new HashSet<>(domainManager.getBlockedDomains()));
+        verify(mockEditor).remove("domains");
         verify(mockEditor).apply();
+
+        // The preference is gone, so a second manager reads the store as-is
+        new DomainManager(mockContext);
+        verify(mockEditor, times(1)).remove("domains");
+    }
+
+    @Test
+    public void testAppRulesStoredPerPackage() {
+        DomainManager domainManager = new DomainManager(mockContext);
+
+        domainManager.addAppBlockedDomain("com.example.browser", "tiktok.com");
+        domainManager.addAppAllowedDomain("com.example.browser", "instagram.com");
+        domainManager.addAppBlockedDomain("com.example.game", "ads.example.com");
+        domainManager.removeAppBlockedDomain("com.example.game", "ads.example.com");
+
+        assertEquals(Arrays.asList("tiktok.com"), domainManager.getAppBlockedDomains("com.example.browser"));
+        assertEquals(Arrays.asList("instagram.com"), domainManager.getAppAllowedDomains("com.example.browser"));
+        assertTrue(domainManager.getAppBlockedDomains("com.example.game").isEmpty());
+        // Per-app entries never leak into the global list
+        assertFalse(domainManager.getBlockedDomains().contains("tiktok.com"));
+
+        domainManager.clearAppRules("com.example.browser");
+        assertTrue(domainManager.getAppBlockedDomains("com.example.browser").isEmpty());
+        assertFalse(domainManager.getAppsWithRules().contains("com.example.browser"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAppRulesRejectPathsAsPackageNames() {
+        new DomainManager(mockContext).addAppBlockedDomain("../blocklist", "example.com");
+    }
+
+    @Test
+    public void testLoadAppRulesKeysByUidAndSkipsRemovedPackages() throws Exception {
+        PackageManager packageManager = mock(PackageManager.class);
+        when(mockContext.getPackageManager()).thenReturn(packageManager);
+        when(packageManager.getPackageUid("com.example.browser", 0)).thenReturn(10123);
+        when(packageManager.getPackageUid("com.example.removed", 0))
+                .thenThrow(new PackageManager.NameNotFoundException());
+        DomainManager domainManager = new DomainManager(mockContext);
+        domainManager.addAppBlockedDomain("com.example.browser", "facebook.com");
+        domainManager.addAppBlockedDomain("com.example.removed", "example.com");
+
+        AppRules rules = domainManager.loadAppRules();
+
+        assertArrayEquals(new int[]{10123}, rules.getUids());
+        assertTrue(rules.forUid(10123).matches("www.facebook.com"));
+        assertTrue(rules.mentions("facebook.com"));
+        assertFalse(rules.mentions("example.com"));
+    }
+
+    @Test
+    public void testScheduledGroupsStoredWithTheirSchedules() {
+        DomainManager domainManager = new DomainManager(mockContext);
+        domainManager.addGroupBlockedDomain("work", "tiktok.com");
+        domainManager.addGroupAllowedDomain("work", "docs.example.com");
+        domainManager.setGroupSchedule("work", RuleSchedule.parse("Mon-Fri 09:00-17:00"));
+        // Entries but no schedule: never applies
+        domainManager.addGroupBlockedDomain("someday", "example.com");
+
+        assertEquals(RuleSchedule.parse("Mon-Fri 09:00-17:00"), domainManager.getGroupSchedule("work"));
+        assertNull(domainManager.getGroupSchedule("someday"));
+        assertEquals(Arrays.asList("tiktok.com"), domainManager.getGroupBlockedDomains("work"));
+        assertEquals(Arrays.asList("docs.example.com"), domainManager.getGroupAllowedDomains("work"));
+        assertEquals(new HashSet<>(Arrays.asList("work", "someday")), new HashSet<>(domainManager.getRuleGroups()));
+
+        ScheduledRules rules = domainManager.loadScheduledRules();
+        assertEquals(1, rules.getGroups().size());
+        assertEquals("work", rules.getGroups().get(0).getName());
+
+        domainManager.deleteRuleGroup("work");
+        assertTrue(domainManager.loadScheduledRules().isEmpty());
+        assertEquals(Arrays.asList("someday"), domainManager.getRuleGroups());
     }
-}
\ No newline at end of file
+}
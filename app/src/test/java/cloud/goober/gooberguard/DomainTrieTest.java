@@ -0,0 +1,264 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DomainTrieTest {
+
+    private static final String[] LABELS = {
+            "com", "net", "org", "io", "instagram", "facebook", "api", "www", "cdn",
+            "ads", "tracker", "m", "i", "static", "graph", "edge", "a", "ab", "abc"
+    };
+
+    @Test
+    public void testExactMatch() {
+        DomainTrie trie = DomainTrie.compile(Arrays.asList("instagram.com"));
+
+        assertTrue(trie.matches("instagram.com"));
+        assertFalse(trie.matches("instagram.net"));
+        assertFalse(trie.matches("com"));
+    }
+
+    @Test
+    public void testSubdomainMatch() {
+        DomainTrie trie = DomainTrie.compile(Arrays.asList("instagram.com"));
+
+        assertTrue(trie.matches("api.instagram.com"));
+        assertTrue(trie.matches("a.b.c.instagram.com"));
+        // Suffix must start at a label boundary
+        assertFalse(trie.matches("notinstagram.com"));
+        assertFalse(trie.matches("stagram.com"));
+    }
+
+    @Test
+    public void testChildEntryDoesNotBlockParent() {
+        DomainTrie trie = DomainTrie.compile(Arrays.asList("api.instagram.com"));
+
+        assertTrue(trie.matches("api.instagram.com"));
+        assertTrue(trie.matches("v1.api.instagram.com"));
+        assertFalse(trie.matches("instagram.com"));
+        assertFalse(trie.matches("www.instagram.com"));
+    }
+
+    @Test
+    public void testMostSpecificEntryWins() {
+        DomainTrie trie = DomainTrie.compile(Arrays.asList(
+                "instagram.com", "@@static.instagram.com", "ads.static.instagram.com", "@@cdninstagram.com"));
+
+        assertTrue(trie.matches("instagram.com"));
+        assertTrue(trie.matches("www.instagram.com"));
+        assertFalse(trie.matches("static.instagram.com"));
+        assertFalse(trie.matches("img.static.instagram.com"));
+        assertTrue(trie.matches("ads.static.instagram.com"));
+        assertTrue(trie.matches("x.ads.static.instagram.com"));
+        // An allow entry with nothing to override blocks nothing
+        assertFalse(trie.matches("scontent.cdninstagram.com"));
+
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("IMG.Static.Instagram.com"), question));
+        assertFalse(trie.matches(question));
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("x.ads.static.instagram.com"), question));
+        assertTrue(trie.matches(question));
+    }
+
+    @Test
+    public void testAllowBeatsBlockAtSameDepth() {
+        DomainTrie trie = DomainTrie.compile(Arrays.asList("example.com", "@@example.com", "block.example.com"));
+
+        assertFalse(trie.matches("example.com"));
+        assertFalse(trie.matches("www.example.com"));
+        assertTrue(trie.matches("block.example.com"));
+        assertEquals(3, trie.size());
+        assertTrue(trie.contains("example.com"));
+        assertTrue(trie.contains("@@Example.com."));
+        assertFalse(trie.contains("@@block.example.com"));
+        assertEquals(new HashSet<>(Arrays.asList("example.com", "@@example.com", "block.example.com")),
+                new HashSet<>(trie.entries()));
+    }
+
+    @Test
+    public void testAllowEntriesSurviveImage() {
+        DomainTrie compiled = DomainTrie.compile(Arrays.asList("instagram.com", "@@cdn.instagram.com"));
+        ByteBuffer image = ByteBuffer.allocate(compiled.imageSize());
+        compiled.writeImage(image);
+        image.flip();
+        DomainTrie mapped = DomainTrie.fromImage(image);
+
+        assertTrue(mapped.matches("api.instagram.com"));
+        assertFalse(mapped.matches("x.cdn.instagram.com"));
+        assertTrue(mapped.contains("@@cdn.instagram.com"));
+    }
+
+    @Test
+    public void testCorruptImageIsRejected() {
+        DomainTrie compiled = DomainTrie.compile(Arrays.asList("example.com"));
+        // Root, com and example
+        assertEquals(3, compiled.nodeCount());
+        int parents = 24;
+        int labelOffsets = parents + 3 * 4;
+        int slots = labelOffsets + 2 * 3 * 4;
+
+        // Label past the end of the pool, a parent that is not an earlier
+        // node, and a slot pointing past the last node
+        int[][] corruptions = {{labelOffsets + 4, 1 << 20}, {parents + 4, 2}, {slots, 99}};
+        for (int[] corruption : corruptions) {
+            ByteBuffer image = ByteBuffer.allocate(compiled.imageSize()).order(ByteOrder.LITTLE_ENDIAN);
+            compiled.writeImage(image);
+            image.flip();
+            image.putInt(corruption[0], corruption[1]);
+            try {
+                DomainTrie.fromImage(image);
+                fail("Accepted image with " + corruption[1] + " at " + corruption[0]);
+            } catch (IllegalArgumentException expected) {
+                // Rejected up front instead of failing a later lookup
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyAsciiLettersAreFolded() {
+        // DNS names compare case-insensitively in ASCII only; other bytes
+        // have to match exactly, as they do in wire-format queries
+        DomainTrie trie = DomainTrie.compile(Arrays.asList("\u00C9XAMPLE.com"));
+
+        assertEquals("\u00C9xample.com", DomainTrie.normalize("\u00C9XAMPLE.com"));
+        assertTrue(trie.matches("\u00C9xample.com"));
+        assertTrue(trie.matches("www.\u00C9Xample.COM"));
+        assertFalse(trie.matches("\u00E9xample.com"));
+        assertTrue(trie.contains("\u00C9xample.com"));
+    }
+
+    @Test
+    public void testPruneKeepsBlocksBeneathAllowEntries() {
+        DomainTrie.Builder builder = new DomainTrie.Builder(4);
+        builder.add("example.com", true);
+        builder.add("www.example.com", true);
+        builder.add("@@cdn.example.com", true);
+        builder.add("ads.cdn.example.com", true);
+
+        assertEquals(1, builder.pruneCovered());
+        DomainTrie trie = builder.build();
+        assertEquals(new HashSet<>(Arrays.asList("example.com", "@@cdn.example.com", "ads.cdn.example.com")),
+                new HashSet<>(trie.entries()));
+        assertTrue(trie.matches("ads.cdn.example.com"));
+    }
+
+    @Test
+    public void testAllowEntriesMustBeDomains() {
+        assertNull(DomainTrie.normalize("@@*.example.com"));
+        assertNull(DomainTrie.normalize("@@/ads/"));
+        assertEquals("@@example.com", DomainTrie.normalize(" @@Example.COM. "));
+        assertFalse(PatternRules.isPattern("@@*.example.com"));
+        assertFalse(DnsPacketParser.matchesBlockedDomain("www.example.com", "@@example.com"));
+    }
+
+    @Test
+    public void testNormalization() {
+        DomainTrie trie = DomainTrie.compile(Arrays.asList("  Instagram.COM "));
+
+        assertTrue(trie.matches("instagram.com"));
+        assertTrue(trie.matches("API.Instagram.Com"));
+        assertTrue(trie.matches(" api.instagram.com "));
+        assertTrue(trie.matches("api.instagram.com."));
+    }
+
+    @Test
+    public void testMalformedInput() {
+        DomainTrie trie = DomainTrie.compile(Arrays.asList("", "..", "a..com", null, "example.com"));
+
+        assertEquals(1, trie.size());
+        assertFalse(trie.matches((String) null));
+        assertFalse(trie.matches(""));
+        assertFalse(trie.matches("."));
+        assertFalse(trie.matches("a..com"));
+        assertTrue(trie.matches("x.example.com"));
+    }
+
+    @Test
+    public void testEmptyList() {
+        DomainTrie trie = DomainTrie.compile(Collections.emptyList());
+
+        assertEquals(0, trie.size());
+        assertFalse(trie.matches("instagram.com"));
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(42);
+        Set<String> blocked = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            blocked.add(randomDomain(random, 1 + random.nextInt(3)));
+        }
+        DomainTrie trie = DomainTrie.compile(blocked);
+
+        for (int i = 0; i < 20000; i++) {
+            String query = randomDomain(random, 1 + random.nextInt(5));
+            assertEquals("Mismatch for " + query, linearScan(blocked, query), trie.matches(query));
+        }
+    }
+
+    @Test
+    public void testQuestionMatchesLinearScan() {
+        Random random = new Random(99);
+        Set<String> blocked = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            blocked.add(randomDomain(random, 1 + random.nextInt(3)));
+        }
+        DomainTrie trie = DomainTrie.compile(blocked);
+        DnsQuestion question = new DnsQuestion();
+
+        for (int i = 0; i < 5000; i++) {
+            String query = randomDomain(random, 1 + random.nextInt(5));
+            String wireCase = random.nextBoolean() ? query.toUpperCase() : query;
+            assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(wireCase), question));
+            assertEquals("Mismatch for " + query, linearScan(blocked, query), trie.matches(question));
+        }
+    }
+
+    @Test
+    public void testLargeListGrowsTable() {
+        Random random = new Random(7);
+        List<String> blocked = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            blocked.add("host" + i + "." + LABELS[random.nextInt(LABELS.length)] + ".com");
+        }
+        DomainTrie trie = DomainTrie.compile(blocked);
+
+        for (String domain : blocked) {
+            assertTrue(trie.matches(domain));
+            assertTrue(trie.matches("sub." + domain));
+        }
+        assertFalse(trie.matches("host50000.api.com"));
+    }
+
+    private static String randomDomain(Random random, int labels) {
+        StringBuilder domain = new StringBuilder();
+        for (int i = 0; i < labels; i++) {
+            if (i > 0) {
+                domain.append('.');
+            }
+            domain.append(LABELS[random.nextInt(LABELS.length)]);
+        }
+        return domain.toString();
+    }
+
+    private static boolean linearScan(Set<String> blocked, String query) {
+        for (String blockedDomain : blocked) {
+            if (DnsPacketParser.matchesBlockedDomain(query, blockedDomain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
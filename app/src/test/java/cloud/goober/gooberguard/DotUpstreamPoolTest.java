@@ -0,0 +1,150 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import static org.junit.Assert.*;
+
+public class DotUpstreamPoolTest {
+    private static final byte[] FAILED = new byte[0];
+
+    private StubTlsResolver resolver;
+    private DotUpstreamPool pool;
+    private final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<>();
+
+    private final DnsUpstream.Callback callback = new DnsUpstream.Callback() {
+        @Override
+        public void onResponse(byte[] response) {
+            replies.add(response);
+        }
+
+        @Override
+        public void onFailure() {
+            replies.add(FAILED);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = new StubTlsResolver(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        resolver.close();
+    }
+
+    @Test
+    public void testAnswersWithClientId() throws Exception {
+        startPool(resolver.endpoint(), StubTlsResolver.clientContext(), SecureUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        byte[] query = DnsTestPackets.dnsQuery(0xBEEF, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No reply", reply);
+        assertNotSame(FAILED, reply);
+        assertEquals(0xBEEF, ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+        assertArrayEquals(StubResolver.ANSWER_ADDRESS, Arrays.copyOfRange(reply, reply.length - 4, reply.length));
+        assertEquals(1, pool.getAnsweredCount());
+        assertEquals(0, pool.pendingCount());
+    }
+
+    @Test
+    public void testPipelinesQueriesOnOneConnection() throws Exception {
+        startPool(resolver.endpoint(), StubTlsResolver.clientContext(), SecureUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        // All in flight together, under the same client ID
+        for (int i = 0; i < 20; i++) {
+            byte[] query = DnsTestPackets.dnsQuery(0x0001, DnsTestPackets.encodeName("host" + i + ".example.com"),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(pool.query(query, 0, query.length, callback));
+        }
+        for (int i = 0; i < 20; i++) {
+            byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No reply " + i, reply);
+            assertNotSame(FAILED, reply);
+            assertEquals(0x0001, ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+        }
+
+        assertEquals(1, resolver.connectionCount());
+        assertEquals(20, resolver.queryIds().stream().distinct().count());
+    }
+
+    @Test
+    public void testUntrustedCertificateFails() throws Exception {
+        startPool(resolver.endpoint(), SecureUpstreamPool.defaultContext(), SecureUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        byte[] query = DnsTestPackets.dnsQuery(0x1111, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        assertSame(FAILED, replies.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, resolver.queryCount());
+    }
+
+    @Test
+    public void testWrongServerNameFails() throws Exception {
+        SecureUpstreamPool.Endpoint endpoint = new SecureUpstreamPool.Endpoint(resolver.address(),
+                "dns.example.com", null);
+        startPool(endpoint, StubTlsResolver.clientContext(), SecureUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        byte[] query = DnsTestPackets.dnsQuery(0x2222, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        assertSame(FAILED, replies.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, resolver.queryCount());
+    }
+
+    @Test
+    public void testReconnectResumesSession() throws Exception {
+        resolver.useTls12().setRepliesPerConnection(1);
+        startPool(resolver.endpoint(), StubTlsResolver.clientContext(), SecureUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] query = DnsTestPackets.dnsQuery(0x4000 + i, DnsTestPackets.encodeName("example.com"),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(pool.query(query, 0, query.length, callback));
+            byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No reply to query " + i, reply);
+            assertNotSame("Query " + i + " failed", FAILED, reply);
+        }
+
+        assertTrue(resolver.connectionCount() >= 3);
+        assertTrue(pool.getResumedCount() >= 1);
+    }
+
+    @Test
+    public void testSlowUpstreamTimesOut() throws Exception {
+        resolver.setDelayMillis(2000);
+        startPool(resolver.endpoint(), StubTlsResolver.clientContext(), 300);
+
+        byte[] query = DnsTestPackets.dnsQuery(0x1234, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        assertSame(FAILED, replies.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getFailedCount());
+        assertEquals(0, pool.pendingCount());
+    }
+
+    private void startPool(SecureUpstreamPool.Endpoint endpoint, SSLContext context, long timeoutMillis) {
+        pool = new DotUpstreamPool(Collections.singletonList(endpoint), context, socket -> true,
+                SecureUpstreamPool.DEFAULT_CONNECTIONS_PER_UPSTREAM, timeoutMillis);
+        pool.start();
+    }
+}
@@ -0,0 +1,76 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlowUidCacheTest {
+
+    @Test
+    public void testLooksUpEachFlowOnce() {
+        List<Object[]> calls = new ArrayList<>();
+        FlowUidCache cache = new FlowUidCache((protocol, local, remote) -> {
+            calls.add(new Object[]{protocol, local, remote});
+            return 10123;
+        });
+
+        assertEquals(10123, cache.uidFor(DnsTestPackets.queryPacket("example.com")));
+        assertEquals(10123, cache.uidFor(DnsTestPackets.queryPacket("example.org")));
+
+        assertEquals(1, calls.size());
+        assertEquals(1, cache.getLookupCount());
+        assertEquals(1, cache.getHitCount());
+        // The app's end of the flow is the packet's source
+        assertEquals(IpPacketBuilder.PROTOCOL_UDP, calls.get(0)[0]);
+        assertEquals(DnsTestPackets.CLIENT_PORT, ((InetSocketAddress) calls.get(0)[1]).getPort());
+        assertEquals("10.0.0.2", ((InetSocketAddress) calls.get(0)[1]).getAddress().getHostAddress());
+        assertEquals(53, ((InetSocketAddress) calls.get(0)[2]).getPort());
+    }
+
+    @Test
+    public void testProtocolsAndPortsAreSeparateFlows() {
+        int[] next = {10000};
+        FlowUidCache cache = new FlowUidCache((protocol, local, remote) -> next[0]++);
+        byte[] client = DnsTestPackets.CLIENT_ADDRESS;
+        byte[] server = DnsTestPackets.DNS_SERVER_ADDRESS;
+
+        int udp = cache.uidFor(IpPacketBuilder.PROTOCOL_UDP, client, 40000, server, 53);
+        int tcp = cache.uidFor(IpPacketBuilder.PROTOCOL_TCP, client, 40000, server, 53);
+        int otherPort = cache.uidFor(IpPacketBuilder.PROTOCOL_UDP, client, 40001, server, 53);
+
+        assertEquals(3, cache.getLookupCount());
+        assertNotEquals(udp, tcp);
+        assertNotEquals(udp, otherPort);
+        assertEquals(tcp, cache.uidFor(IpPacketBuilder.PROTOCOL_TCP, client, 40000, server, 53));
+    }
+
+    @Test
+    public void testFailedLookupsAreRememberedAsUnknown() {
+        FlowUidCache cache = new FlowUidCache((protocol, local, remote) -> {
+            throw new SecurityException("not the active VPN");
+        });
+
+        assertEquals(FlowUidCache.UNKNOWN_UID, cache.uidFor(DnsTestPackets.queryPacket("example.com")));
+        assertEquals(FlowUidCache.UNKNOWN_UID, cache.uidFor(DnsTestPackets.queryPacket("example.com")));
+        assertEquals(1, cache.getLookupCount());
+    }
+
+    @Test
+    public void testEntriesExpireAndClear() {
+        int[] lookups = {0};
+        FlowUidCache expiring = new FlowUidCache((protocol, local, remote) -> ++lookups[0], 0);
+        expiring.uidFor(DnsTestPackets.queryPacket("example.com"));
+        expiring.uidFor(DnsTestPackets.queryPacket("example.com"));
+        assertEquals(2, lookups[0]);
+
+        FlowUidCache cache = new FlowUidCache((protocol, local, remote) -> 10123);
+        cache.uidFor(DnsTestPackets.queryPacket("example.com"));
+        cache.clear();
+        cache.uidFor(DnsTestPackets.queryPacket("example.com"));
+        assertEquals(2, cache.getLookupCount());
+    }
+}
@@ -0,0 +1,70 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValueOnce() {
+        assertEquals(0, LatencyHistogram.bucketIndex(0));
+        assertEquals(15, LatencyHistogram.bucketIndex(15));
+        for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long lower = LatencyHistogram.bucketLowerBound(i);
+            assertEquals(LatencyHistogram.bucketUpperBound(i - 1) + 1, lower);
+            assertEquals(i, LatencyHistogram.bucketIndex(lower));
+            assertEquals(i, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(i)));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.bucketIndex(LatencyHistogram.MAX_VALUE_NANOS));
+    }
+
+    @Test
+    public void testBucketWidthWithinSixPercent() {
+        for (int i = LatencyHistogram.SUB_BUCKETS; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long lower = LatencyHistogram.bucketLowerBound(i);
+            long upper = LatencyHistogram.bucketUpperBound(i);
+            assertTrue("Bucket " + i, (double) (upper - lower + 1) / lower <= 1.0 / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 1000 microseconds, one of each
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_000, snapshot.percentileNanos(0.5), 500_000 / 16.0);
+        assertEquals(990_000, snapshot.percentileNanos(0.99), 990_000 / 16.0);
+        assertTrue(snapshot.percentileNanos(0.5) >= 500_000);
+        assertTrue(snapshot.maxNanos() >= 1_000_000);
+        assertTrue(snapshot.maxNanos() <= 1_000_000 * 17 / 16);
+    }
+
+    @Test
+    public void testOutOfRangeValuesClamp() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.percentileNanos(0.5));
+        assertEquals(LatencyHistogram.MAX_VALUE_NANOS, snapshot.maxNanos());
+    }
+
+    @Test
+    public void testEmptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().percentileNanos(0.99));
+        histogram.record(1234);
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().maxNanos());
+    }
+}
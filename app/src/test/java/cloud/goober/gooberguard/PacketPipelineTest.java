@@ -0,0 +1,299 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class PacketPipelineTest {
+
+    private static final int BUFFER_SIZE = Math.max(1500, DnsResponseBuilder.MAX_RESPONSE_SIZE);
+
+    private PacketPipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testRingHandsEachBufferToExactlyOneConsumer() throws Exception {
+        PacketRing ring = new PacketRing(64);
+        int producers = 4;
+        int perProducer = 20000;
+        int total = producers * perProducer;
+        AtomicIntegerArray seen = new AtomicIntegerArray(total);
+        AtomicInteger consumed = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int first = p * perProducer;
+            threads.add(new Thread(() -> {
+                for (int i = first; i < first + perProducer; i++) {
+                    ByteBuffer buffer = ByteBuffer.allocate(4).putInt(0, i);
+                    while (!ring.offer(buffer)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        List<Thread> consumers = new ArrayList<>();
+        for (int c = 0; c < 4; c++) {
+            consumers.add(new Thread(() -> {
+                ByteBuffer buffer;
+                while ((buffer = ring.take()) != null) {
+                    seen.incrementAndGet(buffer.getInt(0));
+                    consumed.incrementAndGet();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        consumers.forEach(Thread::start);
+
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        awaitCondition(() -> consumed.get() == total);
+        for (Thread consumer : consumers) {
+            consumer.interrupt();
+            consumer.join(5000);
+        }
+
+        for (int i = 0; i < total; i++) {
+            assertEquals("buffer " + i, 1, seen.get(i));
+        }
+        assertEquals(0, ring.size());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void testRingReportsFull() {
+        PacketRing ring = new PacketRing(5);
+        assertEquals(8, ring.capacity());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.offer(ByteBuffer.allocate(1)));
+        }
+        assertFalse(ring.offer(ByteBuffer.allocate(1)));
+        assertNotNull(ring.poll());
+        assertTrue(ring.offer(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void testBlockedQueriesAnsweredThroughPipeline() throws Exception {
+        List<ByteBuffer> trace = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            trace.add(DnsTestPackets.queryPacket(i, "ads" + (i % 10) + ".example.com", DnsQuestion.TYPE_A));
+        }
+        CollectingSink sink = new CollectingSink();
+        LongAdder blocked = new LongAdder();
+        // Rings big enough to hold the whole trace, so nothing is dropped
+        pipeline = new PacketPipeline(new TraceSource(trace, trace.size()), sink,
+                handlers(blocklist("example.com"), packet -> true, blocked), 3, BUFFER_SIZE, 1024);
+        pipeline.start();
+
+        awaitCondition(() -> pipeline.getWrittenCount() == trace.size());
+
+        assertEquals(trace.size(), pipeline.getReadCount());
+        assertEquals(0, pipeline.getInboundDropCount());
+        assertEquals(0, pipeline.getOutboundDropCount());
+        assertEquals(trace.size(), blocked.sum());
+        // Every query got exactly one reply, with its own transaction id
+        boolean[] answered = new boolean[trace.size()];
+        for (ByteBuffer reply : sink.packets) {
+            DnsTestPackets.assertChecksumsValid(reply);
+            int id = reply.getShort(28) & 0xFFFF;
+            assertFalse("duplicate reply " + id, answered[id]);
+            answered[id] = true;
+        }
+        for (boolean seen : answered) {
+            assertTrue(seen);
+        }
+    }
+
+    @Test
+    public void testAllowedQueriesGoToForwarder() throws Exception {
+        List<ByteBuffer> trace = Arrays.asList(
+                DnsTestPackets.queryPacket("allowed.org"),
+                DnsTestPackets.queryPacket("blocked.example.com"));
+        CollectingSink sink = new CollectingSink();
+        List<String> forwarded = Collections.synchronizedList(new ArrayList<>());
+        pipeline = new PacketPipeline(new TraceSource(trace, trace.size()), sink,
+                handlers(blocklist("example.com"), packet -> {
+                    DnsQuestion question = new DnsQuestion();
+                    DnsPacketParser.parseQuestion(packet, question);
+                    forwarded.add(question.toDomainName());
+                    // The forwarder answers later through send()
+                    return pipeline.send(packet);
+                }, new LongAdder()), 1, BUFFER_SIZE);
+        pipeline.start();
+
+        awaitCondition(() -> pipeline.getWrittenCount() == 2);
+        assertEquals(Collections.singletonList("allowed.org"), forwarded);
+    }
+
+    @Test
+    public void testFullQueuesDropInsteadOfBlockingReader() throws Exception {
+        int packets = 5000;
+        List<ByteBuffer> trace = Collections.singletonList(DnsTestPackets.queryPacket("ads.example.com"));
+        CountDownLatch release = new CountDownLatch(1);
+        LongAdder written = new LongAdder();
+        PacketSink stuckSink = packet -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.increment();
+        };
+        pipeline = new PacketPipeline(new TraceSource(trace, packets), stuckSink,
+                handlers(blocklist("example.com"), packet -> true, new LongAdder()), 2, BUFFER_SIZE, 16);
+        pipeline.start();
+
+        // The writer is stuck, but the reader still drains the whole source
+        awaitCondition(() -> pipeline.getReadCount() == packets);
+        assertTrue(pipeline.getInboundDropCount() + pipeline.getOutboundDropCount() > 0);
+
+        release.countDown();
+        // Every packet read is either written or counted as a drop
+        awaitCondition(() -> pipeline.getWrittenCount() + pipeline.getInboundDropCount()
+                + pipeline.getOutboundDropCount() == packets);
+        assertEquals(pipeline.getWrittenCount(), written.sum());
+    }
+
+    @Test
+    public void testSteadyStateHandlingDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        DnsCache cache = new DnsCache();
+        byte[] cachedQuery = DnsTestPackets.dnsQuery(1, DnsTestPackets.encodeName("cached.org"), 1, 1);
+        byte[] cachedAnswer = StubResolver.answer(cachedQuery, cachedQuery.length);
+        cache.put(ByteBuffer.wrap(cachedAnswer), 0, cachedAnswer.length);
+        Blocklist blocklist = blocklist("example.com");
+        PacketHandler handler = new DnsPacketHandler(() -> blocklist, cache,
+                new DnsResponseBuilder(), packet -> true, new LongAdder(), BUFFER_SIZE);
+
+        // Blocked (over IPv4 and IPv6), cached, forwarded and non-DNS
+        // packets, in pooled direct buffers
+        List<ByteBuffer> trace = Arrays.asList(
+                DnsTestPackets.queryPacket("ads.example.com"),
+                DnsTestPackets.queryPacket6(1, "ads.example.com", DnsQuestion.TYPE_AAAA),
+                DnsTestPackets.queryPacket("cached.org"),
+                DnsTestPackets.queryPacket("allowed.org"),
+                DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS, 50000,
+                        new byte[]{93, (byte) 184, (byte) 216, 34}, 443, new byte[1200]));
+        PacketRing ring = new PacketRing(8);
+        ByteBuffer[] packets = new ByteBuffer[trace.size()];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            packets[i].put(trace.get(i).duplicate()).flip();
+        }
+        ByteBuffer reply = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        long threadId = Thread.currentThread().getId();
+        int answered = 0;
+        long allocated = 0;
+        // The first pass warms up the JIT, the second is measured
+        for (int pass = 0; pass < 2; pass++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 50000; i++) {
+                ByteBuffer packet = packets[i % packets.length];
+                packet.position(0);
+                ring.offer(packet);
+                if (handler.handle(ring.poll(), reply)) {
+                    answered++;
+                }
+            }
+            allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        }
+
+        // Forwarded and non-DNS packets get no reply
+        assertEquals(60000, answered);
+        assertEquals(20000, cache.getHitCount());
+        // Allow for the measurement call itself
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static Supplier<PacketHandler> handlers(Blocklist blocklist, DnsPacketHandler.QueryForwarder forwarder,
+                                                    LongAdder blocked) {
+        DnsCache cache = new DnsCache();
+        DnsResponseBuilder responseBuilder = new DnsResponseBuilder();
+        return () -> new DnsPacketHandler(() -> blocklist, cache, responseBuilder, forwarder,
+                blocked, BUFFER_SIZE);
+    }
+
+    private static Blocklist blocklist(String domain) {
+        return blocklist(Collections.singletonList(domain));
+    }
+
+    private static Blocklist blocklist(List<String> domains) {
+        return new Blocklist(DomainTrie.compile(domains), Collections.emptyList(), Collections.emptyList());
+    }
+
+    private void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out: " + stats(), System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private String stats() {
+        return pipeline == null ? "" : "read " + pipeline.getReadCount() + ", written " + pipeline.getWrittenCount()
+                + ", dropped " + pipeline.getInboundDropCount() + "/" + pipeline.getOutboundDropCount();
+    }
+
+    /**
+     * Replays a packet trace in a loop, then reports end of input
+     */
+    private static class TraceSource implements PacketSource {
+        private final List<ByteBuffer> trace;
+        private final int packets;
+        private int next;
+
+        TraceSource(List<ByteBuffer> trace, int packets) {
+            this.trace = trace;
+            this.packets = packets;
+        }
+
+        @Override
+        public int read(ByteBuffer packet) {
+            if (next == packets) {
+                return -1;
+            }
+            ByteBuffer source = trace.get(next++ % trace.size()).duplicate();
+            source.position(0);
+            int length = source.remaining();
+            packet.clear();
+            packet.put(source);
+            return length;
+        }
+    }
+
+    private static class CollectingSink implements PacketSink {
+        final List<ByteBuffer> packets = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void write(ByteBuffer packet) {
+            ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+            copy.put(packet.duplicate());
+            copy.flip();
+            packets.add(copy);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class PatternRulesTest {
+
+    @Test
+    public void testWildcards() {
+        PatternRules rules = PatternRules.compile(Arrays.asList("ads*.example.com", "*.doubleclick.*"));
+
+        assertTrue(rules.matches("ads.example.com"));
+        assertTrue(rules.matches("ads1.example.com"));
+        assertTrue(rules.matches("ads.cdn.example.com"));
+        // Subdomains of a match are blocked too
+        assertTrue(rules.matches("www.ads2.example.com"));
+        assertTrue(rules.matches("ADS3.Example.COM."));
+        assertFalse(rules.matches("ad.example.com"));
+        assertFalse(rules.matches("example.com"));
+        assertFalse(rules.matches("ads.example.community"));
+
+        assertTrue(rules.matches("stats.doubleclick.net"));
+        assertTrue(rules.matches("a.b.doubleclick.co.uk"));
+        assertFalse(rules.matches("doubleclick.net"));
+        assertFalse(rules.matches("notdoubleclick.net"));
+    }
+
+    @Test
+    public void testRegex() {
+        PatternRules rules = PatternRules.compile(Arrays.asList(
+                "/^track[0-9]+\\./",
+                "/^(.*\\.)?metrics?-\\w{2,4}\\.io$/",
+                "/[^a-z.]{6}/"));
+
+        assertTrue(rules.matches("track1.example.com"));
+        assertTrue(rules.matches("track42.cdn.net"));
+        assertFalse(rules.matches("track.example.com"));
+        assertFalse(rules.matches("www.track1.example.com"));
+
+        assertTrue(rules.matches("metric-eu.io"));
+        assertTrue(rules.matches("a.metrics-useu.io"));
+        assertFalse(rules.matches("a.metrics-u.io"));
+        assertFalse(rules.matches("xmetrics-eu.io"));
+        assertFalse(rules.matches("metrics-eu.io.example"));
+
+        // Unanchored expressions are found anywhere in the name
+        assertTrue(rules.matches("cdn-123456.example.com"));
+        assertFalse(rules.matches("cdn12345.example.com"));
+    }
+
+    @Test
+    public void testInvalidRulesAreRejected() {
+        List<String> invalid = Arrays.asList(
+                "/unclosed[/", "/(open/", "/a{3,1}/", "//", "/a|^b/", "*.exa mple.com", "/x{1000}/");
+        for (String rule : invalid) {
+            assertNull(rule, PatternRules.normalize(rule));
+        }
+
+        PatternRules rules = PatternRules.compile(new ArrayList<String>() {{
+            addAll(invalid);
+            add("ads*.example.com");
+        }});
+        assertEquals(invalid.size(), rules.getRejectedCount());
+        assertEquals(Collections.singletonList("ads*.example.com"), rules.rules());
+        assertTrue(rules.matches("ads.example.com"));
+    }
+
+    @Test
+    public void testIsPatternAndNormalize() {
+        assertTrue(PatternRules.isPattern("*.example.com"));
+        assertTrue(PatternRules.isPattern("/example/"));
+        assertFalse(PatternRules.isPattern("example.com"));
+        assertFalse(PatternRules.isPattern("/"));
+
+        assertEquals("ads*.example.com", PatternRules.normalize(" ADS*.Example.com. "));
+        // Regular expressions keep their case
+        assertEquals("/^A\\d/", PatternRules.normalize("/^A\\d/"));
+
+        PatternRules rules = PatternRules.compile(Arrays.asList("ads*.example.com", "ADS*.example.com."));
+        assertEquals(1, rules.size());
+        assertTrue(rules.contains("Ads*.Example.com"));
+        assertFalse(rules.contains("ads.example.com"));
+    }
+
+    @Test
+    public void testEmpty() {
+        PatternRules rules = PatternRules.compile(Collections.emptyList());
+
+        assertTrue(rules.isEmpty());
+        assertFalse(rules.matches("example.com"));
+        assertSame(PatternRules.empty(), rules);
+    }
+
+    @Test
+    public void testMatchesQuestionInPlace() {
+        PatternRules rules = PatternRules.compile(Arrays.asList("ads*.example.com", "/^track[0-9]+\\./"));
+        DnsQuestion question = new DnsQuestion();
+
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("WWW.Ads7.Example.com"), question));
+        assertTrue(rules.matches(question));
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("track9.example.net"), question));
+        assertTrue(rules.matches(question));
+        assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket("example.com"), question));
+        assertFalse(rules.matches(question));
+    }
+
+    @Test
+    public void testAgreesWithJavaRegex() {
+        String[] expressions = {"^a[bc]+\\.", "b{2}", "(ab|ca)\\.c$", "^[^a]*$", "c.a"};
+        List<String> rules = new ArrayList<>();
+        List<Pattern> patterns = new ArrayList<>();
+        for (String expression : expressions) {
+            rules.add("/" + expression + "/");
+            patterns.add(Pattern.compile(expression));
+        }
+        PatternRules compiled = PatternRules.compile(rules);
+
+        Random random = new Random(13);
+        DnsQuestion question = new DnsQuestion();
+        for (int i = 0; i < 5000; i++) {
+            String name = randomName(random);
+            boolean expected = false;
+            for (Pattern pattern : patterns) {
+                expected |= pattern.matcher(name).find();
+            }
+            assertEquals(name, expected, compiled.matches(name));
+            assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(name), question));
+            assertEquals(name, expected, compiled.matches(question));
+        }
+    }
+
+    @Test
+    public void testLargeGroupsAreSplit() {
+        // Each rule needs a state per position, so together they cannot fit
+        // in one automaton
+        List<String> rules = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            rules.add("/^[a-z]{" + (i % 8 + 1) + "}x" + i + "y[0-9a-z]{10,80}\\./");
+        }
+        PatternRules compiled = PatternRules.compile(rules);
+
+        assertEquals(0, compiled.getRejectedCount());
+        assertEquals(rules.size(), compiled.size());
+        assertTrue(compiled.getAutomatonCount() > 1);
+        for (int i = 0; i < 12; i++) {
+            String prefix = "abcdefgh".substring(0, i % 8 + 1) + "x" + i + "y";
+            assertTrue(compiled.matches(prefix + "0123456789.example.com"));
+            assertFalse(compiled.matches(prefix + "012345678.example.com"));
+        }
+    }
+
+    @Test
+    public void testCompileStats() {
+        List<String> rules = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            rules.add(i % 2 == 0 ? "ads" + i + "*.example.com" : "/^t" + i + "[0-9]+\\./");
+        }
+        PatternRules compiled = PatternRules.compile(rules);
+
+        assertEquals(rules.size(), compiled.size());
+        assertTrue(compiled.getStateCount() > 0);
+        assertTrue(compiled.getMemoryBytes() > 0);
+        assertTrue(compiled.getAutomatonCount() > 0);
+        assertTrue(compiled.matches("cdn.ads38x.example.com"));
+        assertTrue(compiled.matches("t39123.example.com"));
+        assertFalse(compiled.matches("t39a.example.com"));
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int labels = 1 + random.nextInt(3);
+        for (int i = 0; i < labels; i++) {
+            if (i > 0) {
+                name.append('.');
+            }
+            int length = 1 + random.nextInt(5);
+            for (int j = 0; j < length; j++) {
+                name.append((char) ('a' + random.nextInt(3)));
+            }
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,243 @@
+package cloud.goober.gooberguard;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the IP packets out of a pcap or pcapng capture, dropping the link
+ * layer header. Understands Ethernet (with VLAN tags), Linux cooked v1 and
+ * v2, BSD loopback and raw IP captures, in either byte order and at any
+ * timestamp resolution.
+ */
+final class PcapReader {
+    private static final int PCAP_MAGIC_MICROS = 0xA1B2C3D4;
+    private static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+    private static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int PCAPNG_INTERFACE = 1;
+    private static final int PCAPNG_SIMPLE_PACKET = 3;
+    private static final int PCAPNG_ENHANCED_PACKET = 6;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_TSRESOL = 9;
+
+    static final int LINKTYPE_NULL = 0;
+    static final int LINKTYPE_ETHERNET = 1;
+    static final int LINKTYPE_RAW = 101;
+    static final int LINKTYPE_LINUX_SLL = 113;
+    static final int LINKTYPE_IPV4 = 228;
+    static final int LINKTYPE_IPV6 = 229;
+    static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    /**
+     * One captured IP packet
+     */
+    static final class Frame {
+        final long timestampNanos;
+        final byte[] packet;
+
+        Frame(long timestampNanos, byte[] packet) {
+            this.timestampNanos = timestampNanos;
+            this.packet = packet;
+        }
+    }
+
+    private PcapReader() {
+    }
+
+    /**
+     * Every IP packet in the capture, in file order. Frames that are not
+     * IPv4 or IPv6, or were cut short by the snap length, are skipped.
+     */
+    static List<Frame> read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        int big = ByteBuffer.wrap(magic).order(ByteOrder.BIG_ENDIAN).getInt();
+        int little = ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        if (big == PCAPNG_SECTION_HEADER) {
+            return readPcapng(in, magic);
+        }
+        if (big == PCAP_MAGIC_MICROS || big == PCAP_MAGIC_NANOS) {
+            return readPcap(in, ByteOrder.BIG_ENDIAN, big == PCAP_MAGIC_NANOS);
+        }
+        if (little == PCAP_MAGIC_MICROS || little == PCAP_MAGIC_NANOS) {
+            return readPcap(in, ByteOrder.LITTLE_ENDIAN, little == PCAP_MAGIC_NANOS);
+        }
+        throw new IOException("Not a pcap or pcapng capture");
+    }
+
+    private static List<Frame> readPcap(DataInputStream in, ByteOrder order, boolean nanos) throws IOException {
+        ByteBuffer header = readBytes(in, 20).order(order);
+        int linkType = header.getInt(16) & 0x0FFFFFFF;
+        List<Frame> frames = new ArrayList<>();
+        while (true) {
+            ByteBuffer record;
+            try {
+                record = readBytes(in, 16).order(order);
+            } catch (EOFException e) {
+                return frames;
+            }
+            long seconds = record.getInt(0) & 0xFFFFFFFFL;
+            long fraction = record.getInt(4) & 0xFFFFFFFFL;
+            int capturedLength = record.getInt(8);
+            int originalLength = record.getInt(12);
+            ByteBuffer data = readBytes(in, capturedLength);
+            if (capturedLength == originalLength) {
+                add(frames, seconds * 1_000_000_000L + (nanos ? fraction : fraction * 1000), linkType, data);
+            }
+        }
+    }
+
+    private static List<Frame> readPcapng(DataInputStream in, byte[] magic) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        List<int[]> interfaces = new ArrayList<>();
+        List<Long> unitsPerSecond = new ArrayList<>();
+        ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+        boolean first = true;
+        while (true) {
+            ByteBuffer head;
+            if (first) {
+                head = ByteBuffer.allocate(8).put(magic).put(readBytes(in, 4));
+                first = false;
+            } else {
+                try {
+                    head = readBytes(in, 8);
+                } catch (EOFException e) {
+                    return frames;
+                }
+            }
+            int type = head.order(ByteOrder.BIG_ENDIAN).getInt(0);
+            if (type == PCAPNG_SECTION_HEADER) {
+                // The byte order magic decides how this whole section reads
+                ByteBuffer orderMagic = readBytes(in, 4);
+                order = orderMagic.order(ByteOrder.BIG_ENDIAN).getInt(0) == PCAPNG_BYTE_ORDER_MAGIC
+                        ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                int length = head.order(order).getInt(4);
+                readBytes(in, length - 12);
+                interfaces.clear();
+                unitsPerSecond.clear();
+                continue;
+            }
+            type = head.order(order).getInt(0);
+            int length = head.order(order).getInt(4);
+            ByteBuffer body = readBytes(in, length - 8).order(order);
+            if (type == PCAPNG_INTERFACE) {
+                interfaces.add(new int[]{body.getShort(0) & 0xFFFF, body.getInt(4)});
+                unitsPerSecond.add(timestampResolution(body, 8, length - 12));
+            } else if (type == PCAPNG_ENHANCED_PACKET) {
+                int iface = body.getInt(0);
+                long units = ((body.getInt(4) & 0xFFFFFFFFL) << 32) | (body.getInt(8) & 0xFFFFFFFFL);
+                int capturedLength = body.getInt(12);
+                int originalLength = body.getInt(16);
+                if (capturedLength == originalLength) {
+                    add(frames, toNanos(units, unitsPerSecond.get(iface)), interfaces.get(iface)[0],
+                            slice(body, 20, capturedLength));
+                }
+            } else if (type == PCAPNG_SIMPLE_PACKET) {
+                // No timestamp, and always from the first interface
+                int originalLength = body.getInt(0);
+                int snapLength = interfaces.get(0)[1];
+                int capturedLength = snapLength > 0 ? Math.min(originalLength, snapLength) : originalLength;
+                if (capturedLength == originalLength) {
+                    add(frames, 0, interfaces.get(0)[0], slice(body, 4, capturedLength));
+                }
+            }
+        }
+    }
+
+    /**
+     * Timestamp units per second from an interface's options; microseconds
+     * unless an if_tsresol option says otherwise
+     */
+    private static long timestampResolution(ByteBuffer body, int offset, int end) {
+        while (offset + 4 <= end) {
+            int code = body.getShort(offset) & 0xFFFF;
+            int length = body.getShort(offset + 2) & 0xFFFF;
+            if (code == OPTION_END) {
+                break;
+            }
+            if (code == OPTION_TSRESOL && length >= 1) {
+                int resolution = body.get(offset + 4) & 0xFF;
+                int exponent = resolution & 0x7F;
+                return (resolution & 0x80) != 0 ? 1L << exponent : (long) Math.pow(10, exponent);
+            }
+            offset += 4 + ((length + 3) & ~3);
+        }
+        return 1_000_000L;
+    }
+
+    private static long toNanos(long units, long unitsPerSecond) {
+        long seconds = units / unitsPerSecond;
+        long remainder = units % unitsPerSecond;
+        return seconds * 1_000_000_000L + remainder * 1_000_000_000L / unitsPerSecond;
+    }
+
+    private static void add(List<Frame> frames, long timestampNanos, int linkType, ByteBuffer data) {
+        int offset = ipOffset(linkType, data);
+        if (offset < 0 || offset >= data.limit()) {
+            return;
+        }
+        int version = (data.get(offset) >> 4) & 0x0F;
+        if (version != 4 && version != 6) {
+            return;
+        }
+        byte[] packet = new byte[data.limit() - offset];
+        for (int i = 0; i < packet.length; i++) {
+            packet[i] = data.get(offset + i);
+        }
+        frames.add(new Frame(timestampNanos, packet));
+    }
+
+    /**
+     * Where the IP header starts in a frame of the given link type, or -1
+     * if the frame does not carry IP
+     */
+    private static int ipOffset(int linkType, ByteBuffer data) {
+        switch (linkType) {
+            case LINKTYPE_RAW:
+            case LINKTYPE_IPV4:
+            case LINKTYPE_IPV6:
+                return 0;
+            case LINKTYPE_NULL:
+                return 4;
+            case LINKTYPE_ETHERNET: {
+                int offset = 12;
+                int etherType = data.getShort(offset) & 0xFFFF;
+                while (etherType == 0x8100 || etherType == 0x88A8) {
+                    offset += 4;
+                    etherType = data.getShort(offset) & 0xFFFF;
+                }
+                return isIp(etherType) ? offset + 2 : -1;
+            }
+            case LINKTYPE_LINUX_SLL:
+                return isIp(data.getShort(14) & 0xFFFF) ? 16 : -1;
+            case LINKTYPE_LINUX_SLL2:
+                return isIp(data.getShort(0) & 0xFFFF) ? 20 : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean isIp(int etherType) {
+        return etherType == 0x0800 || etherType == 0x86DD;
+    }
+
+    private static ByteBuffer slice(ByteBuffer body, int offset, int length) {
+        ByteBuffer view = body.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private static ByteBuffer readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
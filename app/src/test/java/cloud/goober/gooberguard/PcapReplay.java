@@ -0,0 +1,511 @@
+package cloud.goober.gooberguard;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a capture through a {@link DnsPacketLoop} on the desktop JVM,
+ * with no device and no network, and reports what came out.
+ *
+ * Only what an app would send into the tun is replayed: answers the
+ * capture holds from the real resolver (UDP from port 53) are skipped.
+ * Allowed queries go to a stand-in upstream on its own thread that answers
+ * every one with NOERROR, so replies can be told apart by their rcode
+ * (blocked ones are NXDOMAIN) and by whether the upstream saw the query
+ * (cached ones it did not). Queries are matched to replies by client port
+ * and transaction ID, which must be unique within the capture.
+ *
+ * Nothing on the replay's own path allocates while packets flow, so the
+ * allocation count covers the pipeline threads alone.
+ */
+final class PcapReplay {
+    enum Timing {
+        /**
+         * Each packet as soon as the pipeline can take it without dropping
+         * any: the next query waits while too many are unanswered
+         */
+        MAXIMUM_SPEED,
+        /**
+         * Packets spaced as in the capture, divided by the speedup
+         */
+        RECORDED
+    }
+
+    private static final int MTU = 1500;
+    private static final int UPSTREAM_QUEUE = 1024;
+    // Well under the pipeline's ring size, so it never has to drop
+    private static final int MAX_IN_FLIGHT = PacketPipeline.DEFAULT_RING_CAPACITY / 2;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final QueryLog.Verdict[] VERDICTS = QueryLog.Verdict.values();
+
+    private final byte[][] packets;
+    private final long[] timestamps;
+    // Index into the query arrays for each replayed packet, or -1 if it is
+    // not a DNS query
+    private final int[] queryOfPacket;
+    private final String[] domains;
+    // (client port << 16 | transaction ID) << 32 | query index, sorted
+    private final long[] keys;
+    private final Blocklist blocklist;
+
+    private Timing timing = Timing.MAXIMUM_SPEED;
+    private double speedup = 1;
+    private int workerThreads = 2;
+
+    PcapReplay(List<PcapReader.Frame> frames, Blocklist blocklist) {
+        this.blocklist = blocklist;
+        List<PcapReader.Frame> replayed = new ArrayList<>();
+        for (PcapReader.Frame frame : frames) {
+            if (!isResolverAnswer(ByteBuffer.wrap(frame.packet))) {
+                replayed.add(frame);
+            }
+        }
+        packets = new byte[replayed.size()][];
+        timestamps = new long[replayed.size()];
+        queryOfPacket = new int[replayed.size()];
+        List<String> names = new ArrayList<>();
+        List<Long> keyList = new ArrayList<>();
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = replayed.get(i).packet;
+            timestamps[i] = replayed.get(i).timestampNanos;
+            ByteBuffer packet = ByteBuffer.wrap(packets[i]);
+            String domain = DnsPacketParser.isDnsQuery(packet) ? DnsPacketParser.extractDomainName(packet) : null;
+            if (domain == null) {
+                queryOfPacket[i] = -1;
+                continue;
+            }
+            queryOfPacket[i] = names.size();
+            keyList.add((long) key(packet, true) << 32 | names.size());
+            names.add(domain);
+        }
+        domains = names.toArray(new String[0]);
+        keys = new long[keyList.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyList.get(i);
+        }
+        Arrays.sort(keys);
+    }
+
+    void setTiming(Timing timing, double speedup) {
+        this.timing = timing;
+        this.speedup = speedup;
+    }
+
+    void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    int getQueryCount() {
+        return domains.length;
+    }
+
+    int getPacketCount() {
+        return packets.length;
+    }
+
+    /**
+     * Time between the first and last replayed packet in the capture
+     */
+    long getCaptureNanos() {
+        return packets.length == 0 ? 0 : timestamps[packets.length - 1] - timestamps[0];
+    }
+
+    /**
+     * Replay the capture once through a fresh loop and cache, waiting until
+     * every query is answered or a minute has passed
+     */
+    Report run() throws Exception {
+        Run run = new Run();
+        try {
+            return run.replay();
+        } finally {
+            run.close();
+        }
+    }
+
+    /**
+     * The part of a UDP packet that pairs a query with its reply: the
+     * client's port and the transaction ID, or -1 if it is not UDP
+     */
+    private static int key(ByteBuffer packet, boolean query) {
+        int udp = IpPacketBuilder.udpOffset(packet);
+        if (udp < 0 || packet.limit() < udp + 8 + 2) {
+            return -1;
+        }
+        int clientPort = packet.getShort(query ? udp : udp + 2) & 0xFFFF;
+        int transactionId = packet.getShort(udp + 8) & 0xFFFF;
+        return clientPort << 16 | transactionId;
+    }
+
+    private static boolean isResolverAnswer(ByteBuffer packet) {
+        int udp = IpPacketBuilder.udpOffset(packet);
+        return udp >= 0 && (packet.getShort(udp) & 0xFFFF) == 53;
+    }
+
+    /**
+     * Query index for a key, or -1. Does not allocate.
+     */
+    private int queryIndex(int key) {
+        long wanted = (long) key << 32;
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long found = keys[middle] & 0xFFFFFFFF00000000L;
+            if (found < wanted) {
+                low = middle + 1;
+            } else if (found > wanted) {
+                high = middle - 1;
+            } else {
+                return (int) keys[middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * State of one replay
+     */
+    private final class Run implements PacketSource, PacketSink, DnsPacketHandler.QueryForwarder {
+        private final long[] sentNanos = new long[domains.length];
+        private final long[] answeredNanos = new long[domains.length];
+        private final byte[] verdicts = new byte[domains.length];
+        private final boolean[] forwarded = new boolean[domains.length];
+        private final LatencyHistogram[] latencies = new LatencyHistogram[VERDICTS.length];
+        private final AtomicInteger answered = new AtomicInteger();
+        private final AtomicInteger unmatched = new AtomicInteger();
+
+        private final DnsCache cache = new DnsCache();
+        private final DnsMetrics metrics = new DnsMetrics();
+        private final DnsPacketLoop loop;
+        private final PacketRing upstreamQueue = new PacketRing(UPSTREAM_QUEUE);
+        private final PacketRing upstreamBuffers = new PacketRing(UPSTREAM_QUEUE);
+        private final Thread upstream;
+
+        private int next;
+        private int sent;
+        private long startNanos;
+        private volatile boolean finished;
+        private volatile Thread reader;
+
+        Run() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+            for (int i = 0; i < UPSTREAM_QUEUE; i++) {
+                upstreamBuffers.offer(ByteBuffer.allocateDirect(MTU));
+            }
+            loop = new DnsPacketLoop(this, this, () -> blocklist, cache, new DnsResponseBuilder(), MTU,
+                    workerThreads, new LongAdder());
+            loop.setMetrics(metrics);
+            upstream = new Thread(this::runUpstream, "ReplayUpstream");
+        }
+
+        Report replay() throws Exception {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            upstream.start();
+            startNanos = System.nanoTime();
+            loop.start(this, null);
+            long[] pipelineThreads = pipelineThreadIds();
+            long allocatedBefore = allocated(threads, pipelineThreads);
+
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (answered.get() < domains.length && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            // Measured while the reader is still parked at the end of the
+            // capture, since a finished thread's count is gone
+            long allocatedBytes = allocated(threads, pipelineThreads) - allocatedBefore;
+            long lastAnswer = 0;
+            for (long nanos : answeredNanos) {
+                lastAnswer = Math.max(lastAnswer, nanos);
+            }
+
+            LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[VERDICTS.length];
+            for (int i = 0; i < snapshots.length; i++) {
+                snapshots[i] = latencies[i].snapshot();
+            }
+            QueryLog.Verdict[] byQuery = new QueryLog.Verdict[domains.length];
+            for (int i = 0; i < byQuery.length; i++) {
+                byQuery[i] = answeredNanos[i] != 0 ? VERDICTS[verdicts[i]] : null;
+            }
+            PacketPipeline pipeline = loop.getPipeline();
+            return new Report(domains, byQuery, snapshots, answered.get(), unmatched.get(),
+                    pipeline.getReadCount() - domains.length, pipeline.getInboundDropCount(),
+                    pipeline.getOutboundDropCount(), Math.max(0, lastAnswer - startNanos), allocatedBytes,
+                    metrics.snapshot());
+        }
+
+        void close() throws InterruptedException {
+            finished = true;
+            Thread parked = reader;
+            if (parked != null) {
+                LockSupport.unpark(parked);
+            }
+            loop.close();
+            upstream.interrupt();
+            upstream.join(1000);
+        }
+
+        /**
+         * Hand the reader the next packet, at its recorded time if asked
+         * to. Parks once the capture is done until the replay is closed.
+         */
+        @Override
+        public int read(ByteBuffer packet) {
+            if (next == packets.length) {
+                reader = Thread.currentThread();
+                while (!finished) {
+                    LockSupport.park(this);
+                }
+                return -1;
+            }
+            int index = next++;
+            int query = queryOfPacket[index];
+            if (timing == Timing.MAXIMUM_SPEED) {
+                while (query >= 0 && sent - answered.get() >= MAX_IN_FLIGHT) {
+                    Thread.onSpinWait();
+                }
+            } else {
+                long due = startNanos + (long) ((timestamps[index] - timestamps[0]) / speedup);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            byte[] bytes = packets[index];
+            packet.put(bytes, 0, bytes.length);
+            if (query >= 0) {
+                sentNanos[query] = System.nanoTime();
+                sent++;
+            }
+            return bytes.length;
+        }
+
+        /**
+         * Note which query a reply answers, how, and how long it took
+         */
+        @Override
+        public void write(ByteBuffer packet) {
+            long now = System.nanoTime();
+            int query = queryIndex(key(packet, false));
+            if (query < 0 || answeredNanos[query] != 0) {
+                unmatched.incrementAndGet();
+                return;
+            }
+            int udp = IpPacketBuilder.udpOffset(packet);
+            int rcode = packet.get(udp + 8 + 3) & 0x0F;
+            QueryLog.Verdict verdict = rcode == 3 ? QueryLog.Verdict.BLOCKED
+                    : forwarded[query] ? QueryLog.Verdict.FORWARDED : QueryLog.Verdict.CACHED;
+            verdicts[query] = (byte) verdict.ordinal();
+            answeredNanos[query] = now;
+            latencies[verdict.ordinal()].record(now - sentNanos[query]);
+            answered.incrementAndGet();
+        }
+
+        /**
+         * Take an allowed query for the stand-in upstream
+         */
+        @Override
+        public boolean forward(ByteBuffer packet) {
+            ByteBuffer copy = upstreamBuffers.poll();
+            if (copy == null) {
+                return false;
+            }
+            copy.clear();
+            packet.position(0);
+            copy.put(packet);
+            copy.flip();
+            if (!upstreamQueue.offer(copy)) {
+                upstreamBuffers.offer(copy);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Answer every query NOERROR, with one address for A queries, and
+         * cache the answer as the real forwarder does. Any EDNS record in
+         * the query is left out of the answer.
+         */
+        private void runUpstream() {
+            DnsQuestion question = new DnsQuestion();
+            ByteBuffer answer = ByteBuffer.allocate(MTU);
+            ByteBuffer reply = ByteBuffer.allocateDirect(MTU);
+            ByteBuffer query;
+            while ((query = upstreamQueue.take()) != null) {
+                if (!DnsPacketParser.parseQuestion(query, question)) {
+                    upstreamBuffers.offer(query);
+                    continue;
+                }
+                int dns = question.dnsOffset();
+                int length = question.endOffset() - dns;
+                answer.clear();
+                for (int i = 0; i < length; i++) {
+                    answer.put(i, query.get(dns + i));
+                }
+                answer.put(2, (byte) (answer.get(2) | 0x80)); // QR
+                answer.put(3, (byte) 0x80);                   // RA, NOERROR
+                answer.putInt(6, 0);                          // ANCOUNT, NSCOUNT
+                answer.putShort(10, (short) 0);               // ARCOUNT
+                if (question.qtype() == DnsQuestion.TYPE_A) {
+                    answer.putShort(6, (short) 1);
+                    answer.putShort(length, (short) 0xC00C);
+                    answer.putShort(length + 2, (short) DnsQuestion.TYPE_A);
+                    answer.putShort(length + 4, (short) DnsQuestion.CLASS_IN);
+                    answer.putInt(length + 6, 300);
+                    answer.putShort(length + 10, (short) 4);
+                    answer.putInt(length + 12, 0x5DB8D822);
+                    length += 16;
+                }
+                cache.put(answer, 0, length);
+                int index = queryIndex(key(query, true));
+                if (index >= 0) {
+                    forwarded[index] = true;
+                }
+                IpPacketBuilder.writeUdpReply(reply, query, answer, 0, length);
+                upstreamBuffers.offer(query);
+                loop.send(reply);
+            }
+        }
+
+        private long[] pipelineThreadIds() {
+            List<Long> ids = new ArrayList<>();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("Packet")) {
+                    ids.add(thread.getId());
+                }
+            }
+            long[] result = new long[ids.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = ids.get(i);
+            }
+            return result;
+        }
+
+        private long allocated(com.sun.management.ThreadMXBean threads, long[] ids) {
+            long total = 0;
+            for (long bytes : threads.getThreadAllocatedBytes(ids)) {
+                total += Math.max(0, bytes);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * What one replay did
+     */
+    static final class Report {
+        final int queries;
+        final int answered;
+        /**
+         * Replies that matched no query, or a query already answered
+         */
+        final int unmatched;
+        /**
+         * Replayed packets that were not DNS queries
+         */
+        final long otherPackets;
+        final long inboundDrops;
+        final long outboundDrops;
+        /**
+         * From the first packet read to the last query answered
+         */
+        final long elapsedNanos;
+        /**
+         * By the pipeline's reader, worker and writer threads
+         */
+        final long allocatedBytes;
+        final DnsMetrics.Snapshot metrics;
+        private final String[] domains;
+        private final QueryLog.Verdict[] verdicts;
+        private final LatencyHistogram.Snapshot[] latencies;
+
+        Report(String[] domains, QueryLog.Verdict[] verdicts, LatencyHistogram.Snapshot[] latencies, int answered,
+               int unmatched, long otherPackets, long inboundDrops, long outboundDrops, long elapsedNanos,
+               long allocatedBytes, DnsMetrics.Snapshot metrics) {
+            this.domains = domains;
+            this.verdicts = verdicts;
+            this.latencies = latencies;
+            this.queries = domains.length;
+            this.answered = answered;
+            this.unmatched = unmatched;
+            this.otherPackets = otherPackets;
+            this.inboundDrops = inboundDrops;
+            this.outboundDrops = outboundDrops;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.metrics = metrics;
+        }
+
+        double queriesPerSecond() {
+            return elapsedNanos == 0 ? 0 : answered * 1e9 / elapsedNanos;
+        }
+
+        LatencyHistogram.Snapshot latency(QueryLog.Verdict verdict) {
+            return latencies[verdict.ordinal()];
+        }
+
+        /**
+         * How the given query was answered, or null if it was not
+         */
+        QueryLog.Verdict verdict(int query) {
+            return verdicts[query];
+        }
+
+        /**
+         * Queries whose reply disagrees with whether their name should be
+         * blocked, or that got no reply, as readable lines
+         */
+        List<String> mismatches(Map<String, Boolean> expectedBlocked) {
+            List<String> mismatches = new ArrayList<>();
+            for (int i = 0; i < queries; i++) {
+                Boolean blocked = expectedBlocked.get(domains[i]);
+                if (blocked == null) {
+                    mismatches.add(domains[i] + ": no expected verdict");
+                } else if (verdicts[i] == null) {
+                    mismatches.add(domains[i] + ": not answered");
+                } else if (blocked != (verdicts[i] == QueryLog.Verdict.BLOCKED)) {
+                    mismatches.add(domains[i] + ": " + verdicts[i] + ", expected "
+                            + (blocked ? "BLOCKED" : "allowed"));
+                }
+            }
+            return mismatches;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format(Locale.ROOT,
+                    "%d of %d queries answered in %.1f ms, %.0f queries/s; %d other packets, %d unmatched replies, "
+                            + "%d dropped in, %d dropped out%n",
+                    answered, queries, elapsedNanos / 1e6, queriesPerSecond(), otherPackets, unmatched,
+                    inboundDrops, outboundDrops));
+            for (QueryLog.Verdict verdict : VERDICTS) {
+                LatencyHistogram.Snapshot latency = latency(verdict);
+                if (latency.getCount() == 0) {
+                    continue;
+                }
+                out.append(String.format(Locale.ROOT, "%-10s n %d, p50 %s, p90 %s, p99 %s, max %s%n",
+                        verdict.name().toLowerCase(Locale.ROOT), latency.getCount(),
+                        DnsMetrics.Snapshot.formatNanos(latency.percentileNanos(0.5)),
+                        DnsMetrics.Snapshot.formatNanos(latency.percentileNanos(0.9)),
+                        DnsMetrics.Snapshot.formatNanos(latency.percentileNanos(0.99)),
+                        DnsMetrics.Snapshot.formatNanos(latency.maxNanos())));
+            }
+            out.append(String.format(Locale.ROOT, "pipeline allocated %d bytes, %.1f per query%n",
+                    allocatedBytes, queries == 0 ? 0 : (double) allocatedBytes / queries));
+            return out.toString();
+        }
+    }
+}
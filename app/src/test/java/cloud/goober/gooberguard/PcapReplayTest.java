@@ -0,0 +1,114 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a capture of phone DNS traffic (dns-replay.pcapng, and the same
+ * packets as Linux cooked frames in dns-replay.pcap) through the VPN's
+ * packet loop. dns-replay-expected.txt holds whether each name should be
+ * blocked by dns-replay-blocklist.txt. A report's toString is a starting
+ * point for profiling the hot path.
+ */
+public class PcapReplayTest {
+
+    @Test
+    public void testPcapAndPcapngHoldSamePackets() throws Exception {
+        List<PcapReader.Frame> pcapng = frames("/dns-replay.pcapng");
+        List<PcapReader.Frame> pcap = frames("/dns-replay.pcap");
+
+        assertFalse(pcapng.isEmpty());
+        assertEquals(pcapng.size(), pcap.size());
+        for (int i = 0; i < pcapng.size(); i++) {
+            assertEquals("frame " + i, pcapng.get(i).timestampNanos, pcap.get(i).timestampNanos);
+            assertArrayEquals("frame " + i, pcapng.get(i).packet, pcap.get(i).packet);
+        }
+    }
+
+    @Test
+    public void testReplayAtMaximumSpeed() throws Exception {
+        PcapReplay replay = new PcapReplay(frames("/dns-replay.pcapng"), blocklist());
+
+        PcapReplay.Report report = replay.run();
+
+        assertEquals(replay.getQueryCount(), report.queries);
+        assertEquals(replay.getQueryCount(), report.answered);
+        assertEquals(Collections.emptyList(), report.mismatches(expectedVerdicts()));
+        assertEquals(0, report.unmatched);
+        assertEquals(0, report.inboundDrops);
+        assertEquals(0, report.outboundDrops);
+        assertEquals(replay.getPacketCount() - replay.getQueryCount(), report.otherPackets);
+        assertTrue(report.otherPackets > 0);
+        // Repeated names are served from the cache once their first answer
+        // is in
+        for (QueryLog.Verdict verdict : new QueryLog.Verdict[]{
+                QueryLog.Verdict.BLOCKED, QueryLog.Verdict.CACHED, QueryLog.Verdict.FORWARDED}) {
+            assertTrue(verdict.name(), report.latency(verdict).getCount() > 0);
+        }
+        assertEquals(report.answered, report.latency(QueryLog.Verdict.BLOCKED).getCount()
+                + report.latency(QueryLog.Verdict.CACHED).getCount()
+                + report.latency(QueryLog.Verdict.FORWARDED).getCount());
+        assertTrue(report.elapsedNanos > 0);
+        assertTrue(report.queriesPerSecond() > 0);
+        assertEquals(report.answered, report.metrics.getTotal(DnsMetrics.Counter.QUERIES));
+    }
+
+    @Test
+    public void testReplayAtRecordedTiming() throws Exception {
+        PcapReplay replay = new PcapReplay(frames("/dns-replay.pcap"), blocklist());
+        // Squeeze the capture into about half a second
+        double speedup = replay.getCaptureNanos() / 5e8;
+        replay.setTiming(PcapReplay.Timing.RECORDED, speedup);
+
+        PcapReplay.Report report = replay.run();
+
+        assertEquals(replay.getQueryCount(), report.answered);
+        assertEquals(Collections.emptyList(), report.mismatches(expectedVerdicts()));
+        assertEquals(0, report.unmatched);
+        assertEquals(0, report.inboundDrops);
+        assertEquals(0, report.outboundDrops);
+        assertTrue("took " + report.elapsedNanos + " ns", report.elapsedNanos >= 4e8);
+    }
+
+    private static List<PcapReader.Frame> frames(String resource) throws IOException {
+        try (InputStream in = PcapReplayTest.class.getResourceAsStream(resource)) {
+            return PcapReader.read(in);
+        }
+    }
+
+    private static Blocklist blocklist() throws IOException {
+        BlocklistImporter importer = new BlocklistImporter(Collections.emptyList());
+        try (InputStream in = PcapReplayTest.class.getResourceAsStream("/dns-replay-blocklist.txt")) {
+            importer.read(in, null);
+        }
+        return new Blocklist(importer.compile(), Collections.emptyList(), Collections.emptyList(),
+                PatternRules.compile(importer.getPatterns()), null);
+    }
+
+    private static Map<String, Boolean> expectedVerdicts() throws IOException {
+        Map<String, Boolean> expected = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                PcapReplayTest.class.getResourceAsStream("/dns-replay-expected.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                expected.put(fields[0], fields[1].equals("BLOCKED"));
+            }
+        }
+        return expected;
+    }
+}
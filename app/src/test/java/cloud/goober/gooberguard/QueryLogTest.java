@@ -0,0 +1,170 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueryLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<QueryLog> logs = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (QueryLog log : logs) {
+            log.close();
+        }
+    }
+
+    @Test
+    public void testRecentNewestFirst() throws Exception {
+        QueryLog log = open(folder.getRoot(), 64, 1024, 2);
+
+        assertTrue(log.record(question("ads.example.com", DnsQuestion.TYPE_A), QueryLog.Verdict.BLOCKED, 0, -1));
+        assertTrue(log.record(question("Example.ORG", DnsQuestion.TYPE_AAAA), QueryLog.Verdict.FORWARDED, 1500, 1));
+
+        List<QueryLog.Entry> entries = log.recent(10);
+        assertEquals(2, entries.size());
+        QueryLog.Entry newest = entries.get(0);
+        assertEquals("example.org", newest.domain);
+        assertFalse(newest.truncated);
+        assertEquals(DnsQuestion.TYPE_AAAA, newest.qtype);
+        assertEquals(QueryLog.Verdict.FORWARDED, newest.verdict);
+        assertEquals(1500, newest.latencyMicros);
+        assertEquals(1, newest.upstream);
+        assertTrue(newest.timestampMillis > 0);
+        assertEquals("ads.example.com", entries.get(1).domain);
+        assertEquals(QueryLog.Verdict.BLOCKED, entries.get(1).verdict);
+        assertEquals(-1, entries.get(1).upstream);
+
+        assertEquals(1, log.recent(1).size());
+    }
+
+    @Test
+    public void testByDomainIgnoresCase() throws Exception {
+        QueryLog log = open(folder.getRoot(), 64, 1024, 2);
+        log.record(question("tracker.example.com", DnsQuestion.TYPE_A), QueryLog.Verdict.BLOCKED, 0, -1);
+        log.record(question("example.com", DnsQuestion.TYPE_A), QueryLog.Verdict.CACHED, 0, -1);
+        log.record(question("TRACKER.example.com", DnsQuestion.TYPE_AAAA), QueryLog.Verdict.BLOCKED, 0, -1);
+
+        List<QueryLog.Entry> entries = log.byDomain("Tracker.Example.com.", 10);
+        assertEquals(2, entries.size());
+        assertEquals(DnsQuestion.TYPE_AAAA, entries.get(0).qtype);
+        assertEquals(DnsQuestion.TYPE_A, entries.get(1).qtype);
+        assertTrue(log.byDomain("other.example.com", 10).isEmpty());
+    }
+
+    @Test
+    public void testLongNameKeepsRightmostLabels() throws Exception {
+        QueryLog log = open(folder.getRoot(), 64, 1024, 2);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            name.append("label-number-").append(i).append('.');
+        }
+        name.append("example.com");
+        log.record(question(name.toString(), DnsQuestion.TYPE_A), QueryLog.Verdict.FORWARDED, 10, 0);
+
+        List<QueryLog.Entry> entries = log.byDomain(name.toString(), 10);
+        assertEquals(1, entries.size());
+        assertTrue(entries.get(0).truncated);
+        assertTrue(entries.get(0).domain.endsWith(".label-number-7.example.com"));
+        assertTrue(name.toString().endsWith(entries.get(0).domain));
+    }
+
+    @Test
+    public void testRotatesAndKeepsSegmentCount() throws Exception {
+        QueryLog log = open(folder.getRoot(), 64, 4, 2);
+        for (int i = 0; i < 10; i++) {
+            log.record(question("host" + i + ".example.com", DnsQuestion.TYPE_A), QueryLog.Verdict.FORWARDED,
+                    i, 0);
+        }
+
+        // Two full segments rotated out, the first deleted
+        List<QueryLog.Entry> entries = log.recent(100);
+        assertEquals(6, entries.size());
+        assertEquals("host9.example.com", entries.get(0).domain);
+        assertEquals("host4.example.com", entries.get(5).domain);
+        assertEquals(2, log.getRotationCount());
+        assertTrue(new File(folder.getRoot(), QueryLog.FILE_PREFIX + "1").exists());
+        assertFalse(new File(folder.getRoot(), QueryLog.FILE_PREFIX + "2").exists());
+    }
+
+    @Test
+    public void testReopenAppendsAfterLastRecord() throws Exception {
+        QueryLog first = open(folder.getRoot(), 64, 1024, 2);
+        first.record(question("first.example.com", DnsQuestion.TYPE_A), QueryLog.Verdict.CACHED, 0, -1);
+        first.close();
+
+        QueryLog second = open(folder.getRoot(), 64, 1024, 2);
+        second.record(question("second.example.com", DnsQuestion.TYPE_A), QueryLog.Verdict.CACHED, 0, -1);
+
+        List<QueryLog.Entry> entries = second.recent(10);
+        assertEquals(2, entries.size());
+        assertEquals("second.example.com", entries.get(0).domain);
+        assertEquals("first.example.com", entries.get(1).domain);
+    }
+
+    @Test
+    public void testFullRingDropsRecords() throws Exception {
+        // Not started, so nothing drains the ring
+        QueryLog log = new QueryLog(folder.getRoot(), 4, 1024, 2);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(log.record(question("example.com", DnsQuestion.TYPE_A), QueryLog.Verdict.CACHED, 0, -1));
+        }
+        assertFalse(log.record(question("example.com", DnsQuestion.TYPE_A), QueryLog.Verdict.CACHED, 0, -1));
+        assertEquals(4, log.getRecordedCount());
+        assertEquals(1, log.getDroppedCount());
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothingRecorded() throws Exception {
+        QueryLog log = open(folder.getRoot(), 256, 100_000, 2);
+        int threads = 4;
+        int perThread = 5000;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            DnsQuestion question = question("thread" + t + ".example.com", DnsQuestion.TYPE_A);
+            producers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    log.record(question, QueryLog.Verdict.FORWARDED, i, 0);
+                }
+            });
+            producers[t].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(threads * perThread, log.getRecordedCount() + log.getDroppedCount());
+        List<QueryLog.Entry> entries = log.recent(threads * perThread);
+        assertEquals(log.getRecordedCount(), entries.size());
+        for (QueryLog.Entry entry : entries) {
+            assertTrue(entry.domain, entry.domain.matches("thread[0-3]\\.example\\.com"));
+        }
+    }
+
+    private QueryLog open(File directory, int ringCapacity, int segmentRecords, int segmentCount)
+            throws Exception {
+        QueryLog log = new QueryLog(directory, ringCapacity, segmentRecords, segmentCount);
+        log.start();
+        logs.add(log);
+        return log;
+    }
+
+    private static DnsQuestion question(String domain, int qtype) {
+        DnsQuestion question = new DnsQuestion();
+        byte[] query = DnsTestPackets.dnsQuery(0x1234, DnsTestPackets.encodeName(domain), qtype,
+                DnsQuestion.CLASS_IN);
+        assertTrue(question.parse(ByteBuffer.wrap(query), 0));
+        return question;
+    }
+}
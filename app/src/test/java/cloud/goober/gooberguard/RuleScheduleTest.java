@@ -0,0 +1,62 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+
+public class RuleScheduleTest {
+    // A Monday
+    private static final LocalDateTime MONDAY = LocalDateTime.of(2026, 10, 19, 0, 0);
+
+    @Test
+    public void testWeekdayWindow() {
+        RuleSchedule schedule = RuleSchedule.parse("Mon-Fri 09:00-17:00");
+
+        assertFalse(schedule.isActive(MONDAY.plusHours(8).plusMinutes(59)));
+        assertTrue(schedule.isActive(MONDAY.plusHours(9)));
+        assertTrue(schedule.isActive(MONDAY.plusDays(4).plusHours(16).plusMinutes(59)));
+        assertFalse(schedule.isActive(MONDAY.plusHours(17)));
+        assertFalse(schedule.isActive(MONDAY.plusDays(5).plusHours(12)));
+
+        assertEquals(MONDAY.plusHours(9), schedule.nextChange(MONDAY));
+        assertEquals(MONDAY.plusHours(17), schedule.nextChange(MONDAY.plusHours(9)));
+        // Friday evening to Monday morning
+        assertEquals(MONDAY.plusDays(7).plusHours(9), schedule.nextChange(MONDAY.plusDays(4).plusHours(17)));
+    }
+
+    @Test
+    public void testWindowPastMidnight() {
+        RuleSchedule schedule = RuleSchedule.parse("Fri,Sat 22:00-06:00");
+
+        assertTrue(schedule.isActive(MONDAY.plusDays(4).plusHours(23)));
+        // Saturday morning is the tail of Friday night
+        assertTrue(schedule.isActive(MONDAY.plusDays(5).plusHours(5)));
+        assertFalse(schedule.isActive(MONDAY.plusDays(5).plusHours(6)));
+        assertTrue(schedule.isActive(MONDAY.plusDays(6).plusHours(1)));
+        assertFalse(schedule.isActive(MONDAY.plusDays(6).plusHours(22)));
+        // Sunday's window was not opened by Sunday
+        assertFalse(schedule.isActive(MONDAY.plusHours(1)));
+
+        assertEquals(MONDAY.plusDays(6).plusHours(6), schedule.nextChange(MONDAY.plusDays(6)));
+        assertTrue(RuleSchedule.parse("Sun 00:00-00:00").isActive(MONDAY.plusDays(6).plusHours(23).plusMinutes(59)));
+    }
+
+    @Test
+    public void testParseAndFormat() {
+        assertEquals("Mon,Tue,Wed,Thu,Fri 09:00-17:00", RuleSchedule.parse("mon-fri 9:00-17:00").toString());
+        assertEquals("daily 00:00-24:00", RuleSchedule.parse("daily 00:00-24:00").toString());
+        assertEquals(RuleSchedule.parse("Sat-Mon 10:30-12:00"), RuleSchedule.parse("Mon,Sat,Sun 10:30-12:00"));
+
+        for (String bad : new String[]{"", "Mon", "Mon 09:00", "Foo 09:00-10:00", "Mon 25:00-26:00",
+                "Mon 09:60-10:00", "Mon 24:00-01:00", "Mon-Tue-Wed 09:00-10:00"}) {
+            try {
+                RuleSchedule.parse(bad);
+                fail(bad);
+            } catch (IllegalArgumentException expected) {
+                // Rejected
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ScheduledRulesTest {
+    // A Monday
+    private static final LocalDateTime MONDAY = LocalDateTime.of(2026, 10, 19, 0, 0);
+
+    @Test
+    public void testActiveGroupsFoldedIntoSnapshot() {
+        Blocklist base = new Blocklist(DomainTrie.compile(Arrays.asList("ads.example.com", "youtube.com")),
+                Collections.emptyList(), Collections.singletonList("ads.example.com"));
+        ScheduledRules rules = ScheduledRules.of(Arrays.asList(
+                new ScheduledRules.Group("work", RuleSchedule.parse("Mon-Fri 09:00-17:00"),
+                        Arrays.asList("instagram.com", "*.social.example", "ads.example.com")),
+                new ScheduledRules.Group("evening", RuleSchedule.parse("daily 18:00-22:00"),
+                        Collections.singletonList("@@youtube.com"))));
+
+        // Outside every window the base list itself is used
+        assertSame(base, rules.apply(base, MONDAY.plusHours(8)));
+
+        Blocklist work = rules.apply(base, MONDAY.plusHours(10));
+        assertTrue(work.matches("i.instagram.com"));
+        assertTrue(work.matches("feed.social.example"));
+        // Re-adds an image entry the edit log removed
+        assertTrue(work.matches("ads.example.com"));
+        assertTrue(work.matches("youtube.com"));
+        assertFalse(base.matches("ads.example.com"));
+
+        Blocklist evening = rules.apply(base, MONDAY.plusHours(19));
+        assertFalse(evening.matches("www.youtube.com"));
+        assertFalse(evening.matches("instagram.com"));
+    }
+
+    @Test
+    public void testNextChangeIsEarliestAcrossGroups() {
+        ScheduledRules rules = ScheduledRules.of(Arrays.asList(
+                new ScheduledRules.Group("work", RuleSchedule.parse("Mon-Fri 09:00-17:00"),
+                        Collections.singletonList("instagram.com")),
+                new ScheduledRules.Group("lunch", RuleSchedule.parse("daily 12:00-13:00"),
+                        Collections.singletonList("@@instagram.com")),
+                new ScheduledRules.Group("empty", RuleSchedule.parse("daily 11:00-11:30"),
+                        Collections.emptyList())));
+
+        assertEquals(2, rules.getGroups().size());
+        assertEquals(MONDAY.plusHours(12), rules.nextChange(MONDAY.plusHours(10)));
+        assertArrayEquals(new boolean[]{true, true}, rules.activeAt(MONDAY.plusHours(12)));
+        assertNull(ScheduledRules.empty().nextChange(MONDAY));
+        assertSame(ScheduledRules.empty(), ScheduledRules.of(Collections.emptyList()));
+    }
+}
@@ -0,0 +1,155 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in UDP resolver on loopback for tests. Answers every A query
+ * with 192.0.2.1, after an optional delay and with an optional loss rate,
+ * or with a forged answer for some other name.
+ */
+final class StubResolver implements Closeable {
+    static final byte[] ANSWER_ADDRESS = {(byte) 192, 0, 2, 1};
+    static final int ANSWER_TTL = 300;
+
+    private final DatagramSocket socket;
+    private final ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor();
+    private final Thread thread;
+    private final AtomicInteger queryCount = new AtomicInteger();
+    private final Random random = new Random(1);
+    private volatile long delayMillis;
+    private volatile double lossRate;
+    private volatile String forgedName;
+    private volatile int padding;
+    private final List<Integer> ids = Collections.synchronizedList(new ArrayList<>());
+
+    StubResolver() throws SocketException {
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        thread = new Thread(this::serve, "StubResolver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    InetSocketAddress address() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    StubResolver setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+        return this;
+    }
+
+    StubResolver setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    /**
+     * Answer with the query's transaction ID but a question for the given
+     * name instead, as a spoofer would, or answer honestly if null
+     */
+    StubResolver setForgedName(String forgedName) {
+        this.forgedName = forgedName;
+        return this;
+    }
+
+    /**
+     * Pad every answer out with the given number of zero bytes, to make it
+     * larger than a client takes over UDP
+     */
+    StubResolver setPadding(int padding) {
+        this.padding = padding;
+        return this;
+    }
+
+    int queryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * Transaction IDs of the queries received, in order
+     */
+    List<Integer> transactionIds() {
+        synchronized (ids) {
+            return new ArrayList<>(ids);
+        }
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[4096];
+        while (!socket.isClosed()) {
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(request);
+            } catch (IOException e) {
+                return;
+            }
+            queryCount.incrementAndGet();
+            int id = ((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF);
+            ids.add(id);
+            synchronized (random) {
+                if (random.nextDouble() < lossRate) {
+                    continue;
+                }
+            }
+
+            String forged = forgedName;
+            byte[] reply;
+            if (forged != null) {
+                byte[] query = DnsTestPackets.dnsQuery(id, DnsTestPackets.encodeName(forged),
+                        DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+                reply = answer(query, query.length);
+            } else {
+                reply = answer(request.getData(), request.getLength());
+            }
+            reply = Arrays.copyOf(reply, reply.length + padding);
+            DatagramPacket response = new DatagramPacket(reply, reply.length, request.getSocketAddress());
+            replies.schedule(() -> {
+                try {
+                    socket.send(response);
+                } catch (IOException ignored) {
+                    // Closed while a reply was pending
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Build a NOERROR reply with one A record for the question in query
+     */
+    static byte[] answer(byte[] query, int length) {
+        ByteBuffer reply = ByteBuffer.allocate(length + 16);
+        reply.put(query, 0, length);
+        reply.put(2, (byte) (query[2] | 0x80)); // QR
+        reply.put(3, (byte) 0x80);              // RA, NOERROR
+        reply.putShort(6, (short) 1);           // ANCOUNT
+        reply.putShort((short) 0xC00C);         // Name pointer to the question
+        reply.putShort((short) DnsQuestion.TYPE_A);
+        reply.putShort((short) DnsQuestion.CLASS_IN);
+        reply.putInt(ANSWER_TTL);
+        reply.putShort((short) 4);
+        reply.put(ANSWER_ADDRESS);
+        return reply.array();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        replies.shutdownNow();
+    }
+}
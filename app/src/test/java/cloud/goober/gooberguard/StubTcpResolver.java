@@ -0,0 +1,105 @@
+package cloud.goober.gooberguard;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in TCP resolver on loopback for tests. Answers every query on a
+ * connection with {@link StubResolver#answer}, in the order received,
+ * after an optional delay, and can close connections after a set number
+ * of replies.
+ */
+final class StubTcpResolver implements Closeable {
+    private final ServerSocket server;
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger queryCount = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile long delayMillis;
+    private volatile int repliesPerConnection = Integer.MAX_VALUE;
+
+    StubTcpResolver() throws IOException {
+        server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::accept, "StubTcpResolver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    InetSocketAddress address() {
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    StubTcpResolver setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * Close each connection, unanswered, once it has answered this many
+     */
+    StubTcpResolver setRepliesPerConnection(int repliesPerConnection) {
+        this.repliesPerConnection = repliesPerConnection;
+        return this;
+    }
+
+    int queryCount() {
+        return queryCount.get();
+    }
+
+    int connectionCount() {
+        return connectionCount.get();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionCount.incrementAndGet();
+            clients.add(client);
+            Thread thread = new Thread(() -> serve(client), "StubTcpResolverConnection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            for (int answered = 0; answered < repliesPerConnection; answered++) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                queryCount.incrementAndGet();
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                byte[] reply = StubResolver.answer(query, query.length);
+                out.writeShort(reply.length);
+                out.write(reply);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // Client went away or the stub was closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package cloud.goober.gooberguard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Stand-in encrypted resolver on loopback for tests, with a self-signed
+ * certificate for "localhost". Speaks DNS over TLS, or with http2 set just
+ * enough HTTP/2 to answer DNS over HTTPS POSTs. Answers every query with
+ * {@link StubResolver#answer}.
+ */
+final class StubTlsResolver implements Closeable {
+    static final String SERVER_NAME = "localhost";
+
+    private static final String KEY_STORE = "/upstream-test.p12";
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private final SSLServerSocket server;
+    private final boolean http2;
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger queryCount = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final List<Integer> queryIds = new CopyOnWriteArrayList<>();
+    private volatile long delayMillis;
+    private volatile int repliesPerConnection = Integer.MAX_VALUE;
+    private volatile int status = 200;
+
+    /**
+     * @param http2 serve DNS over HTTPS, offering h2 over ALPN
+     */
+    StubTlsResolver(boolean http2) throws Exception {
+        this.http2 = http2;
+        server = (SSLServerSocket) serverContext().getServerSocketFactory()
+                .createServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        if (http2) {
+            SSLParameters parameters = server.getSSLParameters();
+            parameters.setApplicationProtocols(new String[]{"h2"});
+            server.setSSLParameters(parameters);
+        }
+        Thread thread = new Thread(this::accept, "StubTlsResolver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A context trusting the stand-in's certificate, for the client side
+     */
+    static SSLContext clientContext() throws Exception {
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    private static SSLContext serverContext() throws Exception {
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore(), PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private static KeyStore keyStore() throws Exception {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = StubTlsResolver.class.getResourceAsStream(KEY_STORE)) {
+            store.load(in, PASSWORD);
+        }
+        return store;
+    }
+
+    InetSocketAddress address() {
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    SecureUpstreamPool.Endpoint endpoint() {
+        return new SecureUpstreamPool.Endpoint(address(), SERVER_NAME, DohUpstreamPool.DEFAULT_PATH);
+    }
+
+    StubTlsResolver setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * Close each connection once it has answered this many
+     */
+    StubTlsResolver setRepliesPerConnection(int repliesPerConnection) {
+        this.repliesPerConnection = repliesPerConnection;
+        return this;
+    }
+
+    /**
+     * HTTP status of DNS over HTTPS replies
+     */
+    StubTlsResolver setStatus(int status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * Offer only TLS 1.2, whose resumed sessions keep their ID
+     */
+    StubTlsResolver useTls12() {
+        server.setEnabledProtocols(new String[]{"TLSv1.2"});
+        return this;
+    }
+
+    int queryCount() {
+        return queryCount.get();
+    }
+
+    int connectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Transaction IDs of the queries as they arrived
+     */
+    List<Integer> queryIds() {
+        return queryIds;
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            clients.add(client);
+            Thread thread = new Thread(() -> serve((SSLSocket) client), "StubTlsResolverConnection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(SSLSocket client) {
+        try (SSLSocket socket = client) {
+            socket.startHandshake();
+            connectionCount.incrementAndGet();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            if (http2) {
+                serveHttp2(in, out);
+            } else {
+                serveTls(in, out);
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // Client went away or the stub was closed
+        }
+    }
+
+    private void serveTls(DataInputStream in, OutputStream out) throws IOException, InterruptedException {
+        for (int answered = 0; answered < repliesPerConnection; answered++) {
+            byte[] query = new byte[in.readUnsignedShort()];
+            in.readFully(query);
+            byte[] reply = answer(query);
+            byte[] frame = new byte[2 + reply.length];
+            frame[0] = (byte) (reply.length >> 8);
+            frame[1] = (byte) reply.length;
+            System.arraycopy(reply, 0, frame, 2, reply.length);
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    private void serveHttp2(DataInputStream in, OutputStream out) throws IOException, InterruptedException {
+        byte[] preface = new byte[24];
+        in.readFully(preface);
+        if (!new String(preface, "US-ASCII").equals("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n")) {
+            throw new IOException("Bad preface");
+        }
+        // Settings with a MAX_CONCURRENT_STREAMS of 100
+        writeFrame(out, DohUpstreamPool.TYPE_SETTINGS, 0, 0, new byte[]{0, 3, 0, 0, 0, 100});
+
+        Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+        byte[] header = new byte[DohUpstreamPool.FRAME_HEADER_SIZE];
+        int answered = 0;
+        while (answered < repliesPerConnection) {
+            in.readFully(header);
+            int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+            int type = header[3];
+            int flags = header[4];
+            int stream = ((header[5] & 0x7F) << 24) | ((header[6] & 0xFF) << 16)
+                    | ((header[7] & 0xFF) << 8) | (header[8] & 0xFF);
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            if (type == DohUpstreamPool.TYPE_SETTINGS && (flags & DohUpstreamPool.FLAG_ACK) == 0) {
+                writeFrame(out, DohUpstreamPool.TYPE_SETTINGS, DohUpstreamPool.FLAG_ACK, 0, new byte[0]);
+            } else if (type == DohUpstreamPool.TYPE_PING && (flags & DohUpstreamPool.FLAG_ACK) == 0) {
+                writeFrame(out, DohUpstreamPool.TYPE_PING, DohUpstreamPool.FLAG_ACK, 0, payload);
+            } else if (type == DohUpstreamPool.TYPE_HEADERS) {
+                bodies.put(stream, new ByteArrayOutputStream());
+            } else if (type == DohUpstreamPool.TYPE_DATA) {
+                ByteArrayOutputStream body = bodies.get(stream);
+                body.write(payload);
+                if ((flags & DohUpstreamPool.FLAG_END_STREAM) != 0) {
+                    bodies.remove(stream);
+                    byte[] reply = answer(body.toByteArray());
+                    if (status == 200) {
+                        // Indexed :status 200
+                        writeFrame(out, DohUpstreamPool.TYPE_HEADERS, DohUpstreamPool.FLAG_END_HEADERS, stream,
+                                new byte[]{(byte) 0x88});
+                        writeFrame(out, DohUpstreamPool.TYPE_DATA, DohUpstreamPool.FLAG_END_STREAM, stream, reply);
+                    } else {
+                        // Literal :status without indexing, no body
+                        byte[] value = Integer.toString(status).getBytes("US-ASCII");
+                        writeFrame(out, DohUpstreamPool.TYPE_HEADERS,
+                                DohUpstreamPool.FLAG_END_HEADERS | DohUpstreamPool.FLAG_END_STREAM, stream,
+                                new byte[]{0x08, 0x03, value[0], value[1], value[2]});
+                    }
+                    answered++;
+                }
+            }
+        }
+    }
+
+    private byte[] answer(byte[] query) throws InterruptedException {
+        queryCount.incrementAndGet();
+        queryIds.add(((query[0] & 0xFF) << 8) | (query[1] & 0xFF));
+        if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+        }
+        return StubResolver.answer(query, query.length);
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload)
+            throws IOException {
+        byte[] frame = new byte[DohUpstreamPool.FRAME_HEADER_SIZE + payload.length];
+        frame[0] = (byte) (payload.length >> 16);
+        frame[1] = (byte) (payload.length >> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        frame[5] = (byte) (stream >> 24);
+        frame[6] = (byte) (stream >> 16);
+        frame[7] = (byte) (stream >> 8);
+        frame[8] = (byte) stream;
+        System.arraycopy(payload, 0, frame, DohUpstreamPool.FRAME_HEADER_SIZE, payload.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SuffixFilterTest {
+
+    @Test
+    public void testNoFalseNegatives() {
+        Random random = new Random(3);
+        Set<String> domains = new HashSet<>();
+        for (int i = 0; i < 20000; i++) {
+            domains.add(randomDomain(random));
+        }
+        domains.add("@@allowed.example.org");
+        SuffixFilter filter = SuffixFilter.build(DomainTrie.compile(domains), 0.01);
+        assertEquals(domains.size(), filter.getEntryCount());
+
+        DnsQuestion question = new DnsQuestion();
+        for (String domain : domains) {
+            String name = domain.replace("@@", "");
+            for (String probe : new String[]{name, "sub." + name, "A.B." + name.toUpperCase() + "."}) {
+                assertTrue(probe, filter.mightMatch(probe));
+                assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(probe), question));
+                assertTrue(probe, filter.mightMatch(question));
+            }
+        }
+    }
+
+    @Test
+    public void testQuestionAgreesWithString() {
+        Random random = new Random(5);
+        List<String> domains = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            domains.add(randomDomain(random));
+        }
+        // Sized loosely so both answers show up often
+        SuffixFilter filter = SuffixFilter.build(DomainTrie.compile(domains), 0.5);
+
+        DnsQuestion question = new DnsQuestion();
+        for (int i = 0; i < 5000; i++) {
+            String probe = randomDomain(random);
+            assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(probe), question));
+            assertEquals(probe, filter.mightMatch(probe), filter.mightMatch(question));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRateIsNearConfigured() {
+        Random random = new Random(9);
+        Set<String> domains = new HashSet<>();
+        while (domains.size() < 50000) {
+            domains.add("e" + random.nextLong() + ".com");
+        }
+        DomainTrie trie = DomainTrie.compile(domains);
+
+        for (double rate : new double[]{0.01, 0.001}) {
+            SuffixFilter filter = SuffixFilter.build(trie, rate);
+            int probes = 200000;
+            int hits = 0;
+            for (int i = 0; i < probes; i++) {
+                // Never an entry: entries all have exactly two labels
+                if (filter.mightMatch("p" + i + ".q" + random.nextLong() + ".net")) {
+                    hits++;
+                }
+            }
+            double measured = (double) hits / probes;
+            assertTrue("measured " + measured, measured < rate * 2);
+        }
+    }
+
+    @Test
+    public void testEmptyTrie() {
+        SuffixFilter filter = SuffixFilter.build(DomainTrie.compile(Collections.emptyList()), 0.01);
+
+        assertEquals(0, filter.getEntryCount());
+        assertFalse(filter.mightMatch("example.com"));
+        assertFalse(filter.mightMatch(""));
+        assertFalse(filter.mightMatch((String) null));
+    }
+
+    @Test
+    public void testRateIsClamped() {
+        DomainTrie trie = DomainTrie.compile(Collections.singletonList("example.com"));
+
+        assertEquals(SuffixFilter.MIN_FALSE_POSITIVE_RATE, SuffixFilter.build(trie, 0).getFalsePositiveRate(), 0);
+        assertEquals(SuffixFilter.MAX_FALSE_POSITIVE_RATE, SuffixFilter.build(trie, 1).getFalsePositiveRate(), 0);
+    }
+
+    @Test
+    public void testFilteredBlocklistAgreesWithPlain() {
+        Random random = new Random(21);
+        Set<String> domains = new HashSet<>();
+        while (domains.size() < 20000) {
+            domains.add(randomDomain(random) + ".com");
+        }
+        DomainTrie trie = DomainTrie.compile(domains);
+        Blocklist plain = new Blocklist(trie, Collections.emptyList(), Collections.emptyList());
+        Blocklist filtered = new Blocklist(trie, Collections.emptyList(), Collections.emptyList(),
+                PatternRules.empty(), SuffixFilter.build(trie, SuffixFilter.DEFAULT_FALSE_POSITIVE_RATE));
+
+        // Mostly names that are not listed, as on a real device
+        List<String> listed = new ArrayList<>(domains);
+        int matched = 0;
+        for (int i = 0; i < 5000; i++) {
+            String name = i % 20 == 0 ? "www." + listed.get(random.nextInt(listed.size()))
+                    : "cdn" + i + ".example" + random.nextInt(1000) + ".com";
+            DnsQuestion question = new DnsQuestion();
+            assertTrue(DnsPacketParser.parseQuestion(DnsTestPackets.queryPacket(name), question));
+            assertEquals(name, plain.matches(question), filtered.matches(question));
+            matched += filtered.matches(question) ? 1 : 0;
+        }
+        assertTrue(matched >= 250);
+    }
+
+    private static String randomDomain(Random random) {
+        StringBuilder domain = new StringBuilder();
+        int labels = 2 + random.nextInt(3);
+        for (int i = 0; i < labels; i++) {
+            if (i > 0) {
+                domain.append('.');
+            }
+            int length = 1 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                domain.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return domain.toString();
+    }
+}
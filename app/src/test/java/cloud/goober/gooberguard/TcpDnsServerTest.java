@@ -0,0 +1,306 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+public class TcpDnsServerTest {
+    private static final int MTU = 1500;
+    private static final int CLIENT_ISN = 1000;
+
+    private final BlockingQueue<ByteBuffer> tun = new LinkedBlockingQueue<>();
+    private final LongAdder blockedCount = new LongAdder();
+    private final DnsCache cache = new DnsCache();
+    private StubTcpResolver resolver;
+    private TcpUpstreamPool pool;
+    private TcpDnsServer server;
+
+    // Client's view of the connection under test
+    private byte[] client = DnsTestPackets.CLIENT_ADDRESS;
+    private byte[] dnsServer = DnsTestPackets.DNS_SERVER_ADDRESS;
+    private int clientSeq;
+    private int serverSeq;
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = new StubTcpResolver();
+        pool = new TcpUpstreamPool(new UpstreamTracker(Collections.singletonList(resolver.address())),
+                socket -> true);
+        pool.start();
+        Blocklist blocklist = new Blocklist(DomainTrie.compile(Collections.singletonList("ads.example.com")),
+                Collections.emptyList(), Collections.emptyList());
+        server = new TcpDnsServer(() -> blocklist, cache, new DnsResponseBuilder(), pool::query,
+                packet -> tun.add(copy(packet)), MTU, blockedCount);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        pool.close();
+        resolver.close();
+    }
+
+    @Test
+    public void testRecognizesDnsSegments() {
+        assertTrue(TcpDnsServer.isDnsSegment(segment(IpPacketBuilder.TCP_SYN, new byte[0])));
+        assertFalse(TcpDnsServer.isDnsSegment(DnsTestPackets.queryPacket("example.com")));
+    }
+
+    @Test
+    public void testHandshake() throws Exception {
+        server.handle(DnsTestPackets.tcpSegment(client, dnsServer, CLIENT_ISN, 0, IpPacketBuilder.TCP_SYN,
+                1460, new byte[0]));
+
+        ByteBuffer synAck = next();
+        int tcp = IpPacketBuilder.tcpOffset(synAck);
+        assertEquals(IpPacketBuilder.TCP_SYN | IpPacketBuilder.TCP_ACK, synAck.get(tcp + 13) & 0x3F);
+        assertEquals(CLIENT_ISN + 1, synAck.getInt(tcp + 8));
+        assertEquals(DnsTestPackets.CLIENT_PORT, synAck.getShort(tcp + 2) & 0xFFFF);
+        assertEquals(53, synAck.getShort(tcp) & 0xFFFF);
+        assertEquals(MTU - 40, IpPacketBuilder.tcpMss(synAck, tcp));
+        assertArrayEquals(dnsServer, bytes(synAck, 12, 4));
+        assertArrayEquals(client, bytes(synAck, 16, 4));
+        DnsTestPackets.assertChecksumsValid(synAck);
+        assertEquals(1, server.getSessionCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testAnswersBlockedQuerySplitAcrossSegments() throws Exception {
+        connect();
+        byte[] frame = DnsTestPackets.tcpFrame(DnsTestPackets.dnsQuery(0x1357,
+                DnsTestPackets.encodeName("tracker.ads.example.com"), DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN));
+
+        // The length prefix arrives alone, then the rest
+        send(IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, Arrays.copyOfRange(frame, 0, 1));
+        assertEquals(0, payloadLength(next()));
+        send(IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, Arrays.copyOfRange(frame, 1, frame.length));
+
+        byte[] reply = readReply();
+        assertEquals(0x1357, ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+        assertEquals(0x80, reply[2] & 0x80);
+        assertEquals(3, reply[3] & 0x0F); // NXDOMAIN
+        assertEquals(1, blockedCount.sum());
+        assertEquals(1, server.getQueryCount());
+        assertEquals(0, resolver.queryCount());
+    }
+
+    @Test
+    public void testAnswersFromCache() throws Exception {
+        byte[] query = DnsTestPackets.dnsQuery(0x0001, DnsTestPackets.encodeName("cached.example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        byte[] upstreamReply = StubResolver.answer(query, query.length);
+        cache.put(ByteBuffer.wrap(upstreamReply), 0, upstreamReply.length);
+
+        connect();
+        query[0] = 0x24;
+        query[1] = 0x68;
+        send(IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, DnsTestPackets.tcpFrame(query));
+
+        byte[] reply = readReply();
+        assertEquals(0x2468, ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+        assertArrayEquals(StubResolver.ANSWER_ADDRESS, Arrays.copyOfRange(reply, reply.length - 4, reply.length));
+        assertEquals(0, resolver.queryCount());
+    }
+
+    @Test
+    public void testForwardsQueriesUpstreamAndCachesAnswer() throws Exception {
+        connect();
+        byte[] first = DnsTestPackets.dnsQuery(0x0A0A, DnsTestPackets.encodeName("one.example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        byte[] second = DnsTestPackets.dnsQuery(0x0B0B, DnsTestPackets.encodeName("two.example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        // Two pipelined queries in one segment
+        byte[] frames = ByteBuffer.allocate(4 + first.length + second.length)
+                .put(DnsTestPackets.tcpFrame(first)).put(DnsTestPackets.tcpFrame(second)).array();
+        send(IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, frames);
+
+        int firstId = id(readReply());
+        int secondId = id(readReply());
+        assertEquals(0x0A0A ^ 0x0B0B, firstId ^ secondId);
+        assertEquals(2, resolver.queryCount());
+
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(question.parse(ByteBuffer.wrap(first), 0));
+        assertTrue(cache.get(question, ByteBuffer.allocate(512)));
+    }
+
+    @Test
+    public void testServfailWhenUpstreamUnavailable() throws Exception {
+        server = new TcpDnsServer(Blocklist::empty, cache, new DnsResponseBuilder(),
+                (message, offset, length, callback) -> false, packet -> tun.add(copy(packet)), MTU, blockedCount);
+        connect();
+        send(IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, DnsTestPackets.tcpFrame(DnsTestPackets.dnsQuery(
+                0x7777, DnsTestPackets.encodeName("example.com"), DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN)));
+
+        byte[] reply = readReply();
+        assertEquals(0x7777, id(reply));
+        assertEquals(2, reply[3] & 0x0F);
+        assertEquals(1, ((reply[4] & 0xFF) << 8) | (reply[5] & 0xFF));
+    }
+
+    @Test
+    public void testRetransmitsUnacknowledgedReply() throws Exception {
+        connect();
+        send(IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, DnsTestPackets.tcpFrame(DnsTestPackets.dnsQuery(
+                0x4242, DnsTestPackets.encodeName("ads.example.com"), DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN)));
+        assertEquals(0, payloadLength(next()));
+        ByteBuffer data = next();
+        int tcp = IpPacketBuilder.tcpOffset(data);
+        int seq = data.getInt(tcp + 4);
+
+        // Nothing is resent before the timeout
+        server.tick(System.nanoTime());
+        assertNull(tun.poll(50, TimeUnit.MILLISECONDS));
+
+        server.tick(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TcpDnsServer.INITIAL_RTO_MS + 50));
+        ByteBuffer resent = next();
+        assertEquals(seq, resent.getInt(IpPacketBuilder.tcpOffset(resent) + 4));
+        assertEquals(payloadLength(data), payloadLength(resent));
+        assertEquals(1, server.getRetransmitCount());
+    }
+
+    @Test
+    public void testClosesAfterClientFin() throws Exception {
+        connect();
+        send(IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, DnsTestPackets.tcpFrame(DnsTestPackets.dnsQuery(
+                0x1111, DnsTestPackets.encodeName("ads.example.com"), DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN)));
+        readReply();
+
+        send(IpPacketBuilder.TCP_FIN | IpPacketBuilder.TCP_ACK, new byte[0]);
+        clientSeq++;
+        ByteBuffer fin = null;
+        for (int i = 0; i < 2 && fin == null; i++) {
+            ByteBuffer segment = next();
+            int tcp = IpPacketBuilder.tcpOffset(segment);
+            assertEquals(clientSeq, segment.getInt(tcp + 8));
+            if ((segment.get(tcp + 13) & IpPacketBuilder.TCP_FIN) != 0) {
+                fin = segment;
+            }
+        }
+        assertNotNull("No FIN", fin);
+
+        serverSeq = fin.getInt(IpPacketBuilder.tcpOffset(fin) + 4) + 1;
+        send(IpPacketBuilder.TCP_ACK, new byte[0]);
+        assertEquals(0, server.getSessionCount());
+    }
+
+    @Test
+    public void testResetsUnknownConnection() throws Exception {
+        server.handle(DnsTestPackets.tcpSegment(client, dnsServer, 5000, 0x12345678, IpPacketBuilder.TCP_ACK,
+                0, new byte[0]));
+
+        ByteBuffer reset = next();
+        int tcp = IpPacketBuilder.tcpOffset(reset);
+        assertEquals(IpPacketBuilder.TCP_RST, reset.get(tcp + 13) & 0x3F);
+        assertEquals(0x12345678, reset.getInt(tcp + 4));
+        DnsTestPackets.assertChecksumsValid(reset);
+        assertEquals(1, server.getResetCount());
+        assertEquals(0, server.getSessionCount());
+    }
+
+    @Test
+    public void testAnswersOverIpv6() throws Exception {
+        client = DnsTestPackets.CLIENT_ADDRESS_V6;
+        dnsServer = DnsTestPackets.DNS_SERVER_ADDRESS_V6;
+        connect();
+        send(IpPacketBuilder.TCP_PSH | IpPacketBuilder.TCP_ACK, DnsTestPackets.tcpFrame(DnsTestPackets.dnsQuery(
+                0x6666, DnsTestPackets.encodeName("example.com"), DnsQuestion.TYPE_AAAA, DnsQuestion.CLASS_IN)));
+
+        assertEquals(0, payloadLength(next()));
+        ByteBuffer data = next();
+        assertEquals(6, (data.get(0) >> 4) & 0x0F);
+        assertArrayEquals(dnsServer, bytes(data, 8, 16));
+        assertArrayEquals(client, bytes(data, 24, 16));
+        DnsTestPackets.assertChecksumsValid(data);
+        assertEquals(0x6666, ((data.get(data.limit() - payloadLength(data) + 2) & 0xFF) << 8)
+                | (data.get(data.limit() - payloadLength(data) + 3) & 0xFF));
+    }
+
+    /**
+     * Open a connection and leave clientSeq and serverSeq at the next bytes
+     * each side sends
+     */
+    private void connect() throws Exception {
+        server.handle(DnsTestPackets.tcpSegment(client, dnsServer, CLIENT_ISN, 0, IpPacketBuilder.TCP_SYN,
+                1460, new byte[0]));
+        ByteBuffer synAck = next();
+        clientSeq = CLIENT_ISN + 1;
+        serverSeq = synAck.getInt(IpPacketBuilder.tcpOffset(synAck) + 4) + 1;
+        send(IpPacketBuilder.TCP_ACK, new byte[0]);
+        assertNull("Bare ACK answered", tun.poll(20, TimeUnit.MILLISECONDS));
+    }
+
+    private void send(int flags, byte[] payload) {
+        server.handle(DnsTestPackets.tcpSegment(client, dnsServer, clientSeq, serverSeq, flags, 0, payload));
+        clientSeq += payload.length;
+    }
+
+    /**
+     * Read data segments, acknowledging each, until one whole DNS message
+     * has arrived
+     */
+    private byte[] readReply() throws Exception {
+        ByteBuffer stream = ByteBuffer.allocate(65537);
+        while (stream.position() < 2 || stream.position() < 2 + (stream.getShort(0) & 0xFFFF)) {
+            ByteBuffer segment = next();
+            int length = payloadLength(segment);
+            if (length == 0) {
+                continue;
+            }
+            int tcp = IpPacketBuilder.tcpOffset(segment);
+            assertEquals(serverSeq, segment.getInt(tcp + 4));
+            DnsTestPackets.assertChecksumsValid(segment);
+            for (int i = segment.limit() - length; i < segment.limit(); i++) {
+                stream.put(segment.get(i));
+            }
+            serverSeq += length;
+            send(IpPacketBuilder.TCP_ACK, new byte[0]);
+        }
+        return Arrays.copyOfRange(stream.array(), 2, 2 + (stream.getShort(0) & 0xFFFF));
+    }
+
+    private ByteBuffer next() throws InterruptedException {
+        ByteBuffer segment = tun.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Nothing written to tun", segment);
+        return segment;
+    }
+
+    private ByteBuffer segment(int flags, byte[] payload) {
+        return DnsTestPackets.tcpSegment(client, dnsServer, CLIENT_ISN, 0, flags, 0, payload);
+    }
+
+    private static int payloadLength(ByteBuffer segment) {
+        int tcp = IpPacketBuilder.tcpOffset(segment);
+        return segment.limit() - tcp - IpPacketBuilder.tcpHeaderLength(segment, tcp);
+    }
+
+    private static int id(byte[] message) {
+        return ((message[0] & 0xFF) << 8) | (message[1] & 0xFF);
+    }
+
+    private static ByteBuffer copy(ByteBuffer packet) {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+        byte[] out = new byte[length];
+        for (int i = 0; i < length; i++) {
+            out[i] = buffer.get(offset + i);
+        }
+        return out;
+    }
+}
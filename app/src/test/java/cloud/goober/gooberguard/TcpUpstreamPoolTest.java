@@ -0,0 +1,154 @@
+package cloud.goober.gooberguard;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TcpUpstreamPoolTest {
+    private static final byte[] FAILED = new byte[0];
+
+    private StubTcpResolver resolver;
+    private TcpUpstreamPool pool;
+    private final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<>();
+
+    private final DnsUpstream.Callback callback = new DnsUpstream.Callback() {
+        @Override
+        public void onResponse(byte[] response) {
+            replies.add(response);
+        }
+
+        @Override
+        public void onFailure() {
+            replies.add(FAILED);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = new StubTcpResolver();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        resolver.close();
+    }
+
+    @Test
+    public void testAnswersWithClientId() throws Exception {
+        startPool(Collections.singletonList(resolver.address()), TcpUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        byte[] query = DnsTestPackets.dnsQuery(0xBEEF, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No reply", reply);
+        assertNotSame(FAILED, reply);
+        assertEquals(0xBEEF, ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+        assertArrayEquals(StubResolver.ANSWER_ADDRESS, Arrays.copyOfRange(reply, reply.length - 4, reply.length));
+        assertEquals(1, pool.getAnsweredCount());
+        assertEquals(0, pool.pendingCount());
+    }
+
+    @Test
+    public void testPipelinesQueriesOnOneConnection() throws Exception {
+        startPool(Collections.singletonList(resolver.address()), TcpUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        // Every client uses the same ID; the pool gives each its own on the
+        // wire and restores it on the way back
+        for (int i = 0; i < 20; i++) {
+            byte[] query = DnsTestPackets.dnsQuery(0x0001, DnsTestPackets.encodeName("host" + i + ".example.com"),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(pool.query(query, 0, query.length, callback));
+            byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No reply to query " + i, reply);
+            assertNotSame(FAILED, reply);
+            assertEquals(0x0001, ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+        }
+
+        assertEquals(1, pool.getConnectionCount());
+        assertEquals(19, pool.getReusedCount());
+        assertEquals(1, resolver.connectionCount());
+    }
+
+    @Test
+    public void testRetriesOnNewConnectionWhenClosed() throws Exception {
+        resolver.setRepliesPerConnection(1);
+        startPool(Collections.singletonList(resolver.address()), TcpUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] query = DnsTestPackets.dnsQuery(0x4000 + i, DnsTestPackets.encodeName("example.com"),
+                    DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+            assertTrue(pool.query(query, 0, query.length, callback));
+            byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No reply to query " + i, reply);
+            assertNotSame("Query " + i + " failed", FAILED, reply);
+        }
+
+        assertEquals(3, pool.getAnsweredCount());
+        assertEquals(0, pool.getFailedCount());
+        assertTrue(resolver.connectionCount() >= 3);
+    }
+
+    @Test
+    public void testSlowUpstreamTimesOut() throws Exception {
+        resolver.setDelayMillis(2000);
+        startPool(Collections.singletonList(resolver.address()), 300);
+
+        byte[] query = DnsTestPackets.dnsQuery(0x1234, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        assertSame(FAILED, replies.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getFailedCount());
+        assertEquals(0, pool.pendingCount());
+    }
+
+    @Test
+    public void testFallsBackWhenUpstreamRefuses() throws Exception {
+        // Nothing listens on a closed stub's port, so connecting fails and
+        // the retry goes to the other upstream
+        StubTcpResolver dead = new StubTcpResolver();
+        InetSocketAddress deadAddress = dead.address();
+        dead.close();
+        startPool(Arrays.asList(deadAddress, resolver.address()), TcpUpstreamPool.DEFAULT_TIMEOUT_MS);
+
+        byte[] query = DnsTestPackets.dnsQuery(0x2222, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertTrue(pool.query(query, 0, query.length, callback));
+
+        byte[] reply = replies.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No reply", reply);
+        assertNotSame(FAILED, reply);
+        assertEquals(1, resolver.queryCount());
+    }
+
+    @Test
+    public void testStoppedPoolRejectsQueries() throws Exception {
+        startPool(Collections.singletonList(resolver.address()), TcpUpstreamPool.DEFAULT_TIMEOUT_MS);
+        pool.close();
+
+        byte[] query = DnsTestPackets.dnsQuery(0x3333, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertFalse(pool.query(query, 0, query.length, callback));
+    }
+
+    private void startPool(List<InetSocketAddress> addresses, long timeoutMillis) throws Exception {
+        pool = new TcpUpstreamPool(new UpstreamTracker(addresses), socket -> true,
+                TcpUpstreamPool.DEFAULT_CONNECTIONS_PER_UPSTREAM, timeoutMillis);
+        pool.start();
+    }
+}
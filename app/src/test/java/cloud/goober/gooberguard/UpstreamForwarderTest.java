@@ -0,0 +1,149 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class UpstreamForwarderTest {
+
+    private DnsUpstream upstream;
+    private UpstreamForwarder forwarder;
+    private final BlockingQueue<ByteBuffer> tun = new LinkedBlockingQueue<>();
+    private int padding;
+
+    @Before
+    public void setUp() {
+        // Answers at once, padded out to the size the test wants
+        upstream = mock(DnsUpstream.class);
+        when(upstream.query(any(byte[].class), anyInt(), anyInt(), any(DnsUpstream.Callback.class)))
+                .thenAnswer(invocation -> {
+                    byte[] query = invocation.getArgument(0);
+                    byte[] answer = StubResolver.answer(query, invocation.getArgument(2));
+                    DnsUpstream.Callback callback = invocation.getArgument(3);
+                    callback.onResponse(Arrays.copyOf(answer, answer.length + padding));
+                    return true;
+                });
+        forwarder = new UpstreamForwarder(upstream, tun::add);
+    }
+
+    @Test
+    public void testWritesReplyToClient() throws Exception {
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket(0xABCD, "example.com", DnsQuestion.TYPE_A)));
+
+        ByteBuffer reply = tun.poll();
+        assertNotNull("No reply written to tun", reply);
+        assertArrayEquals(DnsTestPackets.DNS_SERVER_ADDRESS, bytes(reply, 12, 4));
+        assertArrayEquals(DnsTestPackets.CLIENT_ADDRESS, bytes(reply, 16, 4));
+        assertEquals(DnsTestPackets.CLIENT_PORT, reply.getShort(22) & 0xFFFF);
+        assertEquals(0xABCD, reply.getShort(28) & 0xFFFF);
+        assertArrayEquals(StubResolver.ANSWER_ADDRESS, bytes(reply, reply.limit() - 4, 4));
+        DnsTestPackets.assertChecksumsValid(reply);
+        assertEquals(1, forwarder.getAnsweredCount());
+        assertEquals(0, forwarder.getTruncatedCount());
+    }
+
+    @Test
+    public void testTruncatesReplyTooLargeForUdp() throws Exception {
+        padding = 600;
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket(0x1234, "example.com", DnsQuestion.TYPE_A)));
+
+        ByteBuffer reply = tun.poll();
+        assertNotNull("No reply written to tun", reply);
+        byte[] encodedName = DnsTestPackets.encodeName("example.com");
+        // Header and question only, with TC set
+        assertEquals(28 + 12 + encodedName.length + 4, reply.limit());
+        assertEquals(0x1234, reply.getShort(28) & 0xFFFF);
+        assertTrue((reply.getShort(30) & 0x0200) != 0);
+        assertEquals(1, reply.getShort(32) & 0xFFFF);
+        assertEquals(0, reply.getShort(34) & 0xFFFF);
+        DnsTestPackets.assertChecksumsValid(reply);
+        assertEquals(1, forwarder.getTruncatedCount());
+    }
+
+    @Test
+    public void testEdnsSizeAllowsLargerReply() throws Exception {
+        padding = 600;
+        byte[] query = ednsQuery(1232);
+        assertTrue(forwarder.forward(DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS,
+                DnsTestPackets.CLIENT_PORT, DnsTestPackets.DNS_SERVER_ADDRESS, 53, query)));
+
+        ByteBuffer reply = tun.poll();
+        assertNotNull("No reply written to tun", reply);
+        assertTrue(reply.limit() - 28 > UpstreamForwarder.MIN_UDP_PAYLOAD);
+        assertEquals(0, reply.getShort(30) & 0x0200);
+        assertEquals(0, forwarder.getTruncatedCount());
+    }
+
+    @Test
+    public void testTruncatedReplyKeepsOptForEdnsClient() throws Exception {
+        padding = 600;
+        byte[] query = DnsTestPackets.ednsQuery(0x5555, "example.com", 512, 0x8000);
+        assertTrue(forwarder.forward(DnsTestPackets.udpPacket(DnsTestPackets.CLIENT_ADDRESS,
+                DnsTestPackets.CLIENT_PORT, DnsTestPackets.DNS_SERVER_ADDRESS, 53, query)));
+
+        ByteBuffer reply = tun.poll();
+        assertNotNull("No reply written to tun", reply);
+        // Header, question and a fresh OPT record echoing DO
+        assertEquals(28 + query.length, reply.limit());
+        assertTrue((reply.getShort(30) & 0x0200) != 0);
+        assertEquals(0, reply.getShort(34) & 0xFFFF);
+        assertEquals(1, reply.getShort(38) & 0xFFFF);
+        assertEquals(41, reply.getShort(reply.limit() - 10) & 0xFFFF);
+        assertEquals(0x8000, reply.getShort(reply.limit() - 4) & 0xFFFF);
+        assertEquals(1, forwarder.getTruncatedCount());
+    }
+
+    @Test
+    public void testDroppedReplyIsNotCounted() {
+        forwarder = new UpstreamForwarder(upstream, packet -> false);
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket("example.com")));
+        assertEquals(1, forwarder.getForwardedCount());
+        assertEquals(0, forwarder.getAnsweredCount());
+    }
+
+    @Test
+    public void testMaxUdpPayload() {
+        byte[] plain = DnsTestPackets.dnsQuery(1, DnsTestPackets.encodeName("example.com"),
+                DnsQuestion.TYPE_A, DnsQuestion.CLASS_IN);
+        assertEquals(UpstreamForwarder.MIN_UDP_PAYLOAD, forwarder.maxUdpPayload(plain));
+        assertEquals(1000, forwarder.maxUdpPayload(ednsQuery(1000)));
+        assertEquals(UpstreamForwarder.MAX_UDP_PAYLOAD, forwarder.maxUdpPayload(ednsQuery(4096)));
+        assertEquals(UpstreamForwarder.MIN_UDP_PAYLOAD, forwarder.maxUdpPayload(ednsQuery(100)));
+    }
+
+    @Test
+    public void testUnansweredQueryWritesNothing() {
+        when(upstream.query(any(byte[].class), anyInt(), anyInt(), any(DnsUpstream.Callback.class)))
+                .thenAnswer(invocation -> {
+                    DnsUpstream.Callback callback = invocation.getArgument(3);
+                    callback.onFailure();
+                    return true;
+                });
+
+        assertTrue(forwarder.forward(DnsTestPackets.queryPacket("example.com")));
+        assertTrue(tun.isEmpty());
+        assertEquals(1, forwarder.getForwardedCount());
+        assertEquals(0, forwarder.getAnsweredCount());
+    }
+
+    private static byte[] ednsQuery(int udpPayload) {
+        return DnsTestPackets.ednsQuery(0x5555, "example.com", udpPayload, 0);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+        byte[] out = new byte[length];
+        for (int i = 0; i < length; i++) {
+            out[i] = buffer.get(offset + i);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,144 @@
+package cloud.goober.gooberguard;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UpstreamTrackerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final List<InetSocketAddress> addresses = Arrays.asList(
+            new InetSocketAddress("192.0.2.1", 53),
+            new InetSocketAddress("192.0.2.2", 53),
+            new InetSocketAddress("192.0.2.3", 53));
+
+    @Test
+    public void testUnmeasuredUpstreamsAreTriedFirst() {
+        UpstreamTracker tracker = new UpstreamTracker(addresses);
+
+        assertEquals(0, tracker.select(0));
+        tracker.recordSuccess(0, 5 * MS);
+        assertEquals(1, tracker.select(0));
+        tracker.recordSuccess(1, 50 * MS);
+        assertEquals(2, tracker.select(0));
+        tracker.recordSuccess(2, 20 * MS);
+
+        // All measured: the fastest wins
+        assertEquals(0, tracker.select(0));
+    }
+
+    @Test
+    public void testEwmaFollowsLatencyChanges() {
+        UpstreamTracker tracker = new UpstreamTracker(addresses.subList(0, 2));
+        tracker.recordSuccess(0, 10 * MS);
+        tracker.recordSuccess(1, 30 * MS);
+        assertEquals(0, tracker.select(0));
+
+        // Upstream 0 slows down; the average moves over and traffic follows
+        for (int i = 0; i < 20; i++) {
+            tracker.recordSuccess(0, 100 * MS);
+        }
+        assertEquals(1, tracker.select(0));
+        assertTrue(tracker.getStats().get(0).ewmaNanos > 90 * MS);
+    }
+
+    @Test
+    public void testBreakerOpensAndProbes() {
+        UpstreamTracker tracker = new UpstreamTracker(addresses.subList(0, 2), 1000);
+        tracker.recordSuccess(0, 5 * MS);
+        tracker.recordSuccess(1, 50 * MS);
+
+        for (int i = 0; i < UpstreamTracker.FAILURES_TO_OPEN; i++) {
+            assertEquals(UpstreamTracker.State.CLOSED, tracker.getStats().get(0).state);
+            tracker.recordFailure(0, 0);
+        }
+        assertEquals(UpstreamTracker.State.OPEN, tracker.getStats().get(0).state);
+        assertEquals(1, tracker.select(100 * MS));
+
+        // After the cooldown one probe goes to it, then traffic stays away
+        // until the probe resolves
+        assertEquals(0, tracker.select(1000 * MS));
+        assertEquals(UpstreamTracker.State.HALF_OPEN, tracker.getStats().get(0).state);
+        assertEquals(1, tracker.select(1001 * MS));
+
+        // A failed probe doubles the cooldown
+        tracker.recordFailure(0, 1100 * MS);
+        assertEquals(UpstreamTracker.State.OPEN, tracker.getStats().get(0).state);
+        assertEquals(1, tracker.select(2100 * MS));
+        assertEquals(0, tracker.select(3100 * MS));
+
+        // A successful probe closes it
+        tracker.recordSuccess(0, 5 * MS);
+        assertEquals(UpstreamTracker.State.CLOSED, tracker.getStats().get(0).state);
+        assertEquals(0, tracker.select(3200 * MS));
+    }
+
+    @Test
+    public void testAllOpenUsesSoonestBack() {
+        UpstreamTracker tracker = new UpstreamTracker(addresses.subList(0, 2), 1000);
+        for (int i = 0; i < UpstreamTracker.FAILURES_TO_OPEN; i++) {
+            tracker.recordFailure(1, 0);
+        }
+        for (int i = 0; i < UpstreamTracker.FAILURES_TO_OPEN; i++) {
+            tracker.recordFailure(0, 10 * MS);
+        }
+
+        assertEquals(1, tracker.select(20 * MS));
+    }
+
+    @Test
+    public void testHedgeDelayIsP95() {
+        UpstreamTracker tracker = new UpstreamTracker(addresses);
+        assertEquals(UpstreamTracker.DEFAULT_HEDGE_DELAY_MS * MS, tracker.hedgeDelayNanos(0));
+
+        for (int i = 1; i <= 100; i++) {
+            tracker.recordSuccess(0, i * MS);
+        }
+        // The window holds the last 64 replies, 37..100 ms
+        assertEquals(97 * MS, tracker.hedgeDelayNanos(0));
+        assertEquals(97 * MS, tracker.getStats().get(0).p95Nanos);
+
+        for (int i = 0; i < 100; i++) {
+            tracker.recordSuccess(1, 1000);
+        }
+        assertEquals(UpstreamTracker.MIN_HEDGE_DELAY_MS * MS, tracker.hedgeDelayNanos(1));
+    }
+
+    @Test
+    public void testHedgeAvoidsPrimaryAndUnhealthy() {
+        UpstreamTracker tracker = new UpstreamTracker(addresses);
+        tracker.recordSuccess(0, 5 * MS);
+        tracker.recordSuccess(1, 10 * MS);
+        tracker.recordSuccess(2, 20 * MS);
+
+        assertEquals(1, tracker.selectHedge(0, 0));
+        for (int i = 0; i < UpstreamTracker.FAILURES_TO_OPEN; i++) {
+            tracker.recordFailure(1, 0);
+        }
+        assertEquals(2, tracker.selectHedge(0, 0));
+        for (int i = 0; i < UpstreamTracker.FAILURES_TO_OPEN; i++) {
+            tracker.recordFailure(2, 0);
+        }
+        assertEquals(-1, tracker.selectHedge(0, 0));
+        assertEquals(1, tracker.getStats().get(2).hedged);
+    }
+
+    @Test
+    public void testSlowerUpstreamsAreStillSampled() {
+        UpstreamTracker tracker = new UpstreamTracker(addresses.subList(0, 2));
+        tracker.recordSuccess(0, 5 * MS);
+        tracker.recordSuccess(1, 50 * MS);
+
+        int slow = 0;
+        for (int i = 0; i < UpstreamTracker.EXPLORE_INTERVAL * 4; i++) {
+            slow += tracker.select(i) == 1 ? 1 : 0;
+        }
+        assertEquals(4, slow);
+    }
+}
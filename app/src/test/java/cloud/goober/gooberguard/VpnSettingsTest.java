@@ -0,0 +1,187 @@
+package cloud.goober.gooberguard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VpnSettingsTest {
+
+    @Mock
+    private Context mockContext;
+
+    @Mock
+    private SharedPreferences mockPrefs;
+
+    @Mock
+    private SharedPreferences.Editor mockEditor;
+
+    @Before
+    public void setUp() {
+        when(mockContext.getSharedPreferences(anyString(), anyInt())).thenReturn(mockPrefs);
+    }
+
+    @Test
+    public void testDefaultsToDnsOnly() {
+        when(mockPrefs.getString(eq("routing_mode"), anyString()))
+                .thenAnswer(invocation -> invocation.getArgument(1));
+
+        assertEquals(VpnSettings.RoutingMode.DNS_ONLY, new VpnSettings(mockContext).getRoutingMode());
+    }
+
+    @Test
+    public void testReadsResolverRoutes() {
+        when(mockPrefs.getString(eq("routing_mode"), anyString())).thenReturn("RESOLVER_ROUTES");
+
+        assertEquals(VpnSettings.RoutingMode.RESOLVER_ROUTES, new VpnSettings(mockContext).getRoutingMode());
+    }
+
+    @Test
+    public void testUnknownModeFallsBackToDefault() {
+        when(mockPrefs.getString(eq("routing_mode"), anyString())).thenReturn("SPLIT_HORIZON");
+
+        assertEquals(VpnSettings.RoutingMode.DNS_ONLY, new VpnSettings(mockContext).getRoutingMode());
+    }
+
+    @Test
+    public void testBlockStyleDefaultsToNxdomain() {
+        when(mockPrefs.getString(eq("block_style"), anyString()))
+                .thenAnswer(invocation -> invocation.getArgument(1));
+        when(mockPrefs.getInt(eq("block_ttl"), anyInt()))
+                .thenAnswer(invocation -> invocation.getArgument(1));
+
+        VpnSettings settings = new VpnSettings(mockContext);
+        assertEquals(DnsResponseBuilder.BlockStyle.NXDOMAIN, settings.getBlockStyle());
+        assertEquals(DnsResponseBuilder.DEFAULT_BLOCK_TTL_SECONDS, settings.getBlockTtlSeconds());
+    }
+
+    @Test
+    public void testReadsBlockStyleAndTtl() {
+        when(mockPrefs.getString(eq("block_style"), anyString())).thenReturn("NULL_ADDRESS");
+        when(mockPrefs.getInt(eq("block_ttl"), anyInt())).thenReturn(3600);
+
+        VpnSettings settings = new VpnSettings(mockContext);
+        assertEquals(DnsResponseBuilder.BlockStyle.NULL_ADDRESS, settings.getBlockStyle());
+        assertEquals(3600, settings.getBlockTtlSeconds());
+    }
+
+    @Test
+    public void testWorkerThreadsClamped() {
+        when(mockPrefs.getInt(eq("worker_threads"), anyInt()))
+                .thenAnswer(invocation -> invocation.getArgument(1))
+                .thenReturn(0)
+                .thenReturn(64);
+
+        VpnSettings settings = new VpnSettings(mockContext);
+        assertEquals(VpnSettings.DEFAULT_WORKER_THREADS, settings.getWorkerThreads());
+        assertEquals(1, settings.getWorkerThreads());
+        assertEquals(VpnSettings.MAX_WORKER_THREADS, settings.getWorkerThreads());
+    }
+
+    @Test
+    public void testMtuClamped() {
+        when(mockPrefs.getInt(eq("mtu"), anyInt()))
+                .thenAnswer(invocation -> invocation.getArgument(1))
+                .thenReturn(9000)
+                .thenReturn(576);
+
+        VpnSettings settings = new VpnSettings(mockContext);
+        assertEquals(VpnSettings.DEFAULT_MTU, settings.getMtu());
+        assertEquals(9000, settings.getMtu());
+        assertEquals(VpnSettings.MIN_MTU, settings.getMtu());
+    }
+
+    @Test
+    public void testFilterFalsePositiveRateClamped() {
+        when(mockPrefs.getFloat(eq("filter_false_positive_rate"), anyFloat()))
+                .thenAnswer(invocation -> invocation.getArgument(1))
+                .thenReturn(0.001f)
+                .thenReturn(0f)
+                .thenReturn(2f);
+
+        VpnSettings settings = new VpnSettings(mockContext);
+        assertEquals(SuffixFilter.DEFAULT_FALSE_POSITIVE_RATE, settings.getFilterFalsePositiveRate(), 1e-6);
+        assertEquals(0.001, settings.getFilterFalsePositiveRate(), 1e-6);
+        assertEquals(SuffixFilter.MIN_FALSE_POSITIVE_RATE, settings.getFilterFalsePositiveRate(), 1e-9);
+        assertEquals(SuffixFilter.MAX_FALSE_POSITIVE_RATE, settings.getFilterFalsePositiveRate(), 1e-9);
+    }
+
+    @Test
+    public void testParsesUpstreamServers() {
+        List<InetSocketAddress> servers = VpnSettings.parseUpstreamServers(
+                " 1.1.1.1, 9.9.9.9:5353, [2606:4700::1111]:853, 2001:4860:4860::8888, 1.1.1.1, "
+                        + "dns.example.com, 300.1.1.1, 1.2.3, 1.1.1.1:0, [::1, ");
+
+        assertEquals(Arrays.asList(
+                new InetSocketAddress("1.1.1.1", 53),
+                new InetSocketAddress("9.9.9.9", 5353),
+                new InetSocketAddress("2606:4700::1111", 853),
+                new InetSocketAddress("2001:4860:4860::8888", 53)), servers);
+    }
+
+    @Test
+    public void testUnusableUpstreamsFallBackToDefaults() {
+        when(mockPrefs.getString(eq("upstream_servers"), anyString())).thenReturn("resolver.example.com");
+
+        assertEquals(VpnSettings.parseUpstreamServers(VpnSettings.DEFAULT_UPSTREAM_SERVERS),
+                new VpnSettings(mockContext).getUpstreamServers());
+        assertEquals(2, new VpnSettings(mockContext).getUpstreamServers().size());
+    }
+
+    @Test
+    public void testParsesSecureUpstreamServers() {
+        List<SecureUpstreamPool.Endpoint> servers = VpnSettings.parseSecureUpstreamServers(
+                " 1.1.1.1#Cloudflare-DNS.com, 9.9.9.9:8853#dns.quad9.net/query, [2606:4700::1111]#one.one.one.one, "
+                        + "1.1.1.1#cloudflare-dns.com, 8.8.8.8, dns.google#dns.google, 8.8.4.4#, "
+                        + "8.8.4.4#-bad.example, 8.8.4.4#dns..google", 443);
+
+        assertEquals(Arrays.asList(
+                new SecureUpstreamPool.Endpoint(new InetSocketAddress("1.1.1.1", 443),
+                        "cloudflare-dns.com", "/dns-query"),
+                new SecureUpstreamPool.Endpoint(new InetSocketAddress("9.9.9.9", 8853),
+                        "dns.quad9.net", "/query"),
+                new SecureUpstreamPool.Endpoint(new InetSocketAddress("2606:4700::1111", 443),
+                        "one.one.one.one", "/dns-query")), servers);
+    }
+
+    @Test
+    public void testSecureUpstreamsUseTransportPort() {
+        when(mockPrefs.getString(eq("secure_upstream_servers"), anyString())).thenReturn("no name here");
+
+        List<SecureUpstreamPool.Endpoint> servers = new VpnSettings(mockContext)
+                .getSecureUpstreamServers(VpnSettings.UpstreamTransport.TLS);
+        assertEquals(VpnSettings.parseSecureUpstreamServers(VpnSettings.DEFAULT_SECURE_UPSTREAM_SERVERS, 853),
+                servers);
+        assertEquals(853, servers.get(0).address.getPort());
+    }
+
+    @Test
+    public void testUnknownTransportFallsBackToUdp() {
+        when(mockPrefs.getString(eq("upstream_transport"), anyString())).thenReturn("QUIC");
+
+        assertEquals(VpnSettings.UpstreamTransport.UDP, new VpnSettings(mockContext).getUpstreamTransport());
+    }
+
+    @Test
+    public void testSetRoutingMode() {
+        when(mockPrefs.edit()).thenReturn(mockEditor);
+        when(mockEditor.putString(anyString(), anyString())).thenReturn(mockEditor);
+
+        new VpnSettings(mockContext).setRoutingMode(VpnSettings.RoutingMode.RESOLVER_ROUTES);
+
+        verify(mockEditor).putString("routing_mode", "RESOLVER_ROUTES");
+        verify(mockEditor).apply();
+    }
+}
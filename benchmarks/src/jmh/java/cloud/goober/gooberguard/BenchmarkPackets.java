@@ -0,0 +1,44 @@
+package cloud.goober.gooberguard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds the IPv4 UDP query packets the benchmarks feed the parser
+ */
+final class BenchmarkPackets {
+    static final int MAX_PACKET_SIZE = 1500;
+
+    private static final byte[] CLIENT_ADDRESS = {10, 0, 0, 2};
+    private static final byte[] DNS_SERVER_ADDRESS = {10, 0, 0, 53};
+
+    private BenchmarkPackets() {
+    }
+
+    /**
+     * A query for domain as read from the tun, in a direct buffer like the
+     * pipeline's
+     */
+    static ByteBuffer query(int transactionId, String domain, int qtype) {
+        ByteBuffer dns = ByteBuffer.allocate(12 + domain.length() + 2 + 4);
+        dns.putShort((short) transactionId);
+        dns.putShort((short) 0x0100); // RD
+        dns.putShort((short) 1);      // QDCOUNT
+        dns.putShort((short) 0);
+        dns.putShort((short) 0);
+        dns.putShort((short) 0);
+        for (String label : domain.split("\\.")) {
+            dns.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) {
+                dns.put((byte) label.charAt(i));
+            }
+        }
+        dns.put((byte) 0);
+        dns.putShort((short) qtype);
+        dns.putShort((short) DnsQuestion.CLASS_IN);
+        dns.flip();
+
+        ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        IpPacketBuilder.writeUdp(packet, CLIENT_ADDRESS, 40000, DNS_SERVER_ADDRESS, 53, dns, 0, dns.limit());
+        return packet;
+    }
+}
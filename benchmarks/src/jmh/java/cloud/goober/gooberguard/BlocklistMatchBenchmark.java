@@ -0,0 +1,121 @@
+package cloud.goober.gooberguard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocklist lookups at list sizes from a hand-written list to the largest
+ * aggregated ones, with about one query in five blocked as on a typical
+ * phone. Allowed names share TLDs and often parent domains with entries,
+ * so the trie walk is not cut short at the first label. Each call looks up
+ * the next of a fixed set of names so branch prediction and caches see a
+ * realistic spread rather than one hot name.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class BlocklistMatchBenchmark {
+    private static final int QUERY_COUNT = 4096;
+    private static final int BLOCKED_PERCENT = 20;
+    private static final String[] TLDS = {"com", "net", "org", "io", "co.uk", "de", "info", "app"};
+    private static final String[] WORDS = {"ads", "track", "metrics", "cdn", "pixel", "stats", "tag", "beacon",
+            "api", "static", "img", "news", "shop", "mail", "video", "login"};
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    /**
+     * Whether the {@link SuffixFilter} is checked before the trie
+     */
+    @Param({"true", "false"})
+    public boolean filtered;
+
+    private Blocklist blocklist;
+    private String[] names;
+    private DnsQuestion[] questions;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<String> domains = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            domains.add(entry(i, random));
+        }
+        DomainTrie image = DomainTrie.compile(domains);
+        SuffixFilter filter = filtered ? SuffixFilter.build(image, SuffixFilter.DEFAULT_FALSE_POSITIVE_RATE) : null;
+        blocklist = new Blocklist(image, Collections.emptyList(), Collections.emptyList(), PatternRules.empty(),
+                filter);
+
+        names = new String[QUERY_COUNT];
+        questions = new DnsQuestion[QUERY_COUNT];
+        int blocked = 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            String name;
+            if (random.nextInt(100) < BLOCKED_PERCENT) {
+                // An entry itself or a host under one
+                String domain = domains.get(random.nextInt(entries));
+                name = random.nextBoolean() ? domain : WORDS[random.nextInt(WORDS.length)] + "." + domain;
+            } else {
+                name = allowed(random);
+            }
+            names[i] = name;
+            questions[i] = new DnsQuestion();
+            if (!DnsPacketParser.parseQuestion(BenchmarkPackets.query(i, name, DnsQuestion.TYPE_A), questions[i])) {
+                throw new IllegalStateException("Could not parse query for " + name);
+            }
+            if (blocklist.matches(name)) {
+                blocked++;
+            }
+        }
+        if (blocked < QUERY_COUNT * BLOCKED_PERCENT / 200 || blocked > QUERY_COUNT * BLOCKED_PERCENT * 2 / 100) {
+            throw new IllegalStateException("Unexpected blocked share: " + blocked + " of " + QUERY_COUNT);
+        }
+    }
+
+    @Benchmark
+    public boolean matchesName() {
+        return blocklist.matches(names[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean matchesQuestion() {
+        return blocklist.matches(questions[nextIndex()]);
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = (index + 1) & (QUERY_COUNT - 1);
+        return index;
+    }
+
+    /**
+     * A list entry: a tracker host or a whole registrable domain
+     */
+    private static String entry(int i, Random random) {
+        String site = WORDS[random.nextInt(WORDS.length)] + Integer.toString(i, 36) + "."
+                + TLDS[random.nextInt(TLDS.length)];
+        return random.nextInt(3) == 0 ? site : WORDS[random.nextInt(WORDS.length)] + "." + site;
+    }
+
+    /**
+     * A name with no entry, under a TLD entries also use
+     */
+    private static String allowed(Random random) {
+        return WORDS[random.nextInt(WORDS.length)] + ".site" + Integer.toString(random.nextInt(1 << 20), 36) + "."
+                + TLDS[random.nextInt(TLDS.length)];
+    }
+}
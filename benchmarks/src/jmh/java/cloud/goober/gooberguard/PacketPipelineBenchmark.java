@@ -0,0 +1,199 @@
+package cloud.goober.gooberguard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packets per second through the {@link PacketPipeline} against the old
+ * loop that read, classified and wrote every packet on one thread.
+ *
+ * The trace is mostly allowed lookups with a share of blocked names and
+ * stray non-DNS packets. Each packet is classified and blocked ones are
+ * answered; allowed ones are only counted, as the forwarder would take
+ * them. The tun read and write are a busy wait of ioNanos, so the runs
+ * with it show what overlapping tun I/O with handling is worth, and those
+ * without it what the ring handoffs cost.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class PacketPipelineBenchmark {
+    private static final int BATCH = 10000;
+    private static final int TRACE_SIZE = 1000;
+
+    /**
+     * Pipeline workers, or 0 for the single-thread loop
+     */
+    @Param({"0", "1", "2", "4"})
+    public int workers;
+
+    /**
+     * Cost of one tun read or write
+     */
+    @Param({"0", "5000"})
+    public int ioNanos;
+
+    private final List<ByteBuffer> trace = new ArrayList<>();
+    private Blocklist blocklist;
+    private final DnsResponseBuilder responseBuilder = new DnsResponseBuilder();
+
+    private PacketPipeline pipeline;
+    // Packets the source may still hand out, has handed out, and the
+    // workers have handled
+    private final AtomicLong budget = new AtomicLong();
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private long target;
+    private int next;
+
+    private PacketHandler loopHandler;
+    private ByteBuffer loopPacket;
+    private ByteBuffer loopReply;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<String> blocked = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            blocked.add("tracker" + i + ".net");
+        }
+        blocklist = new Blocklist(DomainTrie.compile(blocked), Collections.emptyList(), Collections.emptyList());
+        for (int i = 0; i < TRACE_SIZE; i++) {
+            if (i % 4 == 0) {
+                trace.add(BenchmarkPackets.query(i, "ads" + i + ".tracker" + (i % 50) + ".net", DnsQuestion.TYPE_A));
+            } else if (i % 4 == 1) {
+                // Same size as a query, sent to another port
+                ByteBuffer other = BenchmarkPackets.query(i, "www.site" + i + ".org", DnsQuestion.TYPE_A);
+                other.putShort(22, (short) 443);
+                trace.add(other);
+            } else {
+                trace.add(BenchmarkPackets.query(i, "www.site" + i + ".org", DnsQuestion.TYPE_AAAA));
+            }
+        }
+
+        if (workers == 0) {
+            loopHandler = handler();
+            loopPacket = ByteBuffer.allocateDirect(BenchmarkPackets.MAX_PACKET_SIZE);
+            loopReply = ByteBuffer.allocateDirect(BenchmarkPackets.MAX_PACKET_SIZE);
+            return;
+        }
+        pipeline = new PacketPipeline(this::readPaced, packet -> spin(ioNanos), () -> {
+            PacketHandler handler = handler();
+            return (packet, reply) -> {
+                boolean respond = handler.handle(packet, reply);
+                handled.incrementAndGet();
+                return respond;
+            };
+        }, workers, BenchmarkPackets.MAX_PACKET_SIZE);
+        pipeline.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pipeline != null) {
+            // Lets the reader out of its wait
+            budget.set(Long.MIN_VALUE);
+            pipeline.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long run() throws Exception {
+        if (workers == 0) {
+            return runLoop();
+        }
+        target += BATCH;
+        budget.addAndGet(BATCH);
+        while (handled.get() < target) {
+            Thread.onSpinWait();
+        }
+        return handled.get();
+    }
+
+    private long runLoop() throws Exception {
+        long written = 0;
+        for (int i = 0; i < BATCH; i++) {
+            loopPacket.clear();
+            int length = read(loopPacket);
+            loopPacket.position(0);
+            loopPacket.limit(length);
+            if (loopHandler.handle(loopPacket, loopReply)) {
+                spin(ioNanos);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Hand out packets as fast as the workers keep up, rather than flooding
+     * the rings and measuring drops
+     */
+    private int readPaced(ByteBuffer packet) {
+        while (true) {
+            long left = budget.get();
+            if (left == Long.MIN_VALUE) {
+                return -1;
+            }
+            if (left > 0 && issued.get() - handled.get() < PacketPipeline.DEFAULT_RING_CAPACITY / 2
+                    && budget.compareAndSet(left, left - 1)) {
+                issued.incrementAndGet();
+                return read(packet);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private int read(ByteBuffer packet) {
+        spin(ioNanos);
+        ByteBuffer source = trace.get(next++ % TRACE_SIZE).duplicate();
+        source.position(0);
+        int length = source.remaining();
+        packet.put(source);
+        return length;
+    }
+
+    /**
+     * Classify the packet and answer it if blocked, as the DNS handler does
+     * before the cache and forwarder
+     */
+    private PacketHandler handler() {
+        DnsQuestion question = new DnsQuestion();
+        return (packet, reply) -> {
+            if (!DnsPacketParser.isDnsQuery(packet) || !DnsPacketParser.parseQuestion(packet, question)) {
+                return false;
+            }
+            if (!blocklist.matches(question)) {
+                return false;
+            }
+            responseBuilder.writeBlockedResponse(packet, question, reply);
+            return true;
+        };
+    }
+
+    private static void spin(long nanos) {
+        if (nanos == 0) {
+            return;
+        }
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() - end < 0) {
+            Thread.onSpinWait();
+        }
+    }
+}
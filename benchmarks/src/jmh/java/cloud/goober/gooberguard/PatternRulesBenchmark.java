@@ -0,0 +1,69 @@
+package cloud.goober.gooberguard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiling wildcard and regex rules into automata, and matching names
+ * against the result. Half the rules are wildcards and half anchored
+ * regexes, as in lists that mix adblock and regex syntax; the names are
+ * mostly misses with one in eight matching a rule.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+public class PatternRulesBenchmark {
+    private static final int NAME_COUNT = 1024;
+
+    @Param({"100", "2000"})
+    public int rules;
+
+    private List<String> ruleList;
+    private PatternRules compiled;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        ruleList = new ArrayList<>(rules);
+        for (int i = 0; i < rules; i++) {
+            ruleList.add(i % 2 == 0 ? "ads" + i + "*.example.com" : "/^t" + i + "[0-9]+\\./");
+        }
+        compiled = PatternRules.compile(ruleList);
+
+        names = new String[NAME_COUNT];
+        for (int i = 0; i < NAME_COUNT; i++) {
+            int rule = i * 7 % rules;
+            if (i % 8 != 0) {
+                names[i] = "www.site" + i + ".example.com";
+            } else if (rule % 2 == 0) {
+                names[i] = "cdn.ads" + rule + "x.example.com";
+            } else {
+                names[i] = "t" + rule + "42.example.com";
+            }
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public PatternRules compile() {
+        return PatternRules.compile(ruleList);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean match() {
+        String name = names[next];
+        next = (next + 1) % NAME_COUNT;
+        return compiled.matches(name);
+    }
+}